@@ -3,6 +3,7 @@ import com.sailthru.gradle.ProjectType
 plugins {
     id("java")
     id("com.sailthru.gradle") version ("v0.9.0")
+    id("me.champeau.jmh") version ("0.7.2")
 }
 
 sailthru {
@@ -20,6 +21,8 @@ dependencies {
     implementation(platform("software.amazon.awssdk:bom:2.25.60"))
     implementation("software.amazon.awssdk:lambda")
     implementation("software.amazon.awssdk:sqs")
+    // lighter than the default HTTP clients, for LAZY_INIT=1
+    implementation("software.amazon.awssdk:url-connection-client")
     implementation("software.amazon.cloudwatchlogs:aws-embedded-metrics:4.2.0")
     // oddly enough awssdk does NOT have the classes for structured Lambda support
     implementation("com.amazonaws:aws-lambda-java-core:1.2.1")
@@ -27,15 +30,205 @@ dependencies {
     implementation("org.slf4j:slf4j-simple:2.0.6")
     implementation("com.fasterxml.jackson.core:jackson-databind:2.17.1")
     implementation("com.mparticle:server-events-sdk:2.5.4")
+    // SnapStart runtime hooks, no-ops on a JVM without CRaC
+    implementation("org.crac:crac:1.4.0")
 
     testImplementation(platform("org.junit:junit-bom:5.9.1"))
     testImplementation("org.junit.jupiter:junit-jupiter")
     testImplementation("org.hamcrest:hamcrest:2.2")
     testImplementation("org.mockito:mockito-core:5.12.0")
     testImplementation("org.mockito:mockito-junit-jupiter:5.12.0")
+    // same version as the okhttp the mParticle SDK brings in
+    testImplementation("com.squareup.okhttp3:mockwebserver:3.14.9")
 }
 
 tasks.test {
     useJUnitPlatform()
 }
 
+// benchmarks live in src/jmh and only run on demand: ./gradlew jmh
+jmh {
+    fork.set(1)
+    warmupIterations.set(2)
+    iterations.set(5)
+    resultFormat.set("JSON")
+    // reports gc.alloc.rate.norm, the bytes allocated per operation
+    profilers.set(listOf("gc"))
+}
+
+
+// AppCDS: a class-data sharing archive of the classes the function loads, made by a training run (CdsTraining) in
+// the Lambda Java 21 image, through the bootstrap and class loaders of the runtime, so that it matches the JVM of the
+// function. Needs Docker, and only runs on demand: ./gradlew buildCdsZip checks that the archive is used (cdsVerify)
+// and packages it with the zip of buildZip, along with cds-wrapper.sh, which passes it to the JVM once the function
+// sets AWS_LAMBDA_EXEC_WRAPPER=/var/task/cds-wrapper.sh.
+val lambdaJavaImage = "public.ecr.aws/lambda/java:21"
+val cdsTaskDir = layout.buildDirectory.dir("cds/task")
+val cdsTrainingDir = layout.buildDirectory.dir("cds/training")
+val cdsArchiveDir = layout.buildDirectory.dir("cds/archive")
+val buildZip = tasks.named<Zip>("buildZip")
+
+// the training run, kept out of the zip of the function
+val cdsTraining by sourceSets.creating {
+    compileClasspath += sourceSets.main.get().output + sourceSets.main.get().compileClasspath
+}
+
+// CdsTraining in the Lambda image, with the contents of the zip where the function has them; it starts the function
+// through the entrypoint of the image, with the given JVM options
+fun lambdaFunction(vararg args: String): List<String> = listOf(
+    "docker", "run", "--rm", "--network", "none",
+    "-v", "${cdsTaskDir.get().asFile}:/var/task:ro",
+    "-v", "${cdsTrainingDir.get().asFile}:/training:ro",
+    "-v", "${cdsArchiveDir.get().asFile}:/cds",
+    "--entrypoint", "/var/lang/bin/java",
+    lambdaJavaImage,
+    "-cp", "/training:/var/task:/var/task/lib/*", "com.sailthru.sqs.CdsTraining") + args
+
+val stageCdsTraining by tasks.registering(Sync::class) {
+    from(buildZip.map { zipTree(it.archiveFile) })
+    into(cdsTaskDir)
+}
+
+val stageCdsTrainer by tasks.registering(Sync::class) {
+    from(cdsTraining.output)
+    into(cdsTrainingDir)
+}
+
+val cdsArchive by tasks.registering(Exec::class) {
+    description = "Makes the AppCDS archive of the function with a training run in the Lambda Java image."
+    dependsOn(stageCdsTraining, stageCdsTrainer)
+    inputs.dir(cdsTaskDir)
+    inputs.dir(cdsTrainingDir)
+    outputs.file(cdsArchiveDir.map { it.file("app-cds.jsa") })
+    doFirst { cdsArchiveDir.get().asFile.mkdirs() }
+    commandLine(lambdaFunction("-XX:ArchiveClassesAtExit=/cds/app-cds.jsa"))
+}
+
+// the options cds-wrapper.sh gives the JVM of the function
+val cdsOptions = arrayOf("-XX:SharedArchiveFile=/cds/app-cds.jsa", "-Xshare:auto")
+
+// with -Xshare:auto a JVM that can't use the archive starts without it, so check that the classes of the function
+// come from its top layer, as logged by -Xlog:class+load
+val cdsVerify by tasks.registering {
+    description = "Checks that the function started by the Lambda image loads its classes from the AppCDS archive."
+    dependsOn(cdsArchive)
+    doLast {
+        val output = java.io.ByteArrayOutputStream()
+        project.exec {
+            commandLine(lambdaFunction(*cdsOptions, "-Xlog:class+load=info", "--startup"))
+            standardOutput = output
+        }
+        val loaded = output.toString().lines().filter { it.contains("com.sailthru.") || it.contains("okhttp3.") }
+        val shared = loaded.count { it.contains("source: shared objects file (top)") }
+        if (shared == 0) {
+            throw GradleException("The function loaded none of its ${loaded.size} classes from the AppCDS archive, " +
+                "run it with -Xlog:cds to see why")
+        }
+        logger.lifecycle("The function loaded {} of {} of its classes from the AppCDS archive", shared, loaded.size)
+    }
+}
+
+val buildCdsZip by tasks.registering(Zip::class) {
+    description = "Packages the zip of buildZip with the AppCDS archive and the wrapper script that uses it."
+    dependsOn(cdsVerify)
+    from(buildZip.map { zipTree(it.archiveFile) })
+    from(cdsArchive)
+    from("src/cds/cds-wrapper.sh") {
+        filePermissions { unix("rwxr-xr-x") }
+    }
+    archiveBaseName.set(buildZip.flatMap { it.archiveBaseName })
+    archiveClassifier.set("cds")
+    destinationDirectory.set(buildZip.flatMap { it.destinationDirectory })
+}
+
+// ./gradlew cdsStartupBenchmark [-PcdsRuns=20]: starts the function in new containers of the Lambda image, with and
+// without the archive, and compares how long after it was started it was done with a first invocation
+val cdsStartupBenchmark by tasks.registering {
+    description = "Compares the startup of the function with and without the AppCDS archive."
+    dependsOn(cdsArchive)
+    doLast {
+        val runs = (findProperty("cdsRuns") as String?)?.toInt() ?: 10
+        val startup = Regex("firstInvocation=(\\d+) ms")
+        fun median(values: List<Long>) = values.sorted()[values.size / 2]
+        mapOf(
+            "Without archive" to arrayOf("-Xshare:auto"),
+            "With archive" to cdsOptions,
+        ).forEach { (label, flags) ->
+            val timings = (1..runs).map {
+                val output = java.io.ByteArrayOutputStream()
+                project.exec {
+                    commandLine(lambdaFunction(*flags, "--startup"))
+                    standardOutput = output
+                }
+                startup.find(output.toString())!!.groupValues[1].toLong()
+            }
+            logger.lifecycle("{}: median first invocation {} ms, over {} runs", label, median(timings), runs)
+        }
+    }
+}
+
+// Native image: LambdaRuntime compiled by GraalVM native-image into the bootstrap of a provided.al2023 function, in
+// the GraalVM container so that nothing needs installing. The reflection, resource and proxy configuration it needs
+// is in src/main/resources/META-INF/native-image, ./gradlew nativeConfig merges into it what the CdsTraining events
+// exercise under the tracing agent. ./gradlew buildNativeZip packages the executable, and ./gradlew nativeComparison
+// [-PnativeInvocations=200] compares it with the same runtime on the JVM.
+val graalvmImage = "ghcr.io/graalvm/native-image-community:21"
+val nativeDir = layout.buildDirectory.dir("native")
+val nativeConfigDir = layout.projectDirectory
+    .dir("src/main/resources/META-INF/native-image/com.sailthru/mparticle-outgoing-lambda")
+
+// the GraalVM tools, with the contents of the zip mounted where the function has them
+fun graalvm(tool: String, classPath: String, vararg args: String): List<String> = listOf(
+    "docker", "run", "--rm", "--network", "none",
+    "-v", "${cdsTaskDir.get().asFile}:/var/task:ro",
+    "-v", "${cdsTrainingDir.get().asFile}:/training:ro",
+    "-v", "${nativeDir.get().asFile}:/native",
+    "-v", "${nativeConfigDir.asFile}:/config",
+    "--entrypoint", tool,
+    graalvmImage,
+    "-cp", classPath) + args
+
+val nativeConfig by tasks.registering(Exec::class) {
+    description = "Merges what a training run under the native-image tracing agent finds into the configuration."
+    dependsOn(stageCdsTraining, stageCdsTrainer)
+    // the handler in the JVM of the agent, rather than in a function started by the Lambda image
+    commandLine(graalvm("java", "/training:/var/task:/var/task/lib/*",
+        "-agentlib:native-image-agent=config-merge-dir=/config", "com.sailthru.sqs.CdsTraining", "--in-process"))
+}
+
+val nativeImage by tasks.registering(Exec::class) {
+    description = "Compiles the runtime loop and the handler into a native executable."
+    dependsOn(stageCdsTraining)
+    inputs.dir(cdsTaskDir)
+    outputs.file(nativeDir.map { it.file("bootstrap") })
+    doFirst { nativeDir.get().asFile.mkdirs() }
+    commandLine(graalvm("native-image", "/var/task:/var/task/lib/*", "-o", "/native/bootstrap",
+        "com.sailthru.sqs.LambdaRuntime"))
+}
+
+val buildNativeZip by tasks.registering(Zip::class) {
+    description = "Packages the native executable as the bootstrap of a provided.al2023 function."
+    from(nativeImage) {
+        filePermissions { unix("rwxr-xr-x") }
+    }
+    archiveBaseName.set(buildZip.flatMap { it.archiveBaseName })
+    archiveClassifier.set("native")
+    destinationDirectory.set(buildZip.flatMap { it.destinationDirectory })
+}
+
+// runs on the host, Linux only: the peak memory of each process is read from /proc
+val nativeComparison by tasks.registering(JavaExec::class) {
+    description = "Compares the startup, latency and memory of the native executable with the JVM build."
+    dependsOn(nativeImage)
+    classpath = sourceSets["jmh"].runtimeClasspath
+    mainClass.set("com.sailthru.sqs.RuntimeComparison")
+    val jvm = javaToolchains.launcherFor(java.toolchain).map { it.executablePath.asFile.absolutePath }
+    val taskDir = cdsTaskDir.map { it.asFile.absolutePath }
+    argumentProviders.add(CommandLineArgumentProvider {
+        listOf((findProperty("nativeInvocations") as String?) ?: "200",
+            nativeDir.get().file("bootstrap").asFile.absolutePath,
+            // the JVM the way the managed Java 21 runtime starts it
+            jvm.get(), "-XX:+TieredCompilation", "-XX:TieredStopAtLevel=1",
+            "-cp", "${taskDir.get()}:${taskDir.get()}/lib/*", "com.sailthru.sqs.LambdaRuntime")
+    })
+}
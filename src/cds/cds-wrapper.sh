@@ -0,0 +1,7 @@
+#!/bin/sh
+# AWS_LAMBDA_EXEC_WRAPPER for the function packaged by ./gradlew buildCdsZip: starts the JVM of the runtime with the
+# class-data sharing archive made by the cdsArchive task. With -Xshare:auto, the JVM loads the classes as usual when
+# the archive doesn't match it (another JDK build or class path); -Xlog:cds shows why.
+CDS_OPTIONS="-XX:SharedArchiveFile=/var/task/app-cds.jsa -Xshare:auto"
+export JAVA_TOOL_OPTIONS="${JAVA_TOOL_OPTIONS:+$JAVA_TOOL_OPTIONS }$CDS_OPTIONS"
+exec "$@"
@@ -0,0 +1,193 @@
+package com.sailthru.sqs;
+
+import com.amazonaws.services.lambda.runtime.events.SQSEvent;
+import com.sailthru.sqs.message.MParticleEventName;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Training run for the class-data sharing archive of the deployment artifact, see the cdsArchive task of the build.
+ * Not part of the zip of the function. Starts the function the way Lambda does, through the bootstrap of the Lambda
+ * Java image under its runtime interface emulator, with the given JVM options in JAVA_TOOL_OPTIONS, and invokes it
+ * with synthetic SQS events whose messages go to a local stand-in for mParticle, so that the classes of the whole path
+ * (Jackson, the mParticle model, OkHttp and Retrofit, the AWS SDK) are loaded by the class loaders of the runtime. The
+ * JVM of the function is then stopped, which is when it dumps the archive.
+ * <p>
+ * With {@code --startup}, only invokes the function once and prints how long after it was started the first event was
+ * handled, for the cdsStartupBenchmark and cdsVerify tasks. With {@code --in-process}, pushes the events through
+ * {@link SQSLambdaHandler} in this JVM instead, for the nativeConfig task.
+ */
+public final class CdsTraining {
+    private static final int EVENTS = 50;
+    private static final int RECORDS_PER_EVENT = 10;
+    private static final String ENTRYPOINT = "/lambda-entrypoint.sh";
+    private static final String HANDLER = SQSLambdaHandler.class.getName() + "::handleRequest";
+    private static final URI INVOCATIONS =
+        URI.create("http://127.0.0.1:8080/2015-03-31/functions/function/invocations");
+    private static final long START_TIMEOUT_MILLIS = 30_000;
+
+    private CdsTraining() {
+    }
+
+    public static void main(final String[] args) throws IOException, InterruptedException {
+        final List<String> options = new ArrayList<>(Arrays.asList(args));
+        final boolean inProcess = options.remove("--in-process");
+        final boolean startup = options.remove("--startup");
+        final HttpServer standIn = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        standIn.createContext("/", exchange -> {
+            exchange.getRequestBody().readAllBytes();
+            exchange.sendResponseHeaders(202, -1);
+            exchange.close();
+        });
+        standIn.start();
+        try {
+            final String apiURL = "http://127.0.0.1:" + standIn.getAddress().getPort() + "/s2s/v2/";
+            if (inProcess) {
+                runInProcess(apiURL);
+            } else {
+                runFunction(apiURL, startup, options);
+            }
+        } finally {
+            standIn.stop(0);
+        }
+        // the threads of the HTTP clients would keep the JVM up
+        System.exit(0);
+    }
+
+    private static void runFunction(final String apiURL, final boolean startup, final List<String> jvmOptions)
+        throws IOException, InterruptedException {
+        final ProcessBuilder builder = new ProcessBuilder(ENTRYPOINT, HANDLER).inheritIO();
+        builder.environment().put("JAVA_TOOL_OPTIONS", String.join(" ", jvmOptions));
+        builder.environment().putAll(functionEnvironment(builder.environment()));
+        final HttpClient client = HttpClient.newHttpClient();
+        final long start = System.nanoTime();
+        final Process emulator = builder.start();
+        try {
+            invoke(client, apiURL, 0);
+            if (startup) {
+                System.out.printf("CDS startup: firstInvocation=%d ms%n",
+                    TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+                return;
+            }
+            for (int i = 1; i < EVENTS; i++) {
+                invoke(client, apiURL, i);
+            }
+        } finally {
+            stop(emulator);
+        }
+    }
+
+    // the emulator starts the function on the first invocation, and only listens once it is up itself
+    private static void invoke(final HttpClient client, final String apiURL, final int event)
+        throws IOException, InterruptedException {
+        final HttpRequest request = HttpRequest.newBuilder(INVOCATIONS)
+            .POST(HttpRequest.BodyPublishers.ofString(syntheticEventJson(apiURL, event)))
+            .build();
+        final long giveUp = System.currentTimeMillis() + START_TIMEOUT_MILLIS;
+        while (true) {
+            try {
+                final HttpResponse<String> response = client.send(request, HttpResponse.BodyHandlers.ofString());
+                if (response.statusCode() != 200 || response.body().contains("errorType")) {
+                    throw new IOException("Invocation " + event + " failed: " + response.body());
+                }
+                return;
+            } catch (ConnectException e) {
+                if (System.currentTimeMillis() > giveUp) {
+                    throw e;
+                }
+                Thread.sleep(50);
+            }
+        }
+    }
+
+    // the JVM of the function exits on SIGTERM, which is when it dumps the archive, before the emulator is stopped
+    private static void stop(final Process emulator) throws InterruptedException {
+        emulator.descendants()
+            .filter(process -> process.info().command().filter(command -> command.endsWith("/java")).isPresent())
+            .forEach(jvm -> {
+                jvm.destroy();
+                jvm.onExit().completeOnTimeout(jvm, 1, TimeUnit.MINUTES).join();
+            });
+        emulator.destroy();
+        emulator.waitFor();
+    }
+
+    private static void runInProcess(final String apiURL) {
+        final SQSLambdaHandler handler =
+            new SQSLambdaHandler(functionEnvironment(System.getenv()), new StartupTimeline(System::nanoTime));
+        for (int i = 0; i < EVENTS; i++) {
+            handler.handleRequest(syntheticEvent(apiURL, i), null);
+        }
+    }
+
+    // the settings of the function, so that the same components are loaded
+    private static Map<String, String> functionEnvironment(final Map<String, String> base) {
+        final Map<String, String> env = new HashMap<>(base);
+        env.putIfAbsent(SQSLambdaHandler.SQS_URL_KEY, "https://sqs.us-east-1.amazonaws.com/000000000000/cds-training");
+        env.putIfAbsent("AWS_REGION", "us-east-1");
+        env.put(SQSLambdaHandler.MPARTICLE_DISABLED_KEY, "0");
+        // nothing to warm up but the stand-in, and no snapshot to prime for
+        env.put(SQSLambdaHandler.WARM_UP_KEY, "0");
+        return env;
+    }
+
+    private static SQSEvent syntheticEvent(final String apiURL, final int event) {
+        final List<SQSEvent.SQSMessage> records = new ArrayList<>(RECORDS_PER_EVENT);
+        for (int record = 0; record < RECORDS_PER_EVENT; record++) {
+            final SQSEvent.SQSMessage sqsMessage = new SQSEvent.SQSMessage();
+            sqsMessage.setMessageId(messageId(event, record));
+            sqsMessage.setReceiptHandle(messageId(event, record));
+            sqsMessage.setAttributes(Map.of("ApproximateReceiveCount", "1"));
+            sqsMessage.setBody(body(apiURL, event, record));
+            records.add(sqsMessage);
+        }
+        final SQSEvent sqsEvent = new SQSEvent();
+        sqsEvent.setRecords(records);
+        return sqsEvent;
+    }
+
+    // the same event as the function gets it from the runtime API
+    private static String syntheticEventJson(final String apiURL, final int event) {
+        final StringBuilder json = new StringBuilder("{\"Records\":[");
+        for (int record = 0; record < RECORDS_PER_EVENT; record++) {
+            if (record > 0) {
+                json.append(',');
+            }
+            json.append("{\"messageId\":\"").append(messageId(event, record))
+                .append("\",\"receiptHandle\":\"").append(messageId(event, record))
+                .append("\",\"attributes\":{\"ApproximateReceiveCount\":\"1\"},\"body\":\"")
+                .append(body(apiURL, event, record).replace("\\", "\\\\").replace("\"", "\\\""))
+                .append("\",\"eventSource\":\"aws:sqs\"}");
+        }
+        return json.append("]}").toString();
+    }
+
+    private static String messageId(final int event, final int record) {
+        return "cds-training-" + event + "-" + record;
+    }
+
+    // shaped like the messages we get from the queue, with every event name
+    private static String body(final String apiURL, final int event, final int record) {
+        final MParticleEventName[] names = MParticleEventName.values();
+        return "{\"authenticationKey\":\"training\",\"authenticationSecret\":\"training\","
+            + "\"apiURL\":\"" + apiURL + "\",\"clientId\":" + event + ","
+            + "\"profileEmail\":\"training@example.com\",\"timestamp\":\"2024-05-03T13:11:17Z[UTC]\","
+            + "\"events\":[{\"eventName\":\"" + names[(event + record) % names.length].name() + "\","
+            + "\"eventType\":\"OTHER\",\"additionalData\":{\"client_id\":\"" + event + "\","
+            + "\"profile_id\":\"6634e1bd31a2a0e8af0b" + String.format("%04d", record) + "\"}}]}";
+    }
+}
@@ -0,0 +1,64 @@
+package com.sailthru.sqs;
+
+import com.google.gson.Gson;
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonWriter;
+import com.mparticle.JSON;
+import com.mparticle.model.Batch;
+import okio.Buffer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Work done per message between validation and the request body being written: measuring the batch with Jackson and
+ * then having Retrofit's Gson converter serialize it again (the previous implementation), against encoding it once
+ * with {@link BatchEncoder} and writing the same bytes.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class BatchEncodingBenchmark {
+    @Param({"1", "50", "500"})
+    private int events;
+
+    private final MessageSerializer messageSerializer = new MessageSerializer();
+    private final Gson gson = new JSON().getGson();
+    private final TypeAdapter<Batch> adapter = gson.getAdapter(Batch.class);
+    private Batch batch;
+
+    @Setup
+    public void setUp() {
+        batch = BenchmarkMessages.message(events).toBatch(Batch.Environment.DEVELOPMENT);
+    }
+
+    @Benchmark
+    public long measureThenSerializeAgain() throws IOException {
+        final int size = messageSerializer.serializeToBytes(batch).length;
+        // what GsonRequestBodyConverter does with the body
+        final Buffer body = new Buffer();
+        try (JsonWriter writer = gson.newJsonWriter(new OutputStreamWriter(body.outputStream(),
+            StandardCharsets.UTF_8))) {
+            adapter.write(writer, batch);
+        }
+        return size + body.size();
+    }
+
+    @Benchmark
+    public long encodeOnce() throws IOException {
+        final EncodedBatch encoded = BatchEncoder.encode(batch);
+        final Buffer body = new Buffer();
+        encoded.toRequestBody().writeTo(body);
+        return encoded.size() + body.size();
+    }
+}
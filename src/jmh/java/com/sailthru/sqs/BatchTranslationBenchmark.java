@@ -0,0 +1,64 @@
+package com.sailthru.sqs;
+
+import com.mparticle.model.Batch;
+import com.mparticle.model.CustomEvent;
+import com.mparticle.model.CustomEventData;
+import com.mparticle.model.UserIdentities;
+import com.sailthru.sqs.message.BatchTranslator;
+import com.sailthru.sqs.message.MParticleOutgoingMessage;
+import com.sailthru.sqs.message.TimestampParser;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Translating a decoded message to an mParticle batch: a stream over the events with an enum lookup by name and a
+ * copy of the attributes per event (the previous implementation), against {@link BatchTranslator}, for messages of 1,
+ * 50 and 500 events. Look at gc.alloc.rate.norm for the bytes allocated per message.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class BatchTranslationBenchmark {
+    @Param({"1", "50", "500"})
+    private int events;
+
+    private MParticleOutgoingMessage message;
+
+    @Setup
+    public void setUp() {
+        message = BenchmarkMessages.message(events);
+    }
+
+    @Benchmark
+    public Batch stream() {
+        final Batch batch = new Batch();
+        batch.environment(Batch.Environment.DEVELOPMENT);
+        batch.userIdentities(new UserIdentities().email(message.getProfileEmail()));
+        if (message.getProfileMpId() != null) {
+            batch.mpid(message.getProfileMpId());
+        }
+        batch.timestampUnixtimeMs(TimestampParser.parseEpochMillis(message.getTimestamp()));
+        batch.setEvents(message.getEvents().stream()
+            .map(event -> (Object) new CustomEvent().data(
+                (CustomEventData) new CustomEventData()
+                    .eventName(event.getEventName().name())
+                    .customEventType(CustomEventData.CustomEventType.valueOf(event.getEventType().name()))
+                    .customAttributes(Map.copyOf(event.getAdditionalData()))))
+            .toList());
+        return batch;
+    }
+
+    @Benchmark
+    public Batch translator() {
+        return BatchTranslator.translate(message, Batch.Environment.DEVELOPMENT);
+    }
+}
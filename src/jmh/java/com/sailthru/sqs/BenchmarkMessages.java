@@ -0,0 +1,39 @@
+package com.sailthru.sqs;
+
+import com.sailthru.sqs.message.MParticleOutgoingMessage;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+
+/**
+ * SQS message bodies shaped like the ones we get from the queue, with a given number of events.
+ */
+final class BenchmarkMessages {
+    private BenchmarkMessages() {
+    }
+
+    static String body(final int events) {
+        final StringBuilder body = new StringBuilder()
+            .append("{\"authenticationKey\":\"key\",\"authenticationSecret\":\"secret\",")
+            .append("\"apiURL\":\"https://inbound.mparticle.com/s2s/v2/\",\"clientId\":3386,")
+            .append("\"profileEmail\":\"user@example.com\",\"timestamp\":\"2024-05-03T13:11:17Z[UTC]\",\"events\":[");
+        for (int i = 0; i < events; i++) {
+            if (i > 0) {
+                body.append(',');
+            }
+            body.append("{\"eventName\":\"").append(i % 2 == 0 ? "EMAIL_SUBSCRIBE" : "EMAIL_UNSUBSCRIBE")
+                .append("\",\"eventType\":\"OTHER\",\"additionalData\":{\"client_id\":\"3386\",")
+                .append("\"profile_id\":\"6634e1bd31a2a0e8af0b").append(String.format("%04d", i))
+                .append("\",\"list_id\":\"5609b2641aa312d6318b456b\"}}");
+        }
+        return body.append("]}").toString();
+    }
+
+    static MParticleOutgoingMessage message(final int events) {
+        try {
+            return new MessageSerializer().deserialize(body(events), MParticleOutgoingMessage.class);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
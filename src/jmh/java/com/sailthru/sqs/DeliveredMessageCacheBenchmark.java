@@ -0,0 +1,74 @@
+package com.sailthru.sqs;
+
+import com.amazonaws.services.lambda.runtime.events.SQSEvent;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.UUID;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of checking a message against a full {@link DeliveredMessageCache}, for a message that was delivered and for
+ * one that wasn't, with and without content hashing of a typical body.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class DeliveredMessageCacheBenchmark {
+    private static final int SAMPLES = 1024;
+
+    @Param({"1000000"})
+    private int entries;
+
+    @Param({"false", "true"})
+    private boolean contentHashing;
+
+    private DeliveredMessageCache cache;
+    private SQSEvent.SQSMessage[] delivered;
+    private SQSEvent.SQSMessage[] notDelivered;
+
+    @Setup
+    public void setUp() {
+        cache = new DeliveredMessageCache(entries, TimeUnit.HOURS.toMillis(1), contentHashing, System::nanoTime);
+        delivered = new SQSEvent.SQSMessage[SAMPLES];
+        notDelivered = new SQSEvent.SQSMessage[SAMPLES];
+        for (int i = 0; i < entries; i++) {
+            final SQSEvent.SQSMessage message = message(i);
+            cache.markDelivered(cache.fingerprint(message));
+            if (i < SAMPLES) {
+                delivered[i] = message;
+            }
+        }
+        for (int i = 0; i < SAMPLES; i++) {
+            notDelivered[i] = message(entries + i);
+        }
+    }
+
+    @Benchmark
+    public boolean lookupDelivered() {
+        final SQSEvent.SQSMessage message = delivered[ThreadLocalRandom.current().nextInt(SAMPLES)];
+        return cache.isDelivered(cache.fingerprint(message));
+    }
+
+    @Benchmark
+    public boolean lookupNotDelivered() {
+        final SQSEvent.SQSMessage message = notDelivered[ThreadLocalRandom.current().nextInt(SAMPLES)];
+        return cache.isDelivered(cache.fingerprint(message));
+    }
+
+    private static SQSEvent.SQSMessage message(final int index) {
+        final SQSEvent.SQSMessage message = new SQSEvent.SQSMessage();
+        message.setMessageId(UUID.randomUUID().toString());
+        message.setBody("{\"authenticationKey\":\"key\",\"authenticationSecret\":\"secret\",\"clientId\":" + index
+            + ",\"profileEmail\":\"user" + index + "@example.com\",\"events\":[{\"eventName\":\"PURCHASE\","
+            + "\"eventType\":\"PURCHASE\",\"additionalData\":{\"price\":\"12.50\"}}]}");
+        return message;
+    }
+}
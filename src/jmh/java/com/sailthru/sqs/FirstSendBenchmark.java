@@ -0,0 +1,74 @@
+package com.sailthru.sqs;
+
+import com.mparticle.model.Batch;
+import com.sailthru.sqs.message.MParticleOutgoingMessage;
+import okhttp3.OkHttpClient;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.time.Clock;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time taken by the first message sent by a new HTTP client to {@link LocalMParticleStandIn}, with and without
+ * the client warmed up by {@link ConnectionWarmer} first, as it would be during the init phase of a container. Every
+ * iteration starts with a new client and connection pool, so it measures the connection and the client of the tenant
+ * being set up; the classes are only loaded once per fork.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class FirstSendBenchmark {
+    @Param({"false", "true"})
+    private boolean warmUp;
+
+    private LocalMParticleStandIn standIn;
+    private MParticleOutgoingMessage message;
+    private EncodedBatch batch;
+    private OkHttpClient httpClient;
+    private MParticleClient client;
+
+    @Setup
+    public void setUp() {
+        standIn = new LocalMParticleStandIn();
+        message = BenchmarkMessages.message(1);
+        message.setApiURL(standIn.apiURL());
+        batch = BatchEncoder.encode(message.toBatch(Batch.Environment.DEVELOPMENT));
+    }
+
+    @Setup(Level.Iteration)
+    public void setUpClient() {
+        httpClient = ApiFactory.buildHttpClient(ApiFactory.httpSettings());
+        final S2STransport transport = new S2STransport(httpClient);
+        client = new MParticleClient(null, Batch.Environment.DEVELOPMENT, new ThrottleRegistry(Clock.systemUTC()),
+            TenantRateLimiter.unlimited(), null, transport);
+        if (warmUp) {
+            new ConnectionWarmer(apiURL -> httpClient, 1000, System::nanoTime)
+                .warmUp(List.of(MParticleClient.apiURLOf(message.getApiURL())));
+        }
+    }
+
+    @TearDown(Level.Iteration)
+    public void tearDownClient() {
+        httpClient.connectionPool().evictAll();
+    }
+
+    @TearDown
+    public void tearDown() {
+        standIn.close();
+    }
+
+    @Benchmark
+    public void firstSend() throws Exception {
+        client.submit(message, batch, Deadline.NONE);
+    }
+}
@@ -0,0 +1,98 @@
+package com.sailthru.sqs;
+
+import software.amazon.awssdk.services.sqs.SqsAsyncClient;
+import software.amazon.awssdk.services.sqs.SqsClient;
+import software.amazon.awssdk.services.sqs.model.ChangeMessageVisibilityBatchRequest;
+import software.amazon.awssdk.services.sqs.model.ChangeMessageVisibilityBatchResponse;
+import software.amazon.awssdk.services.sqs.model.ChangeMessageVisibilityBatchResultEntry;
+import software.amazon.awssdk.services.sqs.model.ChangeMessageVisibilityRequest;
+import software.amazon.awssdk.services.sqs.model.ChangeMessageVisibilityResponse;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * In-process stand-in for SQS that answers visibility changes after a fixed round trip latency, and counts the
+ * calls it receives. Provides both the blocking and the asynchronous client flavours.
+ */
+public class LocalSqsStandIn implements AutoCloseable {
+    private final long latencyMillis;
+    private final ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(4);
+    private final AtomicLong calls = new AtomicLong();
+
+    public LocalSqsStandIn(long latencyMillis) {
+        this.latencyMillis = latencyMillis;
+    }
+
+    public long getCalls() {
+        return calls.get();
+    }
+
+    public SqsClient sync() {
+        return new SqsClient() {
+            @Override
+            public ChangeMessageVisibilityResponse changeMessageVisibility(ChangeMessageVisibilityRequest request) {
+                calls.incrementAndGet();
+                try {
+                    Thread.sleep(latencyMillis);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return ChangeMessageVisibilityResponse.builder().build();
+            }
+
+            @Override
+            public String serviceName() {
+                return SERVICE_NAME;
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+    }
+
+    public SqsAsyncClient async() {
+        return new SqsAsyncClient() {
+            @Override
+            public CompletableFuture<ChangeMessageVisibilityBatchResponse> changeMessageVisibilityBatch(
+                ChangeMessageVisibilityBatchRequest request) {
+                return respondLater(ChangeMessageVisibilityBatchResponse.builder()
+                    .successful(request.entries().stream()
+                        .map(entry -> ChangeMessageVisibilityBatchResultEntry.builder().id(entry.id()).build())
+                        .toList())
+                    .build());
+            }
+
+            @Override
+            public CompletableFuture<ChangeMessageVisibilityResponse> changeMessageVisibility(
+                ChangeMessageVisibilityRequest request) {
+                return respondLater(ChangeMessageVisibilityResponse.builder().build());
+            }
+
+            @Override
+            public String serviceName() {
+                return SERVICE_NAME;
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+    }
+
+    private <T> CompletableFuture<T> respondLater(T response) {
+        calls.incrementAndGet();
+        final CompletableFuture<T> future = new CompletableFuture<>();
+        scheduler.schedule(() -> future.complete(response), latencyMillis, TimeUnit.MILLISECONDS);
+        return future;
+    }
+
+    @Override
+    public void close() {
+        scheduler.shutdownNow();
+    }
+}
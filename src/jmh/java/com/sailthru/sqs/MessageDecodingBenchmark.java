@@ -0,0 +1,46 @@
+package com.sailthru.sqs;
+
+import com.mparticle.model.Batch;
+import com.sailthru.sqs.message.MParticleOutgoingMessage;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Turning an SQS message body into the batch sent to mParticle: Jackson databind (the previous implementation)
+ * against the streaming {@link MessageDecoder}, for messages of 1, 50 and 500 events.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class MessageDecodingBenchmark {
+    @Param({"1", "50", "500"})
+    private int events;
+
+    private final MessageSerializer messageSerializer = new MessageSerializer();
+    private final MessageDecoder messageDecoder = new MessageDecoder();
+    private String body;
+
+    @Setup
+    public void setUp() {
+        body = BenchmarkMessages.body(events);
+    }
+
+    @Benchmark
+    public Batch databind() throws Exception {
+        return messageSerializer.deserialize(body, MParticleOutgoingMessage.class)
+            .toBatch(Batch.Environment.DEVELOPMENT);
+    }
+
+    @Benchmark
+    public Batch streaming() throws Exception {
+        return messageDecoder.decode(body).toBatch(Batch.Environment.DEVELOPMENT);
+    }
+}
@@ -0,0 +1,150 @@
+package com.sailthru.sqs;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * In-process stand-in for the Lambda runtime API, on a loopback port: hands the events it is given to the runtime
+ * polling it, one invocation at a time, and times each until its response or error is posted.
+ */
+public class RuntimeApiStandIn implements AutoCloseable {
+    private static final String PREFIX = "/2018-06-01/runtime/";
+
+    private final HttpServer server;
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+    private final BlockingQueue<Invocation> invocations = new LinkedBlockingQueue<>();
+    private final Map<String, Invocation> pending = new ConcurrentHashMap<>();
+    private final AtomicInteger requestIds = new AtomicInteger();
+    private final CompletableFuture<Long> firstPoll = new CompletableFuture<>();
+
+    public RuntimeApiStandIn() {
+        try {
+            server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        server.createContext(PREFIX, this::handle);
+        server.setExecutor(executor);
+        server.start();
+    }
+
+    /**
+     * The value of AWS_LAMBDA_RUNTIME_API for the runtime, host and port.
+     */
+    public String address() {
+        return server.getAddress().getHostString() + ":" + server.getAddress().getPort();
+    }
+
+    /**
+     * Waits for the runtime to poll for its first invocation.
+     *
+     * @return the {@link System#nanoTime()} of the poll
+     */
+    public long awaitFirstPoll(final long timeoutMillis) throws InterruptedException, TimeoutException {
+        return await(firstPoll, timeoutMillis);
+    }
+
+    /**
+     * Hands an event to the runtime and waits for its response.
+     *
+     * @return the nanoseconds from the event being handed over to the response being posted
+     * @throws IllegalStateException if the runtime posted an error instead
+     */
+    public long invoke(final byte[] event, final long timeoutMillis) throws InterruptedException, TimeoutException {
+        final Invocation invocation = new Invocation(String.valueOf(requestIds.incrementAndGet()), event);
+        pending.put(invocation.requestId, invocation);
+        invocations.add(invocation);
+        final long response = await(invocation.response, timeoutMillis);
+        return response - invocation.handedOverNanos;
+    }
+
+    private void handle(final HttpExchange exchange) throws IOException {
+        final String path = exchange.getRequestURI().getPath().substring(PREFIX.length());
+        try (InputStream body = exchange.getRequestBody()) {
+            if ("invocation/next".equals(path)) {
+                firstPoll.complete(System.nanoTime());
+                next(exchange);
+                return;
+            }
+            final byte[] posted = body.readAllBytes();
+            final String[] parts = path.split("/");
+            final Invocation invocation = parts.length == 3 ? pending.remove(parts[1]) : null;
+            if (invocation == null) {
+                firstPoll.completeExceptionally(new IllegalStateException("Runtime failed: " + new String(posted)));
+            } else if ("response".equals(parts[2])) {
+                invocation.response.complete(System.nanoTime());
+            } else {
+                invocation.response.completeExceptionally(new IllegalStateException(new String(posted)));
+            }
+            exchange.sendResponseHeaders(202, -1);
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private void next(final HttpExchange exchange) throws IOException {
+        final Invocation invocation;
+        try {
+            invocation = invocations.take();
+        } catch (InterruptedException e) {
+            // closing, the runtime is gone
+            Thread.currentThread().interrupt();
+            return;
+        }
+        exchange.getResponseHeaders().set(LambdaRuntime.REQUEST_ID_HEADER, invocation.requestId);
+        exchange.getResponseHeaders().set(LambdaRuntime.DEADLINE_HEADER,
+            String.valueOf(System.currentTimeMillis() + TimeUnit.MINUTES.toMillis(1)));
+        exchange.getResponseHeaders().set(LambdaRuntime.FUNCTION_ARN_HEADER,
+            "arn:aws:lambda:us-east-1:000000000000:function:runtime-comparison");
+        invocation.handedOverNanos = System.nanoTime();
+        exchange.sendResponseHeaders(200, invocation.event.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(invocation.event);
+        }
+    }
+
+    private static long await(final CompletableFuture<Long> future, final long timeoutMillis)
+        throws InterruptedException, TimeoutException {
+        try {
+            return future.get(timeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (ExecutionException e) {
+            throw (RuntimeException) e.getCause();
+        }
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    private static final class Invocation {
+        private final String requestId;
+        private final byte[] event;
+        private final CompletableFuture<Long> response = new CompletableFuture<>();
+        private volatile long handedOverNanos;
+
+        private Invocation(String requestId, byte[] event) {
+            this.requestId = requestId;
+            this.event = event;
+        }
+    }
+}
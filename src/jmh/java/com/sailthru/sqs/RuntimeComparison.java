@@ -0,0 +1,131 @@
+package com.sailthru.sqs;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Compares the native executable of {@link LambdaRuntime} with the same runtime on the JVM, see the nativeComparison
+ * task of the build: starts each as the function would be, against a {@link RuntimeApiStandIn} and with messages sent
+ * to a {@link LocalMParticleStandIn}, then reports the time to the first poll of the runtime API, the latency of the
+ * invocations and the peak resident memory of the process (VmHWM, so Linux only).
+ * <p>
+ * Arguments: the number of invocations, the path of the native executable, then the command that runs the JVM build.
+ */
+public final class RuntimeComparison {
+    private static final long TIMEOUT_MILLIS = TimeUnit.SECONDS.toMillis(60);
+    private static final int RECORDS_PER_EVENT = 10;
+    private static final int EVENTS_PER_MESSAGE = 5;
+    private static final JsonFactory JSON = new JsonFactory();
+
+    private RuntimeComparison() {
+    }
+
+    public static void main(final String[] args) throws Exception {
+        final int invocations = Integer.parseInt(args[0]);
+        try (LocalMParticleStandIn mParticle = new LocalMParticleStandIn()) {
+            final List<byte[]> events = new ArrayList<>(invocations);
+            for (int i = 0; i < invocations; i++) {
+                events.add(event(mParticle.apiURL(), i));
+            }
+            run("Native", List.of(args[1]), events);
+            run("JVM", Arrays.asList(args).subList(2, args.length), events);
+        }
+    }
+
+    private static void run(final String label, final List<String> command, final List<byte[]> events)
+        throws IOException, InterruptedException, TimeoutException {
+        try (RuntimeApiStandIn runtimeApi = new RuntimeApiStandIn()) {
+            final ProcessBuilder builder = new ProcessBuilder(command)
+                .redirectErrorStream(true)
+                .redirectOutput(ProcessBuilder.Redirect.DISCARD);
+            builder.environment().putAll(functionEnvironment(runtimeApi.address()));
+            final long started = System.nanoTime();
+            final Process process = builder.start();
+            try {
+                final long initNanos = runtimeApi.awaitFirstPoll(TIMEOUT_MILLIS) - started;
+                final long[] latencies = new long[events.size()];
+                for (int i = 0; i < latencies.length; i++) {
+                    latencies[i] = runtimeApi.invoke(events.get(i), TIMEOUT_MILLIS);
+                }
+                final long firstNanos = latencies[0];
+                Arrays.sort(latencies, 1, latencies.length);
+                System.out.printf("%s: init %d ms, first invocation %.1f ms, then median %.2f ms, p99 %.2f ms,"
+                        + " peak RSS %d MB%n", label, TimeUnit.NANOSECONDS.toMillis(initNanos), firstNanos / 1e6,
+                    percentile(latencies, 0.5) / 1e6, percentile(latencies, 0.99) / 1e6,
+                    peakResidentKilobytes(process.pid()) / 1024);
+            } finally {
+                process.destroyForcibly();
+                process.waitFor();
+            }
+        }
+    }
+
+    // what the function is configured with, but for the stand-ins
+    private static Map<String, String> functionEnvironment(final String runtimeApi) {
+        return Map.of(
+            LambdaRuntime.RUNTIME_API_KEY, runtimeApi,
+            SQSLambdaHandler.SQS_URL_KEY, "https://sqs.us-east-1.amazonaws.com/000000000000/runtime-comparison",
+            SQSLambdaHandler.MPARTICLE_DISABLED_KEY, "0",
+            SQSLambdaHandler.WARM_UP_KEY, "0",
+            "AWS_REGION", "us-east-1",
+            "AWS_ACCESS_KEY_ID", "comparison",
+            "AWS_SECRET_ACCESS_KEY", "comparison",
+            "AWS_LAMBDA_FUNCTION_NAME", "runtime-comparison",
+            "AWS_LAMBDA_FUNCTION_MEMORY_SIZE", "512");
+    }
+
+    // the latencies after the first invocation, which is reported on its own
+    private static long percentile(final long[] latencies, final double percentile) {
+        if (latencies.length == 1) {
+            return latencies[0];
+        }
+        return latencies[1 + (int) ((latencies.length - 2) * percentile)];
+    }
+
+    private static long peakResidentKilobytes(final long pid) throws IOException {
+        for (String line : Files.readAllLines(Path.of("/proc", String.valueOf(pid), "status"))) {
+            if (line.startsWith("VmHWM:")) {
+                return Long.parseLong(line.replaceAll("\\D", ""));
+            }
+        }
+        return -1;
+    }
+
+    // new message ids and bodies for every invocation, so that none is skipped as already delivered
+    private static byte[] event(final String apiURL, final int invocation) throws IOException {
+        final String body = BenchmarkMessages.body(EVENTS_PER_MESSAGE)
+            .replace("https://inbound.mparticle.com/s2s/v2/", apiURL);
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (JsonGenerator generator = JSON.createGenerator(bytes)) {
+            generator.writeStartObject();
+            generator.writeArrayFieldStart("Records");
+            for (int record = 0; record < RECORDS_PER_EVENT; record++) {
+                generator.writeStartObject();
+                generator.writeStringField("messageId", "comparison-" + invocation + "-" + record);
+                generator.writeStringField("receiptHandle", "comparison-" + invocation + "-" + record);
+                generator.writeStringField("body",
+                    body.replace("\"clientId\":3386", "\"clientId\":" + (invocation * RECORDS_PER_EVENT + record)));
+                generator.writeObjectFieldStart("attributes");
+                generator.writeStringField("ApproximateReceiveCount", "1");
+                generator.writeEndObject();
+                generator.writeStringField("eventSource", "aws:sqs");
+                generator.writeStringField("awsRegion", "us-east-1");
+                generator.writeEndObject();
+            }
+            generator.writeEndArray();
+            generator.writeEndObject();
+        }
+        return bytes.toByteArray();
+    }
+}
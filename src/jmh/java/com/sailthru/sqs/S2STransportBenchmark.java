@@ -0,0 +1,88 @@
+package com.sailthru.sqs;
+
+import com.mparticle.model.Batch;
+import com.sailthru.sqs.message.MParticleOutgoingMessage;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+
+import java.time.Clock;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Messages sent per second to {@link LocalMParticleStandIn} by {@link MParticleClient}, from 4 threads: through the
+ * Retrofit services of {@link ApiFactory} (the previous implementation) against {@link S2STransport}. Each message
+ * uses one of a few sets of credentials, as messages from several tenants would.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Threads(4)
+public class S2STransportBenchmark {
+    @Param({"1", "50"})
+    private int events;
+
+    @Param({"8"})
+    private int tenants;
+
+    private LocalMParticleStandIn standIn;
+    private MParticleClient retrofitClient;
+    private MParticleClient s2sClient;
+    private MParticleOutgoingMessage[] messages;
+    private EncodedBatch[] batches;
+
+    @Setup
+    public void setUp() {
+        standIn = new LocalMParticleStandIn();
+        final ThrottleRegistry throttleRegistry = new ThrottleRegistry(Clock.systemUTC());
+        retrofitClient = new MParticleClient(new ApiFactory(), Batch.Environment.DEVELOPMENT, throttleRegistry,
+            TenantRateLimiter.unlimited(), null, null);
+        s2sClient = new MParticleClient(null, Batch.Environment.DEVELOPMENT, throttleRegistry,
+            TenantRateLimiter.unlimited(), null, new S2STransport(ApiFactory.httpClient()));
+        messages = new MParticleOutgoingMessage[tenants];
+        batches = new EncodedBatch[tenants];
+        for (int i = 0; i < tenants; i++) {
+            messages[i] = BenchmarkMessages.message(events);
+            messages[i].setAuthenticationKey("key" + i);
+            messages[i].setApiURL(standIn.apiURL());
+            batches[i] = BatchEncoder.encode(messages[i].toBatch(Batch.Environment.DEVELOPMENT));
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        standIn.close();
+    }
+
+    @Benchmark
+    public void retrofit(final Tenant tenant) throws Exception {
+        final int i = tenant.next(tenants);
+        retrofitClient.submit(messages[i], batches[i], Deadline.NONE);
+    }
+
+    @Benchmark
+    public void s2sTransport(final Tenant tenant) throws Exception {
+        final int i = tenant.next(tenants);
+        s2sClient.submit(messages[i], batches[i], Deadline.NONE);
+    }
+
+    /**
+     * Cycles through the tenants, separately for each thread.
+     */
+    @State(Scope.Thread)
+    public static class Tenant {
+        private int next;
+
+        int next(final int tenants) {
+            next = (next + 1) % tenants;
+            return next;
+        }
+    }
+}
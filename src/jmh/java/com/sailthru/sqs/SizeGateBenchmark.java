@@ -0,0 +1,70 @@
+package com.sailthru.sqs;
+
+import com.google.gson.Gson;
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonWriter;
+import com.mparticle.JSON;
+import com.mparticle.model.Batch;
+import com.sailthru.sqs.message.MParticleOutgoingMessage;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of the size check in {@link MessageProcessor}, per message: encoding the whole batch into a new array to read
+ * its length (the previous implementation), against the upper bound used for most messages and the exact count used
+ * for the others. Look at gc.alloc.rate.norm for the bytes allocated per message.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class SizeGateBenchmark {
+    @Param({"1", "50", "500"})
+    private int events;
+
+    private final Gson gson = new JSON().getGson();
+    private final TypeAdapter<Batch> adapter = gson.getAdapter(Batch.class);
+    private MParticleOutgoingMessage message;
+    private Batch batch;
+
+    @Setup
+    public void setUp() {
+        message = BenchmarkMessages.message(events);
+        batch = message.toBatch(Batch.Environment.DEVELOPMENT);
+    }
+
+    @Benchmark
+    public int encodeToMeasure() throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (JsonWriter writer = gson.newJsonWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8))) {
+            adapter.write(writer, batch);
+        }
+        return out.toByteArray().length;
+    }
+
+    @Benchmark
+    public long upperBound() {
+        return message.maxEncodedBatchSize();
+    }
+
+    @Benchmark
+    public long countExactly() {
+        return BatchEncoder.measure(batch);
+    }
+
+    @Benchmark
+    public int encodeWithPooledBuffer() {
+        return BatchEncoder.toBytes(batch).length;
+    }
+}
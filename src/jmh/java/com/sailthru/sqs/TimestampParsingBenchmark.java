@@ -0,0 +1,37 @@
+package com.sailthru.sqs;
+
+import com.sailthru.sqs.message.TimestampParser;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+import java.time.ZonedDateTime;
+import java.util.concurrent.TimeUnit;
+
+import static java.time.format.DateTimeFormatter.ISO_DATE_TIME;
+
+/**
+ * Parsing a message timestamp: {@code ZonedDateTime.parse} with ISO_DATE_TIME (the previous implementation) against
+ * {@link TimestampParser}, for the layout our producer emits and for one that falls back to the formatter.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class TimestampParsingBenchmark {
+    @Param({"2024-05-03T13:11:17Z[UTC]", "2024-05-03T13:11:17.123+02:00", "2024-05-03T13:11Z"})
+    private String timestamp;
+
+    @Benchmark
+    public long formatter() {
+        return ZonedDateTime.parse(timestamp, ISO_DATE_TIME).toInstant().toEpochMilli();
+    }
+
+    @Benchmark
+    public Long fastPath() {
+        return TimestampParser.parseEpochMillis(timestamp);
+    }
+}
@@ -0,0 +1,70 @@
+package com.sailthru.sqs;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import software.amazon.awssdk.services.sqs.SqsClient;
+import software.amazon.awssdk.services.sqs.model.ChangeMessageVisibilityRequest;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.IntStream;
+
+/**
+ * Time spent changing visibility timeouts at the end of an invocation: one blocking call per failed message (the
+ * previous implementation) against {@link VisibilityChanger}'s concurrent batches, with SQS simulated by
+ * {@link LocalSqsStandIn}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class VisibilityChangeBenchmark {
+    private static final String QUEUE_URL = "http://localhost/queue/benchmark";
+
+    @Param({"1", "10", "100"})
+    private int failedMessages;
+
+    @Param({"5"})
+    private long latencyMillis;
+
+    private LocalSqsStandIn standIn;
+    private SqsClient syncClient;
+    private VisibilityChanger visibilityChanger;
+    private List<VisibilityChanger.VisibilityChange> changes;
+
+    @Setup
+    public void setUp() {
+        standIn = new LocalSqsStandIn(latencyMillis);
+        syncClient = standIn.sync();
+        visibilityChanger = new VisibilityChanger(standIn.async(), QUEUE_URL);
+        changes = IntStream.range(0, failedMessages)
+            .mapToObj(i -> new VisibilityChanger.VisibilityChange(
+                new FailedRequest("id" + i, 429, 60, "receipt" + i, 1), 60))
+            .toList();
+    }
+
+    @TearDown
+    public void tearDown() {
+        standIn.close();
+    }
+
+    @Benchmark
+    public void perMessageCalls() {
+        changes.forEach(change -> syncClient.changeMessageVisibility(ChangeMessageVisibilityRequest.builder()
+            .queueUrl(QUEUE_URL)
+            .receiptHandle(change.failedRequest().getReceiptHandle())
+            .visibilityTimeout(change.visibilityTimeout())
+            .build()));
+    }
+
+    @Benchmark
+    public void batchedAsyncCalls() {
+        visibilityChanger.changeVisibility(changes);
+    }
+}
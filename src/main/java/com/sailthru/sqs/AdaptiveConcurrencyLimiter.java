@@ -0,0 +1,275 @@
+package com.sailthru.sqs;
+
+import com.sailthru.sqs.exception.ConcurrencyLimitExceededException;
+import com.sailthru.sqs.exception.RetryLaterException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.LongSupplier;
+
+/**
+ * Limits the number of concurrent calls to a single mParticle workspace (API key and endpoint) with an AIMD
+ * (additive increase, multiplicative decrease) algorithm: the limit grows by one for every limit's worth of
+ * successful calls, and is cut whenever mParticle pushes back, either with a 429/5xx or with a latency well above
+ * the lowest one seen recently.
+ * <p>
+ * Limiters are kept in a {@link ClientCache}, like the services of {@link ApiFactory}, so what was learned about a
+ * workspace carries over to the next warm invocation while workspaces which are no longer called are dropped.
+ */
+public class AdaptiveConcurrencyLimiter {
+    private static final Logger LOGGER = LoggerFactory.getLogger(AdaptiveConcurrencyLimiter.class);
+    static final String ENABLED_KEY = "ADAPTIVE_CONCURRENCY";
+    static final String INITIAL_LIMIT_KEY = "ADAPTIVE_CONCURRENCY_INITIAL";
+    static final String MAX_LIMIT_KEY = "ADAPTIVE_CONCURRENCY_MAX";
+    static final String MAX_QUEUE_MILLIS_KEY = "ADAPTIVE_CONCURRENCY_MAX_QUEUE_MS";
+
+    private static final boolean ENABLED = EnvVars.getFlag(ENABLED_KEY);
+    private static final Settings SETTINGS = new Settings(
+        EnvVars.getInt(INITIAL_LIMIT_KEY, 4),
+        EnvVars.getInt(MAX_LIMIT_KEY, 64),
+        EnvVars.getInt(MAX_QUEUE_MILLIS_KEY, 5000));
+    // VisibleForTesting
+    static final ClientCache<Workspace, AdaptiveConcurrencyLimiter> LIMITERS = ClientCache.fromEnvironment();
+
+    // cut in half on an explicit rejection, more gently when only the latency suggests congestion
+    private static final double BACKOFF_RATIO = 0.5;
+    private static final double LATENCY_BACKOFF_RATIO = 0.9;
+    // how far above the baseline the latency can go before it counts as congestion
+    private static final double LATENCY_TOLERANCE = 2.0;
+    // how quickly the baseline follows latencies above it, so it can recover from an unusually fast call
+    private static final double BASELINE_DRIFT = 0.05;
+    private static final double MIN_LIMIT = 1;
+
+    private final Workspace workspace;
+    private final Settings settings;
+    private final LongSupplier nanoClock;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition permitReleased = lock.newCondition();
+
+    // all guarded by the lock
+    private double limit;
+    private int inFlight;
+    private long baselineLatencyNanos;
+    private long lastDecreaseNanos;
+    private long acquisitions;
+    private long totalQueueNanos;
+    private long maxQueueNanos;
+
+    // @VisibleForTesting
+    AdaptiveConcurrencyLimiter(Workspace workspace, Settings settings, LongSupplier nanoClock) {
+        this.workspace = workspace;
+        this.settings = settings;
+        this.nanoClock = nanoClock;
+        this.limit = Math.max(MIN_LIMIT, Math.min(settings.initialLimit(), settings.maxLimit()));
+        this.lastDecreaseNanos = nanoClock.getAsLong();
+    }
+
+    public static boolean isEnabled() {
+        return ENABLED;
+    }
+
+    /**
+     * The shared limiter for the given workspace.
+     */
+    public static AdaptiveConcurrencyLimiter forWorkspace(final String apiKey, final String apiURL) {
+        return LIMITERS.get(new Workspace(apiKey, apiURL),
+            workspace -> new AdaptiveConcurrencyLimiter(workspace, SETTINGS, System::nanoTime));
+    }
+
+    /**
+     * Snapshots of the limiters used since the last call, resetting their queueing statistics.
+     */
+    public static List<Snapshot> drainSnapshots() {
+        final List<Snapshot> snapshots = new ArrayList<>();
+        LIMITERS.forEachValue(limiter -> {
+            final Snapshot snapshot = limiter.drainSnapshot();
+            if (snapshot.acquisitions() > 0) {
+                snapshots.add(snapshot);
+            }
+        });
+        return snapshots;
+    }
+
+    /**
+     * Wait for a permit, for at most the configured maximum queueing time or the time left before the deadline.
+     *
+     * @throws ConcurrencyLimitExceededException if no permit became available in time
+     * @throws RetryLaterException if interrupted while waiting
+     */
+    public Permit acquire(final Deadline deadline) throws RetryLaterException {
+        final long start = nanoClock.getAsLong();
+        long waitNanos = Math.min(TimeUnit.MILLISECONDS.toNanos(settings.maxQueueMillis()),
+            deadline.isBounded() ? TimeUnit.MILLISECONDS.toNanos(deadline.remainingMillis()) : Long.MAX_VALUE);
+
+        lock.lock();
+        try {
+            while (inFlight >= (int) limit) {
+                if (waitNanos <= 0) {
+                    throw new ConcurrencyLimitExceededException("Timed out waiting for a concurrency permit for API"
+                        + " key " + workspace.apiKey() + ", limit is " + (int) limit);
+                }
+                waitNanos = permitReleased.awaitNanos(waitNanos);
+            }
+            inFlight++;
+
+            final long queueNanos = nanoClock.getAsLong() - start;
+            acquisitions++;
+            totalQueueNanos += queueNanos;
+            maxQueueNanos = Math.max(maxQueueNanos, queueNanos);
+            return new Permit(nanoClock.getAsLong());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RetryLaterException(e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getLimit() {
+        lock.lock();
+        try {
+            return (int) limit;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void release(final Outcome outcome, final long latencyNanos) {
+        lock.lock();
+        try {
+            inFlight--;
+            switch (outcome) {
+                case SUCCESS -> {
+                    updateBaseline(latencyNanos);
+                    if (latencyNanos > baselineLatencyNanos * LATENCY_TOLERANCE) {
+                        decrease(LATENCY_BACKOFF_RATIO);
+                    } else {
+                        limit = Math.min(settings.maxLimit(), limit + 1 / limit);
+                    }
+                }
+                case OVERLOADED -> decrease(BACKOFF_RATIO);
+                case IGNORED -> {
+                    // says nothing about the capacity of the workspace
+                }
+            }
+            permitReleased.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void updateBaseline(final long latencyNanos) {
+        if (baselineLatencyNanos == 0 || latencyNanos < baselineLatencyNanos) {
+            baselineLatencyNanos = latencyNanos;
+        } else {
+            baselineLatencyNanos += (long) ((latencyNanos - baselineLatencyNanos) * BASELINE_DRIFT);
+        }
+    }
+
+    private void decrease(final double ratio) {
+        // the calls already in flight when the first one was rejected are likely to be rejected too, only react to
+        // the congestion once per round trip
+        final long now = nanoClock.getAsLong();
+        if (now - lastDecreaseNanos < baselineLatencyNanos) {
+            return;
+        }
+        lastDecreaseNanos = now;
+
+        final double previous = limit;
+        limit = Math.max(MIN_LIMIT, limit * ratio);
+        LOGGER.info("Reduced concurrency limit for API key {} from {} to {}", workspace.apiKey(), (int) previous,
+            (int) limit);
+    }
+
+    private Snapshot drainSnapshot() {
+        lock.lock();
+        try {
+            final Snapshot snapshot = new Snapshot(workspace.apiKey(), workspace.apiURL(), (int) limit, acquisitions,
+                acquisitions > 0 ? nanosToMillis(totalQueueNanos / acquisitions) : 0, nanosToMillis(maxQueueNanos));
+            acquisitions = 0;
+            totalQueueNanos = 0;
+            maxQueueNanos = 0;
+            return snapshot;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static double nanosToMillis(final long nanos) {
+        return nanos / 1_000_000.0;
+    }
+
+    private enum Outcome {
+        SUCCESS, OVERLOADED, IGNORED
+    }
+
+    /**
+     * A single call's right to proceed. Exactly one of the methods must be called once the call completes, later
+     * calls are ignored.
+     */
+    public final class Permit implements AutoCloseable {
+        private final long startNanos;
+        private final AtomicBoolean released = new AtomicBoolean();
+
+        private Permit(long startNanos) {
+            this.startNanos = startNanos;
+        }
+
+        /**
+         * The call completed with the given HTTP status code.
+         */
+        public void onResponse(final int statusCode) {
+            final Outcome outcome;
+            if (statusCode == MParticleClient.TOO_MANY_REQUESTS || statusCode >= 500) {
+                outcome = Outcome.OVERLOADED;
+            } else if (statusCode >= 200 && statusCode < 300) {
+                outcome = Outcome.SUCCESS;
+            } else {
+                outcome = Outcome.IGNORED;
+            }
+            release(outcome);
+        }
+
+        /**
+         * The call failed without a response, most likely a timeout.
+         */
+        public void onError() {
+            release(Outcome.OVERLOADED);
+        }
+
+        /**
+         * Release the permit without learning anything from the call, if it hasn't been released yet.
+         */
+        @Override
+        public void close() {
+            release(Outcome.IGNORED);
+        }
+
+        private void release(final Outcome outcome) {
+            if (released.compareAndSet(false, true)) {
+                AdaptiveConcurrencyLimiter.this.release(outcome, nanoClock.getAsLong() - startNanos);
+            }
+        }
+    }
+
+    // @VisibleForTesting
+    record Workspace(String apiKey, String apiURL) {
+    }
+
+    // @VisibleForTesting
+    record Settings(int initialLimit, int maxLimit, int maxQueueMillis) {
+    }
+
+    /**
+     * The state of a limiter, with the queueing statistics since the previous snapshot.
+     */
+    public record Snapshot(String apiKey, String apiURL, int limit, long acquisitions, double averageQueueMillis,
+                           double maxQueueMillis) {
+    }
+}
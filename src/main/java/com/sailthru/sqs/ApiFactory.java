@@ -1,77 +1,147 @@
 package com.sailthru.sqs;
 
-import com.mparticle.ApiClient;
-import com.mparticle.client.EventsApi;
 import okhttp3.ConnectionPool;
+import okhttp3.Credentials;
+import okhttp3.Dispatcher;
 import okhttp3.OkHttpClient;
+import okhttp3.Protocol;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import software.amazon.awssdk.utils.StringUtils;
+import retrofit2.Retrofit;
 
-import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.List;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.locks.ReentrantLock;
-import java.util.function.BiFunction;
+import java.util.function.Function;
 
+/**
+ * Builds the Retrofit services that send to mParticle through the SDK-compatible {@link EncodedEventsApi}, one per
+ * set of credentials and endpoint, and keeps them in a bounded {@link ClientCache}. Used when the {@link S2STransport}
+ * is turned off.
+ */
 public class ApiFactory {
-    private static final String HTTP_POOL_KEEPALIVE_SECONDS = "HTTP_POOL_KEEPALIVE_SECONDS";
+    static final String HTTP_POOL_MAX_IDLE = "HTTP_POOL_MAX_IDLE";
+    static final String HTTP_POOL_KEEPALIVE_SECONDS = "HTTP_POOL_KEEPALIVE_SECONDS";
+    static final String HTTP_MAX_REQUESTS = "HTTP_MAX_REQUESTS";
+    static final String HTTP_MAX_REQUESTS_PER_HOST = "HTTP_MAX_REQUESTS_PER_HOST";
+    static final String HTTP_PROTOCOL = "HTTP_PROTOCOL";
+    static final String HTTP_CONNECT_TIMEOUT_MS = "HTTP_CONNECT_TIMEOUT_MS";
+    static final String HTTP_READ_TIMEOUT_MS = "HTTP_READ_TIMEOUT_MS";
+    static final String HTTP_WRITE_TIMEOUT_MS = "HTTP_WRITE_TIMEOUT_MS";
     private static final Logger LOGGER = LoggerFactory.getLogger(ApiFactory.class);
-    private static final OkHttpClient commonHttpClient = new OkHttpClient.Builder()
-        .connectionPool(new ConnectionPool(5,
-            safeParseInt(System.getenv(HTTP_POOL_KEEPALIVE_SECONDS), 300),
-            TimeUnit.SECONDS))
-        .build();
+    private static final String AUTHORIZATION = "Authorization";
+    private static final HttpSettings HTTP_SETTINGS = HttpSettings.fromEnvironment();
+    private static final OkHttpClient commonHttpClient = buildHttpClient(HTTP_SETTINGS);
     // VisibleForTesting
-    static final Map<ClientApiDetails, EventsApi> CACHE = new ConcurrentHashMap<>();
-    private static final ReentrantLock lock = new ReentrantLock();
+    static final ClientCache<ClientApiDetails, EncodedEventsApi> CACHE = ClientCache.fromEnvironment();
 
-    private BiFunction<String, String, ApiClient> apiClientFactory = ApiClient::new;
+    private Function<ClientApiDetails, EncodedEventsApi> serviceFactory = ApiFactory::createService;
 
-    public EventsApi of(final String apiKey, final String apiSecret, final String apiURL) {
-        final ClientApiDetails apiDetails = new ClientApiDetails(apiKey, apiSecret, apiURL);
-        return CACHE.computeIfAbsent(apiDetails, details -> {
-            // we can only run one configuration segment at a time, globally, since ApiClient incorrectly
-            // makes its OkHttpClient.Builder a static instance - so if you have multiple threads trying
-            // to construct instances at the same time, you can run into trouble.
-            // This makes the concurrent map slightly less performant, but only if we're hitting contention
-            // due to multiple messages coming up at same time with different cache keys. In steady state
-            // the lock will not be used.
-            //
-            // once the EventsApi instance is returned, we're OK because the OkHttpClient.Builder instance
-            // was already called to obtain a new OkHttpClient instance, which is bound to the Retrofit
-            // object.
-            lock.lock();
-            try {
-                ApiClient client = apiClientFactory.apply(details.apiKey(), details.apiSecret());
-                // use the same connection pool for everybody
-                client.configureFromOkclient(commonHttpClient);
-                client.getAdapterBuilder().baseUrl(details.apiURL());
-                return client.createService(EventsApi.class);
-            } finally {
-                lock.unlock();
-            }
-        });
+    public EncodedEventsApi of(final String apiKey, final String apiSecret, final String apiURL) {
+        return of(new ClientApiDetails(apiKey, apiSecret, apiURL));
+    }
+
+    public EncodedEventsApi of(final ClientApiDetails apiDetails) {
+        return CACHE.get(apiDetails, serviceFactory);
+    }
+
+    /**
+     * Totals of the service cache since the last call.
+     */
+    static ClientCache.Stats drainCacheStats() {
+        return CACHE.drainStats();
     }
 
+    // Built without the SDK's ApiClient, whose static OkHttpClient.Builder made it unsafe to build two at once: the
+    // calls set the same Basic authorization header ApiClient did, and are made with the client for the endpoint,
+    // looked up for every call since the one of an evicted bulkhead is shut down.
     // VisibleForTesting
-    void setApiClientFactory(BiFunction<String, String, ApiClient> apiClientFactory) {
-        this.apiClientFactory = apiClientFactory;
+    static EncodedEventsApi createService(final ClientApiDetails details) {
+        final String authorization = Credentials.basic(details.apiKey(), details.apiSecret());
+        return new Retrofit.Builder()
+            .baseUrl(details.apiURL())
+            .callFactory(request -> EndpointBulkhead.clientFor(details.apiURL()).newCall(request.newBuilder()
+                .header(AUTHORIZATION, authorization)
+                .build()))
+            .build()
+            .create(EncodedEventsApi.class);
+    }
+
+    /**
+     * The client every request to mParticle is made with, whichever way it is sent.
+     */
+    static OkHttpClient httpClient() {
+        return commonHttpClient;
+    }
+
+    static HttpSettings httpSettings() {
+        return HTTP_SETTINGS;
+    }
+
+    // VisibleForTesting
+    static OkHttpClient buildHttpClient(final HttpSettings settings) {
+        final Dispatcher dispatcher = new Dispatcher();
+        dispatcher.setMaxRequests(settings.maxRequests());
+        dispatcher.setMaxRequestsPerHost(settings.maxRequestsPerHost());
+        final OkHttpClient.Builder builder = new OkHttpClient.Builder()
+            .connectionPool(new ConnectionPool(settings.maxIdleConnections(), settings.keepAliveSeconds(),
+                TimeUnit.SECONDS))
+            .dispatcher(dispatcher)
+            .protocols(settings.protocols())
+            .connectTimeout(settings.connectTimeoutMillis(), TimeUnit.MILLISECONDS)
+            .readTimeout(settings.readTimeoutMillis(), TimeUnit.MILLISECONDS)
+            .writeTimeout(settings.writeTimeoutMillis(), TimeUnit.MILLISECONDS)
+            .eventListener(ConnectionReuseListener.getInstance());
+        if (GzipRequestInterceptor.isEnabled()) {
+            // every client is this one or built from it, so they all keep the interceptor
+            builder.addInterceptor(GzipRequestInterceptor.getInstance());
+        }
+        LOGGER.info("HTTP client settings: {}", settings);
+        return builder.build();
+    }
+
+    // VisibleForTesting
+    void setServiceFactory(Function<ClientApiDetails, EncodedEventsApi> serviceFactory) {
+        this.serviceFactory = serviceFactory;
     }
 
     // VisibleForTesting
     record ClientApiDetails(String apiKey, String apiSecret, String apiURL) {
     }
 
-    private static int safeParseInt(String value, int defaultValue) {
-        if (StringUtils.isBlank(value)) {
-            return defaultValue;
+    /**
+     * How the connections to mParticle are made and pooled.
+     *
+     * @param maxIdleConnections connections kept open between calls, HTTP_POOL_MAX_IDLE; calls beyond that many at a
+     *                           time open connections that are closed afterwards
+     * @param maxRequests limit on asynchronous calls in flight, HTTP_MAX_REQUESTS; blocking calls are not limited
+     * @param maxRequestsPerHost the same per host, HTTP_MAX_REQUESTS_PER_HOST
+     * @param protocols HTTP_PROTOCOL: h2 (the default) negotiates HTTP/2 and falls back to HTTP/1.1, so that concurrent
+     *                  calls share a connection, http/1.1 never uses HTTP/2
+     */
+    record HttpSettings(int maxIdleConnections, int keepAliveSeconds, int maxRequests, int maxRequestsPerHost,
+                        List<Protocol> protocols, int connectTimeoutMillis, int readTimeoutMillis,
+                        int writeTimeoutMillis) {
+        static HttpSettings fromEnvironment() {
+            return new HttpSettings(
+                EnvVars.getInt(HTTP_POOL_MAX_IDLE, 5),
+                EnvVars.getInt(HTTP_POOL_KEEPALIVE_SECONDS, 300),
+                EnvVars.getInt(HTTP_MAX_REQUESTS, 64),
+                EnvVars.getInt(HTTP_MAX_REQUESTS_PER_HOST, 5),
+                protocols(EnvVars.getString(HTTP_PROTOCOL, Protocol.HTTP_2.toString())),
+                EnvVars.getInt(HTTP_CONNECT_TIMEOUT_MS, 10_000),
+                EnvVars.getInt(HTTP_READ_TIMEOUT_MS, 10_000),
+                EnvVars.getInt(HTTP_WRITE_TIMEOUT_MS, 10_000));
         }
-        try {
-            return Integer.parseInt(value);
-        } catch (NumberFormatException e) {
-            LOGGER.warn("Unable to parse value '{}' as an integer, will use default {}", value, defaultValue);
-            return defaultValue;
+
+        // VisibleForTesting
+        static List<Protocol> protocols(final String preference) {
+            if (Protocol.HTTP_1_1.toString().equalsIgnoreCase(preference)) {
+                return List.of(Protocol.HTTP_1_1);
+            }
+            if (!Protocol.HTTP_2.toString().equalsIgnoreCase(preference)) {
+                LOGGER.warn("Unknown HTTP protocol '{}', will use h2", preference);
+            }
+            return List.of(Protocol.HTTP_2, Protocol.HTTP_1_1);
         }
     }
 }
@@ -0,0 +1,241 @@
+package com.sailthru.sqs;
+
+import com.google.gson.Gson;
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonWriter;
+import com.mparticle.JSON;
+import com.mparticle.model.Batch;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Encodes batches the way the mParticle SDK's Retrofit converter does, with the SDK's own Gson configuration, so
+ * that sending the encoded bytes is equivalent to sending the batch through {@link com.mparticle.client.EventsApi}.
+ * <p>
+ * Batches are written to recycled character buffers and converted to UTF-8 straight into an array of the exact size,
+ * so encoding a batch allocates its bytes and little else. {@link #measure(Batch)} counts the bytes without
+ * keeping them at all.
+ */
+public final class BatchEncoder {
+    // Gson is thread-safe, share it rather than building the SDK configuration for every message
+    private static final Gson GSON = new JSON().getGson();
+    private static final TypeAdapter<Batch> ADAPTER = GSON.getAdapter(Batch.class);
+
+    // enough for the messages in flight at once; buffers above the size cap are left to the GC rather than pinned
+    static final int MAX_POOLED_BUFFERS = 16;
+    static final int MAX_POOLED_CHARS = 512 * 1024;
+    private static final int INITIAL_CHARS = 8 * 1024;
+    private static final Queue<CharBuffer> POOL = new ConcurrentLinkedQueue<>();
+    private static final AtomicInteger POOLED = new AtomicInteger();
+
+    private BatchEncoder() {
+    }
+
+    public static EncodedBatch encode(final Batch batch) {
+        return new EncodedBatch(toBytes(batch));
+    }
+
+    /**
+     * Exact number of bytes {@link #encode(Batch)} would produce, without producing them.
+     */
+    public static long measure(final Batch batch) {
+        final CountingWriter counter = new CountingWriter();
+        write(batch, counter);
+        return counter.count();
+    }
+
+    static byte[] toBytes(final Batch batch) {
+        final CharBuffer buffer = acquire();
+        try {
+            write(batch, buffer);
+            final CountingWriter counter = new CountingWriter();
+            counter.write(buffer.chars, 0, buffer.length);
+            return Utf8.encode(buffer.chars, buffer.length, new byte[(int) counter.count()]);
+        } finally {
+            release(buffer);
+        }
+    }
+
+    private static void write(final Batch batch, final Writer out) {
+        try {
+            final JsonWriter writer = GSON.newJsonWriter(out);
+            ADAPTER.write(writer, batch);
+            writer.flush();
+        } catch (IOException e) {
+            // can't happen, we're writing to memory
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static CharBuffer acquire() {
+        final CharBuffer buffer = POOL.poll();
+        if (buffer == null) {
+            return new CharBuffer();
+        }
+        POOLED.decrementAndGet();
+        buffer.length = 0;
+        return buffer;
+    }
+
+    private static void release(final CharBuffer buffer) {
+        if (buffer.chars.length > MAX_POOLED_CHARS) {
+            return;
+        }
+        if (POOLED.incrementAndGet() > MAX_POOLED_BUFFERS) {
+            POOLED.decrementAndGet();
+            return;
+        }
+        POOL.offer(buffer);
+    }
+
+    // @VisibleForTesting
+    static int pooledBuffers() {
+        return POOLED.get();
+    }
+
+    /**
+     * A growable character buffer, like {@link java.io.CharArrayWriter} but without the locking and with its array
+     * exposed so that it can be encoded in place.
+     */
+    private static final class CharBuffer extends Writer {
+        private char[] chars = new char[INITIAL_CHARS];
+        private int length;
+
+        @Override
+        public void write(final int c) {
+            ensureCapacity(1);
+            chars[length++] = (char) c;
+        }
+
+        @Override
+        public void write(final char[] source, final int offset, final int count) {
+            ensureCapacity(count);
+            System.arraycopy(source, offset, chars, length, count);
+            length += count;
+        }
+
+        @Override
+        public void write(final String source, final int offset, final int count) {
+            ensureCapacity(count);
+            source.getChars(offset, offset + count, chars, length);
+            length += count;
+        }
+
+        private void ensureCapacity(final int extra) {
+            if (length + extra > chars.length) {
+                chars = Arrays.copyOf(chars, Math.max(chars.length * 2, length + extra));
+            }
+        }
+
+        @Override
+        public void flush() {
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    /**
+     * Counts the UTF-8 bytes of the characters written to it, the same way {@link Utf8#encode} (and
+     * {@link String#getBytes}) encode them: surrogate pairs take 4 bytes and unpaired surrogates are replaced by
+     * {@code '?'}.
+     */
+    // @VisibleForTesting
+    static final class CountingWriter extends Writer {
+        private long count;
+        private boolean pendingHighSurrogate;
+
+        @Override
+        public void write(final int c) {
+            count((char) c);
+        }
+
+        @Override
+        public void write(final char[] source, final int offset, final int length) {
+            for (int i = offset; i < offset + length; i++) {
+                count(source[i]);
+            }
+        }
+
+        @Override
+        public void write(final String source, final int offset, final int length) {
+            for (int i = offset; i < offset + length; i++) {
+                count(source.charAt(i));
+            }
+        }
+
+        private void count(final char c) {
+            if (pendingHighSurrogate) {
+                pendingHighSurrogate = false;
+                if (Character.isLowSurrogate(c)) {
+                    count += 4;
+                    return;
+                }
+                count++;
+            }
+            if (Character.isHighSurrogate(c)) {
+                pendingHighSurrogate = true;
+            } else {
+                count += Utf8.length(c);
+            }
+        }
+
+        long count() {
+            return count + (pendingHighSurrogate ? 1 : 0);
+        }
+
+        @Override
+        public void flush() {
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    private static final class Utf8 {
+        private Utf8() {
+        }
+
+        // bytes for a character that is not part of a surrogate pair
+        static int length(final char c) {
+            if (c < 0x80 || Character.isSurrogate(c)) {
+                return 1;
+            }
+            return c < 0x800 ? 2 : 3;
+        }
+
+        static byte[] encode(final char[] chars, final int length, final byte[] out) {
+            int position = 0;
+            for (int i = 0; i < length; i++) {
+                final char c = chars[i];
+                if (c < 0x80) {
+                    out[position++] = (byte) c;
+                } else if (c < 0x800) {
+                    out[position++] = (byte) (0xC0 | (c >> 6));
+                    out[position++] = (byte) (0x80 | (c & 0x3F));
+                } else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(chars[i + 1])) {
+                    final int codePoint = Character.toCodePoint(c, chars[++i]);
+                    out[position++] = (byte) (0xF0 | (codePoint >> 18));
+                    out[position++] = (byte) (0x80 | ((codePoint >> 12) & 0x3F));
+                    out[position++] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+                    out[position++] = (byte) (0x80 | (codePoint & 0x3F));
+                } else if (Character.isSurrogate(c)) {
+                    out[position++] = '?';
+                } else {
+                    out[position++] = (byte) (0xE0 | (c >> 12));
+                    out[position++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                    out[position++] = (byte) (0x80 | (c & 0x3F));
+                }
+            }
+            return out;
+        }
+    }
+}
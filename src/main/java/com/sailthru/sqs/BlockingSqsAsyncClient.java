@@ -0,0 +1,48 @@
+package com.sailthru.sqs;
+
+import software.amazon.awssdk.services.sqs.SqsAsyncClient;
+import software.amazon.awssdk.services.sqs.SqsClient;
+import software.amazon.awssdk.services.sqs.model.ChangeMessageVisibilityBatchRequest;
+import software.amazon.awssdk.services.sqs.model.ChangeMessageVisibilityBatchResponse;
+import software.amazon.awssdk.services.sqs.model.ChangeMessageVisibilityRequest;
+import software.amazon.awssdk.services.sqs.model.ChangeMessageVisibilityResponse;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+
+/**
+ * Makes the calls {@link VisibilityChanger} needs through a synchronous SQS client, each on a virtual thread of its
+ * own, so that the batches are still in flight together. Lets the handler use the URL connection HTTP client, which
+ * initializes much faster than Netty but has no asynchronous counterpart. The other operations are not supported.
+ */
+final class BlockingSqsAsyncClient implements SqsAsyncClient {
+    private static final Executor VIRTUAL_THREADS = task -> Thread.ofVirtual().start(task);
+
+    private final SqsClient sqsClient;
+
+    BlockingSqsAsyncClient(SqsClient sqsClient) {
+        this.sqsClient = sqsClient;
+    }
+
+    @Override
+    public CompletableFuture<ChangeMessageVisibilityBatchResponse> changeMessageVisibilityBatch(
+        final ChangeMessageVisibilityBatchRequest request) {
+        return CompletableFuture.supplyAsync(() -> sqsClient.changeMessageVisibilityBatch(request), VIRTUAL_THREADS);
+    }
+
+    @Override
+    public CompletableFuture<ChangeMessageVisibilityResponse> changeMessageVisibility(
+        final ChangeMessageVisibilityRequest request) {
+        return CompletableFuture.supplyAsync(() -> sqsClient.changeMessageVisibility(request), VIRTUAL_THREADS);
+    }
+
+    @Override
+    public String serviceName() {
+        return SERVICE_NAME;
+    }
+
+    @Override
+    public void close() {
+        sqsClient.close();
+    }
+}
@@ -0,0 +1,58 @@
+package com.sailthru.sqs;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Groups outgoing records by the mParticle credentials and endpoint they will be sent with, and splits every group
+ * into chunks small enough for a single bulk upload. Records keep their arrival order within a chunk.
+ */
+public class BulkCoalescer {
+    // overhead of the JSON array wrapping the batches: brackets and separating commas
+    private static final int ARRAY_OVERHEAD = 2;
+    private static final int SEPARATOR_OVERHEAD = 1;
+
+    private final int maxBatches;
+    private final int maxBytes;
+
+    public BulkCoalescer(int maxBatches, int maxBytes) {
+        this.maxBatches = Math.max(1, maxBatches);
+        this.maxBytes = maxBytes;
+    }
+
+    public List<List<OutgoingRecord>> coalesce(final List<OutgoingRecord> records) {
+        final Map<ApiFactory.ClientApiDetails, List<OutgoingRecord>> groups = new LinkedHashMap<>();
+        records.forEach(record ->
+            groups.computeIfAbsent(MParticleClient.apiDetailsOf(record.message()), details -> new ArrayList<>())
+                .add(record));
+
+        final List<List<OutgoingRecord>> chunks = new ArrayList<>();
+        groups.values().forEach(group -> chunks.addAll(split(group)));
+        return chunks;
+    }
+
+    private List<List<OutgoingRecord>> split(final List<OutgoingRecord> group) {
+        final List<List<OutgoingRecord>> chunks = new ArrayList<>();
+        List<OutgoingRecord> current = new ArrayList<>();
+        long currentBytes = ARRAY_OVERHEAD;
+
+        for (OutgoingRecord record : group) {
+            final long recordBytes = record.size() + (current.isEmpty() ? 0 : SEPARATOR_OVERHEAD);
+            // a record always goes out, even if it is on its own above the limit - size validation is not our job
+            if (!current.isEmpty() && (current.size() >= maxBatches || currentBytes + recordBytes > maxBytes)) {
+                chunks.add(current);
+                current = new ArrayList<>();
+                currentBytes = ARRAY_OVERHEAD;
+            }
+            currentBytes += record.size() + (current.isEmpty() ? 0 : SEPARATOR_OVERHEAD);
+            current.add(record);
+        }
+
+        if (!current.isEmpty()) {
+            chunks.add(current);
+        }
+        return chunks;
+    }
+}
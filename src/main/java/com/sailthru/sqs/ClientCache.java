@@ -0,0 +1,189 @@
+package com.sailthru.sqs;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.LongSupplier;
+
+/**
+ * Keeps what is built to call mParticle with a set of credentials (a Retrofit service, resolved endpoints), so that
+ * it is built once rather than for every message. Bounded in size, CLIENT_CACHE_MAX_SIZE, and in idle time,
+ * CLIENT_CACHE_IDLE_SECONDS, so that credentials which are no longer used, such as rotated secrets, don't stay around
+ * for the lifetime of the container.
+ * <p>
+ * Lookups and builds are lock-free: values for different keys are built in parallel, and two threads missing on the
+ * same key may both build it, in which case the first one stored is kept. A single thread evicts at a time, the
+ * least recently used entries first once the cache is full. Values which hold resources can be released as they are
+ * evicted, see {@link #ClientCache(int, long, LongSupplier, Consumer)}.
+ */
+class ClientCache<K, V> {
+    static final String CLIENT_CACHE_MAX_SIZE = "CLIENT_CACHE_MAX_SIZE";
+    static final String CLIENT_CACHE_IDLE_SECONDS = "CLIENT_CACHE_IDLE_SECONDS";
+    // last access times are only updated this often, so that hits don't all write to the same entries
+    private static final long ACCESS_GRANULARITY_NANOS = TimeUnit.SECONDS.toNanos(1);
+    private static final long MAX_SWEEP_INTERVAL_NANOS = TimeUnit.MINUTES.toNanos(1);
+
+    private final int maxSize;
+    private final long idleNanos;
+    private final LongSupplier nanoClock;
+    private final Consumer<? super V> onEvict;
+    private final Map<K, Entry<V>> entries = new ConcurrentHashMap<>();
+    private final ReentrantLock evictionLock = new ReentrantLock();
+    private final AtomicLong lastSweep;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong buildNanos = new AtomicLong();
+
+    // @VisibleForTesting
+    ClientCache(int maxSize, long idleSeconds, LongSupplier nanoClock) {
+        this(maxSize, idleSeconds, nanoClock, value -> {
+        });
+    }
+
+    /**
+     * @param onEvict called with each value evicted, once it is no longer in the cache; it may still be in use by
+     *                whoever got it before
+     */
+    ClientCache(int maxSize, long idleSeconds, LongSupplier nanoClock, Consumer<? super V> onEvict) {
+        this.maxSize = Math.max(1, maxSize);
+        this.idleNanos = TimeUnit.SECONDS.toNanos(Math.max(1, idleSeconds));
+        this.nanoClock = nanoClock;
+        this.onEvict = onEvict;
+        this.lastSweep = new AtomicLong(nanoClock.getAsLong());
+    }
+
+    static <K, V> ClientCache<K, V> fromEnvironment() {
+        return fromEnvironment(System::nanoTime);
+    }
+
+    static <K, V> ClientCache<K, V> fromEnvironment(final LongSupplier nanoClock) {
+        return new ClientCache<>(EnvVars.getInt(CLIENT_CACHE_MAX_SIZE, 1000),
+            EnvVars.getInt(CLIENT_CACHE_IDLE_SECONDS, 3600), nanoClock);
+    }
+
+    /**
+     * The value cached for the key, built if there is none. A null value is returned but not cached.
+     */
+    V get(final K key, final Function<? super K, ? extends V> builder) {
+        final long now = nanoClock.getAsLong();
+        final Entry<V> entry = entries.get(key);
+        if (entry != null) {
+            if (now - entry.lastAccess < idleNanos) {
+                touch(entry, now);
+                hits.incrementAndGet();
+                return entry.value;
+            }
+            evict(key, entry);
+        }
+
+        misses.incrementAndGet();
+        final V value = builder.apply(key);
+        final long built = nanoClock.getAsLong();
+        buildNanos.addAndGet(built - now);
+        if (value == null) {
+            return null;
+        }
+        final Entry<V> existing = entries.putIfAbsent(key, new Entry<>(value, built));
+        if (existing != null) {
+            // another thread built it at the same time
+            touch(existing, built);
+            return existing.value;
+        }
+        evictIfNeeded(built);
+        return value;
+    }
+
+    int size() {
+        return entries.size();
+    }
+
+    /**
+     * Apply the action to every cached value, whether or not it has been idle too long.
+     */
+    void forEachValue(final Consumer<? super V> action) {
+        entries.values().forEach(entry -> action.accept(entry.value));
+    }
+
+    // @VisibleForTesting
+    void clear() {
+        entries.clear();
+    }
+
+    /**
+     * Totals since the last call.
+     */
+    Stats drainStats() {
+        return new Stats(hits.getAndSet(0), misses.getAndSet(0), evictions.getAndSet(0), buildNanos.getAndSet(0));
+    }
+
+    private static void touch(final Entry<?> entry, final long now) {
+        if (now - entry.lastAccess >= ACCESS_GRANULARITY_NANOS) {
+            entry.lastAccess = now;
+        }
+    }
+
+    private void evictIfNeeded(final long now) {
+        final long last = lastSweep.get();
+        final boolean sweepDue = now - last >= Math.min(idleNanos, MAX_SWEEP_INTERVAL_NANOS);
+        if ((!sweepDue && entries.size() <= maxSize) || !evictionLock.tryLock()) {
+            return;
+        }
+        try {
+            if (sweepDue && lastSweep.compareAndSet(last, now)) {
+                entries.forEach((key, entry) -> {
+                    if (now - entry.lastAccess >= idleNanos) {
+                        evict(key, entry);
+                    }
+                });
+            }
+            while (entries.size() > maxSize) {
+                K eldestKey = null;
+                Entry<V> eldest = null;
+                for (Map.Entry<K, Entry<V>> candidate : entries.entrySet()) {
+                    if (eldest == null || candidate.getValue().lastAccess - eldest.lastAccess < 0) {
+                        eldestKey = candidate.getKey();
+                        eldest = candidate.getValue();
+                    }
+                }
+                if (eldest == null) {
+                    return;
+                }
+                evict(eldestKey, eldest);
+            }
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
+    private void evict(final K key, final Entry<V> entry) {
+        if (entries.remove(key, entry)) {
+            evictions.incrementAndGet();
+            onEvict.accept(entry.value);
+        }
+    }
+
+    /**
+     * @param buildNanos time spent building the values that were missing
+     */
+    record Stats(long hits, long misses, long evictions, long buildNanos) {
+        Stats plus(final Stats other) {
+            return new Stats(hits + other.hits, misses + other.misses, evictions + other.evictions,
+                buildNanos + other.buildNanos);
+        }
+    }
+
+    private static final class Entry<V> {
+        private final V value;
+        private volatile long lastAccess;
+
+        private Entry(final V value, final long lastAccess) {
+            this.value = value;
+            this.lastAccess = lastAccess;
+        }
+    }
+}
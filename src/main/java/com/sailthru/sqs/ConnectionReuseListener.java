@@ -0,0 +1,127 @@
+package com.sailthru.sqs;
+
+import okhttp3.Call;
+import okhttp3.Connection;
+import okhttp3.EventListener;
+import okhttp3.Protocol;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Counts the connections calls to mParticle were made on, and how many of them had to be opened rather than taken
+ * from the pool (or shared, with HTTP/2). Drained once per invocation for the metrics: a low reuse ratio under load
+ * means the pool keeps too few idle connections for the concurrency.
+ * <p>
+ * Also times the first call of the container, which pays for whatever the {@link ConnectionWarmer} did not do in
+ * advance, and the first call after the container is restored from a SnapStart snapshot. Calls made to warm up are
+ * left out.
+ */
+public class ConnectionReuseListener extends EventListener {
+    private static final ConnectionReuseListener INSTANCE = new ConnectionReuseListener();
+    private static final long NOT_TIMED = -1;
+    private static final long REPORTED = Long.MIN_VALUE;
+    // replaces the first call once it is timed, so that it isn't kept for the lifetime of the container
+    private static final FirstCall TIMED = new FirstCall(null, 0);
+
+    private final AtomicLong acquired = new AtomicLong();
+    private final AtomicLong opened = new AtomicLong();
+    private final AtomicReference<FirstCall> firstCall = new AtomicReference<>();
+    private final AtomicLong firstCallNanos = new AtomicLong(NOT_TIMED);
+    private final AtomicLong sinceRestoreNanos = new AtomicLong(NOT_TIMED);
+    private volatile long restoredAtNanos = NOT_TIMED;
+
+    // @VisibleForTesting
+    ConnectionReuseListener() {
+    }
+
+    public static ConnectionReuseListener getInstance() {
+        return INSTANCE;
+    }
+
+    @Override
+    public void callStart(final Call call) {
+        if (firstCall.get() == null && !ConnectionWarmer.isWarmUp(call)) {
+            firstCall.compareAndSet(null, new FirstCall(call, System.nanoTime()));
+        }
+    }
+
+    @Override
+    public void connectEnd(final Call call, final InetSocketAddress inetSocketAddress, final Proxy proxy,
+                           final Protocol protocol) {
+        if (!ConnectionWarmer.isWarmUp(call)) {
+            opened.incrementAndGet();
+        }
+    }
+
+    @Override
+    public void connectionAcquired(final Call call, final Connection connection) {
+        if (!ConnectionWarmer.isWarmUp(call)) {
+            acquired.incrementAndGet();
+        }
+    }
+
+    @Override
+    public void callEnd(final Call call) {
+        firstCallEnded(call);
+    }
+
+    @Override
+    public void callFailed(final Call call, final IOException ioe) {
+        firstCallEnded(call);
+    }
+
+    private void firstCallEnded(final Call call) {
+        final FirstCall first = firstCall.get();
+        if (first != null && first.call() == call && firstCall.compareAndSet(first, TIMED)) {
+            final long endNanos = System.nanoTime();
+            // set first, so that it is there once the time of the call is
+            sinceRestoreNanos.set(restoredAtNanos != NOT_TIMED ? endNanos - restoredAtNanos : NOT_TIMED);
+            firstCallNanos.set(endNanos - first.startNanos());
+        }
+    }
+
+    /**
+     * Time the next call again, as the first call after the container was restored from a snapshot: the calls made
+     * before the snapshot don't tell how long the first one after the restore takes.
+     *
+     * @param restoredAtNanos when the restore ended, from {@link System#nanoTime()}
+     */
+    public void restored(final long restoredAtNanos) {
+        this.restoredAtNanos = restoredAtNanos;
+        sinceRestoreNanos.set(NOT_TIMED);
+        firstCallNanos.set(NOT_TIMED);
+        firstCall.set(null);
+    }
+
+    /**
+     * Totals since the last call. The time of the first call is only part of the first totals after it ended.
+     */
+    public Stats drainStats() {
+        final long firstCall = firstCallNanos.getAndUpdate(nanos -> nanos >= 0 ? REPORTED : nanos);
+        return new Stats(acquired.getAndSet(0), opened.getAndSet(0), firstCall >= 0 ? firstCall : NOT_TIMED,
+            firstCall >= 0 ? sinceRestoreNanos.getAndSet(NOT_TIMED) : NOT_TIMED);
+    }
+
+    private record FirstCall(Call call, long startNanos) {
+    }
+
+    /**
+     * @param acquired connections calls were made on, whether new or reused
+     * @param opened connections opened for them
+     * @param firstCallNanos time the first call of the container took, -1 if it isn't part of these totals
+     * @param sinceRestoreNanos time from the restore of the container to the end of its first call, -1 if it wasn't
+     *                          restored from a snapshot or the first call isn't part of these totals
+     */
+    public record Stats(long acquired, long opened, long firstCallNanos, long sinceRestoreNanos) {
+        /**
+         * Fraction of the calls made on a connection that was already open, higher is better.
+         */
+        public double reuseRatio() {
+            return acquired == 0 ? 1 : (double) Math.max(0, acquired - opened) / acquired;
+        }
+    }
+}
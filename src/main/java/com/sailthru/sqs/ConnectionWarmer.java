@@ -0,0 +1,141 @@
+package com.sailthru.sqs;
+
+import okhttp3.HttpUrl;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import software.amazon.awssdk.utils.StringUtils;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.function.LongSupplier;
+
+/**
+ * Does, while the container initializes, what the first messages sent to mParticle would otherwise pay for on the
+ * critical path of an invocation: resolving and connecting to the endpoints (DNS, TCP and TLS, loading the classes of
+ * the HTTP client on the way). The connections are made with unauthenticated HEAD requests, so no credentials are
+ * needed, and are left in the pool of the client each endpoint is called with, so that the first sends reuse them.
+ * <p>
+ * Failures are only logged: the first sends then pay for the connection, as they would have without warming up.
+ */
+public class ConnectionWarmer {
+    private static final Logger LOGGER = LoggerFactory.getLogger(ConnectionWarmer.class);
+
+    // the client each normalized API URL is called with
+    private final Function<String, OkHttpClient> httpClients;
+    private final long timeoutMillis;
+    private final LongSupplier nanoClock;
+
+    // @VisibleForTesting
+    ConnectionWarmer(Function<String, OkHttpClient> httpClients, long timeoutMillis, LongSupplier nanoClock) {
+        this.httpClients = httpClients;
+        this.timeoutMillis = timeoutMillis;
+        this.nanoClock = nanoClock;
+    }
+
+    /**
+     * A warmer for the clients messages are sent with, see {@link EndpointBulkhead#clientFor}.
+     *
+     * @param timeoutMillis limit on connecting to each endpoint
+     */
+    public static ConnectionWarmer forSending(final long timeoutMillis) {
+        return new ConnectionWarmer(EndpointBulkhead::clientFor, timeoutMillis, System::nanoTime);
+    }
+
+    /**
+     * Connect to the given endpoints, in parallel.
+     *
+     * @param apiURLs normalized API URLs
+     */
+    public Report warmUp(final List<String> apiURLs) {
+        final long start = nanoClock.getAsLong();
+        final Set<String> endpoints = new LinkedHashSet<>(apiURLs);
+        final List<Future<Boolean>> connections = new ArrayList<>(endpoints.size());
+        try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            endpoints.forEach(apiURL -> connections.add(executor.submit(() -> connect(apiURL))));
+        }
+        // close() above waits for every connection, which never fails
+        final int connected = (int) connections.stream().filter(Future::resultNow).count();
+
+        final Report report = new Report(endpoints.size(), connected, nanoClock.getAsLong() - start);
+        LOGGER.info("Warmed up {} of {} endpoints in {} ms", connected, endpoints.size(),
+            TimeUnit.NANOSECONDS.toMillis(report.durationNanos()));
+        return report;
+    }
+
+    private boolean connect(final String apiURL) {
+        try {
+            // shares the pool of the client, the connection stays there once the response is closed
+            final OkHttpClient client = httpClients.apply(apiURL).newBuilder()
+                .callTimeout(timeoutMillis, TimeUnit.MILLISECONDS)
+                .build();
+            final Request request = new Request.Builder()
+                .url(apiURL)
+                .head()
+                .tag(ConnectionWarmer.class, this)
+                .build();
+            // any answer will do, without credentials it won't be a success
+            try (Response response = client.newCall(request).execute()) {
+                LOGGER.debug("Connected to {} in advance, answered {}", apiURL, response.code());
+                return true;
+            }
+        } catch (IOException | RuntimeException e) {
+            LOGGER.warn("Could not connect to {} in advance: {}", apiURL, e.toString());
+            return false;
+        }
+    }
+
+    /**
+     * Whether a call was made to warm up rather than to send messages.
+     */
+    public static boolean isWarmUp(final okhttp3.Call call) {
+        return call.request().tag(ConnectionWarmer.class) != null;
+    }
+
+    /**
+     * Parse a comma separated list of hosts, such as {@code s2s.us2.mparticle.com}, or of API URLs. A host stands for
+     * the API URL of the default path on it. Invalid hosts are logged and skipped.
+     *
+     * @return the normalized API URLs
+     */
+    public static List<String> parseEndpoints(final String value) {
+        if (StringUtils.isBlank(value)) {
+            return List.of();
+        }
+        final List<String> apiURLs = new ArrayList<>();
+        for (String entry : value.split(",")) {
+            final String endpoint = entry.trim();
+            if (endpoint.isEmpty()) {
+                continue;
+            }
+            if (endpoint.contains("://")) {
+                apiURLs.add(MParticleClient.apiURLOf(endpoint));
+                continue;
+            }
+            try {
+                apiURLs.add(HttpUrl.get(MParticleClient.DEFAULT_BASE_URL).newBuilder().host(endpoint).build()
+                    .toString());
+            } catch (IllegalArgumentException e) {
+                LOGGER.warn("Ignoring invalid warm-up host {}", endpoint);
+            }
+        }
+        return apiURLs;
+    }
+
+    /**
+     * @param endpoints endpoints connected to, or attempted
+     * @param connected endpoints a connection was opened to
+     */
+    public record Report(int endpoints, int connected, long durationNanos) {
+    }
+}
@@ -0,0 +1,58 @@
+package com.sailthru.sqs;
+
+import com.amazonaws.services.lambda.runtime.Context;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+/**
+ * The point in time by which an invocation must stop starting new work, so that it still has time to report its
+ * results back to SQS before Lambda times it out.
+ */
+public final class Deadline {
+    /**
+     * No deadline, for callers outside a Lambda invocation (or when the remaining time is not known).
+     */
+    public static final Deadline NONE = new Deadline(Long.MAX_VALUE, System::nanoTime);
+
+    private final long deadlineNanos;
+    private final LongSupplier nanoClock;
+
+    private Deadline(long deadlineNanos, LongSupplier nanoClock) {
+        this.deadlineNanos = deadlineNanos;
+        this.nanoClock = nanoClock;
+    }
+
+    public static Deadline fromContext(final Context context, final long safetyMarginMillis) {
+        return fromContext(context, safetyMarginMillis, System::nanoTime);
+    }
+
+    // @VisibleForTesting
+    static Deadline fromContext(final Context context, final long safetyMarginMillis, final LongSupplier nanoClock) {
+        // local runners (and mocks) report 0, treat that as unknown rather than already expired
+        final int remainingMillis = context != null ? context.getRemainingTimeInMillis() : 0;
+        if (remainingMillis <= 0) {
+            return NONE;
+        }
+        final long budgetMillis = remainingMillis - safetyMarginMillis;
+        return new Deadline(nanoClock.getAsLong() + TimeUnit.MILLISECONDS.toNanos(budgetMillis), nanoClock);
+    }
+
+    public boolean isBounded() {
+        return deadlineNanos != Long.MAX_VALUE;
+    }
+
+    public boolean isExpired() {
+        return isBounded() && remainingMillis() <= 0;
+    }
+
+    /**
+     * Time left before the deadline, or {@link Long#MAX_VALUE} if there is none.
+     */
+    public long remainingMillis() {
+        if (!isBounded()) {
+            return Long.MAX_VALUE;
+        }
+        return TimeUnit.NANOSECONDS.toMillis(deadlineNanos - nanoClock.getAsLong());
+    }
+}
@@ -0,0 +1,197 @@
+package com.sailthru.sqs;
+
+import com.amazonaws.services.lambda.runtime.events.SQSEvent;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.LongSupplier;
+
+/**
+ * Remembers the messages that were successfully delivered to mParticle, so that a redelivery of one (after an
+ * invocation timed out, or a visibility change failed) is acknowledged without sending it again.
+ * <p>
+ * Messages are identified by their SQS message id and optionally by a hash of their body, which also catches the
+ * same content being enqueued twice. Entries expire after a fixed time to live, and the oldest ones are evicted
+ * early when the cache is full. Lookups are lock-free, a single thread evicts at a time.
+ */
+public class DeliveredMessageCache {
+    // rough footprint of an entry: key, map node, boxed expiry and queue node. A message takes two with content
+    // hashing, one for its id and one for the hash of its body
+    static final int ESTIMATED_ENTRY_BYTES = 192;
+
+    private static final DeliveredMessageCache DISABLED = new DeliveredMessageCache(0, 0, false, System::nanoTime);
+
+    private final int maxEntries;
+    private final long ttlNanos;
+    private final boolean contentHashing;
+    private final LongSupplier nanoClock;
+    private final Map<Object, Long> expiries = new ConcurrentHashMap<>();
+    // same time to live for everybody, so insertion order is also expiry order
+    private final Queue<Entry> insertionOrder = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger size = new AtomicInteger();
+    private final ReentrantLock evictionLock = new ReentrantLock();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    // @VisibleForTesting
+    DeliveredMessageCache(int maxEntries, long ttlMillis, boolean contentHashing, LongSupplier nanoClock) {
+        this.maxEntries = maxEntries;
+        this.ttlNanos = TimeUnit.MILLISECONDS.toNanos(ttlMillis);
+        this.contentHashing = contentHashing;
+        this.nanoClock = nanoClock;
+    }
+
+    /**
+     * @param maxMegabytes approximate memory the cache may use
+     */
+    public static DeliveredMessageCache withMemoryCap(int maxMegabytes, long ttlSeconds, boolean contentHashing) {
+        final long maxEntries = (long) maxMegabytes * 1024 * 1024 / ESTIMATED_ENTRY_BYTES;
+        return new DeliveredMessageCache((int) Math.min(maxEntries, Integer.MAX_VALUE),
+            TimeUnit.SECONDS.toMillis(ttlSeconds), contentHashing, System::nanoTime);
+    }
+
+    /**
+     * A cache that never remembers anything.
+     */
+    public static DeliveredMessageCache disabled() {
+        return DISABLED;
+    }
+
+    public boolean isEnabled() {
+        return maxEntries > 0;
+    }
+
+    public int getMaxEntries() {
+        return maxEntries;
+    }
+
+    /**
+     * How many delivered messages fit: with content hashing, every message takes two entries, one per key.
+     */
+    public int getMaxMessages() {
+        return contentHashing ? maxEntries / 2 : maxEntries;
+    }
+
+    /**
+     * The keys the message is remembered by. Cheap unless content hashing is enabled, in which case the body is
+     * hashed, so compute it once per message.
+     */
+    public Fingerprint fingerprint(final SQSEvent.SQSMessage sqsMessage) {
+        return new Fingerprint(sqsMessage.getMessageId(),
+            isEnabled() && contentHashing && sqsMessage.getBody() != null ? hash(sqsMessage.getBody()) : null);
+    }
+
+    public boolean isDelivered(final Fingerprint fingerprint) {
+        if (!isEnabled()) {
+            return false;
+        }
+        final long now = nanoClock.getAsLong();
+        final boolean delivered = isLive(fingerprint.messageId(), now)
+            || (fingerprint.contentHash() != null && isLive(fingerprint.contentHash(), now));
+        (delivered ? hits : misses).incrementAndGet();
+        return delivered;
+    }
+
+    public void markDelivered(final Fingerprint fingerprint) {
+        if (!isEnabled() || fingerprint == null) {
+            return;
+        }
+        final long now = nanoClock.getAsLong();
+        put(fingerprint.messageId(), now);
+        if (fingerprint.contentHash() != null) {
+            put(fingerprint.contentHash(), now);
+        }
+        evict(now);
+    }
+
+    /**
+     * Number of lookups that found a delivered message since the last call.
+     */
+    public long drainHits() {
+        return hits.getAndSet(0);
+    }
+
+    /**
+     * Number of lookups that didn't since the last call.
+     */
+    public long drainMisses() {
+        return misses.getAndSet(0);
+    }
+
+    // @VisibleForTesting
+    int size() {
+        return size.get();
+    }
+
+    private boolean isLive(final Object key, final long now) {
+        if (key == null) {
+            return false;
+        }
+        final Long expiry = expiries.get(key);
+        return expiry != null && expiry - now > 0;
+    }
+
+    private void put(final Object key, final long now) {
+        if (key == null) {
+            return;
+        }
+        final long expiry = now + ttlNanos;
+        expiries.put(key, expiry);
+        insertionOrder.add(new Entry(key, expiry));
+        size.incrementAndGet();
+    }
+
+    private void evict(final long now) {
+        // whoever holds the lock evicts for everybody, the others don't need to wait for it
+        if (!evictionLock.tryLock()) {
+            return;
+        }
+        try {
+            Entry eldest;
+            while ((eldest = insertionOrder.peek()) != null
+                && (size.get() > maxEntries || eldest.expiry() - now <= 0)) {
+                insertionOrder.poll();
+                size.decrementAndGet();
+                // a newer entry for the same key has its own place in the queue
+                expiries.remove(eldest.key(), eldest.expiry());
+            }
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
+    private static ContentHash hash(final String body) {
+        try {
+            final byte[] digest = MessageDigest.getInstance("SHA-256").digest(body.getBytes(StandardCharsets.UTF_8));
+            final ByteBuffer buffer = ByteBuffer.wrap(digest);
+            return new ContentHash(buffer.getLong(), buffer.getLong());
+        } catch (NoSuchAlgorithmException e) {
+            // every JVM is required to support SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * @param messageId the SQS message id
+     * @param contentHash hash of the body, or null when content hashing is disabled
+     */
+    public record Fingerprint(String messageId, ContentHash contentHash) {
+    }
+
+    // the first 128 bits of the SHA-256 of the body
+    record ContentHash(long high, long low) {
+    }
+
+    private record Entry(Object key, long expiry) {
+    }
+}
@@ -0,0 +1,106 @@
+package com.sailthru.sqs;
+
+import com.mparticle.model.Batch;
+import okhttp3.MediaType;
+import okhttp3.RequestBody;
+import okio.BufferedSink;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ * An mParticle batch encoded to the exact bytes that are sent, so that it is only ever serialized once.
+ * <p>
+ * A batch that was only checked against an upper bound of its size is encoded when it is first needed, either to be
+ * sent or for its exact {@link #size()}, and those bytes are what is sent.
+ */
+public final class EncodedBatch {
+    static final MediaType JSON = MediaType.parse("application/json");
+
+    // null once the bytes are known
+    private Batch batch;
+    private volatile byte[] bytes;
+
+    public EncodedBatch(byte[] bytes) {
+        this.batch = null;
+        this.bytes = bytes;
+    }
+
+    private EncodedBatch(Batch batch) {
+        this.batch = batch;
+    }
+
+    /**
+     * A batch encoded when it is first needed.
+     */
+    public static EncodedBatch deferred(final Batch batch) {
+        return new EncodedBatch(batch);
+    }
+
+    /**
+     * The exact size in bytes, encoding the batch if it wasn't already.
+     */
+    public int size() {
+        return bytes().length;
+    }
+
+    public RequestBody toRequestBody() {
+        return RequestBody.create(JSON, bytes());
+    }
+
+    private byte[] bytes() {
+        byte[] encoded = bytes;
+        if (encoded == null) {
+            synchronized (this) {
+                encoded = bytes;
+                if (encoded == null) {
+                    encoded = BatchEncoder.toBytes(batch);
+                    bytes = encoded;
+                    batch = null;
+                }
+            }
+        }
+        return encoded;
+    }
+
+    /**
+     * A JSON array of the batches, for the bulk endpoint. The batches are written straight to the connection rather
+     * than copied into a single array first.
+     */
+    public static RequestBody toBulkRequestBody(final List<EncodedBatch> batches) {
+        long length = 2 + Math.max(0, batches.size() - 1);
+        for (EncodedBatch batch : batches) {
+            length += batch.bytes().length;
+        }
+        final long contentLength = length;
+        return new RequestBody() {
+            @Override
+            public MediaType contentType() {
+                return JSON;
+            }
+
+            @Override
+            public long contentLength() {
+                return contentLength;
+            }
+
+            @Override
+            public void writeTo(final BufferedSink sink) throws IOException {
+                sink.writeByte('[');
+                for (int i = 0; i < batches.size(); i++) {
+                    if (i > 0) {
+                        sink.writeByte(',');
+                    }
+                    sink.write(batches.get(i).bytes());
+                }
+                sink.writeByte(']');
+            }
+        };
+    }
+
+    @Override
+    public String toString() {
+        return new String(bytes(), StandardCharsets.UTF_8);
+    }
+}
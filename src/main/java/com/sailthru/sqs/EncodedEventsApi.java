@@ -0,0 +1,21 @@
+package com.sailthru.sqs;
+
+import okhttp3.RequestBody;
+import retrofit2.Call;
+import retrofit2.http.Body;
+import retrofit2.http.Headers;
+import retrofit2.http.POST;
+
+/**
+ * The same endpoints as the SDK's {@link com.mparticle.client.EventsApi}, taking bodies that were already encoded by
+ * {@link BatchEncoder} instead of serializing the batches again.
+ */
+public interface EncodedEventsApi {
+    @Headers({"Content-Type:application/json"})
+    @POST("events")
+    Call<Void> uploadEvents(@Body RequestBody body);
+
+    @Headers({"Content-Type:application/json"})
+    @POST("bulkevents")
+    Call<Void> bulkUploadEvents(@Body RequestBody body);
+}
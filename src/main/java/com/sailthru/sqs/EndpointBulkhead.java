@@ -0,0 +1,225 @@
+package com.sailthru.sqs;
+
+import com.sailthru.sqs.exception.RetryLaterException;
+import okhttp3.ConnectionPool;
+import okhttp3.Dispatcher;
+import okhttp3.HttpUrl;
+import okhttp3.OkHttpClient;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+/**
+ * Keeps the mParticle endpoints (pods, regions) messages are sent to from affecting one another. Each normalized API
+ * URL gets its own HTTP client, with its own connection pool, dispatcher and call timeout, and a fixed number of calls
+ * in flight: when an endpoint slows down, its calls wait for a permit or are retried later, and they can't take the
+ * connections or the time the calls to the other endpoints need.
+ * <p>
+ * Opt-in, with ENDPOINT_BULKHEADS=1; otherwise every endpoint shares the common client of {@link ApiFactory}. The
+ * bulkheads are kept in a {@link ClientCache} of at most ENDPOINT_BULKHEAD_MAX_ENDPOINTS, evicted after
+ * CLIENT_CACHE_IDLE_SECONDS without a call, and an evicted bulkhead's dispatcher and connections are shut down:
+ * the clients are looked up for every call rather than kept, so a later call to the endpoint gets a new bulkhead.
+ */
+public class EndpointBulkhead {
+    static final String ENABLED_KEY = "ENDPOINT_BULKHEADS";
+    static final String MAX_IN_FLIGHT_KEY = "ENDPOINT_BULKHEAD_MAX_IN_FLIGHT";
+    static final String MAX_QUEUE_MILLIS_KEY = "ENDPOINT_BULKHEAD_MAX_QUEUE_MS";
+    static final String CALL_TIMEOUT_MILLIS_KEY = "ENDPOINT_BULKHEAD_CALL_TIMEOUT_MS";
+    static final String MAX_ENDPOINTS_KEY = "ENDPOINT_BULKHEAD_MAX_ENDPOINTS";
+
+    private static final boolean ENABLED = EnvVars.getFlag(ENABLED_KEY);
+    private static final Settings SETTINGS = new Settings(
+        EnvVars.getInt(MAX_IN_FLIGHT_KEY, 16),
+        EnvVars.getInt(MAX_QUEUE_MILLIS_KEY, 1000),
+        EnvVars.getInt(CALL_TIMEOUT_MILLIS_KEY, 0));
+    // VisibleForTesting
+    static final ClientCache<String, EndpointBulkhead> BULKHEADS = new ClientCache<>(
+        EnvVars.getInt(MAX_ENDPOINTS_KEY, 64), EnvVars.getInt(ClientCache.CLIENT_CACHE_IDLE_SECONDS, 3600),
+        System::nanoTime, EndpointBulkhead::shutdown);
+
+    private final String apiURL;
+    private final Settings settings;
+    private final OkHttpClient client;
+    private final LongSupplier nanoClock;
+    private final Semaphore permits;
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicInteger peakInFlight = new AtomicInteger();
+    private final AtomicLong calls = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong totalLatencyNanos = new AtomicLong();
+    private final AtomicLong maxLatencyNanos = new AtomicLong();
+
+    // @VisibleForTesting
+    EndpointBulkhead(String apiURL, Settings settings, OkHttpClient commonClient, LongSupplier nanoClock) {
+        this.apiURL = apiURL;
+        this.settings = settings;
+        this.nanoClock = nanoClock;
+        this.permits = new Semaphore(Math.max(1, settings.maxInFlight()));
+        final Dispatcher dispatcher = new Dispatcher();
+        dispatcher.setMaxRequests(Math.max(1, settings.maxInFlight()));
+        dispatcher.setMaxRequestsPerHost(Math.max(1, settings.maxInFlight()));
+        final ApiFactory.HttpSettings httpSettings = ApiFactory.httpSettings();
+        // keeps the interceptors, listener and socket timeouts of the common client
+        this.client = commonClient.newBuilder()
+            .connectionPool(new ConnectionPool(Math.min(httpSettings.maxIdleConnections(), permits.availablePermits()),
+                httpSettings.keepAliveSeconds(), TimeUnit.SECONDS))
+            .dispatcher(dispatcher)
+            .callTimeout(settings.callTimeoutMillis(), TimeUnit.MILLISECONDS)
+            .build();
+    }
+
+    public static boolean isEnabled() {
+        return ENABLED;
+    }
+
+    /**
+     * The shared bulkhead for the given normalized API URL.
+     */
+    public static EndpointBulkhead forEndpoint(final String apiURL) {
+        return BULKHEADS.get(apiURL,
+            url -> new EndpointBulkhead(url, SETTINGS, ApiFactory.httpClient(), System::nanoTime));
+    }
+
+    /**
+     * The HTTP client to call the given normalized API URL with: the one of its bulkhead, or the common one when
+     * bulkheads are disabled.
+     */
+    public static OkHttpClient clientFor(final String apiURL) {
+        return ENABLED ? forEndpoint(apiURL).client() : ApiFactory.httpClient();
+    }
+
+    /**
+     * Snapshots of the bulkheads called since the last call, resetting their statistics.
+     */
+    public static List<Snapshot> drainSnapshots() {
+        final List<Snapshot> snapshots = new ArrayList<>();
+        BULKHEADS.forEachValue(bulkhead -> {
+            final Snapshot snapshot = bulkhead.drainSnapshot();
+            if (snapshot.calls() > 0 || snapshot.rejected() > 0) {
+                snapshots.add(snapshot);
+            }
+        });
+        return snapshots;
+    }
+
+    /**
+     * Close the idle connections of every bulkhead, see {@link ConnectionPool#evictAll()}.
+     */
+    public static void evictConnections() {
+        BULKHEADS.forEachValue(bulkhead -> bulkhead.client.connectionPool().evictAll());
+    }
+
+    /**
+     * Stop the bulkhead's dispatcher taking new asynchronous calls, the ones already queued still run, and close its
+     * idle connections; those still in use are closed as their calls complete.
+     */
+    // @VisibleForTesting
+    void shutdown() {
+        client.dispatcher().executorService().shutdown();
+        client.connectionPool().evictAll();
+    }
+
+    public OkHttpClient client() {
+        return client;
+    }
+
+    /**
+     * Wait for a permit to call the endpoint, for at most the configured maximum queueing time or the time left
+     * before the deadline.
+     *
+     * @throws RetryLaterException if the endpoint still had too many calls in flight
+     */
+    public Permit acquire(final Deadline deadline) throws RetryLaterException {
+        final long waitNanos = Math.min(TimeUnit.MILLISECONDS.toNanos(settings.maxQueueMillis()),
+            deadline.isBounded() ? TimeUnit.MILLISECONDS.toNanos(deadline.remainingMillis()) : Long.MAX_VALUE);
+        try {
+            if (!permits.tryAcquire(Math.max(0, waitNanos), TimeUnit.NANOSECONDS)) {
+                rejected.incrementAndGet();
+                throw new RetryLaterException(0, "Timed out waiting for a permit to call " + apiURL + ", "
+                    + settings.maxInFlight() + " calls in flight", 0);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RetryLaterException(e);
+        }
+        peakInFlight.accumulateAndGet(inFlight.incrementAndGet(), Math::max);
+        return new Permit(nanoClock.getAsLong());
+    }
+
+    private void release(final long latencyNanos) {
+        inFlight.decrementAndGet();
+        permits.release();
+        calls.incrementAndGet();
+        totalLatencyNanos.addAndGet(latencyNanos);
+        maxLatencyNanos.accumulateAndGet(latencyNanos, Math::max);
+    }
+
+    private Snapshot drainSnapshot() {
+        final long drainedCalls = calls.getAndSet(0);
+        final long latencyNanos = totalLatencyNanos.getAndSet(0);
+        return new Snapshot(apiURL, hostOf(apiURL), settings.maxInFlight(), drainedCalls, rejected.getAndSet(0),
+            peakInFlight.getAndSet(inFlight.get()),
+            drainedCalls > 0 ? nanosToMillis(latencyNanos / drainedCalls) : 0,
+            nanosToMillis(maxLatencyNanos.getAndSet(0)));
+    }
+
+    // the API URL may carry a path or a query string, which would make too many distinct metric dimensions
+    private static String hostOf(final String apiURL) {
+        final HttpUrl url = HttpUrl.parse(apiURL);
+        return url != null ? url.host() : "unknown";
+    }
+
+    private static double nanosToMillis(final long nanos) {
+        return nanos / 1_000_000.0;
+    }
+
+    /**
+     * A single call's right to proceed, released once the call completes. Later calls to {@link #close()} are
+     * ignored.
+     */
+    public final class Permit implements AutoCloseable {
+        private final long startNanos;
+        private final AtomicBoolean released = new AtomicBoolean();
+
+        private Permit(long startNanos) {
+            this.startNanos = startNanos;
+        }
+
+        @Override
+        public void close() {
+            if (released.compareAndSet(false, true)) {
+                release(nanoClock.getAsLong() - startNanos);
+            }
+        }
+    }
+
+    /**
+     * @param callTimeoutMillis limit on a whole call to the endpoint, 0 for none; the deadline of the invocation
+     *                          still applies when it is shorter
+     */
+    // @VisibleForTesting
+    record Settings(int maxInFlight, int maxQueueMillis, int callTimeoutMillis) {
+    }
+
+    /**
+     * The state of a bulkhead, with the statistics since the previous snapshot.
+     *
+     * @param host the host of the API URL, to report the bulkhead under
+     * @param peakInFlight most calls in flight at once, out of maxInFlight
+     */
+    public record Snapshot(String apiURL, String host, int maxInFlight, long calls, long rejected, int peakInFlight,
+                           double averageLatencyMillis, double maxLatencyMillis) {
+        /**
+         * Peak calls in flight as a fraction of the limit, 1 when the endpoint used all its permits.
+         */
+        public double saturation() {
+            return (double) peakInFlight / Math.max(1, maxInFlight);
+        }
+    }
+}
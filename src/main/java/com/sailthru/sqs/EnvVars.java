@@ -0,0 +1,41 @@
+package com.sailthru.sqs;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import software.amazon.awssdk.utils.StringUtils;
+
+/**
+ * Reads settings for components that live for the lifetime of the container (connection pools, caches, limiters),
+ * and are therefore configured from the process environment rather than per handler instance.
+ */
+final class EnvVars {
+    private static final Logger LOGGER = LoggerFactory.getLogger(EnvVars.class);
+
+    private EnvVars() {
+    }
+
+    static int getInt(String name, int defaultValue) {
+        return safeParseInt(System.getenv(name), defaultValue);
+    }
+
+    static String getString(String name, String defaultValue) {
+        final String value = System.getenv(name);
+        return StringUtils.isBlank(value) ? defaultValue : value.trim();
+    }
+
+    static boolean getFlag(String name) {
+        return getInt(name, 0) != 0;
+    }
+
+    static int safeParseInt(String value, int defaultValue) {
+        if (StringUtils.isBlank(value)) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            LOGGER.warn("Unable to parse value '{}' as an integer, will use default {}", value, defaultValue);
+            return defaultValue;
+        }
+    }
+}
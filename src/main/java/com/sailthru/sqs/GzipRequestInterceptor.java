@@ -0,0 +1,126 @@
+package com.sailthru.sqs;
+
+import okhttp3.Interceptor;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import okhttp3.Response;
+import okio.Buffer;
+import okio.BufferedSink;
+import okio.Okio;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Gzips request bodies of at least a given size and marks them with {@code Content-Encoding: gzip}. Opt-in, with
+ * REQUEST_COMPRESSION=1, as it trades CPU time in the Lambda for fewer bytes on the wire.
+ * <p>
+ * Keeps running totals of the bytes before and after compression and of the time spent compressing, drained once per
+ * invocation for the metrics.
+ */
+public class GzipRequestInterceptor implements Interceptor {
+    static final String REQUEST_COMPRESSION = "REQUEST_COMPRESSION";
+    static final String REQUEST_COMPRESSION_MIN_BYTES = "REQUEST_COMPRESSION_MIN_BYTES";
+    static final String REQUEST_COMPRESSION_LEVEL = "REQUEST_COMPRESSION_LEVEL";
+    private static final String CONTENT_ENCODING = "Content-Encoding";
+    private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+    private static final GzipRequestInterceptor INSTANCE = new GzipRequestInterceptor(
+        EnvVars.getInt(REQUEST_COMPRESSION_MIN_BYTES, 1024),
+        EnvVars.getInt(REQUEST_COMPRESSION_LEVEL, 6),
+        GzipRequestInterceptor::currentThreadCpuTime);
+
+    private final int minBytes;
+    private final int level;
+    private final LongSupplier cpuClock;
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong uncompressedBytes = new AtomicLong();
+    private final AtomicLong compressedBytes = new AtomicLong();
+    private final AtomicLong compressionNanos = new AtomicLong();
+
+    // @VisibleForTesting
+    GzipRequestInterceptor(int minBytes, int level, LongSupplier cpuClock) {
+        this.minBytes = minBytes;
+        this.level = Math.max(Deflater.BEST_SPEED, Math.min(Deflater.BEST_COMPRESSION, level));
+        this.cpuClock = cpuClock;
+    }
+
+    public static boolean isEnabled() {
+        return EnvVars.getFlag(REQUEST_COMPRESSION);
+    }
+
+    public static GzipRequestInterceptor getInstance() {
+        return INSTANCE;
+    }
+
+    @Override
+    public Response intercept(final Chain chain) throws IOException {
+        final Request request = chain.request();
+        final RequestBody body = request.body();
+        // bodies of unknown length (-1) are left alone, as are bodies someone else already encoded
+        if (body == null || request.header(CONTENT_ENCODING) != null || body.contentLength() < minBytes) {
+            return chain.proceed(request);
+        }
+
+        final long start = cpuClock.getAsLong();
+        final Buffer compressed = compress(body);
+        compressionNanos.addAndGet(cpuClock.getAsLong() - start);
+        requests.incrementAndGet();
+        uncompressedBytes.addAndGet(body.contentLength());
+        compressedBytes.addAndGet(compressed.size());
+
+        return chain.proceed(request.newBuilder()
+            .header(CONTENT_ENCODING, "gzip")
+            .method(request.method(), RequestBody.create(body.contentType(), compressed.readByteString()))
+            .build());
+    }
+
+    private Buffer compress(final RequestBody body) throws IOException {
+        final Buffer compressed = new Buffer();
+        try (BufferedSink sink = Okio.buffer(Okio.sink(new LeveledGzipOutputStream(compressed.outputStream(),
+            level)))) {
+            body.writeTo(sink);
+        }
+        return compressed;
+    }
+
+    /**
+     * Totals since the last call.
+     */
+    public Stats drainStats() {
+        return new Stats(requests.getAndSet(0), uncompressedBytes.getAndSet(0), compressedBytes.getAndSet(0),
+            compressionNanos.getAndSet(0));
+    }
+
+    // the JVM can't measure the CPU time of a virtual thread, use the elapsed time for those
+    private static long currentThreadCpuTime() {
+        final long cpuTime = THREADS.isCurrentThreadCpuTimeSupported() ? THREADS.getCurrentThreadCpuTime() : -1;
+        return cpuTime >= 0 ? cpuTime : System.nanoTime();
+    }
+
+    /**
+     * @param requests number of request bodies compressed
+     * @param compressionNanos CPU time spent compressing them, or elapsed time when it couldn't be measured
+     */
+    public record Stats(long requests, long uncompressedBytes, long compressedBytes, long compressionNanos) {
+        /**
+         * Compressed size as a fraction of the original size, lower is better.
+         */
+        public double ratio() {
+            return uncompressedBytes == 0 ? 1 : (double) compressedBytes / uncompressedBytes;
+        }
+    }
+
+    // GZIPOutputStream only exposes the compression level through its deflater
+    private static final class LeveledGzipOutputStream extends GZIPOutputStream {
+        private LeveledGzipOutputStream(final OutputStream out, final int level) throws IOException {
+            super(out);
+            def.setLevel(level);
+        }
+    }
+}
@@ -0,0 +1,60 @@
+package com.sailthru.sqs;
+
+import com.amazonaws.services.lambda.runtime.events.SQSBatchResponse;
+import com.amazonaws.services.lambda.runtime.events.SQSEvent;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Collects the per-record results of a single invocation. Records may be processed concurrently, so all the
+ * collections are thread-safe.
+ */
+public class InvocationOutcome {
+    private final List<SQSBatchResponse.BatchItemFailure> batchItemFailures =
+        Collections.synchronizedList(new ArrayList<>());
+    private final List<FailedRequest> changeVisibilityList = Collections.synchronizedList(new ArrayList<>());
+    private final AtomicInteger deferredCount = new AtomicInteger();
+
+    /**
+     * Report the record as failed, SQS will make it visible again once its current visibility timeout expires.
+     */
+    public void fail(final SQSEvent.SQSMessage sqsMessage) {
+        batchItemFailures.add(new SQSBatchResponse.BatchItemFailure(sqsMessage.getMessageId()));
+    }
+
+    /**
+     * Report the record as failed, and have its visibility timeout adjusted before returning.
+     */
+    public void retryLater(final SQSEvent.SQSMessage sqsMessage, final FailedRequest failedRequest) {
+        changeVisibilityList.add(failedRequest);
+        fail(sqsMessage);
+    }
+
+    /**
+     * Report the record as failed without having attempted it, because the invocation ran out of time. Its visibility
+     * timeout is left alone so that it gets redelivered as soon as possible.
+     */
+    public void defer(final SQSEvent.SQSMessage sqsMessage) {
+        deferredCount.incrementAndGet();
+        fail(sqsMessage);
+    }
+
+    public int getDeferredCount() {
+        return deferredCount.get();
+    }
+
+    public List<SQSBatchResponse.BatchItemFailure> getBatchItemFailures() {
+        synchronized (batchItemFailures) {
+            return List.copyOf(batchItemFailures);
+        }
+    }
+
+    public List<FailedRequest> getChangeVisibilityList() {
+        synchronized (changeVisibilityList) {
+            return List.copyOf(changeVisibilityList);
+        }
+    }
+}
@@ -0,0 +1,334 @@
+package com.sailthru.sqs;
+
+import com.amazonaws.services.lambda.runtime.ClientContext;
+import com.amazonaws.services.lambda.runtime.CognitoIdentity;
+import com.amazonaws.services.lambda.runtime.Context;
+import com.amazonaws.services.lambda.runtime.LambdaLogger;
+import com.amazonaws.services.lambda.runtime.RequestHandler;
+import com.amazonaws.services.lambda.runtime.events.SQSBatchResponse;
+import com.amazonaws.services.lambda.runtime.events.SQSEvent;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Supplier;
+
+/**
+ * Runs {@link SQSLambdaHandler} on a custom runtime (provided.al2023), as the bootstrap of the native executable: the
+ * loop the managed Java runtime otherwise runs, over the Lambda runtime API. Also runs on the JVM, which is how the
+ * two builds are compared.
+ * <p>
+ * Events are read and responses written with Jackson's streaming API rather than databind, so that the native image
+ * needs no reflection for them. The runtime API is called with the JDK's HTTP client, so that its calls don't show in
+ * the statistics of the clients messages are sent with.
+ */
+public final class LambdaRuntime {
+    private static final Logger LOGGER = LoggerFactory.getLogger(LambdaRuntime.class);
+    static final String RUNTIME_API_KEY = "AWS_LAMBDA_RUNTIME_API";
+    static final String REQUEST_ID_HEADER = "Lambda-Runtime-Aws-Request-Id";
+    static final String DEADLINE_HEADER = "Lambda-Runtime-Deadline-Ms";
+    static final String FUNCTION_ARN_HEADER = "Lambda-Runtime-Invoked-Function-Arn";
+    static final String TRACE_ID_HEADER = "Lambda-Runtime-Trace-Id";
+    private static final String ERROR_TYPE_HEADER = "Lambda-Runtime-Function-Error-Type";
+    private static final String TRACE_ID_PROPERTY = "com.amazonaws.xray.traceHeader";
+    private static final JsonFactory JSON = new JsonFactory();
+
+    // http://<host:port>/2018-06-01/runtime/
+    private final String runtimeURL;
+    private final HttpClient httpClient;
+    private final Map<String, String> env;
+
+    // @VisibleForTesting
+    LambdaRuntime(String runtimeApi, HttpClient httpClient, Map<String, String> env) {
+        this.runtimeURL = "http://" + runtimeApi + "/2018-06-01/runtime/";
+        this.httpClient = httpClient;
+        this.env = env;
+    }
+
+    public static void main(final String[] args) throws IOException, InterruptedException {
+        final Map<String, String> env = System.getenv();
+        final LambdaRuntime runtime = new LambdaRuntime(env.get(RUNTIME_API_KEY),
+            HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1).build(), env);
+        final RequestHandler<SQSEvent, SQSBatchResponse> handler = runtime.initialize(() ->
+            new SQSLambdaHandler(handlerEnvironment(env), new StartupTimeline(System::nanoTime)));
+        if (handler == null) {
+            System.exit(1);
+        }
+        try {
+            while (true) {
+                runtime.next(handler);
+            }
+        } catch (IOException | InterruptedException | Error e) {
+            // threads the handler started could otherwise keep the process alive
+            LOGGER.error("Ending the runtime", e);
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Build the handler, or post why it could not be built, whatever was thrown, as the initialization error.
+     *
+     * @return null if the handler could not be built, in which case the runtime should exit
+     */
+    // @VisibleForTesting
+    RequestHandler<SQSEvent, SQSBatchResponse> initialize(
+        final Supplier<? extends RequestHandler<SQSEvent, SQSBatchResponse>> handlerFactory)
+        throws IOException, InterruptedException {
+        try {
+            return handlerFactory.get();
+        } catch (Throwable e) {
+            LOGGER.error("The handler could not be initialized", e);
+            post("init/error", error(e), "Runtime.InitError");
+            return null;
+        }
+    }
+
+    /**
+     * The environment the handler is initialized with: the function's, with the lazy initialization that keeps the
+     * SQS client on the URL connection HTTP client, which unlike Netty needs no configuration in the native image.
+     */
+    // @VisibleForTesting
+    static Map<String, String> handlerEnvironment(final Map<String, String> env) {
+        final Map<String, String> handlerEnv = new HashMap<>(env);
+        handlerEnv.put(SQSLambdaHandler.LAZY_INIT_KEY, "1");
+        return handlerEnv;
+    }
+
+    /**
+     * Wait for the next invocation, run it through the handler and post its response, or its error.
+     *
+     * @throws IOException if the runtime API could not be called, which ends the runtime
+     * @throws Error thrown by the handler, once posted as the invocation's error, which ends the runtime too
+     */
+    // @VisibleForTesting
+    void next(final RequestHandler<SQSEvent, SQSBatchResponse> handler) throws IOException, InterruptedException {
+        final HttpResponse<byte[]> invocation = httpClient.send(
+            HttpRequest.newBuilder(URI.create(runtimeURL + "invocation/next")).GET().build(),
+            HttpResponse.BodyHandlers.ofByteArray());
+        final String requestId = invocation.headers().firstValue(REQUEST_ID_HEADER)
+            .orElseThrow(() -> new IOException("No request id in the invocation, status " + invocation.statusCode()));
+        invocation.headers().firstValue(TRACE_ID_HEADER)
+            .ifPresentOrElse(traceId -> System.setProperty(TRACE_ID_PROPERTY, traceId),
+                () -> System.clearProperty(TRACE_ID_PROPERTY));
+
+        final byte[] response;
+        try {
+            final InvocationContext context = new InvocationContext(requestId,
+                invocation.headers().firstValue(FUNCTION_ARN_HEADER).orElse(null),
+                invocation.headers().firstValueAsLong(DEADLINE_HEADER).orElse(0), env);
+            response = writeResponse(handler.handleRequest(readEvent(invocation.body()), context));
+        } catch (IOException | RuntimeException | Error e) {
+            LOGGER.error("Invocation {} failed", requestId, e);
+            post("invocation/" + requestId + "/error", error(e), "Runtime.UnhandledException");
+            if (e instanceof Error fatal) {
+                // the process may be in no state to take another invocation
+                throw fatal;
+            }
+            return;
+        }
+        post("invocation/" + requestId + "/response", response, null);
+    }
+
+    private void post(final String path, final byte[] body, final String errorType)
+        throws IOException, InterruptedException {
+        final HttpRequest.Builder request = HttpRequest.newBuilder(URI.create(runtimeURL + path))
+            .POST(HttpRequest.BodyPublishers.ofByteArray(body));
+        if (errorType != null) {
+            request.header(ERROR_TYPE_HEADER, errorType);
+        }
+        final HttpResponse<Void> response = httpClient.send(request.build(), HttpResponse.BodyHandlers.discarding());
+        if (response.statusCode() >= 300) {
+            LOGGER.warn("The runtime API answered {} to {}", response.statusCode(), path);
+        }
+    }
+
+    // @VisibleForTesting
+    static SQSEvent readEvent(final byte[] body) throws IOException {
+        final List<SQSEvent.SQSMessage> records = new ArrayList<>();
+        try (JsonParser parser = JSON.createParser(body)) {
+            expect(parser.nextToken(), JsonToken.START_OBJECT);
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                final String field = parser.currentName();
+                if (parser.nextToken() == JsonToken.START_ARRAY && "Records".equals(field)) {
+                    while (parser.nextToken() == JsonToken.START_OBJECT) {
+                        records.add(readMessage(parser));
+                    }
+                } else {
+                    parser.skipChildren();
+                }
+            }
+        }
+        final SQSEvent event = new SQSEvent();
+        event.setRecords(records);
+        return event;
+    }
+
+    private static SQSEvent.SQSMessage readMessage(final JsonParser parser) throws IOException {
+        final SQSEvent.SQSMessage message = new SQSEvent.SQSMessage();
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            final String field = parser.currentName();
+            final JsonToken value = parser.nextToken();
+            switch (field) {
+                case "messageId" -> message.setMessageId(parser.getValueAsString());
+                case "receiptHandle" -> message.setReceiptHandle(parser.getValueAsString());
+                case "body" -> message.setBody(parser.getValueAsString());
+                case "md5OfBody" -> message.setMd5OfBody(parser.getValueAsString());
+                case "eventSource" -> message.setEventSource(parser.getValueAsString());
+                case "eventSourceARN" -> message.setEventSourceArn(parser.getValueAsString());
+                case "awsRegion" -> message.setAwsRegion(parser.getValueAsString());
+                case "attributes" -> message.setAttributes(readAttributes(parser, value));
+                // the message attributes aren't used
+                default -> parser.skipChildren();
+            }
+        }
+        return message;
+    }
+
+    private static Map<String, String> readAttributes(final JsonParser parser, final JsonToken value)
+        throws IOException {
+        if (value != JsonToken.START_OBJECT) {
+            return null;
+        }
+        final Map<String, String> attributes = new HashMap<>();
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            final String name = parser.currentName();
+            parser.nextToken();
+            attributes.put(name, parser.getValueAsString());
+        }
+        return attributes;
+    }
+
+    private static void expect(final JsonToken actual, final JsonToken expected) throws IOException {
+        if (actual != expected) {
+            throw new IOException("Unexpected invocation event, " + expected + " expected but found " + actual);
+        }
+    }
+
+    // @VisibleForTesting
+    static byte[] writeResponse(final SQSBatchResponse response) throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (JsonGenerator generator = JSON.createGenerator(bytes)) {
+            generator.writeStartObject();
+            generator.writeArrayFieldStart("batchItemFailures");
+            for (SQSBatchResponse.BatchItemFailure failure : response.getBatchItemFailures()) {
+                generator.writeStartObject();
+                generator.writeStringField("itemIdentifier", failure.getItemIdentifier());
+                generator.writeEndObject();
+            }
+            generator.writeEndArray();
+            generator.writeEndObject();
+        }
+        return bytes.toByteArray();
+    }
+
+    private static byte[] error(final Throwable e) throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (JsonGenerator generator = JSON.createGenerator(bytes)) {
+            generator.writeStartObject();
+            generator.writeStringField("errorMessage", String.valueOf(e.getMessage()));
+            generator.writeStringField("errorType", e.getClass().getName());
+            generator.writeEndObject();
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * The context of an invocation, from its headers and the environment of the function.
+     */
+    private static final class InvocationContext implements Context {
+        private static final LambdaLogger LAMBDA_LOGGER = new LambdaLogger() {
+            @Override
+            public void log(final String message) {
+                System.out.print(message);
+            }
+
+            @Override
+            public void log(final byte[] message) {
+                System.out.print(new String(message, StandardCharsets.UTF_8));
+            }
+        };
+
+        private final String awsRequestId;
+        private final String invokedFunctionArn;
+        private final long deadlineMillis;
+        private final Map<String, String> env;
+
+        private InvocationContext(String awsRequestId, String invokedFunctionArn, long deadlineMillis,
+                                  Map<String, String> env) {
+            this.awsRequestId = awsRequestId;
+            this.invokedFunctionArn = invokedFunctionArn;
+            this.deadlineMillis = deadlineMillis;
+            this.env = env;
+        }
+
+        @Override
+        public String getAwsRequestId() {
+            return awsRequestId;
+        }
+
+        @Override
+        public String getLogGroupName() {
+            return env.get("AWS_LAMBDA_LOG_GROUP_NAME");
+        }
+
+        @Override
+        public String getLogStreamName() {
+            return env.get("AWS_LAMBDA_LOG_STREAM_NAME");
+        }
+
+        @Override
+        public String getFunctionName() {
+            return env.get("AWS_LAMBDA_FUNCTION_NAME");
+        }
+
+        @Override
+        public String getFunctionVersion() {
+            return env.get("AWS_LAMBDA_FUNCTION_VERSION");
+        }
+
+        @Override
+        public String getInvokedFunctionArn() {
+            return invokedFunctionArn;
+        }
+
+        @Override
+        public CognitoIdentity getIdentity() {
+            return null;
+        }
+
+        @Override
+        public ClientContext getClientContext() {
+            return null;
+        }
+
+        @Override
+        public int getRemainingTimeInMillis() {
+            // 0 without a deadline, which the handler treats as unknown
+            return deadlineMillis > 0 ? (int) Math.max(1, deadlineMillis - System.currentTimeMillis()) : 0;
+        }
+
+        @Override
+        public int getMemoryLimitInMB() {
+            return EnvVars.safeParseInt(env.get("AWS_LAMBDA_FUNCTION_MEMORY_SIZE"), 0);
+        }
+
+        @Override
+        public LambdaLogger getLogger() {
+            return LAMBDA_LOGGER;
+        }
+    }
+}
@@ -2,76 +2,439 @@ package com.sailthru.sqs;
 
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
-import com.mparticle.client.EventsApi;
 import com.mparticle.model.Batch;
 import com.sailthru.sqs.exception.NoRetryException;
+import com.sailthru.sqs.exception.PayloadTooLargeException;
 import com.sailthru.sqs.exception.RetryLaterException;
 import com.sailthru.sqs.message.MParticleOutgoingMessage;
 import okhttp3.Headers;
+import okio.Timeout;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import retrofit2.Call;
+import retrofit2.Callback;
 import retrofit2.Response;
 
 import java.io.IOException;
 import java.time.Duration;
 import java.time.Instant;
+import java.util.List;
 import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
 
 import static com.fasterxml.jackson.annotation.JsonInclude.Include.NON_EMPTY;
 import static java.util.function.Predicate.not;
 
+/**
+ * Sends messages to mParticle. Stateless apart from its (thread-safe) collaborators, so a single instance can be used
+ * by concurrently dispatched records.
+ */
 public class MParticleClient {
     private static final Logger LOGGER = LoggerFactory.getLogger(MessageProcessor.class);
     private static final String RETRY_AFTER_HEADER = "Retry-After";
     // @VisibleForTesting
     static final int TOO_MANY_REQUESTS = 429;
-    // @VisibleForTesting
+    static final int PAYLOAD_TOO_LARGE = 413;
     static final String DEFAULT_BASE_URL = "https://inbound.mparticle.com/s2s/v2/";
 
     private final ApiFactory apiFactory;
     private static final ObjectMapper DEBUG_SERIALIZER = new ObjectMapper().setSerializationInclusion(NON_EMPTY);
     private final Batch.Environment environment;
+    private final ThrottleRegistry throttleRegistry;
+    private final TenantRateLimiter rateLimiter;
+    // null when adaptive concurrency limiting is disabled
+    private final Function<ApiFactory.ClientApiDetails, AdaptiveConcurrencyLimiter> limiters;
+    // null to send through the Retrofit services of the ApiFactory
+    private final S2STransport transport;
+    // null when endpoint bulkheads are disabled
+    private final Function<String, EndpointBulkhead> bulkheads;
 
     public MParticleClient(ApiFactory apiFactory, Batch.Environment environment) {
+        this(apiFactory, environment, ThrottleRegistry.getInstance(), TenantRateLimiter.getInstance(),
+            AdaptiveConcurrencyLimiter.isEnabled() ?
+                details -> AdaptiveConcurrencyLimiter.forWorkspace(details.apiKey(), details.apiURL()) : null,
+            S2STransport.isEnabled() ? S2STransport.getInstance() : null,
+            EndpointBulkhead.isEnabled() ? EndpointBulkhead::forEndpoint : null);
+    }
+
+    // @VisibleForTesting
+    MParticleClient(ApiFactory apiFactory, Batch.Environment environment, ThrottleRegistry throttleRegistry) {
+        this(apiFactory, environment, throttleRegistry, TenantRateLimiter.unlimited(), null);
+    }
+
+    // @VisibleForTesting
+    MParticleClient(ApiFactory apiFactory, Batch.Environment environment, ThrottleRegistry throttleRegistry,
+                    TenantRateLimiter rateLimiter,
+                    Function<ApiFactory.ClientApiDetails, AdaptiveConcurrencyLimiter> limiters) {
+        this(apiFactory, environment, throttleRegistry, rateLimiter, limiters, null);
+    }
+
+    // @VisibleForTesting
+    MParticleClient(ApiFactory apiFactory, Batch.Environment environment, ThrottleRegistry throttleRegistry,
+                    TenantRateLimiter rateLimiter,
+                    Function<ApiFactory.ClientApiDetails, AdaptiveConcurrencyLimiter> limiters,
+                    S2STransport transport) {
+        this(apiFactory, environment, throttleRegistry, rateLimiter, limiters, transport, null);
+    }
+
+    // @VisibleForTesting
+    MParticleClient(ApiFactory apiFactory, Batch.Environment environment, ThrottleRegistry throttleRegistry,
+                    TenantRateLimiter rateLimiter,
+                    Function<ApiFactory.ClientApiDetails, AdaptiveConcurrencyLimiter> limiters,
+                    S2STransport transport, Function<String, EndpointBulkhead> bulkheads) {
         this.apiFactory = apiFactory;
         this.environment = environment;
+        this.throttleRegistry = throttleRegistry;
+        this.rateLimiter = rateLimiter;
+        this.limiters = limiters;
+        this.transport = transport;
+        this.bulkheads = bulkheads;
     }
 
     public void submit(final MParticleOutgoingMessage message) throws RetryLaterException, NoRetryException {
-        final Instant now = Instant.now();
+        submit(message, Deadline.NONE);
+    }
+
+    /**
+     * Send a single message. The request is given at most the time left before the deadline to complete.
+     */
+    public void submit(final MParticleOutgoingMessage message, final Deadline deadline)
+        throws RetryLaterException, NoRetryException {
+        submit(message, BatchEncoder.encode(message.toBatch(environment)), deadline);
+    }
+
+    /**
+     * Send a single message, whose batch was already encoded while validating it.
+     *
+     * @throws PayloadTooLargeException if mParticle rejected the batch as too large
+     */
+    public void submit(final MParticleOutgoingMessage message, final EncodedBatch batch, final Deadline deadline)
+        throws RetryLaterException, NoRetryException {
+        final ApiFactory.ClientApiDetails apiDetails = apiDetailsOf(message);
+        // don't bother calling if we already know the call will be throttled
+        throttleRegistry.checkNotThrottled(apiDetails);
+        // nor if it would take the tenant over its quota
+        rateLimiter.acquire(message, deadline);
 
-        final Batch batch = message.toBatch(environment);
+        final Instant now = Instant.now();
 
-        final EventsApi eventsApi = getEventsApi(message);
+        final Exchange exchange = transport != null ?
+            exchange(transport.uploadEvents(apiDetails, batch.toRequestBody())) :
+            exchange(apiFactory.of(apiDetails.apiKey(), apiDetails.apiSecret(), apiDetails.apiURL())
+                .uploadEvents(batch.toRequestBody()));
 
         logReceivedAndTranslatedMessage(message, batch);
 
-        final Call<Void> singleResult = eventsApi.uploadEvents(batch);
-
         try {
-            final Response<Void> response = singleResult.execute();
-            LOGGER.info("Received response code: {}", response.code());
+            execute(exchange, apiDetails, now, deadline);
+        } catch (RetryLaterException e) {
+            if (e.getStatusCode() == PAYLOAD_TOO_LARGE) {
+                // mParticle's limit wins over our measurement, the message can still be sent split
+                throw new PayloadTooLargeException(PAYLOAD_TOO_LARGE, batch.size(), message);
+            }
+            throw e;
+        }
+
+        LOGGER.debug("Successfully sent message: {}", message);
+    }
 
-            if (!response.isSuccessful()) {
-                int statusCode = response.code();
+    /**
+     * Start sending a single message, whose batch was already encoded, without waiting for mParticle to answer: the
+     * request is enqueued on the HTTP client, which makes it on its own threads, so that the caller can start many
+     * sends before waiting for any of them. Checks that don't need a request (throttling, quotas, permits) are still
+     * made before returning, and throw as they would for {@link #submit(MParticleOutgoingMessage, EncodedBatch,
+     * Deadline)}.
+     * <p>
+     * The future completes exceptionally with what submit would have thrown once mParticle answers. Cancelling it
+     * cancels the request, closing its connection rather than returning it to the pool half-read.
+     */
+    public CompletableFuture<Void> submitAsync(final MParticleOutgoingMessage message, final EncodedBatch batch,
+                                               final Deadline deadline)
+        throws RetryLaterException, NoRetryException {
+        final ApiFactory.ClientApiDetails apiDetails = apiDetailsOf(message);
+        throttleRegistry.checkNotThrottled(apiDetails);
+        rateLimiter.acquire(message, deadline);
 
-                if (statusCode == TOO_MANY_REQUESTS) {
-                    throw new RetryLaterException(statusCode, response.message(),
-                        parseRetryAfter(response.headers(), now));
-                } else if (isRetryLaterStatusCode(statusCode)) {
-                    throw new RetryLaterException(statusCode, response.message(), 0);
+        final Instant now = Instant.now();
+
+        final Exchange exchange = transport != null ?
+            exchange(transport.uploadEvents(apiDetails, batch.toRequestBody())) :
+            exchange(apiFactory.of(apiDetails.apiKey(), apiDetails.apiSecret(), apiDetails.apiURL())
+                .uploadEvents(batch.toRequestBody()));
+
+        logReceivedAndTranslatedMessage(message, batch);
+
+        final CompletableFuture<Void> sent = new CompletableFuture<>();
+        enqueue(exchange, apiDetails, now, deadline, new Completion() {
+            @Override
+            public void succeeded() {
+                LOGGER.debug("Successfully sent message: {}", message);
+                sent.complete(null);
+            }
+
+            @Override
+            public void failed(final Exception e) {
+                if (e instanceof RetryLaterException retry && retry.getStatusCode() == PAYLOAD_TOO_LARGE) {
+                    sent.completeExceptionally(new PayloadTooLargeException(PAYLOAD_TOO_LARGE, batch.size(), message));
+                } else {
+                    sent.completeExceptionally(e);
                 }
-                //Do not retry for all status code except 429 and status code between 400 and 600 (excl)
-                throw new NoRetryException(statusCode, response.message());
             }
+        });
+        sent.whenComplete((ignored, failure) -> {
+            if (sent.isCancelled()) {
+                // the callback still runs, with the cancellation as failure, and releases the permits
+                exchange.cancel();
+            }
+        });
+        return sent;
+    }
+
+    /**
+     * Send several messages in a single request to the mParticle bulk endpoint. All the messages must share the
+     * same credentials and endpoint. mParticle accepts or rejects a bulk upload as a whole, so any exception thrown
+     * applies to every message.
+     */
+    public void submitBulk(final List<OutgoingRecord> records, final Deadline deadline)
+        throws RetryLaterException, NoRetryException {
+        if (records.isEmpty()) {
+            return;
+        }
+        final List<MParticleOutgoingMessage> messages = records.stream().map(OutgoingRecord::message).toList();
+        final ApiFactory.ClientApiDetails apiDetails = apiDetailsOf(messages.getFirst());
+        throttleRegistry.checkNotThrottled(apiDetails);
+        rateLimiter.acquire(messages, deadline);
+
+        final Instant now = Instant.now();
+
+        records.forEach(record -> logReceivedAndTranslatedMessage(record.message(), record.batch()));
+
+        final okhttp3.RequestBody body = EncodedBatch.toBulkRequestBody(records.stream()
+            .map(OutgoingRecord::batch)
+            .toList());
+        final Exchange exchange = transport != null ?
+            exchange(transport.bulkUploadEvents(apiDetails, body)) :
+            exchange(apiFactory.of(apiDetails).bulkUploadEvents(body));
+
+        execute(exchange, apiDetails, now, deadline);
+
+        LOGGER.debug("Successfully sent {} messages in bulk", records.size());
+    }
+
+    private void execute(final Exchange call, final ApiFactory.ClientApiDetails apiDetails, final Instant now,
+                         final Deadline deadline) throws RetryLaterException, NoRetryException {
+        if (bulkheads == null) {
+            executeInWorkspace(call, apiDetails, now, deadline);
+            return;
+        }
+        // a slow endpoint only holds up the calls to itself
+        try (EndpointBulkhead.Permit ignored = bulkheads.apply(apiDetails.apiURL()).acquire(deadline)) {
+            executeInWorkspace(call, apiDetails, now, deadline);
+        }
+    }
+
+    private void executeInWorkspace(final Exchange call, final ApiFactory.ClientApiDetails apiDetails,
+                                    final Instant now, final Deadline deadline)
+        throws RetryLaterException, NoRetryException {
+        final AdaptiveConcurrencyLimiter.Permit permit = limiters != null ?
+            limiters.apply(apiDetails).acquire(deadline) : null;
+        try {
+            limitToDeadline(call, deadline);
 
-            LOGGER.debug("Successfully sent message: {}", message);
+            final Outcome response;
+            try {
+                response = call.execute();
+            } catch (IOException e) {
+                if (permit != null) {
+                    permit.onError();
+                }
+                throw e;
+            }
+            if (permit != null) {
+                permit.onResponse(response.code());
+            }
+            checkResponse(response, apiDetails, now);
         } catch (IOException | RuntimeException e) {
             throw new RetryLaterException(e);
+        } finally {
+            if (permit != null) {
+                permit.close();
+            }
         }
     }
 
+    // the asynchronous counterpart of execute: the permits are taken before returning and released by the callback
+    private void enqueue(final Exchange call, final ApiFactory.ClientApiDetails apiDetails, final Instant now,
+                         final Deadline deadline, final Completion completion) throws RetryLaterException {
+        final EndpointBulkhead.Permit endpointPermit = bulkheads != null ?
+            bulkheads.apply(apiDetails.apiURL()).acquire(deadline) : null;
+        final AdaptiveConcurrencyLimiter.Permit permit;
+        try {
+            permit = limiters != null ? limiters.apply(apiDetails).acquire(deadline) : null;
+        } catch (RetryLaterException | RuntimeException e) {
+            if (endpointPermit != null) {
+                endpointPermit.close();
+            }
+            throw e;
+        }
+
+        limitToDeadline(call, deadline);
+        call.enqueue(new ExchangeCallback() {
+            @Override
+            public void onOutcome(final Outcome response) {
+                try {
+                    if (permit != null) {
+                        permit.onResponse(response.code());
+                    }
+                    checkResponse(response, apiDetails, now);
+                } catch (RetryLaterException | NoRetryException e) {
+                    release();
+                    completion.failed(e);
+                    return;
+                } catch (RuntimeException e) {
+                    release();
+                    completion.failed(new RetryLaterException(e));
+                    return;
+                }
+                release();
+                completion.succeeded();
+            }
+
+            @Override
+            public void onFailure(final IOException e) {
+                if (permit != null) {
+                    permit.onError();
+                }
+                release();
+                completion.failed(new RetryLaterException(e));
+            }
+
+            private void release() {
+                if (permit != null) {
+                    permit.close();
+                }
+                if (endpointPermit != null) {
+                    endpointPermit.close();
+                }
+            }
+        });
+    }
+
+    private static void limitToDeadline(final Exchange call, final Deadline deadline) {
+        if (deadline.isBounded()) {
+            // covers the whole call (connect, write and read), so a slow endpoint can't run past the deadline;
+            // a shorter call timeout set for the endpoint still applies
+            final Timeout timeout = call.timeout();
+            final long remainingNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, deadline.remainingMillis()));
+            if (timeout.timeoutNanos() == 0 || remainingNanos < timeout.timeoutNanos()) {
+                timeout.timeout(remainingNanos, TimeUnit.NANOSECONDS);
+            }
+        }
+    }
+
+    private void checkResponse(final Outcome response, final ApiFactory.ClientApiDetails apiDetails,
+                               final Instant now) throws RetryLaterException, NoRetryException {
+        LOGGER.info("Received response code: {}", response.code());
+
+        if (!response.isSuccessful()) {
+            int statusCode = response.code();
+
+            if (statusCode == TOO_MANY_REQUESTS) {
+                final long retryAfter = parseRetryAfter(response.headers(), now);
+                throttleRegistry.recordThrottled(apiDetails, retryAfter);
+                throw new RetryLaterException(statusCode, response.message(), retryAfter);
+            } else if (isRetryLaterStatusCode(statusCode)) {
+                throw new RetryLaterException(statusCode, response.message(), 0);
+            }
+            //Do not retry for all status code except 429 and status code between 400 and 600 (excl)
+            throw new NoRetryException(statusCode, response.message());
+        }
+    }
+
+    private static Exchange exchange(final Call<Void> call) {
+        return new Exchange() {
+            @Override
+            public Timeout timeout() {
+                return call.timeout();
+            }
+
+            @Override
+            public Outcome execute() throws IOException {
+                return outcomeOf(call.execute());
+            }
+
+            @Override
+            public void enqueue(final ExchangeCallback callback) {
+                call.enqueue(new Callback<>() {
+                    @Override
+                    public void onResponse(final Call<Void> enqueued, final Response<Void> response) {
+                        callback.onOutcome(outcomeOf(response));
+                    }
+
+                    @Override
+                    public void onFailure(final Call<Void> enqueued, final Throwable t) {
+                        callback.onFailure(t instanceof IOException e ? e : new IOException(t));
+                    }
+                });
+            }
+
+            @Override
+            public void cancel() {
+                call.cancel();
+            }
+        };
+    }
+
+    private static Exchange exchange(final okhttp3.Call call) {
+        return new Exchange() {
+            @Override
+            public Timeout timeout() {
+                return call.timeout();
+            }
+
+            @Override
+            public Outcome execute() throws IOException {
+                // closing the response releases the connection to the pool; the body of an answer from mParticle
+                // is of no use to us
+                try (okhttp3.Response response = call.execute()) {
+                    return outcomeOf(response);
+                }
+            }
+
+            @Override
+            public void enqueue(final ExchangeCallback callback) {
+                call.enqueue(new okhttp3.Callback() {
+                    @Override
+                    public void onResponse(final okhttp3.Call enqueued, final okhttp3.Response response) {
+                        try (response) {
+                            callback.onOutcome(outcomeOf(response));
+                        }
+                    }
+
+                    @Override
+                    public void onFailure(final okhttp3.Call enqueued, final IOException e) {
+                        callback.onFailure(e);
+                    }
+                });
+            }
+
+            @Override
+            public void cancel() {
+                call.cancel();
+            }
+        };
+    }
+
+    private static Outcome outcomeOf(final Response<Void> response) {
+        return new Outcome(response.isSuccessful(), response.code(), response.message(), response.headers());
+    }
+
+    private static Outcome outcomeOf(final okhttp3.Response response) {
+        return new Outcome(response.isSuccessful(), response.code(), response.message(), response.headers());
+    }
+
     private long parseRetryAfter(Headers headers, Instant now) {
         final String retryAfterHeader = headers.get(RETRY_AFTER_HEADER);
         if (retryAfterHeader != null) {
@@ -101,17 +464,25 @@ public class MParticleClient {
         return statusCode >= 400 && statusCode < 600;
     }
 
-    private EventsApi getEventsApi(final MParticleOutgoingMessage message) {
-        final String apiKey = message.getAuthenticationKey();
-        final String apiSecret = message.getAuthenticationSecret();
-        final String apiURL = Optional.ofNullable(message.getApiURL())
-                .filter(not(String::isEmpty))
-                .orElse(DEFAULT_BASE_URL);
+    /**
+     * The credentials and normalized endpoint a message will be sent with. Messages with equal details can be sent
+     * together in a bulk upload.
+     */
+    static ApiFactory.ClientApiDetails apiDetailsOf(final MParticleOutgoingMessage message) {
+        return new ApiFactory.ClientApiDetails(message.getAuthenticationKey(), message.getAuthenticationSecret(),
+            apiURLOf(message.getApiURL()));
+    }
 
-        return apiFactory.of(apiKey, apiSecret, normalizeUrl(apiURL));
+    /**
+     * The normalized endpoint for an API URL as given in a message, the default one if there is none.
+     */
+    static String apiURLOf(final String apiURL) {
+        return normalizeUrl(Optional.ofNullable(apiURL)
+                .filter(not(String::isEmpty))
+                .orElse(DEFAULT_BASE_URL));
     }
 
-    private String normalizeUrl(String url) {
+    private static String normalizeUrl(String url) {
         final int queryIndex = url.indexOf('?');
         final int slashIndex = queryIndex - 1;
         if (queryIndex > 0) {
@@ -125,14 +496,44 @@ public class MParticleClient {
         return url;
     }
 
-    private static void logReceivedAndTranslatedMessage(MParticleOutgoingMessage message, Batch batch) {
+    /**
+     * A request ready to be made, whichever client makes it.
+     */
+    private interface Exchange {
+        Timeout timeout();
+
+        Outcome execute() throws IOException;
+
+        /**
+         * Make the request on the threads of the HTTP client. The callback is called exactly once, also when the
+         * request is cancelled.
+         */
+        void enqueue(ExchangeCallback callback);
+
+        void cancel();
+    }
+
+    private interface ExchangeCallback {
+        void onOutcome(Outcome outcome);
+
+        void onFailure(IOException e);
+    }
+
+    // how an enqueued request ended, once its response was checked
+    private interface Completion {
+        void succeeded();
+
+        void failed(Exception e);
+    }
+
+    private record Outcome(boolean isSuccessful, int code, String message, Headers headers) {
+    }
+
+    private static void logReceivedAndTranslatedMessage(MParticleOutgoingMessage message, EncodedBatch batch) {
         if (LOGGER.isDebugEnabled()) {
-            String batchJson, messageJson;
-            try {
-                batchJson = DEBUG_SERIALIZER.writeValueAsString(batch);
-            } catch (JsonProcessingException e) {
-                batchJson = "(unserializable)";
-            }
+            // the batch is logged exactly as it is sent
+            final String batchJson = batch.toString();
+            String messageJson;
             try {
                 messageJson = DEBUG_SERIALIZER.writeValueAsString(message);
             } catch (JsonProcessingException e) {
@@ -0,0 +1,189 @@
+package com.sailthru.sqs;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.sailthru.sqs.exception.AuthenticationKeyNotProvidedException;
+import com.sailthru.sqs.exception.AuthenticationSecretNotProvidedException;
+import com.sailthru.sqs.message.MParticleEventName;
+import com.sailthru.sqs.message.MParticleEventType;
+import com.sailthru.sqs.message.MParticleOutgoingMessage;
+import software.amazon.awssdk.utils.StringUtils;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Reads SQS message bodies into {@link MParticleOutgoingMessage} with Jackson's streaming parser, rather than through
+ * databind's reflection. Accepts the same documents {@link MessageSerializer} does for this schema, unknown
+ * properties included.
+ * <p>
+ * The credentials are validated while parsing: when the events come before them in the document, the events are
+ * skipped and only read once the credentials have been found, so a message without credentials never has its
+ * events built.
+ */
+public final class MessageDecoder {
+    // thread-safe, and caches the parsers' buffers and symbol tables between messages
+    private static final JsonFactory FACTORY = new JsonFactory();
+    private static final Map<String, MParticleEventName> EVENT_NAMES = byName(MParticleEventName.values());
+    private static final Map<String, MParticleEventType> EVENT_TYPES = byName(MParticleEventType.values());
+
+    public MParticleOutgoingMessage decode(final String body)
+        throws IOException, AuthenticationKeyNotProvidedException, AuthenticationSecretNotProvidedException {
+        final MParticleOutgoingMessage message = new MParticleOutgoingMessage();
+        // where the events are, when they had to be skipped
+        int eventsStart = -1;
+        int eventsEnd = -1;
+
+        try (JsonParser parser = FACTORY.createParser(body)) {
+            expect(parser, parser.nextToken(), JsonToken.START_OBJECT);
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                final String field = parser.currentName();
+                final JsonToken value = parser.nextToken();
+                switch (field) {
+                    case "authenticationKey" -> message.setAuthenticationKey(text(parser, value));
+                    case "authenticationSecret" -> message.setAuthenticationSecret(text(parser, value));
+                    case "clientId" -> message.setClientId(value == JsonToken.VALUE_NULL ? 0 : number(parser, value));
+                    case "profileEmail" -> message.setProfileEmail(text(parser, value));
+                    case "profileMpId" ->
+                        message.setProfileMpId(value == JsonToken.VALUE_NULL ? null : number(parser, value));
+                    case "timestamp" -> message.setTimestamp(text(parser, value));
+                    case "apiURL" -> message.setApiURL(text(parser, value));
+                    case "events" -> {
+                        if (hasCredentials(message)) {
+                            message.setEvents(events(parser, value));
+                        } else {
+                            eventsStart = (int) parser.currentTokenLocation().getCharOffset();
+                            parser.skipChildren();
+                            eventsEnd = (int) parser.currentLocation().getCharOffset();
+                        }
+                    }
+                    default -> parser.skipChildren();
+                }
+            }
+            expect(parser, parser.currentToken(), JsonToken.END_OBJECT);
+        }
+
+        if (StringUtils.isEmpty(message.getAuthenticationKey())) {
+            throw new AuthenticationKeyNotProvidedException("Authentication key not provided.");
+        }
+        if (StringUtils.isEmpty(message.getAuthenticationSecret())) {
+            throw new AuthenticationSecretNotProvidedException("Authentication secret not provided.");
+        }
+
+        if (eventsStart >= 0) {
+            try (JsonParser parser = FACTORY.createParser(body.substring(eventsStart, eventsEnd))) {
+                message.setEvents(events(parser, parser.nextToken()));
+            }
+        }
+        return message;
+    }
+
+    private static boolean hasCredentials(final MParticleOutgoingMessage message) {
+        return !StringUtils.isEmpty(message.getAuthenticationKey())
+            && !StringUtils.isEmpty(message.getAuthenticationSecret());
+    }
+
+    private static List<MParticleOutgoingMessage.Event> events(final JsonParser parser, final JsonToken value)
+        throws IOException {
+        if (value == JsonToken.VALUE_NULL) {
+            return List.of();
+        }
+        expect(parser, value, JsonToken.START_ARRAY);
+        final List<MParticleOutgoingMessage.Event> events = new ArrayList<>();
+        JsonToken token;
+        while ((token = parser.nextToken()) != JsonToken.END_ARRAY) {
+            // a null event is rejected here, as databind and List.copyOf did, rather than failing later on
+            events.add(event(parser, token));
+        }
+        return events;
+    }
+
+    private static MParticleOutgoingMessage.Event event(final JsonParser parser, final JsonToken value)
+        throws IOException {
+        expect(parser, value, JsonToken.START_OBJECT);
+        MParticleEventName eventName = null;
+        MParticleEventType eventType = null;
+        Map<String, String> additionalData = null;
+
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            final String field = parser.currentName();
+            final JsonToken token = parser.nextToken();
+            switch (field) {
+                case "eventName" -> eventName = constant(parser, token, EVENT_NAMES);
+                case "eventType" -> eventType = constant(parser, token, EVENT_TYPES);
+                case "additionalData" -> additionalData = attributes(parser, token);
+                default -> parser.skipChildren();
+            }
+        }
+        return new MParticleOutgoingMessage.Event(eventName, eventType, additionalData);
+    }
+
+    private static Map<String, String> attributes(final JsonParser parser, final JsonToken value) throws IOException {
+        if (value == JsonToken.VALUE_NULL) {
+            return null;
+        }
+        expect(parser, value, JsonToken.START_OBJECT);
+        final Map<String, String> attributes = new LinkedHashMap<>();
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            final String name = parser.currentName();
+            attributes.put(name, text(parser, parser.nextToken()));
+        }
+        return attributes;
+    }
+
+    private static <E extends Enum<E>> E constant(final JsonParser parser, final JsonToken value,
+                                                  final Map<String, E> constants) throws IOException {
+        final String name = text(parser, value);
+        if (name == null) {
+            return null;
+        }
+        final E constant = constants.get(name);
+        if (constant == null) {
+            throw new JsonParseException(parser, "Unknown value: " + name);
+        }
+        return constant;
+    }
+
+    // scalars are read as text, the way databind coerces them into String properties
+    private static String text(final JsonParser parser, final JsonToken value) throws IOException {
+        if (value == JsonToken.VALUE_NULL) {
+            return null;
+        }
+        if (!value.isScalarValue()) {
+            throw new JsonParseException(parser, "Expected a value, got " + value);
+        }
+        return parser.getText();
+    }
+
+    private static long number(final JsonParser parser, final JsonToken value) throws IOException {
+        if (value == JsonToken.VALUE_NUMBER_INT) {
+            return parser.getLongValue();
+        }
+        try {
+            return Long.parseLong(text(parser, value));
+        } catch (NumberFormatException e) {
+            throw new JsonParseException(parser, "Expected a number, got " + parser.getText(), e);
+        }
+    }
+
+    private static void expect(final JsonParser parser, final JsonToken actual, final JsonToken expected)
+        throws JsonParseException {
+        if (actual != expected) {
+            throw new JsonParseException(parser, "Expected " + expected + ", got " + actual);
+        }
+    }
+
+    private static <E extends Enum<E>> Map<String, E> byName(final E[] constants) {
+        final Map<String, E> byName = new HashMap<>();
+        for (E constant : constants) {
+            byName.put(constant.name(), constant);
+        }
+        return Map.copyOf(byName);
+    }
+}
@@ -2,8 +2,7 @@ package com.sailthru.sqs;
 
 import com.amazonaws.services.lambda.runtime.events.SQSEvent;
 import com.mparticle.model.Batch;
-import com.sailthru.sqs.exception.AuthenticationKeyNotProvidedException;
-import com.sailthru.sqs.exception.AuthenticationSecretNotProvidedException;
+import com.sailthru.sqs.exception.EventTooLargeException;
 import com.sailthru.sqs.exception.NoRetryException;
 import com.sailthru.sqs.exception.PayloadTooLargeException;
 import com.sailthru.sqs.exception.RetryLaterException;
@@ -11,22 +10,31 @@ import com.sailthru.sqs.exception.UnparseablePayloadException;
 import com.sailthru.sqs.message.MParticleOutgoingMessage;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import software.amazon.awssdk.utils.StringUtils;
 
 import java.io.IOException;
-
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Parses, validates and forwards SQS messages to mParticle. Instances hold no per-message state and may be shared
+ * by concurrently dispatched records.
+ */
 public class MessageProcessor {
     private static final Logger LOGGER = LoggerFactory.getLogger(MessageProcessor.class);
-    private static final int MAX_MPARTICLE_MESSAGE_LENGTH = 256 * 1024; // 256 kb
+    static final int MAX_MPARTICLE_MESSAGE_LENGTH = 256 * 1024; // 256 kb
 
     private final Batch.Environment environment;
-    private MessageSerializer messageSerializer;
-    private boolean mparticleDisabled;
-    private ApiFactory apiFactory;
-    private MParticleClient mParticleClient;
+    private final MessageDecoder messageDecoder;
+    private final boolean mparticleDisabled;
+    private final ApiFactory apiFactory;
+    private volatile MParticleClient mParticleClient;
 
     public MessageProcessor(boolean mparticleDisabled, Batch.Environment environment) {
-        messageSerializer = new MessageSerializer();
+        messageDecoder = new MessageDecoder();
         apiFactory = new ApiFactory();
         this.mparticleDisabled = mparticleDisabled;
         this.environment = environment;
@@ -34,49 +42,208 @@ public class MessageProcessor {
     }
 
     public void process(final SQSEvent.SQSMessage sqsMessage) throws RetryLaterException, NoRetryException {
+        process(sqsMessage, Deadline.NONE);
+    }
+
+    public void process(final SQSEvent.SQSMessage sqsMessage, final Deadline deadline)
+        throws RetryLaterException, NoRetryException {
+        final OutgoingRecord record;
+        try {
+            record = parse(sqsMessage);
+        } catch (PayloadTooLargeException e) {
+            submitSplit(e.getPayload(), e.getSize(), deadline);
+            return;
+        }
+        submit(record, deadline);
+    }
+
+    /**
+     * Send a parsed record, split into several batches if mParticle rejects it as too large.
+     */
+    public void submit(final OutgoingRecord record, final Deadline deadline)
+        throws RetryLaterException, NoRetryException {
+        if (mparticleDisabled) {
+            return;
+        }
+        try {
+            getMParticleClient().submit(record.message(), record.batch(), deadline);
+        } catch (PayloadTooLargeException e) {
+            split(record.message(), e.getStatusCode(), e.getSize(), deadline);
+        }
+    }
+
+    /**
+     * Start sending a parsed record without waiting for mParticle to answer, see
+     * {@link MParticleClient#submitAsync}. The outcome is then collected with
+     * {@link #awaitSubmission(OutgoingRecord, CompletableFuture, Deadline)}.
+     */
+    public CompletableFuture<Void> submitAsync(final OutgoingRecord record, final Deadline deadline)
+        throws RetryLaterException, NoRetryException {
+        if (mparticleDisabled) {
+            return CompletableFuture.completedFuture(null);
+        }
+        return getMParticleClient().submitAsync(record.message(), record.batch(), deadline);
+    }
+
+    /**
+     * Wait, until the deadline at most, for a record started with {@link #submitAsync(OutgoingRecord, Deadline)} to
+     * be sent, throwing what {@link #submit(OutgoingRecord, Deadline)} would have. A record mParticle rejects as too
+     * large is sent split, before returning. A request still in flight at the deadline is cancelled, and the record
+     * retried later.
+     */
+    public void awaitSubmission(final OutgoingRecord record, final CompletableFuture<Void> submission,
+                                final Deadline deadline) throws RetryLaterException, NoRetryException {
+        try {
+            if (deadline.isBounded()) {
+                submission.get(Math.max(0, deadline.remainingMillis()), TimeUnit.MILLISECONDS);
+            } else {
+                submission.get();
+            }
+        } catch (TimeoutException e) {
+            submission.cancel(true);
+            throw new RetryLaterException(0, "No answer from mParticle before the invocation deadline", 0);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            submission.cancel(true);
+            throw new RetryLaterException(e);
+        } catch (ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof PayloadTooLargeException tooLarge) {
+                split(record.message(), tooLarge.getStatusCode(), tooLarge.getSize(), deadline);
+            } else if (cause instanceof RetryLaterException retry) {
+                throw retry;
+            } else if (cause instanceof NoRetryException noRetry) {
+                throw noRetry;
+            } else {
+                throw new RetryLaterException(cause instanceof Exception exception ? exception : e);
+            }
+        }
+    }
+
+    /**
+     * Send a message that is too large for a single batch as several smaller ones, in the order of its events. The
+     * events are halved until every part fits, both by our measurement and by mParticle's: only a single event that
+     * is too large on its own can't be sent. Such events are set aside, and every part around them is still sent.
+     * <p>
+     * The parts are sent one after the other, so if one of them fails the parts before it have been sent already and
+     * will be sent again when the message is retried.
+     *
+     * @throws EventTooLargeException once every other part was sent, if some events are too large to be sent: its
+     * payload holds those events only
+     */
+    public void submitSplit(final MParticleOutgoingMessage message, final long size, final Deadline deadline)
+        throws RetryLaterException, NoRetryException {
+        if (!mparticleDisabled) {
+            split(message, 0, size, deadline);
+        }
+    }
+
+    private void split(final MParticleOutgoingMessage message, final int statusCode, final long size,
+                       final Deadline deadline) throws RetryLaterException, NoRetryException {
+        LOGGER.info("Message for client {} is too large ({} bytes), sending its {} events in several batches",
+            message.getClientId(), size, message.getEvents().size());
+        final List<EventTooLargeException> tooLarge = new ArrayList<>();
+        submitHalves(message, statusCode, size, deadline, tooLarge);
+        if (!tooLarge.isEmpty()) {
+            final List<MParticleOutgoingMessage.Event> dropped = new ArrayList<>(tooLarge.size());
+            long largest = 0;
+            for (EventTooLargeException e : tooLarge) {
+                dropped.addAll(e.getPayload().getEvents());
+                largest = Math.max(largest, e.getSize());
+            }
+            throw new EventTooLargeException(tooLarge.get(0).getStatusCode(), largest, message.withEvents(dropped));
+        }
+    }
+
+    private void submitInParts(final MParticleOutgoingMessage message, final Deadline deadline,
+                               final List<EventTooLargeException> tooLarge)
+        throws RetryLaterException, NoRetryException {
+        final Batch batch = message.toBatch(environment);
+        final long size = sizeOf(message, batch);
+        if (size > MAX_MPARTICLE_MESSAGE_LENGTH) {
+            submitHalves(message, 0, size, deadline, tooLarge);
+            return;
+        }
+        try {
+            getMParticleClient().submit(message, EncodedBatch.deferred(batch), deadline);
+        } catch (PayloadTooLargeException e) {
+            submitHalves(message, e.getStatusCode(), size, deadline, tooLarge);
+        }
+    }
+
+    private void submitHalves(final MParticleOutgoingMessage message, final int statusCode, final long size,
+                              final Deadline deadline, final List<EventTooLargeException> tooLarge)
+        throws RetryLaterException, NoRetryException {
+        final List<MParticleOutgoingMessage.Event> events = message.getEvents();
+        if (events.size() <= 1) {
+            // the events after it are still sent
+            tooLarge.add(new EventTooLargeException(statusCode, size, message));
+            return;
+        }
+        final int middle = events.size() / 2;
+        submitInParts(message.withEvents(events.subList(0, middle)), deadline, tooLarge);
+        submitInParts(message.withEvents(events.subList(middle, events.size())), deadline, tooLarge);
+    }
+
+    /**
+     * Parse and validate the message, without sending it anywhere.
+     *
+     * @throws PayloadTooLargeException if the message is too large for a single batch, see
+     * {@link #submitSplit(MParticleOutgoingMessage, long, Deadline)}
+     */
+    public OutgoingRecord parse(final SQSEvent.SQSMessage sqsMessage)
+        throws NoRetryException, PayloadTooLargeException {
         final String rawMessage = sqsMessage.getBody();
         LOGGER.debug("Received message: {}", rawMessage);
 
-        final MParticleOutgoingMessage message = parseAndValidateMessage(rawMessage);
+        return parseAndValidateMessage(sqsMessage, rawMessage);
+    }
 
+    /**
+     * Send already parsed records in a single bulk upload. All the records must share the same credentials and
+     * endpoint, see {@link BulkCoalescer}.
+     */
+    public void submitBulk(final List<OutgoingRecord> records, final Deadline deadline)
+        throws RetryLaterException, NoRetryException {
         if (!mparticleDisabled) {
-            getMParticleClient().submit(message);
+            getMParticleClient().submitBulk(records, deadline);
         }
     }
 
-    private MParticleOutgoingMessage parseAndValidateMessage(
+    private OutgoingRecord parseAndValidateMessage(
+        final SQSEvent.SQSMessage sqsMessage,
         final String rawMessage
     ) throws NoRetryException, PayloadTooLargeException {
         try {
-            final MParticleOutgoingMessage message = getSerializer().deserialize(rawMessage,
-                    MParticleOutgoingMessage.class);
+            // also rejects messages without credentials
+            final MParticleOutgoingMessage message = getDecoder().decode(rawMessage);
 
-            if (StringUtils.isEmpty(message.getAuthenticationKey())) {
-                throw new AuthenticationKeyNotProvidedException("Authentication key not provided.");
+            final Batch batch = message.toBatch(environment);
+            final long size = sizeOf(message, batch);
+            if (size > MAX_MPARTICLE_MESSAGE_LENGTH) {
+                throw new PayloadTooLargeException(size, message);
             }
 
-            if (StringUtils.isEmpty(message.getAuthenticationSecret())) {
-                throw new AuthenticationSecretNotProvidedException("Authentication secret not provided.");
-            }
-
-            // check the size of the message
-            int outgoingMessageLength = messageSerializer.serializeToBytes(message.toBatch(environment)).length;
-            if (outgoingMessageLength > MAX_MPARTICLE_MESSAGE_LENGTH) {
-                throw new PayloadTooLargeException(outgoingMessageLength, message);
-            }
-
-            return message;
+            return new OutgoingRecord(sqsMessage, message, EncodedBatch.deferred(batch));
         } catch (IOException e) {
             throw new UnparseablePayloadException(String.format("Could not deserialize message: %s", rawMessage), e);
         }
     }
 
+    // the size of the batch as it will be sent, or an upper bound of it. Most messages are far below the limit, which
+    // the upper bound shows without encoding them; the others are measured without keeping the bytes. Only for the
+    // size check: the batches are packed into bulk uploads by their exact size, once encoded
+    private static long sizeOf(final MParticleOutgoingMessage message, final Batch batch) {
+        final long maxSize = message.maxEncodedBatchSize();
+        return maxSize <= MAX_MPARTICLE_MESSAGE_LENGTH ? maxSize : BatchEncoder.measure(batch);
+    }
+
     private MParticleClient getMParticleClient() {
         return mParticleClient;
     }
 
-    private MessageSerializer getSerializer() {
-        return messageSerializer;
+    private MessageDecoder getDecoder() {
+        return messageDecoder;
     }
 
     // @VisibleForTesting
@@ -5,6 +5,7 @@ import com.fasterxml.jackson.databind.ObjectMapper;
 
 import java.io.IOException;
 
+// ObjectMapper is thread-safe once configured, so a single instance can be shared between threads
 public final class MessageSerializer {
     private final ObjectMapper mapper = new ObjectMapper();
 
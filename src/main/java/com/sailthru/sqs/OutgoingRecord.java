@@ -0,0 +1,33 @@
+package com.sailthru.sqs;
+
+import com.amazonaws.services.lambda.runtime.events.SQSEvent;
+import com.sailthru.sqs.message.MParticleOutgoingMessage;
+
+/**
+ * A parsed and validated SQS record, ready to be sent to mParticle.
+ *
+ * @param sqsMessage the SQS record the message came from
+ * @param message the parsed message
+ * @param batch the mParticle batch for the message, encoded as it will be sent
+ * @param fingerprint what the SQS record is remembered by once delivered, or null if it isn't remembered
+ */
+public record OutgoingRecord(SQSEvent.SQSMessage sqsMessage, MParticleOutgoingMessage message, EncodedBatch batch,
+                             DeliveredMessageCache.Fingerprint fingerprint) {
+    public OutgoingRecord(SQSEvent.SQSMessage sqsMessage, MParticleOutgoingMessage message, EncodedBatch batch) {
+        this(sqsMessage, message, batch, null);
+    }
+
+    /**
+     * The same record, remembered by the given fingerprint once delivered, so that the body isn't hashed again.
+     */
+    public OutgoingRecord withFingerprint(final DeliveredMessageCache.Fingerprint fingerprint) {
+        return new OutgoingRecord(sqsMessage, message, batch, fingerprint);
+    }
+
+    /**
+     * The size in bytes of the encoded mParticle batch.
+     */
+    public int size() {
+        return batch.size();
+    }
+}
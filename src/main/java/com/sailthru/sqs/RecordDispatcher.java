@@ -0,0 +1,70 @@
+package com.sailthru.sqs;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.function.Consumer;
+
+/**
+ * Runs an action for every item of a batch, either sequentially or fanned out on virtual threads with at most
+ * {@code maxInFlight} actions running at any time. Returns only once every action has completed.
+ * <p>
+ * Checked exceptions are expected to be handled by the action itself. A runtime exception escaping an action is
+ * rethrown to the caller once the whole batch has completed, the same way it would escape a sequential loop.
+ */
+public class RecordDispatcher {
+    private final int maxInFlight;
+
+    public RecordDispatcher(int maxInFlight) {
+        this.maxInFlight = Math.max(1, maxInFlight);
+    }
+
+    public <T> void dispatch(final List<T> items, final Consumer<T> action) {
+        if (maxInFlight == 1 || items.size() <= 1) {
+            items.forEach(action);
+            return;
+        }
+
+        final Semaphore inFlight = new Semaphore(maxInFlight);
+        final List<Future<?>> futures = new ArrayList<>(items.size());
+        try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            for (T item : items) {
+                inFlight.acquireUninterruptibly();
+                futures.add(executor.submit(() -> {
+                    try {
+                        action.accept(item);
+                    } finally {
+                        inFlight.release();
+                    }
+                }));
+            }
+        }
+        // close() above waits for all the tasks, so none of these calls will block
+        futures.forEach(RecordDispatcher::rethrowFailure);
+    }
+
+    public int getMaxInFlight() {
+        return maxInFlight;
+    }
+
+    private static void rethrowFailure(final Future<?> future) {
+        try {
+            future.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException runtimeException) {
+                throw runtimeException;
+            }
+            if (e.getCause() instanceof Error error) {
+                throw error;
+            }
+            throw new IllegalStateException(e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for dispatched records", e);
+        }
+    }
+}
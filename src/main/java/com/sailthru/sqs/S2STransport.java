@@ -0,0 +1,96 @@
+package com.sailthru.sqs;
+
+import okhttp3.Call;
+import okhttp3.Credentials;
+import okhttp3.HttpUrl;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+
+import java.util.function.Function;
+
+/**
+ * Posts encoded batches straight to the mParticle server-to-server endpoints, {@code events} and {@code bulkevents}
+ * under the API URL, rather than through a Retrofit service per set of credentials. The endpoint URLs and the Basic
+ * authorization header are worked out once per set of credentials, and kept in a {@link ClientCache}; the HTTP client
+ * (see {@link EndpointBulkhead#clientFor}) is looked up for every call, since the one of an evicted bulkhead is shut
+ * down.
+ * <p>
+ * Used unless RETROFIT_TRANSPORT=1, which sends through {@link ApiFactory} as before.
+ */
+public class S2STransport {
+    static final String RETROFIT_TRANSPORT = "RETROFIT_TRANSPORT";
+    private static final String AUTHORIZATION = "Authorization";
+    private static final S2STransport INSTANCE = new S2STransport(EndpointBulkhead::clientFor,
+        ClientCache.fromEnvironment());
+
+    // the client for each normalized API URL
+    private final Function<String, OkHttpClient> httpClients;
+    private final ClientCache<ApiFactory.ClientApiDetails, Endpoint> endpoints;
+
+    // VisibleForTesting
+    S2STransport(OkHttpClient httpClient) {
+        this(apiURL -> httpClient, ClientCache.fromEnvironment());
+    }
+
+    private S2STransport(Function<String, OkHttpClient> httpClients,
+                         ClientCache<ApiFactory.ClientApiDetails, Endpoint> endpoints) {
+        this.httpClients = httpClients;
+        this.endpoints = endpoints;
+    }
+
+    public static boolean isEnabled() {
+        return !EnvVars.getFlag(RETROFIT_TRANSPORT);
+    }
+
+    public static S2STransport getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * @throws IllegalArgumentException if the API URL of the details is not a valid HTTP(S) URL
+     */
+    public Call uploadEvents(final ApiFactory.ClientApiDetails apiDetails, final RequestBody body) {
+        final Endpoint endpoint = endpointOf(apiDetails);
+        return newCall(apiDetails, endpoint, endpoint.events(), body);
+    }
+
+    /**
+     * @throws IllegalArgumentException if the API URL of the details is not a valid HTTP(S) URL
+     */
+    public Call bulkUploadEvents(final ApiFactory.ClientApiDetails apiDetails, final RequestBody body) {
+        final Endpoint endpoint = endpointOf(apiDetails);
+        return newCall(apiDetails, endpoint, endpoint.bulkEvents(), body);
+    }
+
+    private Call newCall(final ApiFactory.ClientApiDetails apiDetails, final Endpoint endpoint, final HttpUrl url,
+                         final RequestBody body) {
+        // the content type comes from the body, application/json
+        return httpClients.apply(apiDetails.apiURL()).newCall(new Request.Builder()
+            .url(url)
+            .header(AUTHORIZATION, endpoint.authorization())
+            .post(body)
+            .build());
+    }
+
+    private Endpoint endpointOf(final ApiFactory.ClientApiDetails apiDetails) {
+        return endpoints.get(apiDetails, Endpoint::of);
+    }
+
+    /**
+     * Totals of the endpoint cache since the last call.
+     */
+    ClientCache.Stats drainCacheStats() {
+        return endpoints.drainStats();
+    }
+
+    // VisibleForTesting
+    record Endpoint(HttpUrl events, HttpUrl bulkEvents, String authorization) {
+        // resolved against the API URL the way Retrofit resolves the paths of EncodedEventsApi
+        static Endpoint of(final ApiFactory.ClientApiDetails apiDetails) {
+            final HttpUrl baseUrl = HttpUrl.get(apiDetails.apiURL());
+            return new Endpoint(baseUrl.resolve("events"), baseUrl.resolve("bulkevents"),
+                Credentials.basic(apiDetails.apiKey(), apiDetails.apiSecret()));
+        }
+    }
+}
@@ -5,21 +5,31 @@ import com.amazonaws.services.lambda.runtime.RequestHandler;
 import com.amazonaws.services.lambda.runtime.events.SQSBatchResponse;
 import com.amazonaws.services.lambda.runtime.events.SQSEvent;
 import com.mparticle.model.Batch;
+import com.sailthru.sqs.exception.EventTooLargeException;
 import com.sailthru.sqs.exception.NoRetryException;
 import com.sailthru.sqs.exception.PayloadTooLargeException;
 import com.sailthru.sqs.exception.RetryLaterException;
+import com.sailthru.sqs.metrics.Measurement;
 import com.sailthru.sqs.metrics.Metrics;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.slf4j.simple.SimpleLogger;
+import software.amazon.awssdk.auth.credentials.EnvironmentVariableCredentialsProvider;
+import software.amazon.awssdk.http.urlconnection.UrlConnectionHttpClient;
 import software.amazon.awssdk.regions.Region;
+import software.amazon.awssdk.services.sqs.SqsAsyncClient;
 import software.amazon.awssdk.services.sqs.SqsClient;
-import software.amazon.awssdk.services.sqs.model.ChangeMessageVisibilityRequest;
+import software.amazon.cloudwatchlogs.emf.model.Unit;
 
+import java.security.SecureRandom;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Supplier;
 
 public class SQSLambdaHandler implements RequestHandler<SQSEvent, SQSBatchResponse> {
     static final String SQS_URL_KEY = "SQS_URL";
@@ -27,6 +37,21 @@ public class SQSLambdaHandler implements RequestHandler<SQSEvent, SQSBatchRespon
     static final String TIMEOUT_FACTOR_KEY = "TIMEOUT_FACTOR";
     static final String MPARTICLE_DISABLED_KEY = "MPARTICLE_DISABLED";
     static final String ENVIRONMENT_KEY = "ENVIRONMENT";
+    static final String DISPATCH_CONCURRENCY_KEY = "DISPATCH_CONCURRENCY";
+    static final String DEADLINE_SAFETY_MARGIN_KEY = "DEADLINE_SAFETY_MARGIN_MS";
+    static final String BULK_UPLOAD_KEY = "BULK_UPLOAD";
+    static final String BULK_MAX_BATCHES_KEY = "BULK_MAX_BATCHES";
+    static final String BULK_MAX_BYTES_KEY = "BULK_MAX_BYTES";
+    static final String DEDUP_CACHE_KEY = "DEDUP_CACHE";
+    static final String DEDUP_CACHE_MAX_MB_KEY = "DEDUP_CACHE_MAX_MB";
+    static final String DEDUP_CACHE_TTL_SECONDS_KEY = "DEDUP_CACHE_TTL_SECONDS";
+    static final String DEDUP_CONTENT_HASH_KEY = "DEDUP_CONTENT_HASH";
+    static final String ASYNC_SEND_KEY = "ASYNC_SEND";
+    static final String WARM_UP_KEY = "WARM_UP";
+    static final String WARM_UP_ENDPOINTS_KEY = "WARM_UP_ENDPOINTS";
+    static final String WARM_UP_TIMEOUT_KEY = "WARM_UP_TIMEOUT_MS";
+    static final String SNAPSTART_PRIMING_ITERATIONS_KEY = "SNAPSTART_PRIMING_ITERATIONS";
+    static final String LAZY_INIT_KEY = "LAZY_INIT";
     static final String STAGE_ENVIRONMENT = "stage";
     static final String PROD_ENVIRONMENT = "prod";
 
@@ -37,8 +62,24 @@ public class SQSLambdaHandler implements RequestHandler<SQSEvent, SQSBatchRespon
     private int timeoutFactor;
     private boolean mparticleDisabled;
     private Batch.Environment environment;
-    private final SqsClient sqsClient;
-    private MessageProcessor messageProcessor;
+    private RecordDispatcher recordDispatcher;
+    private long deadlineSafetyMargin;
+    // null unless bulk uploads are enabled
+    private BulkCoalescer bulkCoalescer;
+    private boolean asyncSend;
+    private boolean warmUp;
+    // reported, and cleared, by the first invocation
+    private volatile ConnectionWarmer.Report warmUpReport;
+    // reseeded after a restore, so that containers restored from the same snapshot don't share their jitter
+    private final Random jitter = new Random();
+    // the CRaC context doesn't keep it alive
+    private final SnapStartPriming snapStartPriming;
+    // kept by the handler instance, so it lives as long as the warm container
+    private DeliveredMessageCache deliveredMessages;
+    private final VisibilityChanger visibilityChanger;
+    // builds the processor when it is first needed, with LAZY_INIT=1
+    private final Supplier<MessageProcessor> messageProcessorFactory;
+    private volatile MessageProcessor messageProcessor;
     private Metrics metrics;
 
     static {
@@ -46,66 +87,343 @@ public class SQSLambdaHandler implements RequestHandler<SQSEvent, SQSBatchRespon
     }
 
     public SQSLambdaHandler() {
-        this(System.getenv(), SqsClient.builder().region(Region.US_EAST_1).build(), new Metrics());
+        this(System.getenv(), new StartupTimeline(System::nanoTime));
     }
 
     // @VisibleForTesting
-    SQSLambdaHandler(Map<String, String> env, SqsClient sqsClient, Metrics metrics) {
-        initializeSystemVars(env);
-        this.messageProcessor = new MessageProcessor(mparticleDisabled, environment);
-        this.sqsClient = sqsClient;
+    SQSLambdaHandler(Map<String, String> env, StartupTimeline timeline) {
+        this(env, sqsClientFor(env, timeline), timeline.build("Metrics", Metrics::new), timeline);
+    }
+
+    // @VisibleForTesting
+    SQSLambdaHandler(Map<String, String> env, SqsAsyncClient sqsClient, Metrics metrics) {
+        this(env, () -> sqsClient, metrics, new StartupTimeline(System::nanoTime));
+    }
+
+    private SQSLambdaHandler(Map<String, String> env, Supplier<SqsAsyncClient> sqsClient, Metrics metrics,
+                             StartupTimeline timeline) {
+        timeline.run("Configuration", () -> initializeSystemVars(env));
+        if (isLazyInit(env)) {
+            this.messageProcessorFactory = timeline.deferred("MessageProcessor",
+                () -> new MessageProcessor(mparticleDisabled, environment));
+        } else {
+            final MessageProcessor processor = timeline.build("MessageProcessor",
+                () -> new MessageProcessor(mparticleDisabled, environment));
+            this.messageProcessorFactory = () -> processor;
+        }
+        this.visibilityChanger = new VisibilityChanger(sqsClient, queueUrl);
         this.metrics = metrics;
+        final int DEFAULT_SNAPSTART_PRIMING_ITERATIONS = 200;
+        this.snapStartPriming = new SnapStartPriming(environment,
+            getEnvVarAsInt(env, SNAPSTART_PRIMING_ITERATIONS_KEY, DEFAULT_SNAPSTART_PRIMING_ITERATIONS),
+            () -> afterRestore(env));
+        snapStartPriming.register();
+        // with SnapStart, the connections wouldn't survive the snapshot: warmed up after the restore instead
+        if (warmUp && !SnapStartPriming.isSnapStart(env)) {
+            timeline.run("WarmUp", () -> warmUpConnections(env));
+        }
+        timeline.log();
+    }
+
+    // with LAZY_INIT=1, the SQS client is only built for the first visibility change, with the URL connection HTTP
+    // client, and credentials from the environment rather than through the whole provider chain
+    private static Supplier<SqsAsyncClient> sqsClientFor(final Map<String, String> env,
+                                                         final StartupTimeline timeline) {
+        if (isLazyInit(env)) {
+            return timeline.deferred("SqsClient", () -> new BlockingSqsAsyncClient(SqsClient.builder()
+                .region(Region.US_EAST_1)
+                .credentialsProvider(EnvironmentVariableCredentialsProvider.create())
+                .httpClientBuilder(UrlConnectionHttpClient.builder())
+                .build()));
+        }
+        final SqsAsyncClient sqsClient =
+            timeline.build("SqsClient", () -> SqsAsyncClient.builder().region(Region.US_EAST_1).build());
+        return () -> sqsClient;
+    }
+
+    private static boolean isLazyInit(final Map<String, String> env) {
+        return getEnvVarAsInt(env, LAZY_INIT_KEY, 0) != 0;
     }
 
     @Override
     public SQSBatchResponse handleRequest(final SQSEvent event, final Context context) {
-        final List<SQSBatchResponse.BatchItemFailure> batchItemFailures = new ArrayList<>();
-        final List<FailedRequest> changeVisibilityList = new ArrayList<>();
+        final InvocationOutcome outcome = new InvocationOutcome();
+        final Deadline deadline = Deadline.fromContext(context, deadlineSafetyMargin);
+
+        if (bulkCoalescer != null) {
+            processInBulk(event.getRecords(), context, deadline, outcome);
+        } else if (asyncSend) {
+            processAsync(event.getRecords(), context, deadline, outcome);
+        } else {
+            recordDispatcher.dispatch(event.getRecords(), sqsMessage -> {
+                if (deadline.isExpired()) {
+                    outcome.defer(sqsMessage);
+                    return;
+                }
+                final DeliveredMessageCache.Fingerprint fingerprint = deliveredMessages.fingerprint(sqsMessage);
+                if (isAlreadyDelivered(sqsMessage, fingerprint)) {
+                    return;
+                }
+                processRecord(context, sqsMessage, outcome, () -> {
+                    getMessageProcessor().process(sqsMessage, deadline);
+                    deliveredMessages.markDelivered(fingerprint);
+                });
+            });
+        }
+
+        reportDeferredRecords(context, outcome);
+        reportWarmUp(context);
+        reportDeduplication(context);
+        reportThrottling(context);
+        reportConcurrencyLimits(context);
+        reportCompression(context);
+        reportClientCache(context);
+        reportConnectionReuse(context);
+        reportBulkheads(context);
+        changeVisibilityForFailedRequests(outcome.getChangeVisibilityList());
+        return new SQSBatchResponse(outcome.getBatchItemFailures());
+    }
+
+    private void processInBulk(final List<SQSEvent.SQSMessage> records, final Context context,
+                               final Deadline deadline, final InvocationOutcome outcome) {
+        final List<OutgoingRecord> parsedRecords = Collections.synchronizedList(new ArrayList<>());
+        recordDispatcher.dispatch(records, sqsMessage -> {
+            final DeliveredMessageCache.Fingerprint fingerprint = deliveredMessages.fingerprint(sqsMessage);
+            if (isAlreadyDelivered(sqsMessage, fingerprint)) {
+                return;
+            }
+            processRecord(context, sqsMessage, outcome, () -> {
+                try {
+                    parsedRecords.add(getMessageProcessor().parse(sqsMessage).withFingerprint(fingerprint));
+                } catch (PayloadTooLargeException e) {
+                    // needs several batches of its own, so it can't be part of a bulk upload
+                    getMessageProcessor().submitSplit(e.getPayload(), e.getSize(), deadline);
+                    deliveredMessages.markDelivered(fingerprint);
+                }
+            });
+        });
+
+        final List<List<OutgoingRecord>> chunks;
+        synchronized (parsedRecords) {
+            chunks = bulkCoalescer.coalesce(parsedRecords);
+        }
 
-        event.getRecords().forEach(sqsMessage -> {
+        recordDispatcher.dispatch(chunks, chunk -> {
+            if (deadline.isExpired()) {
+                chunk.forEach(record -> outcome.defer(record.sqsMessage()));
+                return;
+            }
             try {
-                getMessageProcessor().process(sqsMessage);
-            } catch (NoRetryException e) {
-                LOGGER.error(
-                    "Non-retryable exception occurred processing message id {} because of: [{}] {}.",
-                        sqsMessage.getMessageId(),
-                        e.getStatusCode(),
-                        e.getMessage(), e);
-            } catch (PayloadTooLargeException e) {
-                // only log the first time we receive the message
-                if (getApproximateReceiveCount(sqsMessage) <= 1) {
-                    LOGGER.error("Message {} is too large ({} bytes), will not send to mParticle. [{}] {}",
-                        sqsMessage.getMessageId(),
-                        e.getMessage(),
-                        e.getPayload().getClientId(),
-                        e.getPayload().getProfileMpId() != null ?
-                            e.getPayload().getProfileMpId() :
-                            e.getPayload().getProfileEmail());
+                getMessageProcessor().submitBulk(chunk, deadline);
+                chunk.forEach(record -> deliveredMessages.markDelivered(record.fingerprint()));
+            } catch (NoRetryException | RetryLaterException e) {
+                if (e instanceof RetryLaterException retry
+                    && retry.getStatusCode() == MParticleClient.PAYLOAD_TOO_LARGE) {
+                    // too large for mParticle as a whole, send the messages on their own (split if need be)
+                    chunk.forEach(record -> processRecord(context, record.sqsMessage(), outcome, () -> {
+                        getMessageProcessor().submit(record, deadline);
+                        deliveredMessages.markDelivered(record.fingerprint());
+                    }));
+                    return;
                 }
+                // the whole chunk was rejected, map the failure back onto every message it contained
+                chunk.forEach(record -> processRecord(context, record.sqsMessage(), outcome, () -> {
+                    throw e;
+                }));
+            }
+        });
+    }
+
+    private void processAsync(final List<SQSEvent.SQSMessage> records, final Context context,
+                              final Deadline deadline, final InvocationOutcome outcome) {
+        // every request is started before any answer is waited for, so they are in flight together on the threads
+        // of the HTTP client rather than each holding a dispatched record's thread
+        final List<PendingSubmission> pending = new ArrayList<>(records.size());
+        for (SQSEvent.SQSMessage sqsMessage : records) {
+            if (deadline.isExpired()) {
+                outcome.defer(sqsMessage);
+                continue;
+            }
+            final DeliveredMessageCache.Fingerprint fingerprint = deliveredMessages.fingerprint(sqsMessage);
+            if (isAlreadyDelivered(sqsMessage, fingerprint)) {
+                continue;
+            }
+            processRecord(context, sqsMessage, outcome, () -> {
+                final OutgoingRecord record;
+                try {
+                    record = getMessageProcessor().parse(sqsMessage).withFingerprint(fingerprint);
+                } catch (PayloadTooLargeException e) {
+                    getMessageProcessor().submitSplit(e.getPayload(), e.getSize(), deadline);
+                    deliveredMessages.markDelivered(fingerprint);
+                    return;
+                }
+                pending.add(new PendingSubmission(record, getMessageProcessor().submitAsync(record, deadline)));
+            });
+        }
+
+        // once the deadline has passed, whatever is still in flight is cancelled and retried later
+        pending.forEach(submission -> processRecord(context, submission.record().sqsMessage(), outcome, () -> {
+            getMessageProcessor().awaitSubmission(submission.record(), submission.future(), deadline);
+            deliveredMessages.markDelivered(submission.record().fingerprint());
+        }));
+    }
 
-                // this will over-evaluate the metric but that's better than missing it sometimes
-                metrics.mark(context, sqsMessage, Metrics.MESSAGE_TOO_LARGE, 1);
-                // don't add to the change visibility list, as we won't adjust the visiblity timeout
-                // we'll retry those messages immediately
-                batchItemFailures.add(new SQSBatchResponse.BatchItemFailure(sqsMessage.getMessageId()));
-            } catch (RetryLaterException e) {
-                LOGGER.warn(
-                    "Retryable exception occurred processing message id {} because of exception: [{}] {}. Will retry.",
+    private record PendingSubmission(OutgoingRecord record, CompletableFuture<Void> future) {
+    }
+
+    private boolean isAlreadyDelivered(final SQSEvent.SQSMessage sqsMessage,
+                                       final DeliveredMessageCache.Fingerprint fingerprint) {
+        if (deliveredMessages.isDelivered(fingerprint)) {
+            // not reported as a failure, so SQS deletes it
+            LOGGER.info("Message {} was already delivered to mParticle, skipping it", sqsMessage.getMessageId());
+            return true;
+        }
+        return false;
+    }
+
+    private void processRecord(final Context context, final SQSEvent.SQSMessage sqsMessage,
+                               final InvocationOutcome outcome, final RecordAction action) {
+        try {
+            action.run();
+        } catch (EventTooLargeException e) {
+            // not reported as a failure: they will never fit, so retrying only burns invocations. The other events
+            // of the message were sent
+            LOGGER.error("Message {} has {} event(s) too large (up to {} bytes) to send to mParticle, dropping them."
+                    + " [{}] {}",
+                sqsMessage.getMessageId(),
+                e.getPayload().getEvents().size(),
+                e.getSize(),
+                e.getPayload().getClientId(),
+                e.getPayload().getProfileMpId() != null ?
+                    e.getPayload().getProfileMpId() :
+                    e.getPayload().getProfileEmail());
+            metrics.mark(context, sqsMessage, Metrics.MESSAGE_TOO_LARGE, 1);
+        } catch (NoRetryException e) {
+            LOGGER.error(
+                "Non-retryable exception occurred processing message id {} because of: [{}] {}.",
                     sqsMessage.getMessageId(),
                     e.getStatusCode(),
-                    e.getMessage(),
-                    e
-                );
-                FailedRequest failedRequest = new FailedRequest(sqsMessage.getMessageId(), e.getStatusCode(),
-                        e.getRetryAfter(), sqsMessage.getReceiptHandle(), getApproximateReceiveCount(sqsMessage));
-
-                changeVisibilityList.add(failedRequest);
-                batchItemFailures.add(new SQSBatchResponse.BatchItemFailure(sqsMessage.getMessageId()));
+                    e.getMessage(), e);
+        } catch (RetryLaterException e) {
+            LOGGER.warn(
+                "Retryable exception occurred processing message id {} because of exception: [{}] {}. Will retry.",
+                sqsMessage.getMessageId(),
+                e.getStatusCode(),
+                e.getMessage(),
+                e
+            );
+            FailedRequest failedRequest = new FailedRequest(sqsMessage.getMessageId(), e.getStatusCode(),
+                    e.getRetryAfter(), sqsMessage.getReceiptHandle(), getApproximateReceiveCount(sqsMessage));
+
+            outcome.retryLater(sqsMessage, failedRequest);
+        }
+    }
+
+    private void reportDeferredRecords(final Context context, final InvocationOutcome outcome) {
+        final int deferredCount = outcome.getDeferredCount();
+        if (deferredCount > 0) {
+            LOGGER.warn("Ran out of time, {} records were not attempted and will be redelivered", deferredCount);
+            metrics.mark(context, null, Metrics.DEFERRED_RECORDS, deferredCount);
+        }
+    }
+
+    private void reportWarmUp(final Context context) {
+        if (warmUpReport != null) {
+            metrics.measure(context, Map.of(), List.of(
+                new Measurement(Metrics.WARM_UP_TIME, warmUpReport.durationNanos() / 1_000_000.0, Unit.MILLISECONDS),
+                new Measurement(Metrics.WARM_UP_CONNECTIONS, warmUpReport.connected(), Unit.COUNT)));
+            warmUpReport = null;
+        }
+    }
+
+    private void reportDeduplication(final Context context) {
+        final long hits = deliveredMessages.drainHits();
+        final long misses = deliveredMessages.drainMisses();
+        if (hits > 0 || misses > 0) {
+            metrics.markAll(context, Map.of(Metrics.DEDUP_HITS, hits, Metrics.DEDUP_MISSES, misses));
+        }
+    }
+
+    private void reportThrottling(final Context context) {
+        final ThrottleRegistry throttleRegistry = ThrottleRegistry.getInstance();
+        final long hits = throttleRegistry.drainHits();
+        final long skips = throttleRegistry.drainSkips();
+        final long rateLimited = TenantRateLimiter.getInstance().drainLimited();
+        if (hits > 0 || skips > 0 || rateLimited > 0) {
+            metrics.markAll(context, Map.of(Metrics.THROTTLE_HITS, hits, Metrics.THROTTLE_SKIPS, skips,
+                Metrics.RATE_LIMITED, rateLimited));
+        }
+    }
+
+    private void reportConcurrencyLimits(final Context context) {
+        // only reports the workspaces called during this invocation, so nothing when the limiter is disabled
+        AdaptiveConcurrencyLimiter.drainSnapshots().forEach(snapshot ->
+            metrics.measure(context, Map.of("ApiKey", snapshot.apiKey(), "ApiURL", snapshot.apiURL()), List.of(
+                new Measurement(Metrics.CONCURRENCY_LIMIT, snapshot.limit(), Unit.COUNT),
+                new Measurement(Metrics.QUEUE_DELAY_AVERAGE, snapshot.averageQueueMillis(), Unit.MILLISECONDS),
+                new Measurement(Metrics.QUEUE_DELAY_MAX, snapshot.maxQueueMillis(), Unit.MILLISECONDS))));
+    }
+
+    private void reportCompression(final Context context) {
+        final GzipRequestInterceptor.Stats stats = GzipRequestInterceptor.getInstance().drainStats();
+        if (stats.requests() > 0) {
+            metrics.measure(context, Map.of(), List.of(
+                new Measurement(Metrics.COMPRESSED_REQUESTS, stats.requests(), Unit.COUNT),
+                new Measurement(Metrics.COMPRESSION_RATIO, stats.ratio(), Unit.NONE),
+                new Measurement(Metrics.COMPRESSION_TIME, stats.compressionNanos() / 1_000_000.0, Unit.MILLISECONDS)));
+        }
+    }
+
+    private void reportClientCache(final Context context) {
+        // only one of the two caches is used, depending on the transport
+        final ClientCache.Stats stats = ApiFactory.drainCacheStats().plus(S2STransport.getInstance().drainCacheStats());
+        if (stats.hits() > 0 || stats.misses() > 0 || stats.evictions() > 0) {
+            metrics.measure(context, Map.of(), List.of(
+                new Measurement(Metrics.CLIENT_CACHE_HITS, stats.hits(), Unit.COUNT),
+                new Measurement(Metrics.CLIENT_CACHE_MISSES, stats.misses(), Unit.COUNT),
+                new Measurement(Metrics.CLIENT_CACHE_EVICTIONS, stats.evictions(), Unit.COUNT),
+                new Measurement(Metrics.CLIENT_BUILD_TIME, stats.buildNanos() / 1_000_000.0, Unit.MILLISECONDS)));
+        }
+    }
+
+    private void reportConnectionReuse(final Context context) {
+        final ConnectionReuseListener.Stats stats = ConnectionReuseListener.getInstance().drainStats();
+        if (stats.acquired() > 0) {
+            metrics.measure(context, Map.of(), List.of(
+                new Measurement(Metrics.CONNECTIONS_ACQUIRED, stats.acquired(), Unit.COUNT),
+                new Measurement(Metrics.CONNECTIONS_OPENED, stats.opened(), Unit.COUNT),
+                new Measurement(Metrics.CONNECTION_REUSE_RATIO, stats.reuseRatio(), Unit.NONE)));
+        }
+        if (stats.firstCallNanos() >= 0) {
+            // once per container (and per restore), to compare cold starts with and without warming up
+            final boolean restored = stats.sinceRestoreNanos() >= 0;
+            final List<Measurement> measurements = new ArrayList<>();
+            measurements.add(
+                new Measurement(Metrics.FIRST_CALL_LATENCY, stats.firstCallNanos() / 1_000_000.0, Unit.MILLISECONDS));
+            if (restored) {
+                measurements.add(new Measurement(Metrics.RESTORE_TO_FIRST_CALL,
+                    stats.sinceRestoreNanos() / 1_000_000.0, Unit.MILLISECONDS));
             }
-        });
+            metrics.measure(context, Map.of("WarmUp", warmUp ? "enabled" : "disabled",
+                "Start", restored ? "restore" : "cold"), Map.of(), measurements);
+        }
+    }
 
-        changeVisibilityForFailedRequests(changeVisibilityList);
-        return new SQSBatchResponse(batchItemFailures);
+    private void reportBulkheads(final Context context) {
+        // only reports the endpoints called during this invocation, so nothing when bulkheads are disabled
+        EndpointBulkhead.drainSnapshots().forEach(snapshot ->
+            // the bulkheads are bounded, and so are the hosts
+            metrics.measure(context, Map.of("Host", snapshot.host()), Map.of(), List.of(
+                new Measurement(Metrics.ENDPOINT_CALLS, snapshot.calls(), Unit.COUNT),
+                new Measurement(Metrics.ENDPOINT_REJECTED, snapshot.rejected(), Unit.COUNT),
+                new Measurement(Metrics.ENDPOINT_LATENCY_AVERAGE, snapshot.averageLatencyMillis(), Unit.MILLISECONDS),
+                new Measurement(Metrics.ENDPOINT_LATENCY_MAX, snapshot.maxLatencyMillis(), Unit.MILLISECONDS),
+                new Measurement(Metrics.ENDPOINT_SATURATION, snapshot.saturation(), Unit.NONE))));
+    }
+
+    @FunctionalInterface
+    private interface RecordAction {
+        void run() throws RetryLaterException, NoRetryException;
     }
 
     int getApproximateReceiveCount(SQSEvent.SQSMessage sqsMessage) {
@@ -122,38 +440,33 @@ public class SQSLambdaHandler implements RequestHandler<SQSEvent, SQSBatchRespon
     }
 
     private void changeVisibilityForFailedRequests(List<FailedRequest> failedRequestList) {
-        failedRequestList.forEach(this::processFailedRequest);
-    }
-
-    private void processFailedRequest(FailedRequest failedRequest) {
-        try {
-            final int visibilityTimeout = (int) Math.min(
-                failedRequest.getRetryAfter() > 0 ?
-                    failedRequest.getRetryAfter() :
-                    calculateVisibilityTimeout(failedRequest.getReceiveCount()),
-                Integer.MAX_VALUE);
-            setVisibilityTimeout(failedRequest.getReceiptHandle(), visibilityTimeout);
-            LOGGER.debug("Successfully change the visibility timeout to {} seconds, for message: {}, Receive Count: {}",
-                    visibilityTimeout, failedRequest.getId(), failedRequest.getReceiveCount());
-        } catch (RuntimeException e) {
-            LOGGER.debug("Change visibility timeout error: {}", e.getMessage(), e);
-        }
+        visibilityChanger.changeVisibility(failedRequestList.stream()
+            .map(failedRequest -> new VisibilityChanger.VisibilityChange(failedRequest,
+                getVisibilityTimeout(failedRequest)))
+            .toList());
     }
 
-    void setVisibilityTimeout(String receiptHandle, int visibilityTimeout) {
-        ChangeMessageVisibilityRequest changeMessageVisibilityRequest = ChangeMessageVisibilityRequest.builder()
-                .queueUrl(queueUrl)
-                .receiptHandle(receiptHandle)
-                .visibilityTimeout(visibilityTimeout)
-                .build();
-
-        sqsClient.changeMessageVisibility(changeMessageVisibilityRequest);
+    // @VisibleForTesting
+    int getVisibilityTimeout(FailedRequest failedRequest) {
+        return (int) Math.min(
+            failedRequest.getRetryAfter() > 0 ?
+                failedRequest.getRetryAfter() :
+                calculateVisibilityTimeout(failedRequest.getReceiveCount()),
+            Integer.MAX_VALUE);
     }
 
     int calculateVisibilityTimeout(int receiveCount) {
         final double lowerBound = baseTimeout * Math.pow(timeoutFactor, receiveCount - 1);
         final double higherBound = baseTimeout * Math.pow(timeoutFactor, receiveCount);
-        return (int) (Math.random() * (higherBound - lowerBound)) + (int) lowerBound;
+        return (int) (jitter.nextDouble() * (higherBound - lowerBound)) + (int) lowerBound;
+    }
+
+    // @VisibleForTesting
+    void afterRestore(Map<String, String> env) {
+        jitter.setSeed(new SecureRandom().nextLong());
+        if (warmUp) {
+            warmUpConnections(env);
+        }
     }
 
     static void initializeLogger() {
@@ -166,7 +479,14 @@ public class SQSLambdaHandler implements RequestHandler<SQSEvent, SQSBatchRespon
 
     // @VisibleForTesting
     MessageProcessor getMessageProcessor() {
-        return messageProcessor;
+        final MessageProcessor processor = messageProcessor;
+        if (processor != null) {
+            return processor;
+        }
+        // the factory only builds it once, whichever thread gets here first
+        final MessageProcessor built = messageProcessorFactory.get();
+        messageProcessor = built;
+        return built;
     }
 
     // @VisibleForTesting
@@ -200,6 +520,61 @@ public class SQSLambdaHandler implements RequestHandler<SQSEvent, SQSBatchRespon
         }
 
         environment = calculateEnvironment(env);
+
+        // 1 (the default) keeps the records processed sequentially, in order
+        final int dispatchConcurrency = getEnvVarAsInt(env, DISPATCH_CONCURRENCY_KEY, 1);
+        recordDispatcher = new RecordDispatcher(dispatchConcurrency);
+        if (recordDispatcher.getMaxInFlight() > 1) {
+            LOGGER.info("Dispatching records concurrently with at most {} in flight",
+                recordDispatcher.getMaxInFlight());
+        }
+
+        // time kept in reserve at the end of the invocation to change visibility timeouts and return the response
+        final int DEFAULT_DEADLINE_SAFETY_MARGIN = 2000;
+        deadlineSafetyMargin = getEnvVarAsInt(env, DEADLINE_SAFETY_MARGIN_KEY, DEFAULT_DEADLINE_SAFETY_MARGIN);
+
+        if (getEnvVarAsInt(env, BULK_UPLOAD_KEY, 0) != 0) {
+            // mParticle accepts at most 100 batches per bulk upload
+            final int DEFAULT_BULK_MAX_BATCHES = 100;
+            bulkCoalescer = new BulkCoalescer(
+                getEnvVarAsInt(env, BULK_MAX_BATCHES_KEY, DEFAULT_BULK_MAX_BATCHES),
+                getEnvVarAsInt(env, BULK_MAX_BYTES_KEY, MessageProcessor.MAX_MPARTICLE_MESSAGE_LENGTH));
+            LOGGER.info("Coalescing messages into mParticle bulk uploads");
+        }
+
+        // ignored for bulk uploads, which are sent as they are coalesced
+        asyncSend = bulkCoalescer == null && getEnvVarAsInt(env, ASYNC_SEND_KEY, 0) != 0;
+        if (asyncSend) {
+            LOGGER.info("Sending messages asynchronously, waiting for mParticle's answers together");
+        }
+
+        // nothing to connect to when nothing is sent
+        warmUp = !mparticleDisabled && getEnvVarAsInt(env, WARM_UP_KEY, 0) != 0;
+
+        // nothing is sent while mParticle is disabled, so nothing may be remembered as delivered
+        if (!mparticleDisabled && getEnvVarAsInt(env, DEDUP_CACHE_KEY, 0) != 0) {
+            final int DEFAULT_DEDUP_CACHE_MAX_MB = 32;
+            // long enough to cover a redelivery after a timed out invocation or a failed visibility change
+            final int DEFAULT_DEDUP_CACHE_TTL_SECONDS = 3600;
+            deliveredMessages = DeliveredMessageCache.withMemoryCap(
+                getEnvVarAsInt(env, DEDUP_CACHE_MAX_MB_KEY, DEFAULT_DEDUP_CACHE_MAX_MB),
+                getEnvVarAsInt(env, DEDUP_CACHE_TTL_SECONDS_KEY, DEFAULT_DEDUP_CACHE_TTL_SECONDS),
+                getEnvVarAsInt(env, DEDUP_CONTENT_HASH_KEY, 0) != 0);
+            LOGGER.info("Skipping redelivered messages, remembering up to {} delivered messages",
+                deliveredMessages.getMaxMessages());
+        } else {
+            deliveredMessages = DeliveredMessageCache.disabled();
+        }
+    }
+
+    // runs while the container initializes, rather than on the path of the first messages
+    private void warmUpConnections(Map<String, String> env) {
+        final int DEFAULT_WARM_UP_TIMEOUT = 2000;
+        final List<String> endpoints = new ArrayList<>();
+        endpoints.add(MParticleClient.DEFAULT_BASE_URL);
+        endpoints.addAll(ConnectionWarmer.parseEndpoints(env.get(WARM_UP_ENDPOINTS_KEY)));
+        warmUpReport = ConnectionWarmer.forSending(getEnvVarAsInt(env, WARM_UP_TIMEOUT_KEY, DEFAULT_WARM_UP_TIMEOUT))
+            .warmUp(endpoints);
     }
 
     private static int getEnvVarAsInt(Map<String, String> env, String varName, int defaultValue) {
@@ -0,0 +1,158 @@
+package com.sailthru.sqs;
+
+import com.amazonaws.services.lambda.runtime.events.SQSEvent;
+import com.mparticle.model.Batch;
+import com.sailthru.sqs.exception.NoRetryException;
+import com.sailthru.sqs.exception.RetryLaterException;
+import com.sailthru.sqs.message.MParticleEventName;
+import okio.Buffer;
+import org.crac.Context;
+import org.crac.Core;
+import org.crac.Resource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Prepares the container for a SnapStart snapshot, and its restored copies for work.
+ * <p>
+ * Before the checkpoint, runs synthetic messages through the hot path (decoding, translation to an mParticle batch,
+ * encoding and writing the request bodies) with a {@link MessageProcessor} that doesn't send anything, so that the
+ * classes of Jackson, of the mParticle model and of OkHttp are loaded, and the code compiled, in the snapshot rather
+ * than by the first invocation of every restored container.
+ * <p>
+ * After the restore, drops the pooled connections, whose sockets didn't survive the snapshot, so that every endpoint is
+ * resolved and connected again, times the first call made after the restore (see
+ * {@link ConnectionReuseListener#restored(long)}) and runs the handler's own restore action. Without a checkpoint,
+ * on a JVM without CRaC or outside SnapStart, the hooks never run.
+ */
+public class SnapStartPriming implements Resource {
+    private static final Logger LOGGER = LoggerFactory.getLogger(SnapStartPriming.class);
+    static final String INITIALIZATION_TYPE_KEY = "AWS_LAMBDA_INITIALIZATION_TYPE";
+    static final String SNAP_START = "snap-start";
+    // small and large messages, which are sized differently, see MessageProcessor
+    private static final int[] EVENTS_PER_MESSAGE = {1, 10, 500};
+
+    private final Batch.Environment environment;
+    private final int iterations;
+    private final Runnable evictConnections;
+    private final ConnectionReuseListener connectionReuseListener;
+    private final Runnable restoreAction;
+
+    /**
+     * @param iterations times each synthetic message is run through the hot path, 0 not to prime it
+     * @param restoreAction run last once the container is restored
+     */
+    public SnapStartPriming(Batch.Environment environment, int iterations, Runnable restoreAction) {
+        this(environment, iterations, SnapStartPriming::evictConnections, ConnectionReuseListener.getInstance(),
+            restoreAction);
+    }
+
+    // @VisibleForTesting
+    SnapStartPriming(Batch.Environment environment, int iterations, Runnable evictConnections,
+                     ConnectionReuseListener connectionReuseListener, Runnable restoreAction) {
+        this.environment = environment;
+        this.iterations = iterations;
+        this.evictConnections = evictConnections;
+        this.connectionReuseListener = connectionReuseListener;
+        this.restoreAction = restoreAction;
+    }
+
+    /**
+     * Whether the container is initializing for a SnapStart snapshot, rather than for invocations.
+     */
+    public static boolean isSnapStart(final Map<String, String> env) {
+        return SNAP_START.equals(env.get(INITIALIZATION_TYPE_KEY));
+    }
+
+    /**
+     * Register with the global CRaC context. The context doesn't keep its resources alive, the caller has to.
+     */
+    public void register() {
+        Core.getGlobalContext().register(this);
+    }
+
+    @Override
+    public void beforeCheckpoint(final Context<? extends Resource> context) {
+        final long start = System.nanoTime();
+        final int primed = prime(new MessageProcessor(true, environment));
+        // connections opened during the init phase would be restored dead
+        evictConnections.run();
+        LOGGER.info("Primed {} messages before the checkpoint in {} ms", primed,
+            TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+    }
+
+    @Override
+    public void afterRestore(final Context<? extends Resource> context) {
+        evictConnections.run();
+        connectionReuseListener.restored(System.nanoTime());
+        restoreAction.run();
+        LOGGER.info("Restored from a snapshot");
+    }
+
+    /**
+     * Run the synthetic messages through the given dry-run processor.
+     *
+     * @return the messages that went through the whole hot path
+     */
+    // @VisibleForTesting
+    int prime(final MessageProcessor dryRun) {
+        int primed = 0;
+        for (int i = 0; i < iterations; i++) {
+            for (int events : EVENTS_PER_MESSAGE) {
+                try {
+                    primeMessage(dryRun, syntheticMessage(i, events));
+                    primed++;
+                } catch (RetryLaterException | NoRetryException | IOException | RuntimeException e) {
+                    // the snapshot is still usable, the first invocations pay for what wasn't primed
+                    LOGGER.warn("Stopped priming after {} messages: {}", primed, e.toString());
+                    return primed;
+                }
+            }
+        }
+        return primed;
+    }
+
+    private static void primeMessage(final MessageProcessor dryRun, final SQSEvent.SQSMessage sqsMessage)
+        throws RetryLaterException, NoRetryException, IOException {
+        final OutgoingRecord record = dryRun.parse(sqsMessage);
+        // returns without sending, the processor has mParticle disabled
+        dryRun.submit(record, Deadline.NONE);
+        // what sending encodes and writes, without a connection
+        record.batch().toRequestBody().writeTo(new Buffer());
+        EncodedBatch.toBulkRequestBody(List.of(record.batch())).writeTo(new Buffer());
+    }
+
+    // shaped like the messages we get from the queue, with every event name
+    private static SQSEvent.SQSMessage syntheticMessage(final int iteration, final int events) {
+        final MParticleEventName[] names = MParticleEventName.values();
+        final StringBuilder body = new StringBuilder()
+            .append("{\"authenticationKey\":\"priming\",\"authenticationSecret\":\"priming\",")
+            .append("\"apiURL\":\"").append(MParticleClient.DEFAULT_BASE_URL).append("\",\"clientId\":")
+            .append(iteration).append(",\"profileEmail\":\"priming@example.com\",")
+            .append("\"timestamp\":\"2024-05-03T13:11:17Z[UTC]\",\"events\":[");
+        for (int i = 0; i < events; i++) {
+            if (i > 0) {
+                body.append(',');
+            }
+            body.append("{\"eventName\":\"").append(names[(iteration + i) % names.length].name())
+                .append("\",\"eventType\":\"OTHER\",\"additionalData\":{\"client_id\":\"").append(iteration)
+                .append("\",\"profile_id\":\"6634e1bd31a2a0e8af0b").append(String.format("%04d", i % 10_000))
+                .append("\",\"list_id\":\"5609b2641aa312d6318b456b\"}}");
+        }
+        final SQSEvent.SQSMessage sqsMessage = new SQSEvent.SQSMessage();
+        sqsMessage.setMessageId("priming-" + iteration + "-" + events);
+        sqsMessage.setBody(body.append("]}").toString());
+        return sqsMessage;
+    }
+
+    // the pools of the common client and of the bulkheads, which the clients of the tenants share
+    private static void evictConnections() {
+        ApiFactory.httpClient().connectionPool().evictAll();
+        EndpointBulkhead.evictConnections();
+    }
+}
@@ -0,0 +1,108 @@
+package com.sailthru.sqs;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+
+/**
+ * Times the components the handler builds while the container initializes, and logs them on a single line once it is
+ * done, so that init durations can be broken down and compared between configurations. Components deferred to their
+ * first use show as such, and are logged on their own when they are built.
+ */
+final class StartupTimeline {
+    private static final Logger LOGGER = LoggerFactory.getLogger(StartupTimeline.class);
+    private static final long DEFERRED = -1;
+
+    private final LongSupplier nanoClock;
+    private final long startNanos;
+    private final List<Step> steps = new ArrayList<>();
+
+    StartupTimeline(LongSupplier nanoClock) {
+        this.nanoClock = nanoClock;
+        this.startNanos = nanoClock.getAsLong();
+    }
+
+    /**
+     * Build a component now, timing it.
+     */
+    <T> T build(final String component, final Supplier<T> builder) {
+        final long start = nanoClock.getAsLong();
+        try {
+            return builder.get();
+        } finally {
+            record(new Step(component, nanoClock.getAsLong() - start));
+        }
+    }
+
+    /**
+     * Run an initialization step now, timing it.
+     */
+    void run(final String component, final Runnable step) {
+        build(component, () -> {
+            step.run();
+            return null;
+        });
+    }
+
+    /**
+     * A component built, and timed, the first time it is needed. Safe to share between threads, it is only built
+     * once.
+     */
+    <T> Supplier<T> deferred(final String component, final Supplier<T> builder) {
+        record(new Step(component, DEFERRED));
+        return new Supplier<>() {
+            private volatile T value;
+
+            @Override
+            public T get() {
+                T built = value;
+                if (built == null) {
+                    synchronized (this) {
+                        built = value;
+                        if (built == null) {
+                            final long start = nanoClock.getAsLong();
+                            built = builder.get();
+                            value = built;
+                            LOGGER.info("Built {} on first use in {} ms", component,
+                                TimeUnit.NANOSECONDS.toMillis(nanoClock.getAsLong() - start));
+                        }
+                    }
+                }
+                return built;
+            }
+        };
+    }
+
+    /**
+     * Log the steps so far, with the time since the timeline was started.
+     */
+    void log() {
+        LOGGER.info("Initialized in {} ms: {}", TimeUnit.NANOSECONDS.toMillis(nanoClock.getAsLong() - startNanos),
+            summary());
+    }
+
+    // @VisibleForTesting
+    synchronized String summary() {
+        return steps.stream()
+            .map(step -> step.component() + (step.nanos() == DEFERRED ?
+                " deferred" :
+                " " + TimeUnit.NANOSECONDS.toMillis(step.nanos()) + " ms"))
+            .collect(Collectors.joining(", "));
+    }
+
+    private synchronized void record(final Step step) {
+        steps.add(step);
+    }
+
+    /**
+     * @param nanos time taken to build the component, -1 if deferred to its first use
+     */
+    private record Step(String component, long nanos) {
+    }
+}
@@ -0,0 +1,256 @@
+package com.sailthru.sqs;
+
+import com.sailthru.sqs.exception.RetryLaterException;
+import com.sailthru.sqs.message.MParticleOutgoingMessage;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import software.amazon.awssdk.utils.StringUtils;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+/**
+ * Keeps every tenant under its known mParticle ingest quota with a token bucket per tenant, so that going over it
+ * costs a visibility change rather than a call that mParticle would answer with a 429.
+ * <p>
+ * Limits are configured as a comma separated list of {@code <tenant>=<rate>[/<burst>]}, where the tenant is either
+ * {@code client:<clientId>} or {@code key:<authenticationKey>}, the rate is in batches per second and the burst
+ * defaults to one second's worth. An optional default limit applies to every other authentication key. A client id
+ * limit wins over a key limit.
+ * <p>
+ * Buckets are kept in a {@link ClientCache}, bounded like the clients, so that keys which are no longer used don't
+ * stay around for the lifetime of the container. A bucket left idle has refilled, so dropping it and starting a new,
+ * full one changes nothing.
+ */
+public class TenantRateLimiter {
+    private static final Logger LOGGER = LoggerFactory.getLogger(TenantRateLimiter.class);
+    static final String LIMITS_KEY = "TENANT_RATE_LIMITS";
+    static final String DEFAULT_LIMIT_KEY = "TENANT_RATE_LIMIT_DEFAULT";
+    static final String MAX_WAIT_MILLIS_KEY = "TENANT_RATE_LIMIT_MAX_WAIT_MS";
+    static final String CLIENT_PREFIX = "client:";
+    static final String KEY_PREFIX = "key:";
+
+    private static final TenantRateLimiter INSTANCE = new TenantRateLimiter(
+        parseLimits(System.getenv(LIMITS_KEY)),
+        parseLimit(System.getenv(DEFAULT_LIMIT_KEY)),
+        EnvVars.getInt(MAX_WAIT_MILLIS_KEY, 100),
+        System::nanoTime,
+        TimeUnit.NANOSECONDS::sleep);
+
+    private final Map<String, Limit> limits;
+    // null when tenants without an explicit limit are unlimited
+    private final Limit defaultLimit;
+    private final long maxWaitNanos;
+    private final LongSupplier nanoClock;
+    private final Sleeper sleeper;
+    private final ClientCache<String, TokenBucket> buckets;
+    private final AtomicLong limited = new AtomicLong();
+
+    // @VisibleForTesting
+    TenantRateLimiter(Map<String, Limit> limits, Limit defaultLimit, long maxWaitMillis, LongSupplier nanoClock,
+                      Sleeper sleeper) {
+        this.limits = Map.copyOf(limits);
+        this.defaultLimit = defaultLimit;
+        this.maxWaitNanos = TimeUnit.MILLISECONDS.toNanos(maxWaitMillis);
+        this.nanoClock = nanoClock;
+        this.sleeper = sleeper;
+        this.buckets = ClientCache.fromEnvironment(nanoClock);
+        if (isEnabled()) {
+            LOGGER.info("Rate limiting tenants {}, default limit {}", this.limits, defaultLimit);
+        }
+    }
+
+    public static TenantRateLimiter getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * A limiter that never limits anybody.
+     */
+    public static TenantRateLimiter unlimited() {
+        return new TenantRateLimiter(Map.of(), null, 0, System::nanoTime, TimeUnit.NANOSECONDS::sleep);
+    }
+
+    public boolean isEnabled() {
+        return !limits.isEmpty() || defaultLimit != null;
+    }
+
+    /**
+     * Take a token for the message's tenant, waiting for it if it will be available within the maximum wait (and
+     * before the deadline).
+     *
+     * @throws RetryLaterException with the time until a token will be available as retry after, if none could be
+     * taken in time
+     */
+    public void acquire(final MParticleOutgoingMessage message, final Deadline deadline) throws RetryLaterException {
+        acquire(List.of(message), deadline);
+    }
+
+    /**
+     * Take a token for every message, for a bulk upload. Tokens already taken for some tenants are not given back if
+     * another tenant of the upload is over its limit. A tenant with more messages in the upload than its burst waits
+     * for a full bucket, and its bucket goes into debt for the rest.
+     */
+    public void acquire(final List<MParticleOutgoingMessage> messages, final Deadline deadline)
+        throws RetryLaterException {
+        if (!isEnabled()) {
+            return;
+        }
+
+        final Map<String, Integer> permitsByTenant = new LinkedHashMap<>();
+        for (MParticleOutgoingMessage message : messages) {
+            final String tenant = tenantOf(message);
+            if (tenant != null) {
+                permitsByTenant.merge(tenant, 1, Integer::sum);
+            }
+        }
+        for (Map.Entry<String, Integer> entry : permitsByTenant.entrySet()) {
+            acquire(entry.getKey(), entry.getValue(), deadline);
+        }
+    }
+
+    /**
+     * Number of messages turned away since the last call.
+     */
+    public long drainLimited() {
+        return limited.getAndSet(0);
+    }
+
+    // @VisibleForTesting
+    int trackedTenants() {
+        return buckets.size();
+    }
+
+    private void acquire(final String tenant, final int permits, final Deadline deadline) throws RetryLaterException {
+        final TokenBucket bucket = buckets.get(tenant, key -> new TokenBucket(limitOf(key), nanoClock.getAsLong()));
+        final long allowedWaitNanos = deadline.isBounded() ?
+            Math.min(maxWaitNanos, TimeUnit.MILLISECONDS.toNanos(Math.max(0, deadline.remainingMillis()))) :
+            maxWaitNanos;
+
+        final long waitNanos = bucket.reserve(permits, nanoClock.getAsLong(), allowedWaitNanos);
+        if (waitNanos > allowedWaitNanos) {
+            limited.addAndGet(permits);
+            throw new RetryLaterException(MParticleClient.TOO_MANY_REQUESTS,
+                "Rate limited, " + tenant + " is over its limit of " + bucket.limit, ceilSeconds(waitNanos));
+        }
+
+        if (waitNanos > 0) {
+            try {
+                sleeper.sleep(waitNanos);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RetryLaterException(e);
+            }
+        }
+    }
+
+    private String tenantOf(final MParticleOutgoingMessage message) {
+        final String clientTenant = CLIENT_PREFIX + message.getClientId();
+        if (limits.containsKey(clientTenant)) {
+            return clientTenant;
+        }
+        final String keyTenant = KEY_PREFIX + message.getAuthenticationKey();
+        if (limits.containsKey(keyTenant) || defaultLimit != null) {
+            return keyTenant;
+        }
+        return null;
+    }
+
+    private Limit limitOf(final String tenant) {
+        return limits.getOrDefault(tenant, defaultLimit);
+    }
+
+    private static long ceilSeconds(final long nanos) {
+        // a retry after of 0 would mean "use the default back-off", at least 1 keeps it exact
+        return Math.max(1, (nanos + TimeUnit.SECONDS.toNanos(1) - 1) / TimeUnit.SECONDS.toNanos(1));
+    }
+
+    // @VisibleForTesting
+    static Map<String, Limit> parseLimits(final String value) {
+        final Map<String, Limit> limits = new HashMap<>();
+        if (StringUtils.isBlank(value)) {
+            return limits;
+        }
+        for (String entry : value.split(",")) {
+            final int separator = entry.lastIndexOf('=');
+            final String tenant = separator > 0 ? entry.substring(0, separator).trim() : "";
+            final Limit limit = separator > 0 ? parseLimit(entry.substring(separator + 1)) : null;
+            if (limit == null || !(tenant.startsWith(CLIENT_PREFIX) || tenant.startsWith(KEY_PREFIX))) {
+                LOGGER.warn("Ignoring invalid rate limit '{}'", entry);
+                continue;
+            }
+            limits.put(tenant, limit);
+        }
+        return limits;
+    }
+
+    // @VisibleForTesting
+    static Limit parseLimit(final String value) {
+        if (StringUtils.isBlank(value)) {
+            return null;
+        }
+        try {
+            final String[] parts = value.trim().split("/");
+            final double rate = Double.parseDouble(parts[0].trim());
+            final double burst = parts.length > 1 ? Double.parseDouble(parts[1].trim()) : rate;
+            if (rate <= 0 || burst <= 0 || parts.length > 2) {
+                throw new NumberFormatException("rate and burst must be positive");
+            }
+            return new Limit(rate, Math.max(1, burst));
+        } catch (NumberFormatException e) {
+            LOGGER.warn("Ignoring invalid rate limit '{}': {}", value, e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * @param ratePerSecond tokens added per second
+     * @param burst maximum number of tokens that can accumulate
+     */
+    record Limit(double ratePerSecond, double burst) {
+    }
+
+    @FunctionalInterface
+    interface Sleeper {
+        void sleep(long nanos) throws InterruptedException;
+    }
+
+    private static final class TokenBucket {
+        private final Limit limit;
+        private final double nanosPerToken;
+        private double tokens;
+        private long lastRefillNanos;
+
+        private TokenBucket(Limit limit, long nowNanos) {
+            this.limit = limit;
+            this.nanosPerToken = TimeUnit.SECONDS.toNanos(1) / limit.ratePerSecond();
+            this.tokens = limit.burst();
+            this.lastRefillNanos = nowNanos;
+        }
+
+        /**
+         * Take the permits if they (or a full bucket, for more permits than the burst) are available within the
+         * allowed wait, letting the bucket go into debt for them, and return how long the caller has to wait for
+         * them. If they are not, nothing is taken and the returned wait is larger than the allowed one.
+         */
+        synchronized long reserve(final int permits, final long nowNanos, final long allowedWaitNanos) {
+            tokens = Math.min(limit.burst(), tokens + (nowNanos - lastRefillNanos) / nanosPerToken);
+            lastRefillNanos = nowNanos;
+
+            // the bucket never holds more than the burst, so a bulk upload needing more than that could never be
+            // covered and would be turned away on every redelivery: it only waits for a full bucket, and the debt
+            // it leaves is paid back by the reservations that follow
+            final double deficit = Math.min(permits, limit.burst()) - tokens;
+            final long waitNanos = deficit <= 0 ? 0 : (long) Math.ceil(deficit * nanosPerToken);
+            if (waitNanos <= allowedWaitNanos) {
+                tokens -= permits;
+            }
+            return waitNanos;
+        }
+    }
+}
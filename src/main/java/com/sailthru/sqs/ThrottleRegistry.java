@@ -0,0 +1,114 @@
+package com.sailthru.sqs;
+
+import com.sailthru.sqs.exception.RetryLaterException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Remembers which mParticle credentials/endpoints have been throttled (HTTP 429) and until when, so that further
+ * messages for them fail fast instead of making a call that will be throttled as well. The shared instance lives as
+ * long as the Lambda container, so it also applies across warm invocations.
+ */
+public class ThrottleRegistry {
+    private static final Logger LOGGER = LoggerFactory.getLogger(ThrottleRegistry.class);
+    private static final ThrottleRegistry INSTANCE = new ThrottleRegistry(Clock.systemUTC());
+    // used when mParticle doesn't tell us how long to back off for
+    private static final long MINIMUM_THROTTLE_SECONDS = 1;
+
+    private final Clock clock;
+    private final Map<ApiFactory.ClientApiDetails, Instant> throttledUntil = new ConcurrentHashMap<>();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong skips = new AtomicLong();
+
+    // @VisibleForTesting
+    ThrottleRegistry(Clock clock) {
+        this.clock = clock;
+    }
+
+    public static ThrottleRegistry getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Fail fast if the given details are currently throttled.
+     *
+     * @throws RetryLaterException with the remaining throttle time as retry after, if throttled
+     */
+    public void checkNotThrottled(final ApiFactory.ClientApiDetails details) throws RetryLaterException {
+        final Instant until = throttledUntil.get(details);
+        if (until == null) {
+            return;
+        }
+
+        final Instant now = clock.instant();
+        if (!now.isBefore(until)) {
+            // expired - only remove it if nobody recorded a newer throttle in the meantime
+            throttledUntil.remove(details, until);
+            return;
+        }
+
+        skips.incrementAndGet();
+        throw new RetryLaterException(MParticleClient.TOO_MANY_REQUESTS,
+            "Skipped, mParticle throttled this API key until " + until, ceilSeconds(Duration.between(now, until)));
+    }
+
+    /**
+     * Record a 429 response for the given details.
+     *
+     * @param retryAfterSeconds the back-off requested by mParticle, or 0 if it didn't say
+     */
+    public void recordThrottled(final ApiFactory.ClientApiDetails details, final long retryAfterSeconds) {
+        hits.incrementAndGet();
+        final Instant now = clock.instant();
+        // throttles that ran out are otherwise only dropped when their endpoint is called again, which may never be
+        pruneExpired(now);
+        final Instant until = now.plusSeconds(Math.max(retryAfterSeconds, MINIMUM_THROTTLE_SECONDS));
+        // keep the latest of the known instants, concurrent responses may arrive out of order
+        throttledUntil.merge(details, until,
+            (existing, candidate) -> existing.isAfter(candidate) ? existing : candidate);
+        LOGGER.info("mParticle throttled API key {}, skipping calls until {}", details.apiKey(), until);
+    }
+
+    private void pruneExpired(final Instant now) {
+        // conditional removals, a throttle recorded again in the meantime is kept
+        throttledUntil.values().removeIf(until -> !now.isBefore(until));
+    }
+
+    // @VisibleForTesting
+    int size() {
+        return throttledUntil.size();
+    }
+
+    /**
+     * Number of 429 responses recorded since the last call.
+     */
+    public long drainHits() {
+        return hits.getAndSet(0);
+    }
+
+    /**
+     * Number of calls skipped because of a throttle since the last call.
+     */
+    public long drainSkips() {
+        return skips.getAndSet(0);
+    }
+
+    // @VisibleForTesting
+    void clear() {
+        throttledUntil.clear();
+        hits.set(0);
+        skips.set(0);
+    }
+
+    private static long ceilSeconds(final Duration duration) {
+        final long seconds = duration.toSeconds();
+        return duration.minusSeconds(seconds).isZero() ? seconds : seconds + 1;
+    }
+}
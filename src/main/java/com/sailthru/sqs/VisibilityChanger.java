@@ -0,0 +1,143 @@
+package com.sailthru.sqs;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import software.amazon.awssdk.services.sqs.SqsAsyncClient;
+import software.amazon.awssdk.services.sqs.model.BatchResultErrorEntry;
+import software.amazon.awssdk.services.sqs.model.ChangeMessageVisibilityBatchRequest;
+import software.amazon.awssdk.services.sqs.model.ChangeMessageVisibilityBatchRequestEntry;
+import software.amazon.awssdk.services.sqs.model.ChangeMessageVisibilityBatchResponse;
+import software.amazon.awssdk.services.sqs.model.ChangeMessageVisibilityRequest;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * Changes the visibility timeout of failed messages using ChangeMessageVisibilityBatch, with every batch of up to
+ * 10 messages in flight at the same time.
+ * <p>
+ * Entries that fail on the SQS side are retried once individually. Entries that SQS rejects as invalid (for example
+ * because the receipt handle has expired) are only logged, as retrying them can't succeed.
+ */
+public class VisibilityChanger {
+    private static final Logger LOGGER = LoggerFactory.getLogger(VisibilityChanger.class);
+    // SQS limit for ChangeMessageVisibilityBatch
+    static final int MAX_BATCH_SIZE = 10;
+
+    // only asked for once there is a change to make, so that it can be built lazily
+    private final Supplier<SqsAsyncClient> sqsClient;
+    private final String queueUrl;
+
+    public VisibilityChanger(SqsAsyncClient sqsClient, String queueUrl) {
+        this(() -> sqsClient, queueUrl);
+    }
+
+    public VisibilityChanger(Supplier<SqsAsyncClient> sqsClient, String queueUrl) {
+        this.sqsClient = sqsClient;
+        this.queueUrl = queueUrl;
+    }
+
+    /**
+     * Apply all the changes, returning once every batch (and retry) has completed. Never throws, failures are logged.
+     */
+    public void changeVisibility(final List<VisibilityChange> changes) {
+        if (changes.isEmpty()) {
+            return;
+        }
+
+        final List<CompletableFuture<Void>> inFlight = new ArrayList<>();
+        for (int from = 0; from < changes.size(); from += MAX_BATCH_SIZE) {
+            inFlight.add(sendBatch(changes.subList(from, Math.min(from + MAX_BATCH_SIZE, changes.size()))));
+        }
+        CompletableFuture.allOf(inFlight.toArray(CompletableFuture[]::new)).join();
+    }
+
+    private CompletableFuture<Void> sendBatch(final List<VisibilityChange> batch) {
+        final List<ChangeMessageVisibilityBatchRequestEntry> entries = new ArrayList<>(batch.size());
+        for (int i = 0; i < batch.size(); i++) {
+            // ids only need to be unique within the batch, the index lets us map failures back
+            entries.add(ChangeMessageVisibilityBatchRequestEntry.builder()
+                .id(String.valueOf(i))
+                .receiptHandle(batch.get(i).failedRequest().getReceiptHandle())
+                .visibilityTimeout(batch.get(i).visibilityTimeout())
+                .build());
+        }
+
+        final ChangeMessageVisibilityBatchRequest request = ChangeMessageVisibilityBatchRequest.builder()
+            .queueUrl(queueUrl)
+            .entries(entries)
+            .build();
+
+        return callSafely(() -> sqsClient.get().changeMessageVisibilityBatch(request))
+            .handle((response, error) -> {
+                if (error != null) {
+                    batch.forEach(change -> logFailure(change, error.getMessage()));
+                    return CompletableFuture.<Void>completedFuture(null);
+                }
+                return handleBatchResponse(batch, response);
+            })
+            .thenCompose(Function.identity());
+    }
+
+    private CompletableFuture<Void> handleBatchResponse(final List<VisibilityChange> batch,
+                                                        final ChangeMessageVisibilityBatchResponse response) {
+        response.successful().forEach(success -> logSuccess(batch.get(Integer.parseInt(success.id()))));
+
+        final List<CompletableFuture<Void>> retries = new ArrayList<>();
+        for (BatchResultErrorEntry failure : response.failed()) {
+            final VisibilityChange change = batch.get(Integer.parseInt(failure.id()));
+            if (Boolean.TRUE.equals(failure.senderFault())) {
+                logFailure(change, failure.code() + ": " + failure.message());
+            } else {
+                retries.add(retry(change));
+            }
+        }
+        return CompletableFuture.allOf(retries.toArray(CompletableFuture[]::new));
+    }
+
+    private CompletableFuture<Void> retry(final VisibilityChange change) {
+        final ChangeMessageVisibilityRequest request = ChangeMessageVisibilityRequest.builder()
+            .queueUrl(queueUrl)
+            .receiptHandle(change.failedRequest().getReceiptHandle())
+            .visibilityTimeout(change.visibilityTimeout())
+            .build();
+
+        return callSafely(() -> sqsClient.get().changeMessageVisibility(request))
+            .handle((response, error) -> {
+                if (error != null) {
+                    logFailure(change, error.getMessage());
+                } else {
+                    logSuccess(change);
+                }
+                return null;
+            });
+    }
+
+    // the SDK reports most errors through the future, but validation errors can still be thrown directly
+    private static <T> CompletableFuture<T> callSafely(final Supplier<CompletableFuture<T>> call) {
+        try {
+            return call.get();
+        } catch (RuntimeException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
+    private static void logSuccess(final VisibilityChange change) {
+        LOGGER.debug("Successfully change the visibility timeout to {} seconds, for message: {}, Receive Count: {}",
+            change.visibilityTimeout(), change.failedRequest().getId(), change.failedRequest().getReceiveCount());
+    }
+
+    private static void logFailure(final VisibilityChange change, final String reason) {
+        LOGGER.debug("Change visibility timeout error for message {}: {}", change.failedRequest().getId(), reason);
+    }
+
+    /**
+     * @param failedRequest the message to change
+     * @param visibilityTimeout the new visibility timeout, in seconds
+     */
+    public record VisibilityChange(FailedRequest failedRequest, int visibilityTimeout) {
+    }
+}
@@ -0,0 +1,11 @@
+package com.sailthru.sqs.exception;
+
+/**
+ * No permit to call mParticle became available in time, so the call wasn't made: unlike the other retryable failures,
+ * there is no response, and no status code, from mParticle behind it.
+ */
+public class ConcurrencyLimitExceededException extends RetryLaterException {
+    public ConcurrencyLimitExceededException(String message) {
+        super(0, message, 0);
+    }
+}
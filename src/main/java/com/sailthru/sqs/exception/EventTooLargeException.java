@@ -0,0 +1,26 @@
+package com.sailthru.sqs.exception;
+
+import com.sailthru.sqs.message.MParticleOutgoingMessage;
+
+/**
+ * Events that are too large to be sent to mParticle on their own, so splitting the message can't help. The payload
+ * is the message with only those events, and the size that of the largest one.
+ */
+public class EventTooLargeException extends NoRetryException {
+    private final long size;
+    private final MParticleOutgoingMessage originalMessage;
+
+    public EventTooLargeException(int statusCode, long size, MParticleOutgoingMessage originalMessage) {
+        super(statusCode, "Event is too large (" + size + " bytes)");
+        this.size = size;
+        this.originalMessage = originalMessage;
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    public MParticleOutgoingMessage getPayload() {
+        return originalMessage;
+    }
+}
@@ -2,6 +2,10 @@ package com.sailthru.sqs.exception;
 
 import com.sailthru.sqs.message.MParticleOutgoingMessage;
 
+/**
+ * A message too large to be sent in a single batch, either by our own measurement or because mParticle answered 413.
+ * It can still be sent split into several batches.
+ */
 public class PayloadTooLargeException extends RetryLaterException {
     private final long size;
     private final MParticleOutgoingMessage originalMessage;
@@ -12,6 +16,12 @@ public class PayloadTooLargeException extends RetryLaterException {
         this.originalMessage = originalMessage;
     }
 
+    public PayloadTooLargeException(int statusCode, long size, MParticleOutgoingMessage originalMessage) {
+        super(statusCode, "Payload is too large (" + size + " bytes)", 1);
+        this.size = size;
+        this.originalMessage = originalMessage;
+    }
+
     public long getSize() {
         return size;
     }
@@ -0,0 +1,64 @@
+package com.sailthru.sqs.message;
+
+import com.mparticle.model.Batch;
+import com.mparticle.model.CustomEvent;
+import com.mparticle.model.CustomEventData;
+import com.mparticle.model.UserIdentities;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Translates an outgoing message to the mParticle batch sent for it. The SDK counterparts of our event types are
+ * looked up once, when the class is loaded, and the lists are sized up front, so that a translation only allocates the
+ * batch and its events. The event attributes are passed on as they are: the message already holds them read-only.
+ * <p>
+ * The SDK model has no immutable form. The events list of the batch is read-only, and the batch is not modified once
+ * built, so it can be read from several threads once safely published; callers must not modify it.
+ */
+public final class BatchTranslator {
+    private static final Map<MParticleEventType, CustomEventData.CustomEventType> EVENT_TYPES = eventTypes();
+
+    private BatchTranslator() {
+    }
+
+    public static Batch translate(final MParticleOutgoingMessage message, final Batch.Environment environment) {
+        final Batch batch = new Batch();
+        batch.environment(environment);
+        batch.userIdentities(new UserIdentities().email(message.getProfileEmail()));
+        if (message.getProfileMpId() != null) {
+            batch.mpid(message.getProfileMpId());
+        }
+        batch.timestampUnixtimeMs(TimestampParser.parseEpochMillis(message.getTimestamp()));
+
+        final List<MParticleOutgoingMessage.Event> events = message.getEvents();
+        final List<Object> batchEvents = new ArrayList<>(events.size());
+        for (MParticleOutgoingMessage.Event event : events) {
+            batchEvents.add(translate(event));
+        }
+        batch.setEvents(Collections.unmodifiableList(batchEvents));
+        return batch;
+    }
+
+    public static CustomEvent translate(final MParticleOutgoingMessage.Event event) {
+        return new CustomEvent().data(
+            (CustomEventData) new CustomEventData()
+                .eventName(event.getEventName().name())
+                .customEventType(EVENT_TYPES.get(event.getEventType()))
+                .customAttributes(event.getAdditionalData())
+        );
+    }
+
+    // fails when the class is loaded, rather than on the first message, if a type has no counterpart in the SDK
+    private static Map<MParticleEventType, CustomEventData.CustomEventType> eventTypes() {
+        final Map<MParticleEventType, CustomEventData.CustomEventType> eventTypes = new EnumMap<>(
+            MParticleEventType.class);
+        for (MParticleEventType type : MParticleEventType.values()) {
+            eventTypes.put(type, CustomEventData.CustomEventType.valueOf(type.name()));
+        }
+        return eventTypes;
+    }
+}
@@ -3,21 +3,11 @@ package com.sailthru.sqs.message;
 import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
 import com.mparticle.model.Batch;
-import com.mparticle.model.CustomEvent;
-import com.mparticle.model.CustomEventData;
-import com.mparticle.model.UserIdentities;
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
-
-import java.time.ZonedDateTime;
-import java.time.format.DateTimeParseException;
+
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 
-import static java.lang.String.format;
-import static java.time.format.DateTimeFormatter.ISO_DATE_TIME;
-import static java.util.Optional.ofNullable;
-
 @JsonIgnoreProperties(ignoreUnknown = true)
 public class MParticleOutgoingMessage {
     private String authenticationKey;
@@ -29,9 +19,17 @@ public class MParticleOutgoingMessage {
     private String timestamp;
     private String apiURL;
 
+    // lazily built and cached; guarded by "this" so concurrent callers build it once and see a complete instance
     @JsonIgnore
-    private Batch batch;
-    private static final Logger LOGGER = LoggerFactory.getLogger(MParticleOutgoingMessage.class);
+    private volatile Batch batch;
+
+    // generous allowances for what the encoded batch adds around the strings of the message: field names, numbers,
+    // enum values and punctuation
+    private static final int BATCH_OVERHEAD_BYTES = 1024;
+    private static final int EVENT_OVERHEAD_BYTES = 512;
+    private static final int ATTRIBUTE_OVERHEAD_BYTES = 8;
+    // a character takes at most 3 bytes in UTF-8, or 6 when Gson writes it as a unicode escape
+    private static final int MAX_BYTES_PER_CHAR = 6;
 
     public String getAuthenticationKey() {
         return authenticationKey;
@@ -64,6 +62,7 @@ public class MParticleOutgoingMessage {
     }
 
     public void setProfileEmail(String profileEmail) {
+        batch = null;
         this.profileEmail = profileEmail;
     }
 
@@ -77,12 +76,13 @@ public class MParticleOutgoingMessage {
     }
 
     public List<Event> getEvents() {
-        return List.copyOf(events);
+        return events;
     }
 
     public void setEvents(List<Event> events) {
         batch = null;
-        this.events = events;
+        // wrapped once here rather than copied on every read
+        this.events = events == null ? List.of() : Collections.unmodifiableList(events);
     }
 
     public void setTimestamp(final String timestamp) {
@@ -103,36 +103,66 @@ public class MParticleOutgoingMessage {
         this.apiURL = apiURL;
     }
 
+    /**
+     * A copy of this message with only the given events, to be sent with the same credentials, identities and
+     * timestamp.
+     */
+    public MParticleOutgoingMessage withEvents(final List<Event> events) {
+        final MParticleOutgoingMessage copy = new MParticleOutgoingMessage();
+        copy.authenticationKey = authenticationKey;
+        copy.authenticationSecret = authenticationSecret;
+        copy.clientId = clientId;
+        copy.profileEmail = profileEmail;
+        copy.profileMpId = profileMpId;
+        copy.timestamp = timestamp;
+        copy.apiURL = apiURL;
+        copy.setEvents(events);
+        return copy;
+    }
+
+    /**
+     * The batch sent for this message, built once through {@link BatchTranslator} and shared by every caller, so it
+     * must not be modified.
+     */
     @JsonIgnore
     public Batch toBatch(final Batch.Environment environment) {
-        if (batch == null) {
-            batch = new Batch();
-            batch.environment(environment);
-            batch.userIdentities(new UserIdentities()
-                .email(getProfileEmail())
-            );
-            if (getProfileMpId() != null) {
-                batch.mpid(getProfileMpId());
+        Batch result = batch;
+        if (result == null) {
+            synchronized (this) {
+                result = batch;
+                if (result == null) {
+                    result = BatchTranslator.translate(this, environment);
+                    // only publish the fully built batch
+                    batch = result;
+                }
             }
-            batch.timestampUnixtimeMs(parseTimestamp(getTimestamp()));
-            batch.setEvents(getEvents().stream()
-                .map(Event::toBatchEvent)
-                .toList());
         }
 
-        return batch;
+        return result;
     }
 
-    private Long parseTimestamp(String timestamp) {
-        try {
-            if (!ofNullable(timestamp).orElse("").isEmpty()) {
-                final ZonedDateTime dt = ZonedDateTime.parse(timestamp, ISO_DATE_TIME);
-                return dt.toInstant().toEpochMilli();
+    /**
+     * A cheap upper bound for the size of {@link #toBatch} once encoded, from the lengths of the strings it is made
+     * of. Never smaller than the exact size, and computed without building or encoding the batch.
+     */
+    @JsonIgnore
+    public long maxEncodedBatchSize() {
+        long size = BATCH_OVERHEAD_BYTES + maxEncodedLength(profileEmail);
+        for (Event event : events) {
+            size += EVENT_OVERHEAD_BYTES;
+            if (event.additionalData != null) {
+                for (Map.Entry<String, String> attribute : event.additionalData.entrySet()) {
+                    size += ATTRIBUTE_OVERHEAD_BYTES + maxEncodedLength(attribute.getKey())
+                        + maxEncodedLength(attribute.getValue());
+                }
             }
-        } catch (DateTimeParseException e) {
-            LOGGER.warn(format("Failed to parse timestamp: %s", timestamp));
         }
-        return null;
+        return size;
+    }
+
+    private static long maxEncodedLength(final String value) {
+        // null is written as the literal, if at all
+        return value == null ? 4 : (long) value.length() * MAX_BYTES_PER_CHAR;
     }
 
     @JsonIgnoreProperties(ignoreUnknown = true)
@@ -141,6 +171,15 @@ public class MParticleOutgoingMessage {
         private MParticleEventType eventType;
         private Map<String, String> additionalData;
 
+        public Event() {
+        }
+
+        public Event(MParticleEventName eventName, MParticleEventType eventType, Map<String, String> additionalData) {
+            this.eventName = eventName;
+            this.eventType = eventType;
+            setAdditionalData(additionalData);
+        }
+
         public MParticleEventName getEventName() {
             return eventName;
         }
@@ -150,17 +189,17 @@ public class MParticleOutgoingMessage {
         }
 
         public Map<String, String> getAdditionalData() {
-            return Map.copyOf(additionalData);
+            return additionalData;
+        }
+
+        // also used by Jackson, so that the map is wrapped once rather than copied on every read
+        private void setAdditionalData(Map<String, String> additionalData) {
+            this.additionalData = additionalData == null ? null : Collections.unmodifiableMap(additionalData);
         }
 
         @JsonIgnore
         public Object toBatchEvent() {
-            return new CustomEvent().data(
-                (CustomEventData) new CustomEventData()
-                    .eventName(getEventName().name())
-                    .customEventType(CustomEventData.CustomEventType.valueOf(getEventType().name()))
-                    .customAttributes(getAdditionalData())
-            );
+            return BatchTranslator.translate(this);
         }
     }
 }
@@ -0,0 +1,203 @@
+package com.sailthru.sqs.message;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.DateTimeException;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static java.time.format.DateTimeFormatter.ISO_DATE_TIME;
+
+/**
+ * Parses message timestamps to epoch milliseconds, the way {@code ZonedDateTime.parse(timestamp, ISO_DATE_TIME)}
+ * does. The layout our producer emits, {@code 2024-05-03T13:11:17[.SSS](Z|+HH:MM)[[zone]]}, is parsed by hand;
+ * anything else goes through the formatter.
+ * <p>
+ * The instant only depends on the date, time and offset, but a zone suffix still has to name a valid zone. The date
+ * of the last timestamp and the zone suffixes already validated are remembered, as they repeat from one message to
+ * the next.
+ */
+public final class TimestampParser {
+    private static final Logger LOGGER = LoggerFactory.getLogger(TimestampParser.class);
+    private static final long MILLIS_PER_DAY = TimeUnit.DAYS.toMillis(1);
+    private static final int DATE_LENGTH = "2024-05-03".length();
+    private static final int DATE_TIME_LENGTH = "2024-05-03T13:11:17".length();
+    private static final int MAX_OFFSET_SECONDS = 18 * 3600;
+    private static final int MAX_CACHED_ZONES = 16;
+    private static final long FAILURE_LOG_INTERVAL_NANOS = TimeUnit.MINUTES.toNanos(1);
+
+    private static volatile CachedDate lastDate = new CachedDate("1970-01-01", 0);
+    private static final CopyOnWriteArrayList<String> VALID_ZONE_SUFFIXES = new CopyOnWriteArrayList<>();
+    private static final AtomicLong LAST_FAILURE_LOG = new AtomicLong(System.nanoTime() - FAILURE_LOG_INTERVAL_NANOS);
+    private static final AtomicLong UNLOGGED_FAILURES = new AtomicLong();
+
+    private TimestampParser() {
+    }
+
+    /**
+     * @return the epoch milliseconds, or null if the timestamp is empty or can't be parsed
+     */
+    public static Long parseEpochMillis(final String timestamp) {
+        if (timestamp == null || timestamp.isEmpty()) {
+            return null;
+        }
+        final long millis = parseFixedLayout(timestamp);
+        if (millis != Long.MIN_VALUE) {
+            return millis;
+        }
+        try {
+            return ZonedDateTime.parse(timestamp, ISO_DATE_TIME).toInstant().toEpochMilli();
+        } catch (DateTimeException e) {
+            logFailure(timestamp);
+            return null;
+        }
+    }
+
+    // Long.MIN_VALUE if the timestamp doesn't have the expected layout, for the formatter to deal with
+    // @VisibleForTesting
+    static long parseFixedLayout(final String timestamp) {
+        final int length = timestamp.length();
+        if (length < DATE_TIME_LENGTH + 1 || timestamp.charAt(DATE_LENGTH) != 'T'
+            || timestamp.charAt(13) != ':' || timestamp.charAt(16) != ':') {
+            return Long.MIN_VALUE;
+        }
+        final long epochDay = epochDay(timestamp);
+        final int hour = digits(timestamp, 11, 2);
+        final int minute = digits(timestamp, 14, 2);
+        final int second = digits(timestamp, 17, 2);
+        if (epochDay == Long.MIN_VALUE || hour < 0 || hour > 23 || minute < 0 || minute > 59 || second < 0
+            || second > 59) {
+            return Long.MIN_VALUE;
+        }
+
+        int position = DATE_TIME_LENGTH;
+        int millis = 0;
+        if (timestamp.charAt(position) == '.') {
+            final int fractionStart = ++position;
+            while (position < length && isDigit(timestamp.charAt(position))) {
+                position++;
+            }
+            final int fractionLength = position - fractionStart;
+            if (fractionLength == 0 || fractionLength > 9) {
+                return Long.MIN_VALUE;
+            }
+            // truncated to milliseconds, like Instant.toEpochMilli
+            for (int i = 0; i < 3; i++) {
+                millis = millis * 10 + (i < fractionLength ? timestamp.charAt(fractionStart + i) - '0' : 0);
+            }
+        }
+
+        if (position >= length) {
+            // no offset: the formatter would need the zone rules, leave it to it
+            return Long.MIN_VALUE;
+        }
+        final int offsetSeconds;
+        final char sign = timestamp.charAt(position);
+        if (sign == 'Z') {
+            offsetSeconds = 0;
+            position++;
+        } else if ((sign == '+' || sign == '-') && position + 6 <= length && timestamp.charAt(position + 3) == ':') {
+            final int offsetHours = digits(timestamp, position + 1, 2);
+            final int offsetMinutes = digits(timestamp, position + 4, 2);
+            if (offsetHours < 0 || offsetMinutes < 0 || offsetMinutes > 59) {
+                return Long.MIN_VALUE;
+            }
+            final int seconds = offsetHours * 3600 + offsetMinutes * 60;
+            if (seconds > MAX_OFFSET_SECONDS) {
+                return Long.MIN_VALUE;
+            }
+            offsetSeconds = sign == '-' ? -seconds : seconds;
+            position += 6;
+        } else {
+            return Long.MIN_VALUE;
+        }
+
+        if (position < length && !isValidZoneSuffix(timestamp, position)) {
+            return Long.MIN_VALUE;
+        }
+
+        return epochDay * MILLIS_PER_DAY + (hour * 3600L + minute * 60L + second - offsetSeconds) * 1000L + millis;
+    }
+
+    private static long epochDay(final String timestamp) {
+        final CachedDate cached = lastDate;
+        if (timestamp.regionMatches(0, cached.prefix(), 0, DATE_LENGTH)) {
+            return cached.epochDay();
+        }
+        if (timestamp.charAt(4) != '-' || timestamp.charAt(7) != '-') {
+            return Long.MIN_VALUE;
+        }
+        final int year = digits(timestamp, 0, 4);
+        final int month = digits(timestamp, 5, 2);
+        final int day = digits(timestamp, 8, 2);
+        if (year < 0 || month < 0 || day < 0) {
+            return Long.MIN_VALUE;
+        }
+        try {
+            final long epochDay = LocalDate.of(year, month, day).toEpochDay();
+            lastDate = new CachedDate(timestamp.substring(0, DATE_LENGTH), epochDay);
+            return epochDay;
+        } catch (DateTimeException e) {
+            return Long.MIN_VALUE;
+        }
+    }
+
+    // a "[zone]" suffix, which must name a zone the JVM knows
+    private static boolean isValidZoneSuffix(final String timestamp, final int start) {
+        final int suffixLength = timestamp.length() - start;
+        if (timestamp.charAt(start) != '[' || timestamp.charAt(timestamp.length() - 1) != ']' || suffixLength < 3) {
+            return false;
+        }
+        for (String known : VALID_ZONE_SUFFIXES) {
+            if (known.length() == suffixLength && timestamp.startsWith(known, start)) {
+                return true;
+            }
+        }
+        final String suffix = timestamp.substring(start);
+        try {
+            ZoneId.of(suffix.substring(1, suffixLength - 1));
+        } catch (DateTimeException e) {
+            return false;
+        }
+        if (VALID_ZONE_SUFFIXES.size() < MAX_CACHED_ZONES) {
+            VALID_ZONE_SUFFIXES.addIfAbsent(suffix);
+        }
+        return true;
+    }
+
+    private static int digits(final String value, final int start, final int count) {
+        int result = 0;
+        for (int i = start; i < start + count; i++) {
+            final char c = value.charAt(i);
+            if (!isDigit(c)) {
+                return -1;
+            }
+            result = result * 10 + (c - '0');
+        }
+        return result;
+    }
+
+    private static boolean isDigit(final char c) {
+        return c >= '0' && c <= '9';
+    }
+
+    // at most one warning per interval, with the number of failures it stands for
+    private static void logFailure(final String timestamp) {
+        final long now = System.nanoTime();
+        final long last = LAST_FAILURE_LOG.get();
+        if (now - last < FAILURE_LOG_INTERVAL_NANOS || !LAST_FAILURE_LOG.compareAndSet(last, now)) {
+            UNLOGGED_FAILURES.incrementAndGet();
+            return;
+        }
+        LOGGER.warn("Failed to parse timestamp: {} ({} other failures since the last warning)", timestamp,
+            UNLOGGED_FAILURES.getAndSet(0));
+    }
+
+    private record CachedDate(String prefix, long epochDay) {
+    }
+}
@@ -0,0 +1,6 @@
+package com.sailthru.sqs.metrics;
+
+import software.amazon.cloudwatchlogs.emf.model.Unit;
+
+public record Measurement(String name, double value, Unit unit) {
+}
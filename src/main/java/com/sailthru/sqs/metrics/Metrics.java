@@ -8,11 +8,44 @@ import software.amazon.cloudwatchlogs.emf.model.DimensionSet;
 import software.amazon.cloudwatchlogs.emf.model.StorageResolution;
 import software.amazon.cloudwatchlogs.emf.model.Unit;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
 import java.util.function.Consumer;
 import java.util.function.Supplier;
 
 public class Metrics {
     public static final String MESSAGE_TOO_LARGE = "MessageTooLarge";
+    public static final String DEFERRED_RECORDS = "DeferredRecords";
+    public static final String THROTTLE_HITS = "ThrottleHits";
+    public static final String THROTTLE_SKIPS = "ThrottleSkips";
+    public static final String RATE_LIMITED = "RateLimited";
+    public static final String DEDUP_HITS = "DedupHits";
+    public static final String DEDUP_MISSES = "DedupMisses";
+    public static final String CONCURRENCY_LIMIT = "ConcurrencyLimit";
+    public static final String QUEUE_DELAY_AVERAGE = "QueueDelayAverage";
+    public static final String QUEUE_DELAY_MAX = "QueueDelayMax";
+    public static final String COMPRESSED_REQUESTS = "CompressedRequests";
+    public static final String COMPRESSION_RATIO = "CompressionRatio";
+    public static final String COMPRESSION_TIME = "CompressionTime";
+    public static final String CLIENT_CACHE_HITS = "ClientCacheHits";
+    public static final String CLIENT_CACHE_MISSES = "ClientCacheMisses";
+    public static final String CLIENT_CACHE_EVICTIONS = "ClientCacheEvictions";
+    public static final String CLIENT_BUILD_TIME = "ClientBuildTime";
+    public static final String CONNECTIONS_ACQUIRED = "ConnectionsAcquired";
+    public static final String CONNECTIONS_OPENED = "ConnectionsOpened";
+    public static final String CONNECTION_REUSE_RATIO = "ConnectionReuseRatio";
+    public static final String ENDPOINT_CALLS = "EndpointCalls";
+    public static final String ENDPOINT_REJECTED = "EndpointRejected";
+    public static final String ENDPOINT_LATENCY_AVERAGE = "EndpointLatencyAverage";
+    public static final String ENDPOINT_LATENCY_MAX = "EndpointLatencyMax";
+    public static final String ENDPOINT_SATURATION = "EndpointSaturation";
+    public static final String WARM_UP_TIME = "WarmUpTime";
+    public static final String WARM_UP_CONNECTIONS = "WarmUpConnections";
+    public static final String FIRST_CALL_LATENCY = "FirstCallLatency";
+    public static final String RESTORE_TO_FIRST_CALL = "RestoreToFirstCall";
+    private static final String SERVICE = "mparticle-outgoing-lambda";
     private final Supplier<MetricsLogger> metricsFactory;
 
     public Metrics() {
@@ -35,9 +68,64 @@ public class Metrics {
         });
     }
 
+    /**
+     * Emit several invocation-level counters in a single metrics event. Zero counts are left out.
+     */
+    public void markAll(Context context, Map<String, Long> counts) {
+        withMetrics(metrics -> {
+            if (context != null && context.getAwsRequestId() != null) {
+                metrics.putProperty("function_request_id", context.getAwsRequestId());
+            }
+            counts.forEach((name, count) -> {
+                if (count != 0) {
+                    metrics.putMetric(name, count, Unit.COUNT, StorageResolution.STANDARD);
+                }
+            });
+        });
+    }
+
+    /**
+     * Emit point-in-time measurements for a single entity (a workspace, an endpoint...) identified by the given
+     * properties. Properties are searchable without becoming dimensions, so they don't add to the metrics cost.
+     */
+    public void measure(Context context, Map<String, String> properties, List<Measurement> measurements) {
+        measure(context, Map.of(), properties, measurements);
+    }
+
+    /**
+     * Emit point-in-time measurements split by the given dimensions, on top of Service, so that CloudWatch keeps a
+     * series for each of their combinations. Every distinct value is a metric of its own, so only use dimensions whose
+     * values are few and bounded.
+     */
+    public void measure(Context context, Map<String, String> dimensions, Map<String, String> properties,
+                        List<Measurement> measurements) {
+        withMetrics(dimensionSet(dimensions), metrics -> {
+            if (context != null && context.getAwsRequestId() != null) {
+                metrics.putProperty("function_request_id", context.getAwsRequestId());
+            }
+            properties.forEach(metrics::putProperty);
+            measurements.forEach(measurement -> metrics.putMetric(measurement.name(), measurement.value(),
+                measurement.unit(), StorageResolution.STANDARD));
+        });
+    }
+
+    private static DimensionSet dimensionSet(final Map<String, String> dimensions) {
+        final List<String> keysAndValues = new ArrayList<>(List.of("Service", SERVICE));
+        // sorted, so that the same dimensions always make the same set
+        new TreeMap<>(dimensions).forEach((name, value) -> {
+            keysAndValues.add(name);
+            keysAndValues.add(value);
+        });
+        return DimensionSet.of(keysAndValues.toArray(String[]::new));
+    }
+
     private void withMetrics(Consumer<MetricsLogger> consumer) {
+        withMetrics(DimensionSet.of("Service", SERVICE), consumer);
+    }
+
+    private void withMetrics(DimensionSet dimensions, Consumer<MetricsLogger> consumer) {
         final MetricsLogger metrics = metricsFactory.get();
-        metrics.putDimensions(DimensionSet.of("Service", "mparticle-outgoing-lambda"));
+        metrics.putDimensions(dimensions);
         try {
             consumer.accept(metrics);
         } finally {
@@ -0,0 +1,209 @@
+package com.sailthru.sqs;
+
+import com.sailthru.sqs.exception.ConcurrencyLimitExceededException;
+import com.sailthru.sqs.exception.RetryLaterException;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.closeTo;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.empty;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.sameInstance;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+public class AdaptiveConcurrencyLimiterTest {
+    private static final AdaptiveConcurrencyLimiter.Workspace WORKSPACE =
+        new AdaptiveConcurrencyLimiter.Workspace("key", "https://test.url/");
+
+    private final AtomicLong nanos = new AtomicLong(1_000_000_000L);
+
+    @AfterEach
+    void afterEach() {
+        AdaptiveConcurrencyLimiter.LIMITERS.clear();
+    }
+
+    @Test
+    void givenSuccessesThenLimitGrowsAdditively() throws RetryLaterException {
+        final AdaptiveConcurrencyLimiter testInstance = givenLimiter(2, 10);
+
+        // 2 -> 2.5 -> 2.9 -> 3.24
+        callWith(testInstance, 200, 10);
+        callWith(testInstance, 200, 10);
+        assertThat(testInstance.getLimit(), is(2));
+        callWith(testInstance, 200, 10);
+        assertThat(testInstance.getLimit(), is(3));
+    }
+
+    @Test
+    void givenSuccessesThenLimitIsCappedAtMax() throws RetryLaterException {
+        final AdaptiveConcurrencyLimiter testInstance = givenLimiter(3, 3);
+
+        for (int i = 0; i < 10; i++) {
+            callWith(testInstance, 200, 10);
+        }
+
+        assertThat(testInstance.getLimit(), is(3));
+    }
+
+    @Test
+    void givenTooManyRequestsThenLimitIsHalved() throws RetryLaterException {
+        final AdaptiveConcurrencyLimiter testInstance = givenLimiter(8, 10);
+
+        callWith(testInstance, 429, 10);
+
+        assertThat(testInstance.getLimit(), is(4));
+    }
+
+    @Test
+    void givenServerErrorThenLimitIsHalved() throws RetryLaterException {
+        final AdaptiveConcurrencyLimiter testInstance = givenLimiter(8, 10);
+
+        callWith(testInstance, 503, 10);
+
+        assertThat(testInstance.getLimit(), is(4));
+    }
+
+    @Test
+    void givenCallFailedWithoutResponseThenLimitIsHalved() throws RetryLaterException {
+        final AdaptiveConcurrencyLimiter testInstance = givenLimiter(8, 10);
+
+        testInstance.acquire(Deadline.NONE).onError();
+
+        assertThat(testInstance.getLimit(), is(4));
+    }
+
+    @Test
+    void givenClientErrorThenLimitIsUnchanged() throws RetryLaterException {
+        final AdaptiveConcurrencyLimiter testInstance = givenLimiter(8, 10);
+
+        callWith(testInstance, 400, 10);
+
+        assertThat(testInstance.getLimit(), is(8));
+    }
+
+    @Test
+    void givenRepeatedRejectionsThenLimitNeverGoesBelowOne() throws RetryLaterException {
+        final AdaptiveConcurrencyLimiter testInstance = givenLimiter(2, 10);
+
+        for (int i = 0; i < 5; i++) {
+            callWith(testInstance, 429, 10);
+        }
+
+        assertThat(testInstance.getLimit(), is(1));
+    }
+
+    @Test
+    void givenRejectionsWithinOneRoundTripThenLimitIsCutOnce() throws RetryLaterException {
+        final AdaptiveConcurrencyLimiter testInstance = givenLimiter(8, 10);
+        // establishes a 100ms baseline
+        callWith(testInstance, 200, 100);
+        nanos.addAndGet(TimeUnit.SECONDS.toNanos(1));
+
+        final AdaptiveConcurrencyLimiter.Permit first = testInstance.acquire(Deadline.NONE);
+        final AdaptiveConcurrencyLimiter.Permit second = testInstance.acquire(Deadline.NONE);
+        nanos.addAndGet(TimeUnit.MILLISECONDS.toNanos(50));
+        first.onResponse(429);
+        nanos.addAndGet(TimeUnit.MILLISECONDS.toNanos(10));
+        second.onResponse(429);
+
+        assertThat(testInstance.getLimit(), is(4));
+    }
+
+    @Test
+    void givenLatencyRisingAboveBaselineThenLimitIsReduced() throws RetryLaterException {
+        final AdaptiveConcurrencyLimiter testInstance = givenLimiter(10, 10);
+        callWith(testInstance, 200, 10);
+        assertThat(testInstance.getLimit(), is(10));
+
+        callWith(testInstance, 200, 50);
+
+        assertThat(testInstance.getLimit(), is(9));
+    }
+
+    @Test
+    void givenNoPermitAvailableThenRetryLater() throws RetryLaterException {
+        final AdaptiveConcurrencyLimiter testInstance = new AdaptiveConcurrencyLimiter(WORKSPACE,
+            new AdaptiveConcurrencyLimiter.Settings(1, 10, 0), nanos::get);
+        testInstance.acquire(Deadline.NONE);
+
+        final RetryLaterException exception =
+            assertThrows(ConcurrencyLimitExceededException.class, () -> testInstance.acquire(Deadline.NONE));
+        assertThat(exception.getRetryAfter(), is(0L));
+    }
+
+    @Test
+    void givenPermitReleasedThenWaitingCallerProceeds() throws Exception {
+        final AdaptiveConcurrencyLimiter testInstance = new AdaptiveConcurrencyLimiter(WORKSPACE,
+            new AdaptiveConcurrencyLimiter.Settings(1, 10, 5000), System::nanoTime);
+        final AdaptiveConcurrencyLimiter.Permit permit = testInstance.acquire(Deadline.NONE);
+
+        final CompletableFuture<AdaptiveConcurrencyLimiter.Permit> waiting = CompletableFuture.supplyAsync(() -> {
+            try {
+                return testInstance.acquire(Deadline.NONE);
+            } catch (RetryLaterException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        Thread.sleep(50);
+        assertFalse(waiting.isDone());
+
+        permit.close();
+
+        waiting.get(5, TimeUnit.SECONDS).close();
+    }
+
+    @Test
+    void givenPermitReleasedTwiceThenOnlyCountedOnce() throws RetryLaterException {
+        final AdaptiveConcurrencyLimiter testInstance = new AdaptiveConcurrencyLimiter(WORKSPACE,
+            new AdaptiveConcurrencyLimiter.Settings(1, 1, 0), nanos::get);
+
+        final AdaptiveConcurrencyLimiter.Permit permit = testInstance.acquire(Deadline.NONE);
+        permit.onResponse(200);
+        permit.close();
+        testInstance.acquire(Deadline.NONE);
+
+        // the second release didn't free a permit it didn't hold
+        assertThrows(RetryLaterException.class, () -> testInstance.acquire(Deadline.NONE));
+    }
+
+    @Test
+    void givenSharedLimitersThenSnapshotsOnlyCoverUsedWorkspaces() throws RetryLaterException {
+        AdaptiveConcurrencyLimiter.forWorkspace("key", "https://test.url/").acquire(Deadline.NONE).close();
+        AdaptiveConcurrencyLimiter.forWorkspace("other", "https://test.url/");
+
+        final List<AdaptiveConcurrencyLimiter.Snapshot> snapshots = AdaptiveConcurrencyLimiter.drainSnapshots();
+
+        assertThat(snapshots.stream().map(AdaptiveConcurrencyLimiter.Snapshot::apiKey).toList(), contains("key"));
+        assertThat(snapshots.getFirst().acquisitions(), is(1L));
+        assertThat(snapshots.getFirst().maxQueueMillis(), closeTo(0, 100));
+        assertThat(AdaptiveConcurrencyLimiter.drainSnapshots(), is(empty()));
+    }
+
+    @Test
+    void givenSameWorkspaceThenLimiterIsSharedThroughTheCache() {
+        final AdaptiveConcurrencyLimiter limiter = AdaptiveConcurrencyLimiter.forWorkspace("key", "https://test.url/");
+
+        assertThat(AdaptiveConcurrencyLimiter.forWorkspace("key", "https://test.url/"), is(sameInstance(limiter)));
+        assertThat(AdaptiveConcurrencyLimiter.LIMITERS.size(), is(1));
+    }
+
+    private AdaptiveConcurrencyLimiter givenLimiter(int initialLimit, int maxLimit) {
+        return new AdaptiveConcurrencyLimiter(WORKSPACE,
+            new AdaptiveConcurrencyLimiter.Settings(initialLimit, maxLimit, 0), nanos::get);
+    }
+
+    private void callWith(AdaptiveConcurrencyLimiter limiter, int statusCode, long latencyMillis)
+        throws RetryLaterException {
+        final AdaptiveConcurrencyLimiter.Permit permit = limiter.acquire(Deadline.NONE);
+        nanos.addAndGet(TimeUnit.MILLISECONDS.toNanos(latencyMillis));
+        permit.onResponse(statusCode);
+    }
+}
@@ -1,180 +1,174 @@
 package com.sailthru.sqs;
 
-import com.mparticle.ApiClient;
-import com.mparticle.client.EventsApi;
+import okhttp3.Credentials;
 import okhttp3.OkHttpClient;
+import okhttp3.Protocol;
+import okhttp3.RequestBody;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.ExtendWith;
-import org.mockito.Answers;
-import org.mockito.ArgumentCaptor;
-import org.mockito.InOrder;
 import org.mockito.Mock;
-import org.mockito.Mockito;
 import org.mockito.junit.jupiter.MockitoExtension;
-import retrofit2.Retrofit;
-import software.amazon.awssdk.utils.Pair;
+import retrofit2.Response;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
-import java.util.concurrent.atomic.AtomicInteger;
-import java.util.random.RandomGenerator;
-import java.util.stream.IntStream;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 import static org.hamcrest.MatcherAssert.assertThat;
 import static org.hamcrest.Matchers.equalTo;
-import static org.junit.jupiter.api.Assertions.fail;
-import static org.mockito.ArgumentMatchers.any;
-import static org.mockito.ArgumentMatchers.eq;
-import static org.mockito.Mockito.reset;
-import static org.mockito.Mockito.times;
-import static org.mockito.Mockito.verify;
-import static org.mockito.Mockito.verifyNoMoreInteractions;
-import static org.mockito.Mockito.when;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+import static org.hamcrest.Matchers.sameInstance;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
 @ExtendWith(MockitoExtension.class)
 public class ApiFactoryTest {
 
-    @Mock(answer = Answers.RETURNS_MOCKS)
-    private ApiClient mockClient;
-    @Mock(answer = Answers.RETURNS_MOCKS)
-    private Retrofit.Builder mockAdapterBuilder;
     @Mock
-    private EventsApi mockEventsApi;
-    private List<Pair<String, String>> keysAndSecrets;
+    private EncodedEventsApi mockEncodedEventsApi;
+    private List<ApiFactory.ClientApiDetails> builtFor;
     private ApiFactory apiFactory;
-    private AtomicInteger currentCallCounter;
-    private AtomicInteger maxConcurrentCalls;
 
     @BeforeEach
     void beforeEach() {
-        keysAndSecrets = new ArrayList<>();
-        currentCallCounter = new AtomicInteger(0);
-        maxConcurrentCalls = new AtomicInteger(0);
-        apiFactory = givenApiFactory();
-        configureMockClient(mockEventsApi);
+        builtFor = Collections.synchronizedList(new ArrayList<>());
+        apiFactory = new ApiFactory();
+        apiFactory.setServiceFactory(details -> {
+            builtFor.add(details);
+            return mockEncodedEventsApi;
+        });
         ApiFactory.CACHE.clear();
+        ApiFactory.drainCacheStats();
     }
 
-    private void configureMockClient(EventsApi mockEventsApi1) {
-        reset(mockClient);
-        when(mockClient.getAdapterBuilder()).thenReturn(mockAdapterBuilder);
-        when(mockClient.createService(eq(EventsApi.class))).thenReturn(mockEventsApi1);
+    @AfterEach
+    void afterEach() {
+        // the cache is static, leave nothing behind for other tests
+        ApiFactory.CACHE.clear();
+        ApiFactory.drainCacheStats();
     }
 
     @Test
-    void givenSingleKeyAndApiThenClientConfiguredAsExpected() {
-        final EventsApi api = apiFactory.of("test", "test", "test");
+    void givenSingleKeyAndApiThenServiceBuiltOnceAndCached() {
+        final EncodedEventsApi api1 = apiFactory.of("test", "test", "test");
+        final EncodedEventsApi api2 = apiFactory.of("test", "test", "test");
 
-        verify(mockClient).configureFromOkclient(any());
-        verify(mockAdapterBuilder).baseUrl("test");
-        verify(mockClient).createService(EventsApi.class);
+        assertThat(api1, is(sameInstance(mockEncodedEventsApi)));
+        assertThat(api2, is(sameInstance(api1)));
+        assertThat(builtFor, equalTo(List.of(new ApiFactory.ClientApiDetails("test", "test", "test"))));
         assertThat(ApiFactory.CACHE.size(), equalTo(1));
+        final ClientCache.Stats stats = ApiFactory.drainCacheStats();
+        assertThat(stats.hits(), is(1L));
+        assertThat(stats.misses(), is(1L));
     }
 
     @Test
-    void givenMultipleKeysAndApiThenClientsAreConfiguredAsExpected() {
-        final EventsApi api1 = apiFactory.of("test", "test", "test");
-        final EventsApi api2 = apiFactory.of("test", "test", "test2");
-        final EventsApi api3 = apiFactory.of("test2", "test", "test");
-        final EventsApi api4 = apiFactory.of("test", "test2", "test");
-
-        final InOrder inOrder = Mockito.inOrder(mockClient, mockAdapterBuilder);
-        final ArgumentCaptor<OkHttpClient> captor = ArgumentCaptor.forClass(OkHttpClient.class);
-        inOrder.verify(mockClient).configureFromOkclient(captor.capture());
-        inOrder.verify(mockAdapterBuilder).baseUrl("test");
-        inOrder.verify(mockClient).createService(EventsApi.class);
-        inOrder.verify(mockClient).configureFromOkclient(captor.capture());
-        inOrder.verify(mockAdapterBuilder).baseUrl("test2");
-        inOrder.verify(mockClient).createService(EventsApi.class);
-        inOrder.verify(mockClient).configureFromOkclient(captor.capture());
-        inOrder.verify(mockAdapterBuilder).baseUrl("test");
-        inOrder.verify(mockClient).createService(EventsApi.class);
-        inOrder.verify(mockClient).configureFromOkclient(captor.capture());
-        inOrder.verify(mockAdapterBuilder).baseUrl("test");
-        inOrder.verify(mockClient).createService(EventsApi.class);
-        inOrder.verifyNoMoreInteractions();
-        verifyAllCapturedOkHttpClientsAreSameInstance(captor);
-        assertThat(keysAndSecrets,
+    void givenMultipleKeysAndApiThenServicesAreBuiltForEach() {
+        apiFactory.of("test", "test", "test");
+        apiFactory.of("test", "test", "test2");
+        apiFactory.of("test2", "test", "test");
+        apiFactory.of("test", "test2", "test");
+
+        assertThat(builtFor,
             equalTo(List.of(
-                Pair.of("test", "test"),
-                Pair.of("test", "test"),
-                Pair.of("test2", "test"),
-                Pair.of("test", "test2")
+                new ApiFactory.ClientApiDetails("test", "test", "test"),
+                new ApiFactory.ClientApiDetails("test", "test", "test2"),
+                new ApiFactory.ClientApiDetails("test2", "test", "test"),
+                new ApiFactory.ClientApiDetails("test", "test2", "test")
             )));
         assertThat(ApiFactory.CACHE.size(), equalTo(4));
     }
 
     @Test
-    void givenMultipleKeysAndApiRequestedInParallelThenOnlyOneClientWasConfiguredAtATime() {
-        IntStream.range(0, 10)
-            .mapToObj(i -> givenApiFactory())
-            .parallel()
-            .forEach(apiF ->
-                IntStream.range(0, 10)
-                    .parallel()
-                    .forEach(i -> apiF.of("test", "test", "test" + i))
-            );
-
-        assertThat(maxConcurrentCalls.get(), equalTo(1));
-        final ArgumentCaptor<OkHttpClient> captor = ArgumentCaptor.forClass(OkHttpClient.class);
-        verify(mockClient, times(10)).configureFromOkclient(captor.capture());
-        IntStream.range(0, 10)
-                .forEach(i -> verify(mockAdapterBuilder).baseUrl("test" + i));
-        verify(mockClient, times(10)).createService(EventsApi.class);
-        verifyNoMoreInteractions(mockClient, mockAdapterBuilder);
-        verifyAllCapturedOkHttpClientsAreSameInstance(captor);
-        assertThat(ApiFactory.CACHE.size(), equalTo(10));
+    void givenDifferentKeysRequestedConcurrentlyThenServicesAreBuiltInParallel() throws Exception {
+        final CountDownLatch bothBuilding = new CountDownLatch(2);
+        apiFactory.setServiceFactory(details -> {
+            bothBuilding.countDown();
+            try {
+                // only returns early if the other service is being built at the same time
+                assertTrue(bothBuilding.await(5, TimeUnit.SECONDS));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return mockEncodedEventsApi;
+        });
+
+        final CompletableFuture<EncodedEventsApi> first =
+            CompletableFuture.supplyAsync(() -> apiFactory.of("test", "test", "test1"));
+        final CompletableFuture<EncodedEventsApi> second =
+            CompletableFuture.supplyAsync(() -> apiFactory.of("test", "test", "test2"));
+
+        assertThat(first.get(10, TimeUnit.SECONDS), is(sameInstance(mockEncodedEventsApi)));
+        assertThat(second.get(10, TimeUnit.SECONDS), is(sameInstance(mockEncodedEventsApi)));
+        assertThat(ApiFactory.CACHE.size(), equalTo(2));
     }
 
     @Test
-    void givenMultipleKeysButNeverCachedWithParallelRequestsThenOnlyOneAttemptToConfigureWasMadeAtATime() {
-        configureMockClient(null);
-        IntStream.range(0, 10)
-            .mapToObj(i -> givenApiFactory())
-            .parallel()
-            .forEach(apiF ->
-                IntStream.range(0, 10)
-                    .parallel()
-                    .forEach(i -> apiF.of("test", "test", "test" + i))
-            );
-
-        assertThat(maxConcurrentCalls.get(), equalTo(1));
-        final ArgumentCaptor<OkHttpClient> captor = ArgumentCaptor.forClass(OkHttpClient.class);
-        verify(mockClient, times(100)).configureFromOkclient(captor.capture());
-        IntStream.range(0, 10)
-            .forEach(i -> verify(mockAdapterBuilder, times(10)).baseUrl("test" + i));
-        verify(mockClient, times(100)).createService(EventsApi.class);
-        verifyNoMoreInteractions(mockClient, mockAdapterBuilder);
-        verifyAllCapturedOkHttpClientsAreSameInstance(captor);
+    void givenServiceNotBuiltThenNothingIsCached() {
+        apiFactory.setServiceFactory(details -> {
+            builtFor.add(details);
+            return null;
+        });
+
+        assertThat(apiFactory.of("test", "test", "test"), is(nullValue()));
+        assertThat(apiFactory.of("test", "test", "test"), is(nullValue()));
+
+        assertThat(builtFor.size(), equalTo(2));
         assertThat(ApiFactory.CACHE.size(), equalTo(0));
     }
 
-    private static void verifyAllCapturedOkHttpClientsAreSameInstance(ArgumentCaptor<OkHttpClient> captor) {
-        assertThat(captor.getAllValues()
-            .stream()
-            .map(c -> System.identityHashCode(c))
-            .distinct()
-            .count(), equalTo(1L));
+    @Test
+    void givenBuiltServiceThenItPostsToTheApiURLWithBasicAuth() throws Exception {
+        final MockWebServer server = new MockWebServer();
+        server.start();
+        try {
+            server.enqueue(new MockResponse().setResponseCode(202));
+            final EncodedEventsApi api = ApiFactory.createService(
+                new ApiFactory.ClientApiDetails("key", "secret", server.url("/s2s/v2/").toString()));
+
+            final Response<Void> response =
+                api.uploadEvents(RequestBody.create(EncodedBatch.JSON, "{}")).execute();
+
+            assertThat(response.code(), is(202));
+            final RecordedRequest request = server.takeRequest();
+            assertThat(request.getPath(), is(equalTo("/s2s/v2/events")));
+            assertThat(request.getHeader("Authorization"), is(equalTo(Credentials.basic("key", "secret"))));
+            assertThat(request.getHeader("Content-Type"), is(equalTo("application/json")));
+            assertThat(request.getBody().readUtf8(), is(equalTo("{}")));
+        } finally {
+            server.shutdown();
+            // the common client reports its connections to the shared listener
+            ConnectionReuseListener.getInstance().drainStats();
+        }
     }
 
-    private ApiFactory givenApiFactory() {
-        final ApiFactory apiFactory = new ApiFactory();
-        apiFactory.setApiClientFactory((key, secret) -> {
-            currentCallCounter.incrementAndGet();
-            try {
-                // sleep to increase the chance of concurrency
-                Thread.sleep(RandomGenerator.getDefault().nextInt(10));
-                keysAndSecrets.add(Pair.of(key, secret));
-                return mockClient;
-            } catch (InterruptedException e) {
-                fail("interrupted");
-                return null;
-            } finally {
-                final int currentCallCount = currentCallCounter.getAndDecrement();
-                maxConcurrentCalls.getAndAccumulate(currentCallCount, Math::max);
-            }
-        });
-        return apiFactory;
+    @Test
+    void givenHttpSettingsThenClientConfiguredWithThem() {
+        final OkHttpClient client = ApiFactory.buildHttpClient(new ApiFactory.HttpSettings(16, 60, 128, 32,
+            List.of(Protocol.HTTP_1_1), 1000, 2000, 3000));
+
+        assertThat(client.dispatcher().getMaxRequests(), is(128));
+        assertThat(client.dispatcher().getMaxRequestsPerHost(), is(32));
+        assertThat(client.protocols(), is(equalTo(List.of(Protocol.HTTP_1_1))));
+        assertThat(client.connectTimeoutMillis(), is(1000));
+        assertThat(client.readTimeoutMillis(), is(2000));
+        assertThat(client.writeTimeoutMillis(), is(3000));
+        assertThat(client.eventListenerFactory().create(null), is(sameInstance(ConnectionReuseListener.getInstance())));
+    }
+
+    @Test
+    void givenProtocolPreferenceThenHttp2IsNegotiatedUnlessHttp11IsRequired() {
+        assertThat(ApiFactory.HttpSettings.protocols("h2"), is(equalTo(List.of(Protocol.HTTP_2, Protocol.HTTP_1_1))));
+        assertThat(ApiFactory.HttpSettings.protocols("HTTP/1.1"), is(equalTo(List.of(Protocol.HTTP_1_1))));
+        assertThat(ApiFactory.HttpSettings.protocols("spdy/3.1"),
+            is(equalTo(List.of(Protocol.HTTP_2, Protocol.HTTP_1_1))));
     }
 }
@@ -0,0 +1,84 @@
+package com.sailthru.sqs;
+
+import com.mparticle.JSON;
+import com.mparticle.model.Batch;
+import com.sailthru.sqs.message.MParticleOutgoingMessage;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.greaterThanOrEqualTo;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThan;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+
+public class BatchEncoderTest {
+    // multi-byte characters, a surrogate pair, an unpaired surrogate, and characters Gson escapes
+    private static final String AWKWARD_TEXT = "caf\\u00e9 \\u20ac \\ud83d\\ude00 \\ud800 <a href='x'>&</a> \\u0001";
+
+    @Test
+    void givenBatchThenEncodedAsTheSdkGsonWouldSerializeIt() throws IOException {
+        final Batch batch = batchOf(AWKWARD_TEXT);
+
+        final EncodedBatch encoded = BatchEncoder.encode(batch);
+
+        assertThat(encoded.toString().getBytes(StandardCharsets.UTF_8),
+            is(equalTo(new JSON().getGson().toJson(batch).getBytes(StandardCharsets.UTF_8))));
+    }
+
+    @Test
+    void givenBatchThenMeasuredSizeIsTheEncodedSize() throws IOException {
+        final Batch batch = batchOf(AWKWARD_TEXT);
+
+        assertThat(BatchEncoder.measure(batch), is((long) BatchEncoder.encode(batch).size()));
+    }
+
+    @Test
+    void givenBatchLargerThanPooledBuffersThenEncodedAndNotPooled() throws IOException {
+        final Batch batch = batchOf("x".repeat(BatchEncoder.MAX_POOLED_CHARS));
+
+        final EncodedBatch encoded = BatchEncoder.encode(batch);
+
+        assertThat((long) encoded.size(), is(BatchEncoder.measure(batch)));
+        assertThat(BatchEncoder.pooledBuffers(), is(lessThanOrEqualTo(BatchEncoder.MAX_POOLED_BUFFERS)));
+        // the next batch gets a buffer of its own, and still encodes correctly
+        final Batch small = batchOf("small");
+        assertThat(BatchEncoder.encode(small).toString(), is(equalTo(new JSON().getGson().toJson(small))));
+    }
+
+    @Test
+    void givenMessageThenUpperBoundIsNeverBelowEncodedSize() throws IOException {
+        for (String text : new String[]{"", "plain", AWKWARD_TEXT, "\\u0001".repeat(1000), "\\u20ac".repeat(1000)}) {
+            final MParticleOutgoingMessage message = messageOf(text);
+            final long encodedSize = BatchEncoder.encode(message.toBatch(Batch.Environment.DEVELOPMENT)).size();
+
+            assertThat(message.maxEncodedBatchSize(), is(greaterThanOrEqualTo(encodedSize)));
+        }
+    }
+
+    @Test
+    void givenDeferredBatchThenEncodedWhenFirstNeeded() throws IOException {
+        final Batch batch = batchOf(AWKWARD_TEXT);
+        final EncodedBatch deferred = EncodedBatch.deferred(batch);
+
+        // the exact size, not the upper bound the batch was checked against
+        assertThat((long) deferred.size(), is(BatchEncoder.measure(batch)));
+        assertThat((long) deferred.size(), is(lessThan(messageOf(AWKWARD_TEXT).maxEncodedBatchSize())));
+        assertThat(deferred.toString(), is(equalTo(BatchEncoder.encode(batch).toString())));
+    }
+
+    private static Batch batchOf(final String text) throws IOException {
+        return messageOf(text).toBatch(Batch.Environment.DEVELOPMENT);
+    }
+
+    private static MParticleOutgoingMessage messageOf(final String text) throws IOException {
+        final String body = "{\"authenticationKey\":\"key\",\"authenticationSecret\":\"secret\","
+            + "\"profileEmail\":\"" + text + "\",\"timestamp\":\"2024-05-03T13:11:17Z[UTC]\","
+            + "\"events\":[{\"eventName\":\"EMAIL_OPEN\",\"eventType\":\"OTHER\","
+            + "\"additionalData\":{\"" + text + "\":\"" + text + "\",\"list_id\":\"5609b2641aa312d6318b456b\"}}]}";
+        return new MessageSerializer().deserialize(body, MParticleOutgoingMessage.class);
+    }
+}
@@ -0,0 +1,57 @@
+package com.sailthru.sqs;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import software.amazon.awssdk.services.sqs.SqsClient;
+import software.amazon.awssdk.services.sqs.model.ChangeMessageVisibilityBatchRequest;
+import software.amazon.awssdk.services.sqs.model.ChangeMessageVisibilityBatchResponse;
+import software.amazon.awssdk.services.sqs.model.ChangeMessageVisibilityRequest;
+import software.amazon.awssdk.services.sqs.model.SqsException;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.instanceOf;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.sameInstance;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+@ExtendWith(MockitoExtension.class)
+public class BlockingSqsAsyncClientTest {
+    @Mock
+    private SqsClient mockSqsClient;
+
+    @Test
+    void givenBatchRequestThenSynchronousClientAnswersTheFuture() throws Exception {
+        final ChangeMessageVisibilityBatchRequest request = ChangeMessageVisibilityBatchRequest.builder().build();
+        final ChangeMessageVisibilityBatchResponse response = ChangeMessageVisibilityBatchResponse.builder().build();
+        when(mockSqsClient.changeMessageVisibilityBatch(request)).thenReturn(response);
+
+        assertThat(new BlockingSqsAsyncClient(mockSqsClient).changeMessageVisibilityBatch(request)
+            .get(5, TimeUnit.SECONDS), is(sameInstance(response)));
+    }
+
+    @Test
+    void givenFailingRequestThenFutureFailsWithTheError() {
+        final ChangeMessageVisibilityRequest request = ChangeMessageVisibilityRequest.builder().build();
+        when(mockSqsClient.changeMessageVisibility(request))
+            .thenThrow(SqsException.builder().message("Denied").build());
+
+        final ExecutionException exception = assertThrows(ExecutionException.class, () ->
+            new BlockingSqsAsyncClient(mockSqsClient).changeMessageVisibility(request).get(5, TimeUnit.SECONDS));
+
+        assertThat(exception.getCause(), is(instanceOf(SqsException.class)));
+    }
+
+    @Test
+    void givenCloseThenSynchronousClientIsClosed() {
+        new BlockingSqsAsyncClient(mockSqsClient).close();
+
+        verify(mockSqsClient).close();
+    }
+}
@@ -0,0 +1,104 @@
+package com.sailthru.sqs;
+
+import com.amazonaws.services.lambda.runtime.events.SQSEvent;
+import com.mparticle.model.Batch;
+import com.sailthru.sqs.message.MParticleOutgoingMessage;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.List;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.empty;
+import static org.hamcrest.Matchers.hasSize;
+
+public class BulkCoalescerTest {
+
+    @Test
+    void givenRecordsForDifferentCredentialsThenTheyAreGroupedSeparately() {
+        final BulkCoalescer coalescer = new BulkCoalescer(100, 1024);
+        final OutgoingRecord record1 = givenRecord("key1", "secret1", null, 10);
+        final OutgoingRecord record2 = givenRecord("key2", "secret2", null, 10);
+        final OutgoingRecord record3 = givenRecord("key1", "secret1", "", 10);
+        final OutgoingRecord record4 = givenRecord("key1", "secret1", "https://other.url/", 10);
+
+        final List<List<OutgoingRecord>> chunks = coalescer.coalesce(List.of(record1, record2, record3, record4));
+
+        assertThat(chunks, contains(
+            contains(record1, record3),
+            contains(record2),
+            contains(record4)
+        ));
+    }
+
+    @Test
+    void givenMoreRecordsThanMaxBatchesThenGroupIsSplit() {
+        final BulkCoalescer coalescer = new BulkCoalescer(2, 1024);
+        final OutgoingRecord record1 = givenRecord("key", "secret", null, 10);
+        final OutgoingRecord record2 = givenRecord("key", "secret", null, 10);
+        final OutgoingRecord record3 = givenRecord("key", "secret", null, 10);
+
+        final List<List<OutgoingRecord>> chunks = coalescer.coalesce(List.of(record1, record2, record3));
+
+        assertThat(chunks, contains(
+            contains(record1, record2),
+            contains(record3)
+        ));
+    }
+
+    @Test
+    void givenRecordsAboveMaxBytesThenGroupIsSplit() {
+        // 2 bytes of array overhead + 40 + 1 separator + 40 = 83
+        final BulkCoalescer coalescer = new BulkCoalescer(100, 83);
+        final OutgoingRecord record1 = givenRecord("key", "secret", null, 40);
+        final OutgoingRecord record2 = givenRecord("key", "secret", null, 40);
+        final OutgoingRecord record3 = givenRecord("key", "secret", null, 1);
+        final OutgoingRecord record4 = givenRecord("key", "secret", null, 200);
+
+        final List<List<OutgoingRecord>> chunks = coalescer.coalesce(List.of(record1, record2, record3, record4));
+
+        assertThat(chunks, contains(
+            contains(record1, record2),
+            contains(record3),
+            contains(record4)
+        ));
+    }
+
+    @Test
+    void givenDeferredBatchesThenTheyArePackedByTheirExactSize() throws IOException {
+        final MParticleOutgoingMessage message = new MessageDecoder().decode("{\"authenticationKey\":\"key\","
+            + "\"authenticationSecret\":\"secret\",\"events\":[{\"eventName\":\"EMAIL_OPEN\","
+            + "\"eventType\":\"OTHER\",\"additionalData\":{\"text\":\"" + "plain ".repeat(100) + "\"}}]}");
+        final Batch batch = message.toBatch(Batch.Environment.DEVELOPMENT);
+        final int exactSize = BatchEncoder.toBytes(batch).length;
+        final OutgoingRecord record1 = new OutgoingRecord(new SQSEvent.SQSMessage(), message,
+            EncodedBatch.deferred(batch));
+        final OutgoingRecord record2 = new OutgoingRecord(new SQSEvent.SQSMessage(), message,
+            EncodedBatch.deferred(message.toBatch(Batch.Environment.DEVELOPMENT)));
+        // room for both exactly, far less than their upper bounds
+        final BulkCoalescer coalescer = new BulkCoalescer(100, 2 + exactSize + 1 + exactSize);
+
+        assertThat(coalescer.coalesce(List.of(record1, record2)), contains(contains(record1, record2)));
+    }
+
+    @Test
+    void givenNoRecordsThenNoChunks() {
+        assertThat(new BulkCoalescer(100, 1024).coalesce(List.of()), empty());
+    }
+
+    @Test
+    void givenSingleRecordThenSingleChunk() {
+        final OutgoingRecord record = givenRecord("key", "secret", null, 10);
+
+        assertThat(new BulkCoalescer(100, 1024).coalesce(List.of(record)), hasSize(1));
+    }
+
+    private static OutgoingRecord givenRecord(String key, String secret, String apiURL, int size) {
+        final MParticleOutgoingMessage message = new MParticleOutgoingMessage();
+        message.setAuthenticationKey(key);
+        message.setAuthenticationSecret(secret);
+        message.setApiURL(apiURL);
+        return new OutgoingRecord(new SQSEvent.SQSMessage(), message, new EncodedBatch(new byte[size]));
+    }
+}
@@ -0,0 +1,131 @@
+package com.sailthru.sqs;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.is;
+
+public class ClientCacheTest {
+    private final AtomicLong nanos = new AtomicLong();
+    private final AtomicInteger builds = new AtomicInteger();
+
+    @Test
+    void givenCachedValueThenItIsNotBuiltAgain() {
+        final ClientCache<String, String> testInstance = givenCache(10, 60);
+
+        assertThat(testInstance.get("a", this::build), is(equalTo("a1")));
+        assertThat(testInstance.get("a", this::build), is(equalTo("a1")));
+
+        assertThat(builds.get(), is(1));
+        final ClientCache.Stats stats = testInstance.drainStats();
+        assertThat(stats.hits(), is(1L));
+        assertThat(stats.misses(), is(1L));
+        assertThat(testInstance.drainStats().hits(), is(0L));
+    }
+
+    @Test
+    void givenIdleTimePassedThenValueIsBuiltAgain() {
+        final ClientCache<String, String> testInstance = givenCache(10, 60);
+        testInstance.get("a", this::build);
+
+        nanos.addAndGet(TimeUnit.SECONDS.toNanos(60));
+
+        assertThat(testInstance.get("a", this::build), is(equalTo("a2")));
+        assertThat(testInstance.drainStats().evictions(), is(1L));
+    }
+
+    @Test
+    void givenValueUsedWithinIdleTimeThenItIsKept() {
+        final ClientCache<String, String> testInstance = givenCache(10, 60);
+        testInstance.get("a", this::build);
+
+        nanos.addAndGet(TimeUnit.SECONDS.toNanos(40));
+        testInstance.get("a", this::build);
+        nanos.addAndGet(TimeUnit.SECONDS.toNanos(40));
+
+        assertThat(testInstance.get("a", this::build), is(equalTo("a1")));
+    }
+
+    @Test
+    void givenIdleEntriesThenTheyAreSweptOnInsert() {
+        final ClientCache<String, String> testInstance = givenCache(10, 60);
+        testInstance.get("a", this::build);
+        testInstance.get("b", this::build);
+
+        nanos.addAndGet(TimeUnit.SECONDS.toNanos(60));
+        testInstance.get("c", this::build);
+
+        assertThat(testInstance.size(), is(1));
+        assertThat(testInstance.drainStats().evictions(), is(2L));
+    }
+
+    @Test
+    void givenCacheFullThenLeastRecentlyUsedIsEvicted() {
+        final ClientCache<String, String> testInstance = givenCache(2, 3600);
+        testInstance.get("a", this::build);
+        nanos.addAndGet(TimeUnit.SECONDS.toNanos(2));
+        testInstance.get("b", this::build);
+        nanos.addAndGet(TimeUnit.SECONDS.toNanos(2));
+        // "a" is now more recently used than "b"
+        testInstance.get("a", this::build);
+        nanos.addAndGet(TimeUnit.SECONDS.toNanos(2));
+
+        testInstance.get("c", this::build);
+
+        assertThat(testInstance.size(), is(2));
+        assertThat(testInstance.get("a", this::build), is(equalTo("a1")));
+        assertThat(testInstance.get("b", this::build), is(equalTo("b4")));
+    }
+
+    @Test
+    void givenEvictionListenerThenEachEvictedValueIsPassedToIt() {
+        final List<String> evicted = new ArrayList<>();
+        final ClientCache<String, String> testInstance = new ClientCache<>(1, 60, nanos::get, evicted::add);
+        testInstance.get("a", this::build);
+        nanos.addAndGet(TimeUnit.SECONDS.toNanos(2));
+        testInstance.get("b", this::build);
+        nanos.addAndGet(TimeUnit.SECONDS.toNanos(60));
+
+        testInstance.get("b", this::build);
+
+        // "a" made room for "b", which was then idle too long
+        assertThat(evicted, is(equalTo(List.of("a1", "b2"))));
+    }
+
+    @Test
+    void givenNullValueThenItIsNotCached() {
+        final ClientCache<String, String> testInstance = givenCache(10, 60);
+
+        testInstance.get("a", key -> null);
+
+        assertThat(testInstance.size(), is(0));
+        assertThat(testInstance.drainStats().misses(), is(1L));
+    }
+
+    @Test
+    void givenBuildThenTimeSpentIsReported() {
+        final ClientCache<String, String> testInstance = givenCache(10, 60);
+
+        testInstance.get("a", key -> {
+            nanos.addAndGet(TimeUnit.MILLISECONDS.toNanos(25));
+            return build(key);
+        });
+
+        assertThat(testInstance.drainStats().buildNanos(), is(TimeUnit.MILLISECONDS.toNanos(25)));
+    }
+
+    private String build(final String key) {
+        return key + builds.incrementAndGet();
+    }
+
+    private ClientCache<String, String> givenCache(int maxSize, long idleSeconds) {
+        return new ClientCache<>(maxSize, idleSeconds, nanos::get);
+    }
+}
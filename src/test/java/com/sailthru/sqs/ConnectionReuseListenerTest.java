@@ -0,0 +1,124 @@
+package com.sailthru.sqs;
+
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.List;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.greaterThanOrEqualTo;
+import static org.hamcrest.Matchers.is;
+
+public class ConnectionReuseListenerTest {
+    private MockWebServer server;
+    private ConnectionReuseListener listener;
+    private OkHttpClient client;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        server = new MockWebServer();
+        server.start();
+        listener = new ConnectionReuseListener();
+        client = new OkHttpClient.Builder().eventListener(listener).build();
+    }
+
+    @AfterEach
+    void tearDown() throws IOException {
+        server.shutdown();
+    }
+
+    @Test
+    void givenSequentialCallsThenConnectionIsReused() throws IOException {
+        call();
+        call();
+        call();
+
+        final ConnectionReuseListener.Stats stats = listener.drainStats();
+
+        assertThat(stats.acquired(), is(3L));
+        assertThat(stats.opened(), is(1L));
+        assertThat(stats.reuseRatio(), is(2.0 / 3));
+        assertThat(listener.drainStats().acquired(), is(0L));
+    }
+
+    @Test
+    void givenPoolKeepsNoIdleConnectionsThenEveryCallOpensOne() throws IOException {
+        client = ApiFactory.buildHttpClient(new ApiFactory.HttpSettings(0, 300, 64, 5,
+            ApiFactory.HttpSettings.protocols("http/1.1"), 1000, 1000, 1000)).newBuilder()
+            .eventListener(listener)
+            .build();
+
+        call();
+        call();
+
+        final ConnectionReuseListener.Stats stats = listener.drainStats();
+        assertThat(stats.acquired(), is(2L));
+        assertThat(stats.opened(), is(2L));
+        assertThat(stats.reuseRatio(), is(0.0));
+    }
+
+    @Test
+    void givenFirstCallThenItIsTimedAndReportedOnce() throws IOException {
+        call();
+
+        assertThat(listener.drainStats().firstCallNanos(), is(greaterThan(0L)));
+        call();
+        assertThat(listener.drainStats().firstCallNanos(), is(-1L));
+    }
+
+    @Test
+    void givenRestoreThenNextCallIsTimedAgainSinceTheRestore() throws IOException {
+        call();
+        ConnectionReuseListener.Stats stats = listener.drainStats();
+        assertThat(stats.sinceRestoreNanos(), is(-1L));
+
+        final long restoredAt = System.nanoTime();
+        listener.restored(restoredAt);
+        call();
+
+        stats = listener.drainStats();
+        assertThat(stats.firstCallNanos(), is(greaterThan(0L)));
+        assertThat(stats.sinceRestoreNanos(), is(greaterThanOrEqualTo(stats.firstCallNanos())));
+        call();
+        assertThat(listener.drainStats().sinceRestoreNanos(), is(-1L));
+    }
+
+    @Test
+    void givenWarmUpCallThenItIsLeftOut() throws IOException {
+        server.enqueue(new MockResponse().setResponseCode(404));
+        new ConnectionWarmer(apiURL -> client, 1000, System::nanoTime)
+            .warmUp(List.of(server.url("/s2s/v2/").toString()));
+
+        ConnectionReuseListener.Stats stats = listener.drainStats();
+        assertThat(stats.acquired(), is(0L));
+        assertThat(stats.firstCallNanos(), is(-1L));
+
+        call();
+
+        stats = listener.drainStats();
+        assertThat(stats.acquired(), is(1L));
+        // the connection opened to warm up was reused
+        assertThat(stats.opened(), is(0L));
+        assertThat(stats.firstCallNanos(), is(greaterThan(0L)));
+    }
+
+    @Test
+    void givenNoCallsThenRatioIsOne() {
+        assertThat(listener.drainStats().reuseRatio(), is(1.0));
+    }
+
+    private void call() throws IOException {
+        server.enqueue(new MockResponse().setResponseCode(202));
+        try (Response response = client.newCall(new Request.Builder().url(server.url("/events")).build()).execute()) {
+            assertThat(response.code(), is(202));
+        }
+    }
+}
@@ -0,0 +1,107 @@
+package com.sailthru.sqs;
+
+import okhttp3.ConnectionPool;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+
+public class ConnectionWarmerTest {
+    private final AtomicLong nanos = new AtomicLong();
+    private MockWebServer server;
+    private OkHttpClient client;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        server = new MockWebServer();
+        server.start();
+        client = new OkHttpClient.Builder().connectionPool(new ConnectionPool()).build();
+    }
+
+    @AfterEach
+    void tearDown() throws IOException {
+        server.shutdown();
+    }
+
+    @Test
+    void givenEndpointThenConnectionIsLeftInThePoolForTheFirstSend() throws Exception {
+        server.enqueue(new MockResponse().setResponseCode(404));
+        server.enqueue(new MockResponse().setResponseCode(202));
+        final String apiURL = server.url("/s2s/v2/").toString();
+
+        final ConnectionWarmer.Report report = givenWarmer().warmUp(List.of(apiURL));
+
+        assertThat(report.endpoints(), is(1));
+        assertThat(report.connected(), is(1));
+        assertThat(client.connectionPool().idleConnectionCount(), is(1));
+        try (Response response = client.newCall(new Request.Builder().url(apiURL + "events").build()).execute()) {
+            assertThat(response.code(), is(202));
+        }
+        final RecordedRequest warmUp = server.takeRequest();
+        final RecordedRequest firstSend = server.takeRequest();
+        assertThat(warmUp.getMethod(), is(equalTo("HEAD")));
+        // second request on the same connection
+        assertThat(firstSend.getSequenceNumber(), is(1));
+    }
+
+    @Test
+    void givenUnreachableEndpointThenWarmUpCarriesOn() throws Exception {
+        final MockWebServer closed = new MockWebServer();
+        closed.start();
+        final String unreachable = closed.url("/s2s/v2/").toString();
+        closed.shutdown();
+        server.enqueue(new MockResponse().setResponseCode(404));
+
+        final ConnectionWarmer.Report report =
+            givenWarmer().warmUp(List.of(unreachable, server.url("/s2s/v2/").toString()));
+
+        assertThat(report.endpoints(), is(2));
+        assertThat(report.connected(), is(1));
+    }
+
+    @Test
+    void givenSameEndpointTwiceThenItIsConnectedOnceWithoutCredentials() throws Exception {
+        server.enqueue(new MockResponse().setResponseCode(401));
+        final String apiURL = server.url("/s2s/v2/").toString();
+
+        final ConnectionWarmer.Report report = new ConnectionWarmer(url -> client, 1000, () ->
+            nanos.getAndAdd(TimeUnit.MILLISECONDS.toNanos(5))).warmUp(List.of(apiURL, apiURL));
+
+        assertThat(report.endpoints(), is(1));
+        assertThat(report.connected(), is(1));
+        assertThat(report.durationNanos(), is(TimeUnit.MILLISECONDS.toNanos(5)));
+        assertThat(server.takeRequest().getHeader("Authorization"), is(nullValue()));
+    }
+
+    @Test
+    void givenEndpointListThenUrlsAreNormalized() {
+        assertThat(ConnectionWarmer.parseEndpoints("https://a.example.com/s2s/v2, ,https://b.example.com/"),
+            is(equalTo(List.of("https://a.example.com/s2s/v2/", "https://b.example.com/"))));
+        assertThat(ConnectionWarmer.parseEndpoints(""), is(equalTo(List.of())));
+    }
+
+    @Test
+    void givenHostListThenEachStandsForTheDefaultPathOnIt() {
+        assertThat(ConnectionWarmer.parseEndpoints(" s2s.us2.mparticle.com ,not a host"),
+            is(equalTo(List.of("https://s2s.us2.mparticle.com/s2s/v2/"))));
+    }
+
+    private ConnectionWarmer givenWarmer() {
+        return new ConnectionWarmer(apiURL -> client, 1000, nanos::get);
+    }
+}
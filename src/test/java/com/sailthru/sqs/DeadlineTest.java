@@ -0,0 +1,66 @@
+package com.sailthru.sqs;
+
+import com.amazonaws.services.lambda.runtime.Context;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.sameInstance;
+import static org.mockito.Mockito.when;
+
+@ExtendWith(MockitoExtension.class)
+public class DeadlineTest {
+    @Mock
+    private Context mockContext;
+
+    private final AtomicLong clock = new AtomicLong(1_000_000L);
+
+    @Test
+    void givenNoContextThenNoDeadline() {
+        final Deadline deadline = Deadline.fromContext(null, 2000, clock::get);
+
+        assertThat(deadline, is(sameInstance(Deadline.NONE)));
+        assertThat(deadline.isBounded(), is(false));
+        assertThat(deadline.isExpired(), is(false));
+        assertThat(deadline.remainingMillis(), is(Long.MAX_VALUE));
+    }
+
+    @Test
+    void givenUnknownRemainingTimeThenNoDeadline() {
+        when(mockContext.getRemainingTimeInMillis()).thenReturn(0);
+
+        assertThat(Deadline.fromContext(mockContext, 2000, clock::get), is(sameInstance(Deadline.NONE)));
+    }
+
+    @Test
+    void givenRemainingTimeThenSafetyMarginIsKeptInReserve() {
+        when(mockContext.getRemainingTimeInMillis()).thenReturn(5000);
+
+        final Deadline deadline = Deadline.fromContext(mockContext, 2000, clock::get);
+
+        assertThat(deadline.isBounded(), is(true));
+        assertThat(deadline.remainingMillis(), equalTo(3000L));
+        assertThat(deadline.isExpired(), is(false));
+
+        clock.addAndGet(TimeUnit.MILLISECONDS.toNanos(2999));
+        assertThat(deadline.remainingMillis(), equalTo(1L));
+        assertThat(deadline.isExpired(), is(false));
+
+        clock.addAndGet(TimeUnit.MILLISECONDS.toNanos(1));
+        assertThat(deadline.isExpired(), is(true));
+    }
+
+    @Test
+    void givenRemainingTimeBelowSafetyMarginThenAlreadyExpired() {
+        when(mockContext.getRemainingTimeInMillis()).thenReturn(1000);
+
+        assertThat(Deadline.fromContext(mockContext, 2000, clock::get).isExpired(), is(true));
+    }
+}
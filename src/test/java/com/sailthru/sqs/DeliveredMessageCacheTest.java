@@ -0,0 +1,144 @@
+package com.sailthru.sqs;
+
+import com.amazonaws.services.lambda.runtime.events.SQSEvent;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.notNullValue;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class DeliveredMessageCacheTest {
+    private final AtomicLong nanos = new AtomicLong();
+
+    @Test
+    void givenDeliveredMessageThenItIsFound() {
+        final DeliveredMessageCache testInstance = givenCache(10, false);
+        final DeliveredMessageCache.Fingerprint fingerprint = testInstance.fingerprint(givenMessage("id1", "body"));
+
+        assertFalse(testInstance.isDelivered(fingerprint));
+        testInstance.markDelivered(fingerprint);
+
+        assertTrue(testInstance.isDelivered(testInstance.fingerprint(givenMessage("id1", "body"))));
+        assertFalse(testInstance.isDelivered(testInstance.fingerprint(givenMessage("id2", "body"))));
+        assertThat(testInstance.drainHits(), is(1L));
+        assertThat(testInstance.drainMisses(), is(2L));
+        assertThat(testInstance.drainHits(), is(0L));
+    }
+
+    @Test
+    void givenTimeToLivePassedThenMessageIsForgotten() {
+        final DeliveredMessageCache testInstance = givenCache(10, false);
+        final DeliveredMessageCache.Fingerprint fingerprint = testInstance.fingerprint(givenMessage("id1", "body"));
+        testInstance.markDelivered(fingerprint);
+
+        nanos.addAndGet(TimeUnit.SECONDS.toNanos(60));
+
+        assertFalse(testInstance.isDelivered(fingerprint));
+    }
+
+    @Test
+    void givenExpiredEntriesThenTheyAreEvictedOnInsert() {
+        final DeliveredMessageCache testInstance = givenCache(10, false);
+        testInstance.markDelivered(testInstance.fingerprint(givenMessage("id1", "body")));
+        testInstance.markDelivered(testInstance.fingerprint(givenMessage("id2", "body")));
+
+        nanos.addAndGet(TimeUnit.SECONDS.toNanos(60));
+        testInstance.markDelivered(testInstance.fingerprint(givenMessage("id3", "body")));
+
+        assertThat(testInstance.size(), is(1));
+    }
+
+    @Test
+    void givenCacheFullThenOldestEntriesAreEvicted() {
+        final DeliveredMessageCache testInstance = givenCache(2, false);
+
+        for (int i = 1; i <= 3; i++) {
+            testInstance.markDelivered(testInstance.fingerprint(givenMessage("id" + i, "body")));
+        }
+
+        assertThat(testInstance.size(), is(2));
+        assertFalse(testInstance.isDelivered(testInstance.fingerprint(givenMessage("id1", "body"))));
+        assertTrue(testInstance.isDelivered(testInstance.fingerprint(givenMessage("id2", "body"))));
+        assertTrue(testInstance.isDelivered(testInstance.fingerprint(givenMessage("id3", "body"))));
+    }
+
+    @Test
+    void givenMessageDeliveredAgainThenItsNewerEntrySurvivesTheOldOne() {
+        final DeliveredMessageCache testInstance = givenCache(10, false);
+        final DeliveredMessageCache.Fingerprint fingerprint = testInstance.fingerprint(givenMessage("id1", "body"));
+        testInstance.markDelivered(fingerprint);
+        nanos.addAndGet(TimeUnit.SECONDS.toNanos(30));
+        testInstance.markDelivered(fingerprint);
+
+        nanos.addAndGet(TimeUnit.SECONDS.toNanos(45));
+        testInstance.markDelivered(testInstance.fingerprint(givenMessage("id2", "body")));
+
+        assertTrue(testInstance.isDelivered(fingerprint));
+    }
+
+    @Test
+    void givenContentHashingThenSameBodyIsFoundUnderAnotherId() {
+        final DeliveredMessageCache testInstance = givenCache(10, true);
+        testInstance.markDelivered(testInstance.fingerprint(givenMessage("id1", "body")));
+
+        assertTrue(testInstance.isDelivered(testInstance.fingerprint(givenMessage("id2", "body"))));
+        assertFalse(testInstance.isDelivered(testInstance.fingerprint(givenMessage("id3", "other body"))));
+    }
+
+    @Test
+    void givenNoContentHashingThenBodyIsNotHashed() {
+        assertThat(givenCache(10, false).fingerprint(givenMessage("id1", "body")).contentHash(), is(nullValue()));
+        assertThat(givenCache(10, true).fingerprint(givenMessage("id1", "body")).contentHash(), is(notNullValue()));
+    }
+
+    @Test
+    void givenDisabledThenNothingIsRemembered() {
+        final DeliveredMessageCache testInstance = DeliveredMessageCache.disabled();
+        final DeliveredMessageCache.Fingerprint fingerprint = testInstance.fingerprint(givenMessage("id1", "body"));
+        testInstance.markDelivered(fingerprint);
+
+        assertFalse(testInstance.isDelivered(fingerprint));
+        assertThat(testInstance.drainMisses(), is(0L));
+    }
+
+    @Test
+    void givenMemoryCapThenEntriesAreBoundedByIt() {
+        assertThat(DeliveredMessageCache.withMemoryCap(1, 60, false).getMaxEntries(),
+            is(1024 * 1024 / DeliveredMessageCache.ESTIMATED_ENTRY_BYTES));
+    }
+
+    @Test
+    void givenContentHashingThenEveryMessageTakesTwoEntries() {
+        final DeliveredMessageCache testInstance = givenCache(10, true);
+        testInstance.markDelivered(testInstance.fingerprint(givenMessage("id1", "body")));
+
+        assertThat(testInstance.size(), is(2));
+        assertThat(testInstance.getMaxMessages(), is(5));
+        assertThat(givenCache(10, false).getMaxMessages(), is(10));
+    }
+
+    @Test
+    void givenNoFingerprintThenNothingIsRemembered() {
+        final DeliveredMessageCache testInstance = givenCache(10, false);
+        testInstance.markDelivered(null);
+
+        assertThat(testInstance.size(), is(0));
+    }
+
+    private DeliveredMessageCache givenCache(int maxEntries, boolean contentHashing) {
+        return new DeliveredMessageCache(maxEntries, TimeUnit.SECONDS.toMillis(60), contentHashing, nanos::get);
+    }
+
+    private static SQSEvent.SQSMessage givenMessage(String messageId, String body) {
+        final SQSEvent.SQSMessage sqsMessage = new SQSEvent.SQSMessage();
+        sqsMessage.setMessageId(messageId);
+        sqsMessage.setBody(body);
+        return sqsMessage;
+    }
+}
@@ -0,0 +1,189 @@
+package com.sailthru.sqs;
+
+import com.mparticle.model.Batch;
+import com.sailthru.sqs.exception.RetryLaterException;
+import com.sailthru.sqs.message.MParticleEventName;
+import com.sailthru.sqs.message.MParticleEventType;
+import com.sailthru.sqs.message.MParticleOutgoingMessage;
+import okhttp3.OkHttpClient;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import org.junit.jupiter.api.Test;
+
+import java.time.Clock;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.not;
+import static org.hamcrest.Matchers.sameInstance;
+import static org.junit.jupiter.api.Assertions.assertDoesNotThrow;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+public class EndpointBulkheadTest {
+    private final AtomicLong nanos = new AtomicLong();
+    private final OkHttpClient commonClient = new OkHttpClient.Builder()
+        .addInterceptor(chain -> chain.proceed(chain.request()))
+        .build();
+
+    @Test
+    void givenEndpointsThenEachHasItsOwnPoolAndDispatcher() {
+        final EndpointBulkhead first = givenBulkhead("https://a.example.com/", 4, 0);
+        final EndpointBulkhead second = givenBulkhead("https://b.example.com/", 4, 0);
+
+        assertThat(first.client().connectionPool(), is(not(sameInstance(second.client().connectionPool()))));
+        assertThat(first.client().connectionPool(), is(not(sameInstance(commonClient.connectionPool()))));
+        assertThat(first.client().dispatcher(), is(not(sameInstance(second.client().dispatcher()))));
+        assertThat(first.client().dispatcher().getMaxRequestsPerHost(), is(4));
+        // and otherwise behaves like the common client
+        assertThat(first.client().interceptors(), is(commonClient.interceptors()));
+    }
+
+    @Test
+    void givenCallTimeoutThenClientHasIt() {
+        final EndpointBulkhead bulkhead = new EndpointBulkhead("https://a.example.com/",
+            new EndpointBulkhead.Settings(4, 0, 1500), commonClient, nanos::get);
+
+        assertThat(bulkhead.client().callTimeoutMillis(), is(1500));
+    }
+
+    @Test
+    void givenAllPermitsTakenThenCallIsRejected() throws RetryLaterException {
+        final EndpointBulkhead bulkhead = givenBulkhead("https://a.example.com/", 1, 0);
+        final EndpointBulkhead.Permit permit = bulkhead.acquire(Deadline.NONE);
+
+        final RetryLaterException exception =
+            assertThrows(RetryLaterException.class, () -> bulkhead.acquire(Deadline.NONE));
+
+        assertThat(exception.getMessage(), containsString("https://a.example.com/"));
+        permit.close();
+        assertDoesNotThrow(() -> bulkhead.acquire(Deadline.NONE).close());
+    }
+
+    @Test
+    void givenPermitReleasedTwiceThenOnlyOnePermitIsReturned() throws RetryLaterException {
+        final EndpointBulkhead bulkhead = givenBulkhead("https://a.example.com/", 1, 0);
+        final EndpointBulkhead.Permit permit = bulkhead.acquire(Deadline.NONE);
+
+        permit.close();
+        permit.close();
+
+        bulkhead.acquire(Deadline.NONE);
+        assertThrows(RetryLaterException.class, () -> bulkhead.acquire(Deadline.NONE));
+    }
+
+    @Test
+    void givenCallsThenLatencyAndSaturationAreReported() throws RetryLaterException {
+        final EndpointBulkhead bulkhead = givenBulkhead("https://a.example.com/", 2, 0);
+        final EndpointBulkhead.Permit first = bulkhead.acquire(Deadline.NONE);
+        final EndpointBulkhead.Permit second = bulkhead.acquire(Deadline.NONE);
+        nanos.addAndGet(TimeUnit.MILLISECONDS.toNanos(10));
+        first.close();
+        nanos.addAndGet(TimeUnit.MILLISECONDS.toNanos(20));
+        second.close();
+        bulkhead.acquire(Deadline.NONE);
+        bulkhead.acquire(Deadline.NONE);
+        assertThrows(RetryLaterException.class, () -> bulkhead.acquire(Deadline.NONE));
+
+        EndpointBulkhead.BULKHEADS.get("https://a.example.com/", url -> bulkhead);
+        try {
+            final EndpointBulkhead.Snapshot snapshot = EndpointBulkhead.drainSnapshots().stream()
+                .filter(s -> s.apiURL().equals("https://a.example.com/"))
+                .findFirst()
+                .orElseThrow();
+
+            assertThat(snapshot.calls(), is(2L));
+            assertThat(snapshot.rejected(), is(1L));
+            assertThat(snapshot.averageLatencyMillis(), is(20.0));
+            assertThat(snapshot.maxLatencyMillis(), is(30.0));
+            assertThat(snapshot.saturation(), is(1.0));
+        } finally {
+            EndpointBulkhead.BULKHEADS.clear();
+        }
+    }
+
+    @Test
+    void givenApiURLWithPathAndQueryThenSnapshotIsReportedUnderItsHost() throws RetryLaterException {
+        final EndpointBulkhead bulkhead = givenBulkhead("https://s2s.us2.mparticle.com/s2s/v2/?tenant=1", 1, 0);
+        bulkhead.acquire(Deadline.NONE).close();
+
+        EndpointBulkhead.BULKHEADS.get("https://s2s.us2.mparticle.com/s2s/v2/?tenant=1", url -> bulkhead);
+        try {
+            final EndpointBulkhead.Snapshot snapshot = EndpointBulkhead.drainSnapshots().get(0);
+
+            assertThat(snapshot.host(), is("s2s.us2.mparticle.com"));
+        } finally {
+            EndpointBulkhead.BULKHEADS.clear();
+        }
+    }
+
+    @Test
+    void givenBulkheadEvictedThenItsDispatcherAndConnectionsAreShutDown() {
+        final List<EndpointBulkhead> evicted = new ArrayList<>();
+        final ClientCache<String, EndpointBulkhead> bulkheads = new ClientCache<>(1, 3600, nanos::get, bulkhead -> {
+            evicted.add(bulkhead);
+            bulkhead.shutdown();
+        });
+        final EndpointBulkhead first = bulkheads.get("https://a.example.com/", url -> givenBulkhead(url, 4, 0));
+        nanos.addAndGet(TimeUnit.SECONDS.toNanos(2));
+
+        bulkheads.get("https://b.example.com/", url -> givenBulkhead(url, 4, 0));
+
+        assertThat(evicted, is(List.of(first)));
+        assertThat(first.client().dispatcher().executorService().isShutdown(), is(true));
+        assertThat(first.client().connectionPool().connectionCount(), is(0));
+    }
+
+    @Test
+    void givenSlowEndpointThenCallsToOtherEndpointsAreNotHeldUp() throws Exception {
+        final MockWebServer slow = new MockWebServer();
+        final MockWebServer healthy = new MockWebServer();
+        slow.start();
+        healthy.start();
+        try {
+            final String slowURL = slow.url("/").toString();
+            final String healthyURL = healthy.url("/").toString();
+            final Map<String, EndpointBulkhead> bulkheads = Map.of(
+                slowURL, givenBulkhead(slowURL, 1, 0),
+                healthyURL, givenBulkhead(healthyURL, 1, 0));
+            final MParticleClient client = new MParticleClient(null, Batch.Environment.DEVELOPMENT,
+                new ThrottleRegistry(Clock.systemUTC()), TenantRateLimiter.unlimited(), null,
+                new S2STransport(new OkHttpClient()), bulkheads::get);
+            slow.enqueue(new MockResponse().setResponseCode(202).setHeadersDelay(2, TimeUnit.SECONDS));
+            healthy.enqueue(new MockResponse().setResponseCode(202));
+
+            final CompletableFuture<Void> stuck = CompletableFuture.runAsync(() ->
+                assertDoesNotThrow(() -> client.submit(givenMessage(slowURL))));
+            slow.takeRequest();
+
+            // the slow endpoint has no permit left, the healthy one is untouched
+            assertThrows(RetryLaterException.class, () -> client.submit(givenMessage(slowURL)));
+            assertDoesNotThrow(() -> client.submit(givenMessage(healthyURL)));
+            stuck.get(10, TimeUnit.SECONDS);
+        } finally {
+            slow.shutdown();
+            healthy.shutdown();
+        }
+    }
+
+    private EndpointBulkhead givenBulkhead(final String apiURL, final int maxInFlight, final int maxQueueMillis) {
+        return new EndpointBulkhead(apiURL, new EndpointBulkhead.Settings(maxInFlight, maxQueueMillis, 0),
+            commonClient, nanos::get);
+    }
+
+    private static MParticleOutgoingMessage givenMessage(final String apiURL) {
+        final MParticleOutgoingMessage message = new MParticleOutgoingMessage();
+        message.setAuthenticationKey("key");
+        message.setAuthenticationSecret("secret");
+        message.setApiURL(apiURL);
+        message.setEvents(List.of(new MParticleOutgoingMessage.Event(MParticleEventName.EMAIL_OPEN,
+            MParticleEventType.OTHER, Map.of())));
+        return message;
+    }
+}
@@ -0,0 +1,127 @@
+package com.sailthru.sqs;
+
+import okhttp3.MediaType;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import okhttp3.Response;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+import okio.Buffer;
+import okio.GzipSource;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThan;
+import static org.hamcrest.Matchers.nullValue;
+
+public class GzipRequestInterceptorTest {
+    private static final MediaType JSON = MediaType.parse("application/json");
+
+    private final AtomicLong cpuClock = new AtomicLong();
+    private MockWebServer server;
+    private GzipRequestInterceptor interceptor;
+    private OkHttpClient client;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        server = new MockWebServer();
+        server.start();
+        // every reading of the clock advances it by 1ms
+        interceptor = new GzipRequestInterceptor(100, 6, () -> cpuClock.getAndAdd(1_000_000));
+        client = new OkHttpClient.Builder().addInterceptor(interceptor).build();
+    }
+
+    @AfterEach
+    void tearDown() throws IOException {
+        server.shutdown();
+    }
+
+    @Test
+    void givenBodyAboveThresholdThenCompressedBodyRoundTripsExactly() throws Exception {
+        final String json = repetitiveJson(200);
+
+        final RecordedRequest request = post(RequestBody.create(JSON, json));
+
+        assertThat(request.getHeader("Content-Encoding"), is(equalTo("gzip")));
+        assertThat(request.getBodySize(), is(lessThan((long) json.length())));
+        assertThat(gunzip(request.getBody()), is(equalTo(json)));
+    }
+
+    @Test
+    void givenStreamedBulkBodyThenCompressedBodyRoundTripsExactly() throws Exception {
+        final List<EncodedBatch> batches = List.of(
+            new EncodedBatch(repetitiveJson(50).getBytes(StandardCharsets.UTF_8)),
+            new EncodedBatch(repetitiveJson(80).getBytes(StandardCharsets.UTF_8)));
+
+        final RecordedRequest request = post(EncodedBatch.toBulkRequestBody(batches));
+
+        assertThat(request.getHeader("Content-Encoding"), is(equalTo("gzip")));
+        assertThat(gunzip(request.getBody()), is(equalTo("[" + batches.get(0) + "," + batches.get(1) + "]")));
+    }
+
+    @Test
+    void givenBodyBelowThresholdThenSentAsIs() throws Exception {
+        final RecordedRequest request = post(RequestBody.create(JSON, "{\"small\":true}"));
+
+        assertThat(request.getHeader("Content-Encoding"), is(nullValue()));
+        assertThat(request.getBody().readUtf8(), is(equalTo("{\"small\":true}")));
+        assertThat(interceptor.drainStats().requests(), is(0L));
+    }
+
+    @Test
+    void givenCompressedRequestsThenStatsAreReportedAndDrained() throws Exception {
+        final String json = repetitiveJson(200);
+        post(RequestBody.create(JSON, json));
+        post(RequestBody.create(JSON, json));
+
+        final GzipRequestInterceptor.Stats stats = interceptor.drainStats();
+
+        assertThat(stats.requests(), is(2L));
+        assertThat(stats.uncompressedBytes(), is(2L * json.length()));
+        assertThat(stats.ratio(), is(lessThan(0.5)));
+        assertThat(stats.compressionNanos(), is(2_000_000L));
+        assertThat(interceptor.drainStats().requests(), is(0L));
+    }
+
+    private RecordedRequest post(final RequestBody body) throws Exception {
+        server.enqueue(new MockResponse().setResponseCode(202));
+        try (Response response = client.newCall(new Request.Builder().url(server.url("/events")).post(body).build())
+            .execute()) {
+            assertThat(response.code(), is(202));
+        }
+        return server.takeRequest();
+    }
+
+    private static String gunzip(final Buffer body) throws IOException {
+        final Buffer plain = new Buffer();
+        try (GzipSource source = new GzipSource(body)) {
+            while (source.read(plain, 8192) != -1) {
+                // keep reading
+            }
+        }
+        return plain.readUtf8();
+    }
+
+    private static String repetitiveJson(final int events) {
+        final StringBuilder json = new StringBuilder("{\"events\":[");
+        for (int i = 0; i < events; i++) {
+            if (i > 0) {
+                json.append(',');
+            }
+            json.append("{\"event_type\":\"custom_event\",\"data\":{\"custom_attributes\":{\"list_id\":\"")
+                .append(i).append("\"}}}");
+        }
+        return json.append("]}").toString();
+    }
+}
@@ -0,0 +1,201 @@
+package com.sailthru.sqs;
+
+import com.amazonaws.services.lambda.runtime.Context;
+import com.amazonaws.services.lambda.runtime.RequestHandler;
+import com.amazonaws.services.lambda.runtime.events.SQSBatchResponse;
+import com.amazonaws.services.lambda.runtime.events.SQSEvent;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.net.http.HttpClient;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.allOf;
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.hasEntry;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+public class LambdaRuntimeTest {
+    private static final String EVENT = "{\"Records\":[{\"messageId\":\"message-1\",\"receiptHandle\":\"handle-1\","
+        + "\"body\":\"{\\\"clientId\\\":1}\",\"attributes\":{\"ApproximateReceiveCount\":\"2\"},"
+        + "\"messageAttributes\":{\"ignored\":{\"stringValue\":\"x\",\"dataType\":\"String\"}},"
+        + "\"md5OfBody\":\"md5\",\"eventSource\":\"aws:sqs\","
+        + "\"eventSourceARN\":\"arn:aws:sqs:us-east-1:000000000000:queue\",\"awsRegion\":\"us-east-1\"}]}";
+
+    private MockWebServer runtimeApi;
+    private LambdaRuntime runtime;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        runtimeApi = new MockWebServer();
+        runtimeApi.start();
+        runtime = new LambdaRuntime(runtimeApi.getHostName() + ":" + runtimeApi.getPort(),
+            HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1).build(),
+            Map.of("AWS_LAMBDA_FUNCTION_NAME", "mparticle-outgoing", "AWS_LAMBDA_FUNCTION_MEMORY_SIZE", "512"));
+    }
+
+    @AfterEach
+    void tearDown() throws IOException {
+        runtimeApi.shutdown();
+    }
+
+    @Test
+    void givenInvocationThenHandlerResponseIsPosted() throws Exception {
+        final long deadline = System.currentTimeMillis() + 60_000;
+        givenInvocation("req-1", deadline);
+        final AtomicReference<SQSEvent> handled = new AtomicReference<>();
+        final AtomicReference<Context> handledContext = new AtomicReference<>();
+
+        runtime.next((event, context) -> {
+            handled.set(event);
+            handledContext.set(context);
+            return new SQSBatchResponse(List.of(new SQSBatchResponse.BatchItemFailure("message-1")));
+        });
+
+        assertThat(takeRequest().getPath(), is(equalTo("/2018-06-01/runtime/invocation/next")));
+        final RecordedRequest response = takeRequest();
+        assertThat(response.getPath(), is(equalTo("/2018-06-01/runtime/invocation/req-1/response")));
+        assertThat(response.getBody().readUtf8(),
+            is(equalTo("{\"batchItemFailures\":[{\"itemIdentifier\":\"message-1\"}]}")));
+
+        final SQSEvent.SQSMessage message = handled.get().getRecords().get(0);
+        assertThat(message.getMessageId(), is(equalTo("message-1")));
+        assertThat(message.getBody(), is(equalTo("{\"clientId\":1}")));
+        final Context context = handledContext.get();
+        assertThat(context.getAwsRequestId(), is(equalTo("req-1")));
+        assertThat(context.getInvokedFunctionArn(), is(equalTo("arn:aws:lambda:us-east-1:000000000000:function:f")));
+        assertThat(context.getFunctionName(), is(equalTo("mparticle-outgoing")));
+        assertThat(context.getMemoryLimitInMB(), is(512));
+        assertThat(context.getRemainingTimeInMillis(), is(allOf(greaterThan(0), lessThanOrEqualTo(60_000))));
+    }
+
+    @Test
+    void givenHandlerFailingThenInvocationErrorIsPosted() throws Exception {
+        givenInvocation("req-2", 0);
+        final RequestHandler<SQSEvent, SQSBatchResponse> failing = (event, context) -> {
+            throw new IllegalStateException("Broken");
+        };
+
+        runtime.next(failing);
+
+        takeRequest();
+        final RecordedRequest error = takeRequest();
+        assertThat(error.getPath(), is(equalTo("/2018-06-01/runtime/invocation/req-2/error")));
+        assertThat(error.getHeader("Lambda-Runtime-Function-Error-Type"),
+            is(equalTo("Runtime.UnhandledException")));
+        assertThat(error.getBody().readUtf8(), is(allOf(containsString("\"errorMessage\":\"Broken\""),
+            containsString("\"errorType\":\"java.lang.IllegalStateException\""))));
+    }
+
+    @Test
+    void givenHandlerThrowingErrorThenInvocationErrorIsPostedBeforeTheRuntimeEnds() throws Exception {
+        givenInvocation("req-4", 0);
+        final RequestHandler<SQSEvent, SQSBatchResponse> failing = (event, context) -> {
+            throw new OutOfMemoryError("Java heap space");
+        };
+
+        assertThrows(OutOfMemoryError.class, () -> runtime.next(failing));
+
+        takeRequest();
+        final RecordedRequest error = takeRequest();
+        assertThat(error.getPath(), is(equalTo("/2018-06-01/runtime/invocation/req-4/error")));
+        assertThat(error.getBody().readUtf8(), containsString("\"errorType\":\"java.lang.OutOfMemoryError\""));
+    }
+
+    @Test
+    void givenHandlerNotInitializedThenInitErrorIsPosted() throws Exception {
+        runtimeApi.enqueue(new MockResponse().setResponseCode(202));
+
+        final RequestHandler<SQSEvent, SQSBatchResponse> handler = runtime.initialize(() -> {
+            throw new ExceptionInInitializerError("Broken");
+        });
+
+        assertThat(handler, is(nullValue()));
+        final RecordedRequest error = takeRequest();
+        assertThat(error.getPath(), is(equalTo("/2018-06-01/runtime/init/error")));
+        assertThat(error.getHeader("Lambda-Runtime-Function-Error-Type"), is(equalTo("Runtime.InitError")));
+        assertThat(error.getBody().readUtf8(), is(allOf(containsString("\"errorMessage\":\"Broken\""),
+            containsString("\"errorType\":\"java.lang.ExceptionInInitializerError\""))));
+    }
+
+    @Test
+    void givenNoDeadlineThenRemainingTimeIsUnknown() throws Exception {
+        givenInvocation("req-3", 0);
+        final AtomicReference<Context> handledContext = new AtomicReference<>();
+
+        runtime.next((event, context) -> {
+            handledContext.set(context);
+            return new SQSBatchResponse(List.of());
+        });
+
+        assertThat(handledContext.get().getRemainingTimeInMillis(), is(0));
+    }
+
+    @Test
+    void givenNoRequestIdThenRuntimeEnds() {
+        runtimeApi.enqueue(new MockResponse().setResponseCode(500));
+
+        assertThrows(IOException.class, () -> runtime.next((event, context) -> new SQSBatchResponse(List.of())));
+    }
+
+    @Test
+    void givenEventThenEveryUsedFieldIsRead() throws IOException {
+        final SQSEvent event = LambdaRuntime.readEvent(EVENT.getBytes(StandardCharsets.UTF_8));
+
+        assertThat(event.getRecords().size(), is(1));
+        final SQSEvent.SQSMessage message = event.getRecords().get(0);
+        assertThat(message.getReceiptHandle(), is(equalTo("handle-1")));
+        assertThat(message.getAttributes(), hasEntry("ApproximateReceiveCount", "2"));
+        assertThat(message.getMessageAttributes(), is(nullValue()));
+        assertThat(message.getMd5OfBody(), is(equalTo("md5")));
+        assertThat(message.getEventSource(), is(equalTo("aws:sqs")));
+        assertThat(message.getEventSourceArn(), is(equalTo("arn:aws:sqs:us-east-1:000000000000:queue")));
+        assertThat(message.getAwsRegion(), is(equalTo("us-east-1")));
+    }
+
+    @Test
+    void givenNoRecordsThenEventIsEmpty() throws IOException {
+        final SQSEvent event = LambdaRuntime.readEvent("{\"other\":{\"Records\":[]}}".getBytes(StandardCharsets.UTF_8));
+
+        assertThat(event.getRecords().size(), is(0));
+    }
+
+    @Test
+    void givenEnvironmentThenHandlerIsInitializedLazily() {
+        final Map<String, String> env = LambdaRuntime.handlerEnvironment(Map.of("SQS_URL", "queue"));
+
+        assertThat(env, hasEntry(SQSLambdaHandler.LAZY_INIT_KEY, "1"));
+        assertThat(env, hasEntry("SQS_URL", "queue"));
+    }
+
+    private void givenInvocation(final String requestId, final long deadline) {
+        final MockResponse invocation = new MockResponse()
+            .setHeader(LambdaRuntime.REQUEST_ID_HEADER, requestId)
+            .setHeader(LambdaRuntime.FUNCTION_ARN_HEADER, "arn:aws:lambda:us-east-1:000000000000:function:f")
+            .setBody(EVENT);
+        if (deadline > 0) {
+            invocation.setHeader(LambdaRuntime.DEADLINE_HEADER, deadline);
+        }
+        runtimeApi.enqueue(invocation);
+        runtimeApi.enqueue(new MockResponse().setResponseCode(202));
+    }
+
+    private RecordedRequest takeRequest() throws InterruptedException {
+        return runtimeApi.takeRequest(5, TimeUnit.SECONDS);
+    }
+}
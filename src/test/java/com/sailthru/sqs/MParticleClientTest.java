@@ -1,15 +1,24 @@
 package com.sailthru.sqs;
 
+import com.amazonaws.services.lambda.runtime.Context;
+import com.amazonaws.services.lambda.runtime.events.SQSEvent;
 import com.fasterxml.jackson.databind.ObjectMapper;
-import com.mparticle.client.EventsApi;
 import com.mparticle.model.Batch;
 import com.mparticle.model.CustomEvent;
 import com.mparticle.model.CustomEventData;
 import com.mparticle.model.UserIdentities;
 import com.sailthru.sqs.exception.NoRetryException;
+import com.sailthru.sqs.exception.PayloadTooLargeException;
 import com.sailthru.sqs.exception.RetryLaterException;
 import com.sailthru.sqs.message.MParticleEventName;
 import com.sailthru.sqs.message.MParticleOutgoingMessage;
+import okhttp3.Headers;
+import okhttp3.OkHttpClient;
+import okhttp3.RequestBody;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okio.Buffer;
+import okio.Timeout;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.ExtendWith;
@@ -22,37 +31,56 @@ import retrofit2.Response;
 
 import java.io.IOException;
 import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Paths;
+import java.time.Clock;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
 
 import static com.mparticle.model.CustomEvent.EventTypeEnum.CUSTOM_EVENT;
 import static com.sailthru.sqs.MParticleClient.DEFAULT_BASE_URL;
+import static com.sailthru.sqs.MParticleClient.PAYLOAD_TOO_LARGE;
 import static com.sailthru.sqs.MParticleClient.TOO_MANY_REQUESTS;
 import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.both;
+import static org.hamcrest.Matchers.containsString;
 import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.greaterThan;
 import static org.hamcrest.Matchers.hasEntry;
+import static org.hamcrest.Matchers.instanceOf;
 import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+import static org.junit.jupiter.api.Assertions.assertDoesNotThrow;
 import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.junit.jupiter.api.Assertions.fail;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.anyString;
 import static org.mockito.Mockito.lenient;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyNoInteractions;
 import static org.mockito.Mockito.when;
 
 @ExtendWith(MockitoExtension.class)
 public class MParticleClientTest {
     private MParticleClient testInstance;
+    private ThrottleRegistry throttleRegistry;
 
     @Mock
     private ApiFactory mockApiFactory;
 
     @Mock
-    private EventsApi mockEventsApi;
+    private EncodedEventsApi mockEventsApi;
 
     @Captor
-    private ArgumentCaptor<Batch> batchCaptor;
+    private ArgumentCaptor<RequestBody> bodyCaptor;
 
     @Mock
     private Call<Void> mockCall;
@@ -62,10 +90,13 @@ public class MParticleClientTest {
 
     @BeforeEach
     void setUp() throws Exception {
-        when(mockApiFactory.of(anyString(), anyString(), anyString())).thenReturn(mockEventsApi);
-        when(mockEventsApi.uploadEvents(any(Batch.class))).thenReturn(mockCall);
-        when(mockCall.execute()).thenReturn(mockResponse);
-        testInstance = new MParticleClient(mockApiFactory, Batch.Environment.DEVELOPMENT);
+        lenient().when(mockApiFactory.of(anyString(), anyString(), anyString())).thenReturn(mockEventsApi);
+        lenient().when(mockApiFactory.of(any(ApiFactory.ClientApiDetails.class))).thenReturn(mockEventsApi);
+        lenient().when(mockEventsApi.uploadEvents(any(RequestBody.class))).thenReturn(mockCall);
+        lenient().when(mockEventsApi.bulkUploadEvents(any())).thenReturn(mockCall);
+        lenient().when(mockCall.execute()).thenReturn(mockResponse);
+        throttleRegistry = new ThrottleRegistry(Clock.systemUTC());
+        testInstance = new MParticleClient(mockApiFactory, Batch.Environment.DEVELOPMENT, throttleRegistry);
     }
 
     @Test
@@ -107,6 +138,19 @@ public class MParticleClientTest {
         assertThrows(RetryLaterException.class, () -> testInstance.submit(validMessageWithURL));
     }
 
+    @Test
+    void given413UnsuccessfulResponseThenPayloadTooLargeExceptionIsThrown() {
+        final MParticleOutgoingMessage validMessageWithURL = givenValidMessage("/messages/valid.json");
+
+        when(mockResponse.isSuccessful()).thenReturn(false);
+        when(mockResponse.code()).thenReturn(PAYLOAD_TOO_LARGE);
+
+        final PayloadTooLargeException exception = assertThrows(PayloadTooLargeException.class,
+            () -> testInstance.submit(validMessageWithURL));
+        assertThat(exception.getStatusCode(), is(PAYLOAD_TOO_LARGE));
+        assertThat(exception.getPayload(), is(validMessageWithURL));
+    }
+
     @Test
     void givenIOExceptionThenRetryLaterExceptionIsThrown() throws IOException {
         final MParticleOutgoingMessage validMessageWithURL = givenValidMessage("/messages/valid.json");
@@ -126,14 +170,16 @@ public class MParticleClientTest {
     }
 
     @Test
-    void givenValidMessageTheCorrectBatchIsSent() throws NoRetryException, RetryLaterException {
+    void givenValidMessageTheCorrectBatchIsSent() throws NoRetryException, RetryLaterException, IOException {
         final MParticleOutgoingMessage validMessageWithURL = givenValidMessage("/messages/valid.json");
 
         testInstance.submit(validMessageWithURL);
 
-        verify(mockEventsApi).uploadEvents(batchCaptor.capture());
+        verify(mockEventsApi).uploadEvents(bodyCaptor.capture());
+
+        final Batch result = validMessageWithURL.toBatch(Batch.Environment.DEVELOPMENT);
+        assertThat(bodyOf(bodyCaptor.getValue()), is(equalTo(BatchEncoder.encode(result).toString())));
 
-        final Batch result = batchCaptor.getValue();
         final UserIdentities userIdentities = result.getUserIdentities();
         assertThat(userIdentities.getEmail(), is(equalTo("REDACTED@gmail.com")));
         assertThat(result.getEvents().size(), is(2));
@@ -213,6 +259,253 @@ public class MParticleClientTest {
         verify(mockApiFactory).of("test_key", "test_secret", httpbinUrl + "/?test");
     }
 
+    @Test
+    void given429ThenFollowingMessagesForSameKeySkipTheCall() throws IOException {
+        final MParticleOutgoingMessage message = givenValidMessage("/messages/valid.json");
+        when(mockResponse.isSuccessful()).thenReturn(false);
+        when(mockResponse.code()).thenReturn(TOO_MANY_REQUESTS);
+        when(mockResponse.headers()).thenReturn(Headers.of("Retry-After", "30"));
+
+        final RetryLaterException first = assertThrows(RetryLaterException.class, () -> testInstance.submit(message));
+        final RetryLaterException second = assertThrows(RetryLaterException.class, () -> testInstance.submit(message));
+
+        assertThat(first.getRetryAfter(), is(30L));
+        assertThat(second.getStatusCode(), is(TOO_MANY_REQUESTS));
+        assertThat(second.getRetryAfter(), is(both(greaterThan(0L)).and(lessThanOrEqualTo(30L))));
+        verify(mockCall, times(1)).execute();
+        assertThat(throttleRegistry.drainHits(), is(1L));
+        assertThat(throttleRegistry.drainSkips(), is(1L));
+    }
+
+    @Test
+    void given429ThenMessagesForOtherKeysAreStillSent() throws NoRetryException, RetryLaterException, IOException {
+        final MParticleOutgoingMessage throttled = givenValidMessage("/messages/valid.json");
+        final MParticleOutgoingMessage other = givenValidMessage("/messages/valid.json");
+        other.setAuthenticationKey("other_key");
+        throttleRegistry.recordThrottled(MParticleClient.apiDetailsOf(throttled), 30);
+
+        assertThrows(RetryLaterException.class, () -> testInstance.submit(throttled));
+        testInstance.submit(other);
+
+        verify(mockCall, times(1)).execute();
+        verify(mockApiFactory).of("other_key", "test_secret", "https://test_url.com/");
+    }
+
+    @Test
+    void givenDeadlineThenCallTimeoutIsBoundedByRemainingTime() throws NoRetryException, RetryLaterException {
+        final MParticleOutgoingMessage validMessage = givenValidMessage("/messages/valid.json");
+        final Timeout callTimeout = new Timeout();
+        when(mockCall.timeout()).thenReturn(callTimeout);
+        final Context context = mock(Context.class);
+        when(context.getRemainingTimeInMillis()).thenReturn(5000);
+
+        testInstance.submit(validMessage, Deadline.fromContext(context, 2000));
+
+        assertThat(callTimeout.timeoutNanos(), is(greaterThan(0L)));
+        assertThat(callTimeout.timeoutNanos(), is(lessThanOrEqualTo(TimeUnit.MILLISECONDS.toNanos(3000))));
+    }
+
+    @Test
+    void givenNoDeadlineThenCallTimeoutIsLeftAlone() throws NoRetryException, RetryLaterException {
+        final MParticleOutgoingMessage validMessage = givenValidMessage("/messages/valid.json");
+
+        testInstance.submit(validMessage, Deadline.NONE);
+
+        verify(mockCall, never()).timeout();
+    }
+
+    @Test
+    void givenMultipleMessagesThenSingleBulkUploadIsSent() throws NoRetryException, RetryLaterException, IOException {
+        final MParticleOutgoingMessage message1 = givenValidMessage("/messages/valid.json");
+        final MParticleOutgoingMessage message2 = givenValidMessage("/messages/valid.json");
+        message2.setProfileEmail("other@example.com");
+        final OutgoingRecord record1 = givenRecord(message1);
+        final OutgoingRecord record2 = givenRecord(message2);
+
+        testInstance.submitBulk(List.of(record1, record2), Deadline.NONE);
+
+        verify(mockApiFactory).of(new ApiFactory.ClientApiDetails("test_key", "test_secret", "https://test_url.com/"));
+        verify(mockEventsApi).bulkUploadEvents(bodyCaptor.capture());
+        final String body = bodyOf(bodyCaptor.getValue());
+        assertThat(body, is(equalTo("[" + record1.batch() + "," + record2.batch() + "]")));
+        assertThat(bodyCaptor.getValue().contentLength(), is((long) body.getBytes(StandardCharsets.UTF_8).length));
+        assertThat(record1.batch().toString(), containsString("REDACTED@gmail.com"));
+        assertThat(record2.batch().toString(), containsString("other@example.com"));
+        verify(mockEventsApi, never()).uploadEvents(any());
+    }
+
+    @Test
+    void given429BulkResponseThenRetryExceptionIsThrown() {
+        final MParticleOutgoingMessage message = givenValidMessage("/messages/valid.json");
+
+        when(mockResponse.isSuccessful()).thenReturn(false);
+        when(mockResponse.code()).thenReturn(TOO_MANY_REQUESTS);
+
+        assertThrows(RetryLaterException.class,
+            () -> testInstance.submitBulk(List.of(givenRecord(message), givenRecord(message)), Deadline.NONE));
+    }
+
+    @Test
+    void givenNoMessagesThenNoBulkUploadIsSent() throws NoRetryException, RetryLaterException {
+        testInstance.submitBulk(List.of(), Deadline.NONE);
+
+        verifyNoInteractions(mockApiFactory, mockEventsApi, mockCall);
+    }
+
+    @Test
+    void given429WithAdaptiveLimiterThenWorkspaceLimitIsReduced() {
+        final AdaptiveConcurrencyLimiter limiter = givenAdaptiveLimiter(8, 5000);
+        final MParticleOutgoingMessage message = givenValidMessage("/messages/valid.json");
+        when(mockResponse.isSuccessful()).thenReturn(false);
+        when(mockResponse.code()).thenReturn(TOO_MANY_REQUESTS);
+        when(mockResponse.headers()).thenReturn(Headers.of());
+
+        assertThrows(RetryLaterException.class, () -> testInstance.submit(message));
+
+        assertThat(limiter.getLimit(), is(4));
+    }
+
+    @Test
+    void givenNoConcurrencyPermitAvailableThenCallIsNotMade() throws RetryLaterException, IOException {
+        final AdaptiveConcurrencyLimiter limiter = givenAdaptiveLimiter(1, 0);
+        final MParticleOutgoingMessage message = givenValidMessage("/messages/valid.json");
+        limiter.acquire(Deadline.NONE);
+
+        assertThrows(RetryLaterException.class, () -> testInstance.submit(message));
+
+        verify(mockCall, never()).execute();
+    }
+
+    @Test
+    void givenTenantOverItsRateLimitThenCallIsNotMade() throws IOException {
+        final TenantRateLimiter rateLimiter = new TenantRateLimiter(
+            Map.of("key:test_key", new TenantRateLimiter.Limit(1, 1)), null, 0, () -> 0L, nanos -> { });
+        testInstance = new MParticleClient(mockApiFactory, Batch.Environment.DEVELOPMENT, throttleRegistry,
+            rateLimiter, null);
+        final MParticleOutgoingMessage message = givenValidMessage("/messages/valid.json");
+
+        assertDoesNotThrow(() -> testInstance.submit(message));
+        final RetryLaterException exception =
+            assertThrows(RetryLaterException.class, () -> testInstance.submit(message));
+
+        assertThat(exception.getRetryAfter(), is(1L));
+        verify(mockCall, times(1)).execute();
+        assertThat(rateLimiter.drainLimited(), is(1L));
+    }
+
+    @Test
+    void givenAsyncSubmissionAcceptedThenFutureCompletes() throws Exception {
+        final MockWebServer server = givenServer(new MockResponse().setResponseCode(202));
+        try {
+            final MParticleOutgoingMessage message = givenMessageTo(server);
+
+            final CompletableFuture<Void> sent =
+                testInstance.submitAsync(message, givenEncoded(message), Deadline.NONE);
+
+            assertThat(sent.get(10, TimeUnit.SECONDS), is(nullValue()));
+            assertThat(server.takeRequest().getPath(), is(equalTo("/events")));
+        } finally {
+            server.shutdown();
+        }
+    }
+
+    @Test
+    void givenAsyncSubmissionThrottledThenFollowingSubmissionsSkipTheCall() throws Exception {
+        final MockWebServer server = givenServer(new MockResponse().setResponseCode(TOO_MANY_REQUESTS)
+            .setHeader("Retry-After", "60"));
+        try {
+            final MParticleOutgoingMessage message = givenMessageTo(server);
+
+            final ExecutionException exception = assertThrows(ExecutionException.class, () ->
+                testInstance.submitAsync(message, givenEncoded(message), Deadline.NONE).get(10, TimeUnit.SECONDS));
+
+            assertThat(exception.getCause(), is(instanceOf(RetryLaterException.class)));
+            assertThat(((RetryLaterException) exception.getCause()).getRetryAfter(), is(60L));
+            assertThrows(RetryLaterException.class,
+                () -> testInstance.submitAsync(message, givenEncoded(message), Deadline.NONE));
+            assertThat(server.getRequestCount(), is(1));
+        } finally {
+            server.shutdown();
+        }
+    }
+
+    @Test
+    void givenAsyncSubmissionAnswered413ThenPayloadTooLargeExceptionIsReported() throws Exception {
+        final MockWebServer server = givenServer(new MockResponse().setResponseCode(PAYLOAD_TOO_LARGE));
+        try {
+            final MParticleOutgoingMessage message = givenMessageTo(server);
+
+            final ExecutionException exception = assertThrows(ExecutionException.class, () ->
+                testInstance.submitAsync(message, givenEncoded(message), Deadline.NONE).get(10, TimeUnit.SECONDS));
+
+            assertThat(exception.getCause(), is(instanceOf(PayloadTooLargeException.class)));
+        } finally {
+            server.shutdown();
+        }
+    }
+
+    @Test
+    void givenAsyncSubmissionCancelledThenCallIsCancelledAndPermitReleased() throws Exception {
+        final MockWebServer server = givenServer(new MockResponse().setResponseCode(202)
+            .setHeadersDelay(30, TimeUnit.SECONDS));
+        try {
+            final MParticleOutgoingMessage message = givenMessageTo(server);
+            final EndpointBulkhead bulkhead = new EndpointBulkhead(message.getApiURL(),
+                new EndpointBulkhead.Settings(1, 10_000, 0), new OkHttpClient(), System::nanoTime);
+            testInstance = new MParticleClient(null, Batch.Environment.DEVELOPMENT, throttleRegistry,
+                TenantRateLimiter.unlimited(), null, new S2STransport(bulkhead.client()), apiURL -> bulkhead);
+
+            final CompletableFuture<Void> sent =
+                testInstance.submitAsync(message, givenEncoded(message), Deadline.NONE);
+            server.takeRequest();
+            sent.cancel(true);
+
+            // only available once the callback has run for the cancelled call, long before the answer is due
+            assertDoesNotThrow(() -> bulkhead.acquire(Deadline.NONE).close());
+        } finally {
+            server.shutdown();
+        }
+    }
+
+    private MockWebServer givenServer(final MockResponse response) throws IOException {
+        final MockWebServer server = new MockWebServer();
+        server.start();
+        server.enqueue(response);
+        testInstance = new MParticleClient(null, Batch.Environment.DEVELOPMENT, throttleRegistry,
+            TenantRateLimiter.unlimited(), null, new S2STransport(new OkHttpClient()));
+        return server;
+    }
+
+    private MParticleOutgoingMessage givenMessageTo(final MockWebServer server) {
+        final MParticleOutgoingMessage message = givenValidMessage("/messages/valid.json");
+        message.setApiURL(server.url("/").toString());
+        return message;
+    }
+
+    private static EncodedBatch givenEncoded(final MParticleOutgoingMessage message) {
+        return BatchEncoder.encode(message.toBatch(Batch.Environment.DEVELOPMENT));
+    }
+
+    private AdaptiveConcurrencyLimiter givenAdaptiveLimiter(int initialLimit, int maxQueueMillis) {
+        final AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter(
+            new AdaptiveConcurrencyLimiter.Workspace("test_key", "https://test_url.com/"),
+            new AdaptiveConcurrencyLimiter.Settings(initialLimit, 64, maxQueueMillis), System::nanoTime);
+        testInstance = new MParticleClient(mockApiFactory, Batch.Environment.DEVELOPMENT, throttleRegistry,
+            TenantRateLimiter.unlimited(), details -> limiter);
+        return limiter;
+    }
+
+    private static OutgoingRecord givenRecord(final MParticleOutgoingMessage message) {
+        return new OutgoingRecord(new SQSEvent.SQSMessage(), message,
+            BatchEncoder.encode(message.toBatch(Batch.Environment.DEVELOPMENT)));
+    }
+
+    private static String bodyOf(final RequestBody body) throws IOException {
+        final Buffer buffer = new Buffer();
+        body.writeTo(buffer);
+        return buffer.readUtf8();
+    }
+
     private MParticleOutgoingMessage givenValidMessage(final String filePath) {
         lenient().when(mockResponse.isSuccessful()).thenReturn(true);
 
@@ -0,0 +1,114 @@
+package com.sailthru.sqs;
+
+import com.fasterxml.jackson.core.JsonParseException;
+import com.mparticle.model.Batch;
+import com.sailthru.sqs.exception.AuthenticationKeyNotProvidedException;
+import com.sailthru.sqs.exception.AuthenticationSecretNotProvidedException;
+import com.sailthru.sqs.message.MParticleEventName;
+import com.sailthru.sqs.message.MParticleEventType;
+import com.sailthru.sqs.message.MParticleOutgoingMessage;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Map;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+public class MessageDecoderTest {
+    private final MessageDecoder testInstance = new MessageDecoder();
+
+    @Test
+    void givenValidMessageThenDecodedAsDatabindWould() throws Exception {
+        final String body = Files.readString(Paths.get(getClass().getResource("/messages/valid.json").toURI()));
+
+        final MParticleOutgoingMessage decoded = testInstance.decode(body);
+        final MParticleOutgoingMessage expected = new MessageSerializer().deserialize(body,
+            MParticleOutgoingMessage.class);
+
+        assertThat(decoded.getAuthenticationKey(), is(equalTo(expected.getAuthenticationKey())));
+        assertThat(decoded.getAuthenticationSecret(), is(equalTo(expected.getAuthenticationSecret())));
+        assertThat(decoded.getApiURL(), is(equalTo(expected.getApiURL())));
+        assertThat(decoded.getProfileEmail(), is(equalTo(expected.getProfileEmail())));
+        assertThat(decoded.getTimestamp(), is(equalTo(expected.getTimestamp())));
+        assertThat(decoded.getEvents().size(), is(2));
+        for (int i = 0; i < 2; i++) {
+            assertThat(decoded.getEvents().get(i).getEventName(), is(expected.getEvents().get(i).getEventName()));
+            assertThat(decoded.getEvents().get(i).getEventType(), is(expected.getEvents().get(i).getEventType()));
+            assertThat(decoded.getEvents().get(i).getAdditionalData(),
+                is(equalTo(expected.getEvents().get(i).getAdditionalData())));
+        }
+        // and so they are sent the same way
+        assertThat(BatchEncoder.encode(decoded.toBatch(Batch.Environment.DEVELOPMENT)).toString(),
+            is(equalTo(BatchEncoder.encode(expected.toBatch(Batch.Environment.DEVELOPMENT)).toString())));
+    }
+
+    @Test
+    void givenEventsBeforeCredentialsThenEventsStillDecoded() throws Exception {
+        final MParticleOutgoingMessage message = testInstance.decode("{\"events\":[{\"eventName\":\"EMAIL_OPEN\","
+            + "\"eventType\":\"OTHER\",\"additionalData\":{\"list_id\":\"1\"}}],"
+            + "\"authenticationKey\":\"key\",\"authenticationSecret\":\"secret\"}");
+
+        assertThat(message.getEvents().size(), is(1));
+        assertThat(message.getEvents().get(0).getEventName(), is(MParticleEventName.EMAIL_OPEN));
+        assertThat(message.getEvents().get(0).getEventType(), is(MParticleEventType.OTHER));
+        assertThat(message.getEvents().get(0).getAdditionalData(), is(equalTo(Map.of("list_id", "1"))));
+    }
+
+    @Test
+    void givenUnknownPropertiesAndScalarsThenDecodedAsDatabindWould() throws Exception {
+        final MParticleOutgoingMessage message = testInstance.decode("{\"authenticationKey\":\"key\","
+            + "\"authenticationSecret\":\"secret\",\"unknown\":{\"nested\":[1,2]},\"clientId\":\"3386\","
+            + "\"profileMpId\":null,\"events\":[{\"eventName\":\"EMAIL_OPEN\",\"extra\":true,"
+            + "\"additionalData\":{\"count\":3}}]}");
+
+        assertThat(message.getClientId(), is(3386L));
+        assertThat(message.getProfileMpId(), is(nullValue()));
+        assertThat(message.getEvents().get(0).getEventType(), is(nullValue()));
+        assertThat(message.getEvents().get(0).getAdditionalData(), is(equalTo(Map.of("count", "3"))));
+    }
+
+    @Test
+    void givenNoAuthenticationKeyThenRejected() {
+        final AuthenticationKeyNotProvidedException exception = assertThrows(
+            AuthenticationKeyNotProvidedException.class,
+            () -> testInstance.decode(loadResourceFileContent("/messages/invalid1.json")));
+
+        assertThat(exception.getMessage(), is(equalTo("Authentication key not provided.")));
+    }
+
+    @Test
+    void givenNoAuthenticationSecretThenRejectedEvenIfEventsAreInvalid() {
+        // the events come first and are never read
+        assertThrows(AuthenticationSecretNotProvidedException.class,
+            () -> testInstance.decode("{\"events\":[{\"eventName\":\"NOT_AN_EVENT\"}],\"authenticationKey\":\"key\"}"));
+    }
+
+    @Test
+    void givenUnknownEventNameThenUnparseable() {
+        assertThrows(IOException.class, () -> testInstance.decode("{\"authenticationKey\":\"key\","
+            + "\"authenticationSecret\":\"secret\",\"events\":[{\"eventName\":\"NOT_AN_EVENT\"}]}"));
+    }
+
+    @Test
+    void givenNullEventThenUnparseable() {
+        assertThrows(JsonParseException.class, () -> testInstance.decode("{\"authenticationKey\":\"key\","
+            + "\"authenticationSecret\":\"secret\",\"events\":[{\"eventName\":\"EMAIL_OPEN\"},null]}"));
+    }
+
+    @Test
+    void givenMalformedJsonThenUnparseable() {
+        assertThrows(IOException.class, () -> testInstance.decode("{\"authenticationKey\":"));
+        assertThrows(IOException.class, () -> testInstance.decode("[]"));
+    }
+
+    private String loadResourceFileContent(final String path) throws IOException, URISyntaxException {
+        return Files.readString(Paths.get(getClass().getResource(path).toURI()));
+    }
+}
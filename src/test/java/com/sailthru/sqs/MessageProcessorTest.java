@@ -1,7 +1,9 @@
 package com.sailthru.sqs;
 
+import com.amazonaws.services.lambda.runtime.Context;
 import com.amazonaws.services.lambda.runtime.events.SQSEvent;
 import com.mparticle.model.Batch;
+import com.sailthru.sqs.exception.EventTooLargeException;
 import com.sailthru.sqs.exception.NoRetryException;
 import com.sailthru.sqs.exception.PayloadTooLargeException;
 import com.sailthru.sqs.exception.RetryLaterException;
@@ -20,14 +22,26 @@ import java.io.IOException;
 import java.net.URISyntaxException;
 import java.nio.file.Files;
 import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 
 import static org.hamcrest.MatcherAssert.assertThat;
 import static org.hamcrest.Matchers.equalTo;
 import static org.hamcrest.Matchers.greaterThan;
 import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.junit.jupiter.api.Assertions.fail;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.atLeast;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.verifyNoInteractions;
 import static org.mockito.Mockito.when;
@@ -45,6 +59,9 @@ public class MessageProcessorTest {
     @Captor
     private ArgumentCaptor<MParticleOutgoingMessage> messageCaptor;
 
+    @Captor
+    private ArgumentCaptor<EncodedBatch> batchCaptor;
+
     @BeforeEach
     void setUp() {
         testInstance.setMParticleClient(mockMParticleClient);
@@ -76,9 +93,15 @@ public class MessageProcessorTest {
 
         testInstance.process(mockSQSMessage);
 
-        verify(mockMParticleClient).submit(messageCaptor.capture());
+        verify(mockMParticleClient).submit(messageCaptor.capture(), batchCaptor.capture(), eq(Deadline.NONE));
 
         final MParticleOutgoingMessage message = messageCaptor.getValue();
+        final EncodedBatch sent = batchCaptor.getValue();
+        final long exactSize = BatchEncoder.measure(message.toBatch(Batch.Environment.DEVELOPMENT));
+        // a small message is only checked against its upper bound, and encoded for its exact size or once it's sent
+        assertThat((long) sent.size(), is(equalTo(exactSize)));
+        assertThat(sent.toString(),
+            is(equalTo(BatchEncoder.encode(message.toBatch(Batch.Environment.DEVELOPMENT)).toString())));
         assertThat(message.getAuthenticationKey(), is(equalTo("test_key")));
         assertThat(message.getAuthenticationSecret(), is(equalTo("test_secret")));
         assertThat(message.getEvents().size(), is(2));
@@ -97,12 +120,97 @@ public class MessageProcessorTest {
         givenTooLongMessage();
 
         PayloadTooLargeException exception = assertThrows(PayloadTooLargeException.class,
-            () -> testInstance.process(mockSQSMessage));
+            () -> testInstance.parse(mockSQSMessage));
         System.out.println(exception.getSize());
         assertThat(exception.getSize(), greaterThan(256 * 1024L));
         verifyNoInteractions(mockMParticleClient);
     }
 
+    @Test
+    void givenTooLargeMessageThenSentSplitInOrder() throws Exception {
+        final String json = givenTooLongMessage();
+
+        testInstance.process(mockSQSMessage);
+
+        verify(mockMParticleClient, atLeast(2))
+            .submit(messageCaptor.capture(), batchCaptor.capture(), eq(Deadline.NONE));
+        final MParticleOutgoingMessage original = new MessageDecoder().decode(json);
+        final List<Map<String, String>> sentEvents = new ArrayList<>();
+        for (int i = 0; i < messageCaptor.getAllValues().size(); i++) {
+            final MParticleOutgoingMessage part = messageCaptor.getAllValues().get(i);
+            assertThat(batchCaptor.getAllValues().get(i).size(), is(lessThanOrEqualTo(256 * 1024)));
+            assertThat(part.getAuthenticationKey(), is(equalTo(original.getAuthenticationKey())));
+            assertThat(part.getProfileEmail(), is(equalTo(original.getProfileEmail())));
+            assertThat(part.getTimestamp(), is(equalTo(original.getTimestamp())));
+            part.getEvents().forEach(event -> sentEvents.add(event.getAdditionalData()));
+        }
+        assertThat(sentEvents, is(equalTo(original.getEvents().stream()
+            .map(MParticleOutgoingMessage.Event::getAdditionalData)
+            .toList())));
+    }
+
+    @Test
+    void givenMParticleAnswers413ThenSentSplitInOrder() throws NoRetryException, RetryLaterException {
+        givenValidMessage();
+        doThrow(new PayloadTooLargeException(413, 1000, new MParticleOutgoingMessage()))
+            .doNothing()
+            .when(mockMParticleClient).submit(any(MParticleOutgoingMessage.class), any(EncodedBatch.class), any());
+
+        testInstance.process(mockSQSMessage);
+
+        verify(mockMParticleClient, times(3)).submit(messageCaptor.capture(), any(), eq(Deadline.NONE));
+        final List<MParticleOutgoingMessage> sent = messageCaptor.getAllValues();
+        assertThat(sent.get(1).getEvents().size(), is(1));
+        assertThat(sent.get(1).getEvents().get(0).getEventName(), is(MParticleEventName.EMAIL_SUBSCRIBE));
+        assertThat(sent.get(2).getEvents().size(), is(1));
+        assertThat(sent.get(2).getEvents().get(0).getEventName(), is(MParticleEventName.EMAIL_UNSUBSCRIBE));
+    }
+
+    @Test
+    void givenMParticleRejectsSingleEventAsTooLargeThenNotRetried() throws NoRetryException, RetryLaterException {
+        givenValidMessage();
+        doThrow(new PayloadTooLargeException(413, 1000, new MParticleOutgoingMessage()))
+            .when(mockMParticleClient).submit(any(MParticleOutgoingMessage.class), any(EncodedBatch.class), any());
+
+        final EventTooLargeException exception = assertThrows(EventTooLargeException.class,
+            () -> testInstance.process(mockSQSMessage));
+        assertThat(exception.getStatusCode(), is(413));
+    }
+
+    @Test
+    void givenSingleEventTooLargeThenNotRetriedNorSent() {
+        when(mockSQSMessage.getBody()).thenReturn("{\"authenticationKey\":\"key\",\"authenticationSecret\":\"secret\","
+            + "\"events\":[{\"eventName\":\"EMAIL_OPEN\",\"eventType\":\"OTHER\",\"additionalData\":{\"big\":\""
+            + "x".repeat(300 * 1024) + "\"}}]}");
+
+        final EventTooLargeException exception = assertThrows(EventTooLargeException.class,
+            () -> testInstance.process(mockSQSMessage));
+        assertThat(exception.getSize(), greaterThan(256 * 1024L));
+        verifyNoInteractions(mockMParticleClient);
+    }
+
+    @Test
+    void givenEventTooLargeInTheMiddleThenEventsAroundItAreStillSent() throws Exception {
+        when(mockSQSMessage.getBody()).thenReturn("{\"authenticationKey\":\"key\",\"authenticationSecret\":\"secret\","
+            + "\"events\":[{\"eventName\":\"EMAIL_SUBSCRIBE\",\"eventType\":\"OTHER\"},"
+            + "{\"eventName\":\"EMAIL_OPEN\",\"eventType\":\"OTHER\",\"additionalData\":{\"big\":\""
+            + "x".repeat(300 * 1024) + "\"}},"
+            + "{\"eventName\":\"EMAIL_UNSUBSCRIBE\",\"eventType\":\"OTHER\"}]}");
+
+        final EventTooLargeException exception = assertThrows(EventTooLargeException.class,
+            () -> testInstance.process(mockSQSMessage));
+
+        verify(mockMParticleClient, times(2)).submit(messageCaptor.capture(), any(), eq(Deadline.NONE));
+        assertThat(messageCaptor.getAllValues().stream()
+                .flatMap(message -> message.getEvents().stream())
+                .map(MParticleOutgoingMessage.Event::getEventName)
+                .toList(),
+            is(equalTo(List.of(MParticleEventName.EMAIL_SUBSCRIBE, MParticleEventName.EMAIL_UNSUBSCRIBE))));
+        assertThat(exception.getPayload().getEvents().size(), is(1));
+        assertThat(exception.getPayload().getEvents().get(0).getEventName(), is(MParticleEventName.EMAIL_OPEN));
+        assertThat(exception.getSize(), greaterThan(256 * 1024L));
+    }
+
     @Test
     void givenMparticleSendDisabledThenNoInteractionWithClientOccurs() throws NoRetryException, RetryLaterException {
         givenDisabledMParticleSend();
@@ -113,14 +221,67 @@ public class MessageProcessorTest {
         verifyNoInteractions(mockMParticleClient);
     }
 
+    @Test
+    void givenSubmissionStillInFlightAtDeadlineThenItIsCancelledAndRetried() throws Exception {
+        givenValidMessage();
+        final OutgoingRecord record = testInstance.parse(mockSQSMessage);
+        final CompletableFuture<Void> submission = new CompletableFuture<>();
+        final Context context = mock(Context.class);
+        when(context.getRemainingTimeInMillis()).thenReturn(1000);
+
+        assertThrows(RetryLaterException.class,
+            () -> testInstance.awaitSubmission(record, submission, Deadline.fromContext(context, 2000)));
+
+        assertTrue(submission.isCancelled());
+    }
+
+    @Test
+    void givenSubmissionRejectedAsTooLargeThenSentSplit() throws Exception {
+        givenValidMessage();
+        final OutgoingRecord record = testInstance.parse(mockSQSMessage);
+
+        testInstance.awaitSubmission(record,
+            CompletableFuture.failedFuture(new PayloadTooLargeException(413, 1000, record.message())), Deadline.NONE);
+
+        verify(mockMParticleClient, times(2)).submit(messageCaptor.capture(), any(), eq(Deadline.NONE));
+        assertThat(messageCaptor.getAllValues().get(0).getEvents().get(0).getEventName(),
+            is(MParticleEventName.EMAIL_SUBSCRIBE));
+        assertThat(messageCaptor.getAllValues().get(1).getEvents().get(0).getEventName(),
+            is(MParticleEventName.EMAIL_UNSUBSCRIBE));
+    }
+
+    @Test
+    void givenSubmissionFailedThenItsExceptionIsThrown() throws Exception {
+        givenValidMessage();
+        final OutgoingRecord record = testInstance.parse(mockSQSMessage);
+
+        final NoRetryException exception = assertThrows(NoRetryException.class, () -> testInstance.awaitSubmission(
+            record, CompletableFuture.failedFuture(new NoRetryException(400, "Bad Request")), Deadline.NONE));
+
+        assertThat(exception.getStatusCode(), is(400));
+    }
+
+    @Test
+    void givenMparticleSendDisabledThenAsyncSubmissionIsAlreadyComplete() throws Exception {
+        givenDisabledMParticleSend();
+        givenValidMessage();
+
+        final CompletableFuture<Void> submission =
+            testInstance.submitAsync(testInstance.parse(mockSQSMessage), Deadline.NONE);
+
+        assertTrue(submission.isDone());
+        verifyNoInteractions(mockMParticleClient);
+    }
+
     private void givenValidMessage() {
         final String json = loadResourceFileContent("/messages/valid.json");
         when(mockSQSMessage.getBody()).thenReturn(json);
     }
 
-    private void givenTooLongMessage() {
+    private String givenTooLongMessage() {
         final String json = loadResourceFileContent("/messages/too_long.json");
         when(mockSQSMessage.getBody()).thenReturn(json);
+        return json;
     }
 
     private String loadResourceFileContent(final String path) {
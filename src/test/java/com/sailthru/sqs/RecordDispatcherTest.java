@@ -0,0 +1,73 @@
+package com.sailthru.sqs;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.IntStream;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+public class RecordDispatcherTest {
+
+    @Test
+    void givenSingleInFlightThenItemsAreProcessedInOrderOnCallingThread() {
+        final RecordDispatcher dispatcher = new RecordDispatcher(1);
+        final List<Integer> processed = new ArrayList<>();
+        final Set<Thread> threads = ConcurrentHashMap.newKeySet();
+
+        dispatcher.dispatch(List.of(1, 2, 3), item -> {
+            threads.add(Thread.currentThread());
+            processed.add(item);
+        });
+
+        assertThat(processed, equalTo(List.of(1, 2, 3)));
+        assertThat(threads, equalTo(Set.of(Thread.currentThread())));
+    }
+
+    @Test
+    void givenMaxInFlightThenConcurrencyNeverExceedsIt() {
+        final RecordDispatcher dispatcher = new RecordDispatcher(3);
+        final AtomicInteger current = new AtomicInteger();
+        final AtomicInteger max = new AtomicInteger();
+        final Set<Integer> processed = ConcurrentHashMap.newKeySet();
+
+        dispatcher.dispatch(IntStream.range(0, 50).boxed().toList(), item -> {
+            max.accumulateAndGet(current.incrementAndGet(), Math::max);
+            try {
+                Thread.sleep(5);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                current.decrementAndGet();
+            }
+            processed.add(item);
+        });
+
+        assertThat(processed.size(), equalTo(50));
+        assertThat(max.get(), lessThanOrEqualTo(3));
+        assertThat(max.get(), greaterThan(1));
+    }
+
+    @Test
+    void givenRuntimeExceptionThenItIsRethrownAfterAllItemsComplete() {
+        final RecordDispatcher dispatcher = new RecordDispatcher(4);
+        final AtomicInteger processed = new AtomicInteger();
+
+        assertThrows(IllegalArgumentException.class, () ->
+            dispatcher.dispatch(IntStream.range(0, 10).boxed().toList(), item -> {
+                processed.incrementAndGet();
+                if (item == 3) {
+                    throw new IllegalArgumentException("bad item");
+                }
+            }));
+        assertThat(processed.get(), equalTo(10));
+    }
+}
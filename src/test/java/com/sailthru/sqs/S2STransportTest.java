@@ -0,0 +1,157 @@
+package com.sailthru.sqs;
+
+import com.mparticle.model.Batch;
+import com.sailthru.sqs.exception.NoRetryException;
+import com.sailthru.sqs.exception.PayloadTooLargeException;
+import com.sailthru.sqs.exception.RetryLaterException;
+import com.sailthru.sqs.message.MParticleEventName;
+import com.sailthru.sqs.message.MParticleEventType;
+import com.sailthru.sqs.message.MParticleOutgoingMessage;
+import okhttp3.Credentials;
+import okhttp3.OkHttpClient;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.time.Clock;
+import java.util.List;
+import java.util.Map;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.is;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+public class S2STransportTest {
+    private MockWebServer server;
+    private S2STransport transport;
+    private ThrottleRegistry throttleRegistry;
+    private MParticleClient client;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        server = new MockWebServer();
+        server.start();
+        transport = new S2STransport(new OkHttpClient());
+        throttleRegistry = new ThrottleRegistry(Clock.systemUTC());
+        // the Retrofit path is never taken, so there is no ApiFactory
+        client = new MParticleClient(null, Batch.Environment.DEVELOPMENT, throttleRegistry,
+            TenantRateLimiter.unlimited(), null, transport);
+    }
+
+    @AfterEach
+    void tearDown() throws IOException {
+        server.shutdown();
+    }
+
+    @Test
+    void givenMessageThenEncodedBatchIsPostedToEventsWithBasicAuth() throws Exception {
+        final MParticleOutgoingMessage message = givenMessage();
+        final EncodedBatch batch = BatchEncoder.encode(message.toBatch(Batch.Environment.DEVELOPMENT));
+        server.enqueue(new MockResponse().setResponseCode(202));
+
+        client.submit(message, batch, Deadline.NONE);
+
+        final RecordedRequest request = server.takeRequest();
+        assertThat(request.getMethod(), is(equalTo("POST")));
+        assertThat(request.getPath(), is(equalTo("/s2s/v2/events")));
+        assertThat(request.getHeader("Authorization"), is(equalTo(Credentials.basic("key", "secret"))));
+        assertThat(request.getHeader("Content-Type"), is(equalTo("application/json")));
+        assertThat(request.getBody().readUtf8(), is(equalTo(batch.toString())));
+    }
+
+    @Test
+    void givenRecordsThenArrayOfBatchesIsPostedToBulkEvents() throws Exception {
+        final MParticleOutgoingMessage message = givenMessage();
+        final EncodedBatch batch = BatchEncoder.encode(message.toBatch(Batch.Environment.DEVELOPMENT));
+        server.enqueue(new MockResponse().setResponseCode(202));
+
+        client.submitBulk(List.of(new OutgoingRecord(null, message, batch), new OutgoingRecord(null, message, batch)),
+            Deadline.NONE);
+
+        final RecordedRequest request = server.takeRequest();
+        assertThat(request.getPath(), is(equalTo("/s2s/v2/bulkevents")));
+        assertThat(request.getBody().readUtf8(), is(equalTo("[" + batch + "," + batch + "]")));
+    }
+
+    @Test
+    void givenSameCredentialsThenEndpointIsWorkedOutOnce() {
+        final ApiFactory.ClientApiDetails details = MParticleClient.apiDetailsOf(givenMessage());
+
+        transport.uploadEvents(details, EncodedBatch.toBulkRequestBody(List.of()));
+        transport.bulkUploadEvents(details, EncodedBatch.toBulkRequestBody(List.of()));
+
+        final ClientCache.Stats stats = transport.drainCacheStats();
+        assertThat(stats.misses(), is(1L));
+        assertThat(stats.hits(), is(1L));
+    }
+
+    @Test
+    void givenApiURLWithQueryThenPathsResolvedAsRetrofitWould() {
+        final S2STransport.Endpoint endpoint = S2STransport.Endpoint.of(
+            new ApiFactory.ClientApiDetails("key", "secret", "https://test_url.com/s2s/v2/?test"));
+
+        assertThat(endpoint.events().toString(), is(equalTo("https://test_url.com/s2s/v2/events")));
+        assertThat(endpoint.bulkEvents().toString(), is(equalTo("https://test_url.com/s2s/v2/bulkevents")));
+    }
+
+    @Test
+    void given429ThenRetryLaterAndCredentialsThrottled() {
+        final MParticleOutgoingMessage message = givenMessage();
+        server.enqueue(new MockResponse().setResponseCode(429).setHeader("Retry-After", "30"));
+
+        final RetryLaterException exception = assertThrows(RetryLaterException.class, () -> client.submit(message));
+
+        assertThat(exception.getStatusCode(), is(429));
+        assertThat(exception.getRetryAfter(), is(30L));
+        assertThat(throttleRegistry.drainHits(), is(1L));
+    }
+
+    @Test
+    void given413ThenPayloadTooLarge() {
+        server.enqueue(new MockResponse().setResponseCode(413));
+
+        assertThrows(PayloadTooLargeException.class, () -> client.submit(givenMessage()));
+    }
+
+    @Test
+    void givenClientOrServerErrorThenRetryLater() {
+        server.enqueue(new MockResponse().setResponseCode(400));
+        server.enqueue(new MockResponse().setResponseCode(503));
+
+        assertThat(assertThrows(RetryLaterException.class, () -> client.submit(givenMessage())).getStatusCode(),
+            is(400));
+        assertThat(assertThrows(RetryLaterException.class, () -> client.submit(givenMessage())).getStatusCode(),
+            is(503));
+    }
+
+    @Test
+    void givenOtherUnsuccessfulResponseThenNoRetry() {
+        server.enqueue(new MockResponse().setResponseCode(304));
+
+        assertThrows(NoRetryException.class, () -> client.submit(givenMessage()));
+    }
+
+    @Test
+    void givenConnectionFailureThenRetryLater() throws IOException {
+        final MParticleOutgoingMessage message = givenMessage();
+        server.shutdown();
+
+        assertThrows(RetryLaterException.class, () -> client.submit(message));
+    }
+
+    private MParticleOutgoingMessage givenMessage() {
+        final MParticleOutgoingMessage message = new MParticleOutgoingMessage();
+        message.setAuthenticationKey("key");
+        message.setAuthenticationSecret("secret");
+        message.setApiURL(server.url("/s2s/v2/").toString());
+        message.setProfileEmail("user@example.com");
+        message.setEvents(List.of(new MParticleOutgoingMessage.Event(MParticleEventName.EMAIL_OPEN,
+            MParticleEventType.OTHER, Map.of("list_id", "1"))));
+        return message;
+    }
+}
@@ -4,6 +4,7 @@ import com.amazonaws.services.lambda.runtime.Context;
 import com.amazonaws.services.lambda.runtime.events.SQSBatchResponse;
 import com.amazonaws.services.lambda.runtime.events.SQSEvent;
 import com.mparticle.model.Batch;
+import com.sailthru.sqs.exception.EventTooLargeException;
 import com.sailthru.sqs.exception.NoRetryException;
 import com.sailthru.sqs.exception.PayloadTooLargeException;
 import com.sailthru.sqs.exception.RetryLaterException;
@@ -12,21 +13,31 @@ import com.sailthru.sqs.metrics.Metrics;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.ExtendWith;
-import org.mockito.Answers;
 import org.mockito.ArgumentCaptor;
+import org.mockito.InOrder;
 import org.mockito.Mock;
 import org.mockito.junit.jupiter.MockitoExtension;
-import software.amazon.awssdk.services.sqs.SqsClient;
-import software.amazon.awssdk.services.sqs.model.ChangeMessageVisibilityRequest;
+import software.amazon.awssdk.services.sqs.SqsAsyncClient;
+import software.amazon.awssdk.services.sqs.model.ChangeMessageVisibilityBatchRequest;
+import software.amazon.awssdk.services.sqs.model.ChangeMessageVisibilityBatchRequestEntry;
+import software.amazon.awssdk.services.sqs.model.ChangeMessageVisibilityBatchResponse;
 
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
 import java.util.stream.Collectors;
 import java.util.stream.IntStream;
 
+import static com.sailthru.sqs.SQSLambdaHandler.ASYNC_SEND_KEY;
 import static com.sailthru.sqs.SQSLambdaHandler.BASE_TIMEOUT_KEY;
+import static com.sailthru.sqs.SQSLambdaHandler.BULK_UPLOAD_KEY;
+import static com.sailthru.sqs.SQSLambdaHandler.DEDUP_CACHE_KEY;
+import static com.sailthru.sqs.SQSLambdaHandler.DEDUP_CONTENT_HASH_KEY;
+import static com.sailthru.sqs.SQSLambdaHandler.DISPATCH_CONCURRENCY_KEY;
+import static com.sailthru.sqs.SQSLambdaHandler.LAZY_INIT_KEY;
 import static com.sailthru.sqs.SQSLambdaHandler.MPARTICLE_DISABLED_KEY;
 import static com.sailthru.sqs.SQSLambdaHandler.PROD_ENVIRONMENT;
 import static com.sailthru.sqs.SQSLambdaHandler.SQS_URL_KEY;
@@ -35,6 +46,8 @@ import static com.sailthru.sqs.SQSLambdaHandler.TIMEOUT_FACTOR_KEY;
 import static com.sailthru.sqs.SQSLambdaHandler.ENVIRONMENT_KEY;
 import static org.hamcrest.MatcherAssert.assertThat;
 import static org.hamcrest.Matchers.allOf;
+import static org.hamcrest.Matchers.containsInAnyOrder;
+import static org.hamcrest.Matchers.containsString;
 import static org.hamcrest.Matchers.empty;
 import static org.hamcrest.Matchers.equalTo;
 import static org.hamcrest.Matchers.greaterThanOrEqualTo;
@@ -42,16 +55,21 @@ import static org.hamcrest.Matchers.hasSize;
 import static org.hamcrest.Matchers.is;
 import static org.hamcrest.Matchers.lessThanOrEqualTo;
 import static org.hamcrest.Matchers.notNullValue;
+import static org.hamcrest.Matchers.sameInstance;
 import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.argThat;
 import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.doNothing;
 import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.inOrder;
 import static org.mockito.Mockito.lenient;
 import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.verifyNoInteractions;
+import static org.mockito.Mockito.when;
 
 @ExtendWith(MockitoExtension.class)
 public class SQSLambdaHandlerTest {
@@ -68,8 +86,8 @@ public class SQSLambdaHandlerTest {
     @Mock
     private SQSEvent.SQSMessage mockSQSMessage;
 
-    @Mock(answer = Answers.RETURNS_MOCKS)
-    private SqsClient mockSqsClient;
+    @Mock
+    private SqsAsyncClient mockSqsClient;
 
     @Mock
     private MParticleClient mockMParticleClient;
@@ -90,6 +108,8 @@ public class SQSLambdaHandlerTest {
         testInstance = new SQSLambdaHandler(defaultEnvironment, mockSqsClient, mockMetrics);
         testInstance.setMessageProcessor(mockMessageProcessor);
         lenient().when(mockSQSEvent.getRecords()).thenReturn(List.of(mockSQSMessage));
+        lenient().when(mockSqsClient.changeMessageVisibilityBatch(any(ChangeMessageVisibilityBatchRequest.class)))
+            .thenReturn(CompletableFuture.completedFuture(ChangeMessageVisibilityBatchResponse.builder().build()));
     }
 
     @Test
@@ -99,26 +119,27 @@ public class SQSLambdaHandlerTest {
         SQSBatchResponse response = testInstance.handleRequest(sqsEvent, mockContext);
 
         assertThat(response.getBatchItemFailures(), empty());
-        verify(mockMessageProcessor, times(1)).process(any());
+        verify(mockMessageProcessor, times(1)).process(any(), any());
     }
 
     @Test
     void givenHandleRequestThrowsNoRetryException_thenReturnEmptyFailureItemsList() throws Exception {
         SQSEvent sqsEvent = createSQSEvent("messageId2", "body2", "receiptHandle2");
-        doThrow(new NoRetryException("No retry exception")).when(mockMessageProcessor).process(any());
+        doThrow(new NoRetryException("No retry exception")).when(mockMessageProcessor).process(any(), any());
 
         SQSBatchResponse response = testInstance.handleRequest(sqsEvent, mockContext);
 
-        verify(mockMessageProcessor, times(1)).process(any());
+        verify(mockMessageProcessor, times(1)).process(any(), any());
         assertThat(response.getBatchItemFailures(), empty());
-        verify(mockSqsClient, never()).changeMessageVisibility(any(ChangeMessageVisibilityRequest.class));
+        verify(mockSqsClient, never()).changeMessageVisibilityBatch(any(ChangeMessageVisibilityBatchRequest.class));
         verifyNoInteractions(mockMetrics);
     }
 
     @Test
     void givenHandleRequestThrowsRetryException_thenReturnFailureItemListAndVisibilityTimeoutIsSet() throws Exception {
         SQSEvent sqsEvent = createSQSEvent("messageId3", "body3", "receiptHandle3");
-        doThrow(new RetryLaterException(500, "Internal Server Error", 120)).when(mockMessageProcessor).process(any());
+        doThrow(new RetryLaterException(500, "Internal Server Error", 120))
+            .when(mockMessageProcessor).process(any(), any());
 
         SQSBatchResponse response = testInstance.handleRequest(sqsEvent, mockContext);
 
@@ -126,23 +147,23 @@ public class SQSLambdaHandlerTest {
         assertThat(response.getBatchItemFailures().getFirst().getItemIdentifier(), is("messageId3"));
 
         assertThat(response.getBatchItemFailures(), hasSize(1));
-        verify(mockMessageProcessor, times(1)).process(any());
-        verify(mockSqsClient, times(1)).changeMessageVisibility(any(ChangeMessageVisibilityRequest.class));
+        verify(mockMessageProcessor, times(1)).process(any(), any());
+        verify(mockSqsClient, times(1)).changeMessageVisibilityBatch(any(ChangeMessageVisibilityBatchRequest.class));
         verifyNoInteractions(mockMetrics);
     }
 
     @Test
     public void givenInternalServerError_thenSetVisibilityTimeoutCalledWithTimeoutSentInException() throws Exception {
         SQSEvent sqsEvent = createSQSEvent("messageId6", "body6", "receiptHandle6");
-        doThrow(new RetryLaterException(500, "Internal Server Error", 120)).when(mockMessageProcessor).process(any());
+        doThrow(new RetryLaterException(500, "Internal Server Error", 120))
+            .when(mockMessageProcessor).process(any(), any());
 
         testInstance.handleRequest(sqsEvent, mockContext);
 
-        ArgumentCaptor<ChangeMessageVisibilityRequest> argumentCaptor =
-                ArgumentCaptor.forClass(ChangeMessageVisibilityRequest.class);
-        verify(mockSqsClient, times(1)).changeMessageVisibility(argumentCaptor.capture());
+        final List<ChangeMessageVisibilityBatchRequestEntry> entries = capturedVisibilityChanges(1);
 
-        ChangeMessageVisibilityRequest capturedArgument = argumentCaptor.getValue();
+        assertThat(entries, hasSize(1));
+        ChangeMessageVisibilityBatchRequestEntry capturedArgument = entries.getFirst();
         assertThat(capturedArgument.receiptHandle(), is("receiptHandle6"));
         assertThat(capturedArgument.visibilityTimeout(), is(120));
         verifyNoInteractions(mockMetrics);
@@ -168,8 +189,9 @@ public class SQSLambdaHandlerTest {
         SQSBatchResponse response = testInstance.handleRequest(sqsEvent, mockContext);
         assertThat(response, notNullValue());
         assertThat(response.getBatchItemFailures(), empty());
-        verify(mockMessageProcessor, times(recordSize)).process(any(SQSEvent.SQSMessage.class));
-        verify(mockSqsClient, never()).changeMessageVisibility(any(ChangeMessageVisibilityRequest.class));
+        verify(mockMessageProcessor, times(recordSize))
+            .process(any(SQSEvent.SQSMessage.class), any(Deadline.class));
+        verify(mockSqsClient, never()).changeMessageVisibilityBatch(any(ChangeMessageVisibilityBatchRequest.class));
         verifyNoInteractions(mockMetrics);
     }
 
@@ -185,13 +207,263 @@ public class SQSLambdaHandlerTest {
 
         assertThat(response, notNullValue());
         assertThat(response.getBatchItemFailures(), hasSize(5));
-        verify(mockMessageProcessor, times(recordSize)).process(any(SQSEvent.SQSMessage.class));
-        verify(mockSqsClient, times(expectedFailures))
-            .changeMessageVisibility(any(ChangeMessageVisibilityRequest.class));
+        verify(mockMessageProcessor, times(recordSize))
+            .process(any(SQSEvent.SQSMessage.class), any(Deadline.class));
+        assertThat(capturedVisibilityChanges(1), hasSize(expectedFailures));
         assertThat(response.getBatchItemFailures(), hasSize(5));
         verifyNoInteractions(mockMetrics);
     }
 
+    @Test
+    void givenConcurrentDispatchAndRetryRequested_thenAllFailuresAreCollected() throws Exception {
+        givenConcurrentDispatch(4);
+        final int recordSize = 10;
+        SQSEvent sqsEvent = new SQSEvent();
+        sqsEvent.setRecords(getSqsMessages(recordSize));
+        givenAlterativelyFailingRecords(sqsEvent);
+        final List<String> expectedFailures = IntStream.range(0, recordSize)
+            .filter(i -> i % 2 == 0)
+            .mapToObj(i -> sqsEvent.getRecords().get(i).getMessageId())
+            .toList();
+
+        SQSBatchResponse response = testInstance.handleRequest(sqsEvent, mockContext);
+
+        assertThat(response.getBatchItemFailures().stream()
+                .map(SQSBatchResponse.BatchItemFailure::getItemIdentifier)
+                .toList(),
+            containsInAnyOrder(expectedFailures.toArray()));
+        verify(mockMessageProcessor, times(recordSize))
+            .process(any(SQSEvent.SQSMessage.class), any(Deadline.class));
+        assertThat(capturedVisibilityChanges(1), hasSize(expectedFailures.size()));
+        verifyNoInteractions(mockMetrics);
+    }
+
+    @Test
+    void givenConcurrentDispatchAndUnexpectedException_thenExceptionIsPropagated() throws Exception {
+        givenConcurrentDispatch(4);
+        SQSEvent sqsEvent = new SQSEvent();
+        sqsEvent.setRecords(getSqsMessages(10));
+        doThrow(new IllegalStateException("boom")).when(mockMessageProcessor).process(any(), any());
+
+        assertThrows(IllegalStateException.class, () -> testInstance.handleRequest(sqsEvent, mockContext));
+        verify(mockMessageProcessor, times(10)).process(any(SQSEvent.SQSMessage.class), any(Deadline.class));
+    }
+
+    @Test
+    void givenBulkUpload_thenRecordsWithSameCredentialsAreSentTogether() throws Exception {
+        givenBulkUpload();
+        final int recordSize = 10;
+        SQSEvent sqsEvent = new SQSEvent();
+        sqsEvent.setRecords(getSqsMessages(recordSize));
+        givenParseableRecords();
+
+        SQSBatchResponse response = testInstance.handleRequest(sqsEvent, mockContext);
+
+        assertThat(response.getBatchItemFailures(), empty());
+        verify(mockMessageProcessor, times(recordSize)).parse(any(SQSEvent.SQSMessage.class));
+        verify(mockMessageProcessor, times(1)).submitBulk(argThat(chunk -> chunk.size() == recordSize), any());
+        verify(mockMessageProcessor, never()).process(any(), any());
+        verifyNoInteractions(mockSqsClient, mockMetrics);
+    }
+
+    @Test
+    void givenBulkUploadRejected_thenEveryRecordInItIsRetried() throws Exception {
+        givenBulkUpload();
+        final int recordSize = 10;
+        SQSEvent sqsEvent = new SQSEvent();
+        sqsEvent.setRecords(getSqsMessages(recordSize));
+        givenParseableRecords();
+        doThrow(new RetryLaterException(429, "Too Many Requests", 30))
+            .when(mockMessageProcessor).submitBulk(any(), any());
+
+        SQSBatchResponse response = testInstance.handleRequest(sqsEvent, mockContext);
+
+        assertThat(response.getBatchItemFailures(), hasSize(recordSize));
+        final List<ChangeMessageVisibilityBatchRequestEntry> entries = capturedVisibilityChanges(1);
+        assertThat(entries, hasSize(recordSize));
+        assertThat(entries.stream()
+                .map(ChangeMessageVisibilityBatchRequestEntry::visibilityTimeout)
+                .distinct()
+                .toList(),
+            equalTo(List.of(30)));
+    }
+
+    @Test
+    void givenBulkUploadAndUnparseableRecord_thenOnlyValidRecordsAreSent() throws Exception {
+        givenBulkUpload();
+        SQSEvent sqsEvent = new SQSEvent();
+        sqsEvent.setRecords(getSqsMessages(3));
+        givenParseableRecords();
+        doThrow(new NoRetryException("bad")).when(mockMessageProcessor).parse(sqsEvent.getRecords().get(1));
+
+        SQSBatchResponse response = testInstance.handleRequest(sqsEvent, mockContext);
+
+        assertThat(response.getBatchItemFailures(), empty());
+        verify(mockMessageProcessor, times(1)).submitBulk(argThat(chunk -> chunk.size() == 2), any());
+    }
+
+    @Test
+    void givenBulkUploadAndTooLargeRecord_thenItIsSentSplitOnItsOwn() throws Exception {
+        givenBulkUpload();
+        SQSEvent sqsEvent = new SQSEvent();
+        sqsEvent.setRecords(getSqsMessages(3));
+        givenParseableRecords();
+        final MParticleOutgoingMessage tooLarge = new MParticleOutgoingMessage();
+        doThrow(new PayloadTooLargeException(300_000, tooLarge))
+            .when(mockMessageProcessor).parse(sqsEvent.getRecords().get(1));
+
+        SQSBatchResponse response = testInstance.handleRequest(sqsEvent, mockContext);
+
+        assertThat(response.getBatchItemFailures(), empty());
+        verify(mockMessageProcessor).submitSplit(eq(tooLarge), eq(300_000L), any());
+        verify(mockMessageProcessor, times(1)).submitBulk(argThat(chunk -> chunk.size() == 2), any());
+    }
+
+    @Test
+    void givenBulkUploadRejectedAsTooLarge_thenRecordsAreSentOnTheirOwn() throws Exception {
+        givenBulkUpload();
+        final int recordSize = 3;
+        SQSEvent sqsEvent = new SQSEvent();
+        sqsEvent.setRecords(getSqsMessages(recordSize));
+        givenParseableRecords();
+        doThrow(new RetryLaterException(MParticleClient.PAYLOAD_TOO_LARGE, "Payload Too Large", 0))
+            .when(mockMessageProcessor).submitBulk(any(), any());
+
+        SQSBatchResponse response = testInstance.handleRequest(sqsEvent, mockContext);
+
+        assertThat(response.getBatchItemFailures(), empty());
+        verify(mockMessageProcessor, times(recordSize)).submit(any(OutgoingRecord.class), any());
+        verifyNoInteractions(mockSqsClient);
+    }
+
+    @Test
+    void givenBulkUploadRejectedForGood_thenEveryRecordInItIsDropped() throws Exception {
+        givenBulkUpload();
+        final int recordSize = 3;
+        SQSEvent sqsEvent = new SQSEvent();
+        sqsEvent.setRecords(getSqsMessages(recordSize));
+        givenParseableRecords();
+        // only a status outside 400-599 is final, and the records of a chunk all share the same credentials and
+        // endpoint, so it holds for all of them
+        doThrow(new NoRetryException(307, "Temporary Redirect")).when(mockMessageProcessor).submitBulk(any(), any());
+
+        SQSBatchResponse response = testInstance.handleRequest(sqsEvent, mockContext);
+
+        assertThat(response.getBatchItemFailures(), empty());
+        verify(mockMessageProcessor, never()).submit(any(OutgoingRecord.class), any());
+        verifyNoInteractions(mockSqsClient);
+    }
+
+    @Test
+    void givenAsyncSend_thenEveryRequestIsStartedBeforeAnyIsAwaited() throws Exception {
+        givenAsyncSend();
+        final int recordSize = 3;
+        SQSEvent sqsEvent = new SQSEvent();
+        sqsEvent.setRecords(getSqsMessages(recordSize));
+        givenParseableRecords();
+        when(mockMessageProcessor.submitAsync(any(), any())).thenReturn(CompletableFuture.completedFuture(null));
+
+        SQSBatchResponse response = testInstance.handleRequest(sqsEvent, mockContext);
+
+        assertThat(response.getBatchItemFailures(), empty());
+        final InOrder inOrder = inOrder(mockMessageProcessor);
+        inOrder.verify(mockMessageProcessor, times(recordSize)).submitAsync(any(), any());
+        inOrder.verify(mockMessageProcessor, times(recordSize)).awaitSubmission(any(), any(), any());
+        verify(mockMessageProcessor, never()).process(any(), any());
+        verifyNoInteractions(mockSqsClient, mockMetrics);
+    }
+
+    @Test
+    void givenAsyncSendAndFailures_thenTheyAreMappedOntoTheirRecords() throws Exception {
+        givenAsyncSend();
+        SQSEvent sqsEvent = new SQSEvent();
+        sqsEvent.setRecords(getSqsMessages(3));
+        givenParseableRecords();
+        when(mockMessageProcessor.submitAsync(any(), any())).thenReturn(CompletableFuture.completedFuture(null));
+        lenient().doNothing().when(mockMessageProcessor).awaitSubmission(any(), any(), any());
+        doThrow(new RetryLaterException(500, "Internal Server Error", 120)).when(mockMessageProcessor)
+            .awaitSubmission(argThat(record -> record.sqsMessage() == sqsEvent.getRecords().get(1)), any(), any());
+        doThrow(new NoRetryException(400, "Bad Request")).when(mockMessageProcessor)
+            .awaitSubmission(argThat(record -> record.sqsMessage() == sqsEvent.getRecords().get(2)), any(), any());
+
+        SQSBatchResponse response = testInstance.handleRequest(sqsEvent, mockContext);
+
+        assertThat(response.getBatchItemFailures(), hasSize(1));
+        assertThat(response.getBatchItemFailures().get(0).getItemIdentifier(),
+            equalTo(sqsEvent.getRecords().get(1).getMessageId()));
+        final List<ChangeMessageVisibilityBatchRequestEntry> entries = capturedVisibilityChanges(1);
+        assertThat(entries, hasSize(1));
+        assertThat(entries.get(0).visibilityTimeout(), equalTo(120));
+    }
+
+    @Test
+    void givenAsyncSendAndTooLargeRecord_thenItIsSentSplitWithoutWaiting() throws Exception {
+        givenAsyncSend();
+        SQSEvent sqsEvent = new SQSEvent();
+        sqsEvent.setRecords(getSqsMessages(2));
+        givenParseableRecords();
+        final MParticleOutgoingMessage tooLarge = new MParticleOutgoingMessage();
+        doThrow(new PayloadTooLargeException(300_000, tooLarge))
+            .when(mockMessageProcessor).parse(sqsEvent.getRecords().get(0));
+        when(mockMessageProcessor.submitAsync(any(), any())).thenReturn(CompletableFuture.completedFuture(null));
+
+        SQSBatchResponse response = testInstance.handleRequest(sqsEvent, mockContext);
+
+        assertThat(response.getBatchItemFailures(), empty());
+        verify(mockMessageProcessor).submitSplit(eq(tooLarge), eq(300_000L), any());
+        verify(mockMessageProcessor, times(1)).awaitSubmission(any(), any(), any());
+    }
+
+    @Test
+    void givenLazyInit_thenSqsClientAndMessageProcessorAreOnlyBuiltWhenFirstNeeded() {
+        final StartupTimeline timeline = new StartupTimeline(System::nanoTime);
+
+        final SQSLambdaHandler handler = new SQSLambdaHandler(
+            Map.of(SQS_URL_KEY, "test_url", MPARTICLE_DISABLED_KEY, "1", LAZY_INIT_KEY, "1"), timeline);
+
+        assertThat(timeline.summary(), allOf(containsString("SqsClient deferred"),
+            containsString("MessageProcessor deferred")));
+        final MessageProcessor messageProcessor = handler.getMessageProcessor();
+        assertThat(messageProcessor, is(notNullValue()));
+        assertThat(handler.getMessageProcessor(), is(sameInstance(messageProcessor)));
+    }
+
+    @Test
+    void givenDeadlineAlreadyReached_thenRecordsAreDeferredWithoutVisibilityChange() throws Exception {
+        final int recordSize = 10;
+        SQSEvent sqsEvent = new SQSEvent();
+        sqsEvent.setRecords(getSqsMessages(recordSize));
+        // below the default safety margin
+        when(mockContext.getRemainingTimeInMillis()).thenReturn(1000);
+
+        SQSBatchResponse response = testInstance.handleRequest(sqsEvent, mockContext);
+
+        assertThat(response.getBatchItemFailures(), hasSize(recordSize));
+        verify(mockMessageProcessor, never()).process(any(), any());
+        verify(mockMetrics).mark(mockContext, null, Metrics.DEFERRED_RECORDS, recordSize);
+        verifyNoInteractions(mockSqsClient);
+    }
+
+    @Test
+    void givenDeadlineReachedDuringBatch_thenOnlyRemainingRecordsAreDeferred() throws Exception {
+        final int recordSize = 10;
+        SQSEvent sqsEvent = new SQSEvent();
+        sqsEvent.setRecords(getSqsMessages(recordSize));
+        when(mockContext.getRemainingTimeInMillis()).thenReturn(2100);
+        // the third record uses up all of the remaining budget
+        doAnswer(invocation -> {
+            Thread.sleep(150);
+            return null;
+        }).when(mockMessageProcessor).process(eq(sqsEvent.getRecords().get(2)), any());
+
+        SQSBatchResponse response = testInstance.handleRequest(sqsEvent, mockContext);
+
+        assertThat(response.getBatchItemFailures(), hasSize(recordSize - 3));
+        verify(mockMessageProcessor, times(3)).process(any(), any());
+        verify(mockMetrics).mark(mockContext, null, Metrics.DEFERRED_RECORDS, recordSize - 3);
+        verifyNoInteractions(mockSqsClient);
+    }
+
     @Test
     void givenQueueUrlIsNotSet_thenIllegalArgumentExceptionIsThrown() {
         assertThrows(IllegalArgumentException.class, () -> testInstance = new SQSLambdaHandler());
@@ -270,35 +542,35 @@ public class SQSLambdaHandlerTest {
     }
 
     @Test
-    void givenPreParseErrors_thenMarkedAsFailureWithoutVisibilityChange() throws Exception {
+    void givenEventsTooLarge_thenDroppedWithoutRetry() throws Exception {
         final int recordSize = 10;
         var sqsEvent = new SQSEvent();
         sqsEvent.setRecords(getSqsMessages(recordSize));
-        doThrow(new PayloadTooLargeException(42, new MParticleOutgoingMessage()))
-            .when(mockMessageProcessor).process(any());
+        doThrow(new EventTooLargeException(0, 300_000, new MParticleOutgoingMessage()))
+            .when(mockMessageProcessor).process(any(), any());
 
         SQSBatchResponse response = testInstance.handleRequest(sqsEvent, mockContext);
 
         assertThat(response, notNullValue());
-        assertThat(response.getBatchItemFailures(), hasSize(recordSize));
+        assertThat(response.getBatchItemFailures(), empty());
         verify(mockMetrics, times(recordSize)).mark(any(), any(), eq(Metrics.MESSAGE_TOO_LARGE), eq(1L));
         verifyNoInteractions(mockSqsClient, mockMParticleClient);
     }
 
     @Test
-    void givenDisabledMParticleClientAndPreParseErrors_thenMarkedAsFailureWithoutVisibilityChange() throws Exception {
+    void givenDisabledMParticleClientAndEventsTooLarge_thenDroppedWithoutRetry() throws Exception {
         givenDisabledMParticleClient();
         final int recordSize = 10;
         var sqsEvent = new SQSEvent();
         sqsEvent.setRecords(getSqsMessages(recordSize));
-        doThrow(new PayloadTooLargeException(42, new MParticleOutgoingMessage()))
-            .when(mockMessageProcessor).process(any());
+        doThrow(new EventTooLargeException(0, 300_000, new MParticleOutgoingMessage()))
+            .when(mockMessageProcessor).process(any(), any());
         testInstance.setMessageProcessor(mockMessageProcessor);
 
         SQSBatchResponse response = testInstance.handleRequest(sqsEvent, mockContext);
 
         assertThat(response, notNullValue());
-        assertThat(response.getBatchItemFailures(), hasSize(recordSize));
+        assertThat(response.getBatchItemFailures(), empty());
         verify(mockMetrics, times(recordSize)).mark(any(), any(), eq(Metrics.MESSAGE_TOO_LARGE), eq(1L));
         verifyNoInteractions(mockSqsClient, mockMParticleClient);
     }
@@ -307,13 +579,176 @@ public class SQSLambdaHandlerTest {
         List<SQSEvent.SQSMessage> records = sqsEvent.getRecords();
         for (int i = 0; i < records.size(); i++) {
             if (i % 2 == 0) {
-                doThrow(RetryLaterException.class).when(mockMessageProcessor).process(records.get(i));
+                doThrow(RetryLaterException.class).when(mockMessageProcessor).process(eq(records.get(i)), any());
             } else {
-                doNothing().when(mockMessageProcessor).process(records.get(i));
+                doNothing().when(mockMessageProcessor).process(eq(records.get(i)), any());
             }
         }
     }
 
+    private void givenConcurrentDispatch(int concurrency) {
+        final Map<String, String> defaultEnvironment = Map.of(
+            SQS_URL_KEY, "test_url",
+            BASE_TIMEOUT_KEY, "180",
+            TIMEOUT_FACTOR_KEY, "2",
+            MPARTICLE_DISABLED_KEY, "0",
+            DISPATCH_CONCURRENCY_KEY, String.valueOf(concurrency)
+        );
+        testInstance = new SQSLambdaHandler(defaultEnvironment, mockSqsClient, mockMetrics);
+        testInstance.setMessageProcessor(mockMessageProcessor);
+    }
+
+    @Test
+    void givenMoreFailuresThanBatchSize_thenVisibilityChangesAreSplitIntoBatches() throws Exception {
+        final int recordSize = 25;
+        SQSEvent sqsEvent = new SQSEvent();
+        sqsEvent.setRecords(getSqsMessages(recordSize));
+        doThrow(new RetryLaterException(500, "Internal Server Error", 120))
+            .when(mockMessageProcessor).process(any(), any());
+
+        SQSBatchResponse response = testInstance.handleRequest(sqsEvent, mockContext);
+
+        assertThat(response.getBatchItemFailures(), hasSize(recordSize));
+        assertThat(capturedVisibilityChanges(3).stream()
+                .map(ChangeMessageVisibilityBatchRequestEntry::receiptHandle)
+                .toList(),
+            containsInAnyOrder(sqsEvent.getRecords().stream()
+                .map(SQSEvent.SQSMessage::getReceiptHandle)
+                .toArray()));
+    }
+
+    @Test
+    void givenDedupCacheAndRedeliveredMessage_thenItIsNotSentAgain() throws Exception {
+        givenDedupCache(false);
+        SQSEvent sqsEvent = createSQSEvent("messageId1", "body1", "receiptHandle1");
+
+        testInstance.handleRequest(sqsEvent, mockContext);
+        SQSBatchResponse response = testInstance.handleRequest(sqsEvent, mockContext);
+
+        assertThat(response.getBatchItemFailures(), empty());
+        verify(mockMessageProcessor, times(1)).process(any(), any());
+        verify(mockMetrics).markAll(mockContext, Map.of(Metrics.DEDUP_HITS, 0L, Metrics.DEDUP_MISSES, 1L));
+        verify(mockMetrics).markAll(mockContext, Map.of(Metrics.DEDUP_HITS, 1L, Metrics.DEDUP_MISSES, 0L));
+    }
+
+    @Test
+    void givenDedupCacheAndFailedMessage_thenItIsSentAgainWhenRedelivered() throws Exception {
+        givenDedupCache(false);
+        SQSEvent sqsEvent = createSQSEvent("messageId1", "body1", "receiptHandle1");
+        doThrow(new RetryLaterException(500, "Internal Server Error", 120))
+            .doNothing()
+            .when(mockMessageProcessor).process(any(), any());
+
+        testInstance.handleRequest(sqsEvent, mockContext);
+        SQSBatchResponse response = testInstance.handleRequest(sqsEvent, mockContext);
+
+        assertThat(response.getBatchItemFailures(), empty());
+        verify(mockMessageProcessor, times(2)).process(any(), any());
+    }
+
+    @Test
+    void givenDedupCacheAndDisabledMParticle_thenMessagesAreNotRememberedAsDelivered() throws Exception {
+        testInstance = new SQSLambdaHandler(Map.of(
+            SQS_URL_KEY, "test_url",
+            MPARTICLE_DISABLED_KEY, "1",
+            DEDUP_CACHE_KEY, "1"
+        ), mockSqsClient, mockMetrics);
+        testInstance.setMessageProcessor(mockMessageProcessor);
+        SQSEvent sqsEvent = createSQSEvent("messageId1", "body1", "receiptHandle1");
+
+        testInstance.handleRequest(sqsEvent, mockContext);
+        testInstance.handleRequest(sqsEvent, mockContext);
+
+        verify(mockMessageProcessor, times(2)).process(any(), any());
+    }
+
+    @Test
+    void givenDedupCacheWithContentHash_thenSameBodyWithOtherMessageIdIsNotSentAgain() throws Exception {
+        givenDedupCache(true);
+
+        testInstance.handleRequest(createSQSEvent("messageId1", "body1", "receiptHandle1"), mockContext);
+        testInstance.handleRequest(createSQSEvent("messageId2", "body1", "receiptHandle2"), mockContext);
+        testInstance.handleRequest(createSQSEvent("messageId3", "body3", "receiptHandle3"), mockContext);
+
+        verify(mockMessageProcessor, times(2)).process(any(), any());
+    }
+
+    @Test
+    void givenDedupCacheAndBulkUpload_thenRedeliveredRecordsAreNotParsedAgain() throws Exception {
+        givenBulkUpload(Map.of(DEDUP_CACHE_KEY, "1"));
+        givenParseableRecords();
+        SQSEvent sqsEvent = new SQSEvent();
+        sqsEvent.setRecords(getSqsMessages(3));
+
+        testInstance.handleRequest(sqsEvent, mockContext);
+        SQSBatchResponse response = testInstance.handleRequest(sqsEvent, mockContext);
+
+        assertThat(response.getBatchItemFailures(), empty());
+        verify(mockMessageProcessor, times(3)).parse(any(SQSEvent.SQSMessage.class));
+        verify(mockMessageProcessor, times(1)).submitBulk(any(), any());
+    }
+
+    private void givenDedupCache(boolean contentHash) {
+        final Map<String, String> defaultEnvironment = Map.of(
+            SQS_URL_KEY, "test_url",
+            BASE_TIMEOUT_KEY, "180",
+            TIMEOUT_FACTOR_KEY, "2",
+            MPARTICLE_DISABLED_KEY, "0",
+            DEDUP_CACHE_KEY, "1",
+            DEDUP_CONTENT_HASH_KEY, contentHash ? "1" : "0"
+        );
+        testInstance = new SQSLambdaHandler(defaultEnvironment, mockSqsClient, mockMetrics);
+        testInstance.setMessageProcessor(mockMessageProcessor);
+    }
+
+    private List<ChangeMessageVisibilityBatchRequestEntry> capturedVisibilityChanges(int expectedBatches) {
+        final ArgumentCaptor<ChangeMessageVisibilityBatchRequest> argumentCaptor =
+            ArgumentCaptor.forClass(ChangeMessageVisibilityBatchRequest.class);
+        verify(mockSqsClient, times(expectedBatches)).changeMessageVisibilityBatch(argumentCaptor.capture());
+        argumentCaptor.getAllValues().forEach(request -> assertThat(request.queueUrl(), is("test_url")));
+        return argumentCaptor.getAllValues().stream()
+            .flatMap(request -> request.entries().stream())
+            .toList();
+    }
+
+    private void givenBulkUpload() {
+        givenBulkUpload(Map.of());
+    }
+
+    private void givenBulkUpload(Map<String, String> extraEnvironment) {
+        final Map<String, String> defaultEnvironment = new HashMap<>(Map.of(
+            SQS_URL_KEY, "test_url",
+            BASE_TIMEOUT_KEY, "180",
+            TIMEOUT_FACTOR_KEY, "2",
+            MPARTICLE_DISABLED_KEY, "0",
+            BULK_UPLOAD_KEY, "1"
+        ));
+        defaultEnvironment.putAll(extraEnvironment);
+        testInstance = new SQSLambdaHandler(defaultEnvironment, mockSqsClient, mockMetrics);
+        testInstance.setMessageProcessor(mockMessageProcessor);
+    }
+
+    private void givenAsyncSend() {
+        final Map<String, String> defaultEnvironment = Map.of(
+            SQS_URL_KEY, "test_url",
+            BASE_TIMEOUT_KEY, "180",
+            TIMEOUT_FACTOR_KEY, "2",
+            MPARTICLE_DISABLED_KEY, "0",
+            ASYNC_SEND_KEY, "1"
+        );
+        testInstance = new SQSLambdaHandler(defaultEnvironment, mockSqsClient, mockMetrics);
+        testInstance.setMessageProcessor(mockMessageProcessor);
+    }
+
+    private void givenParseableRecords() throws Exception {
+        lenient().when(mockMessageProcessor.parse(any())).thenAnswer(invocation -> {
+            final MParticleOutgoingMessage message = new MParticleOutgoingMessage();
+            message.setAuthenticationKey("1");
+            message.setAuthenticationSecret("2");
+            return new OutgoingRecord(invocation.getArgument(0), message, new EncodedBatch(new byte[10]));
+        });
+    }
+
     private void givenDisabledMParticleClient() {
         final Map<String, String> defaultEnvironment = Map.of(
             SQS_URL_KEY, "test_url",
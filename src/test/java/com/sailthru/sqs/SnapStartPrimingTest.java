@@ -0,0 +1,108 @@
+package com.sailthru.sqs;
+
+import com.mparticle.model.Batch;
+import com.sailthru.sqs.exception.NoRetryException;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.greaterThanOrEqualTo;
+import static org.hamcrest.Matchers.is;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class SnapStartPrimingTest {
+    private final AtomicInteger restores = new AtomicInteger();
+    private MockWebServer server;
+    private ConnectionReuseListener listener;
+    private OkHttpClient client;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        server = new MockWebServer();
+        server.start();
+        listener = new ConnectionReuseListener();
+        client = new OkHttpClient.Builder().eventListener(listener).build();
+    }
+
+    @AfterEach
+    void tearDown() throws IOException {
+        server.shutdown();
+    }
+
+    @Test
+    void givenIterationsThenEverySyntheticMessageGoesThroughTheHotPathWithoutBeingSent() throws Exception {
+        final MessageProcessor dryRun = spy(new MessageProcessor(true, Batch.Environment.DEVELOPMENT));
+
+        final int primed = givenPriming(2).prime(dryRun);
+
+        assertThat(primed, is(6));
+        verify(dryRun, times(6)).parse(any());
+        verify(dryRun, times(6)).submit(any(), any());
+    }
+
+    @Test
+    void givenHotPathFailingThenPrimingStopsAndCheckpointCarriesOn() throws Exception {
+        final MessageProcessor dryRun = mock(MessageProcessor.class);
+        when(dryRun.parse(any())).thenThrow(new NoRetryException(0, "Unexpected"));
+
+        assertThat(givenPriming(2).prime(dryRun), is(0));
+    }
+
+    @Test
+    void givenRestoreThenFirstSendOpensNewConnectionAndIsTimedSinceTheRestore() throws Exception {
+        final SnapStartPriming priming = givenPriming(1);
+        call();
+        listener.drainStats();
+        assertThat(client.connectionPool().connectionCount(), is(1));
+
+        priming.beforeCheckpoint(null);
+        priming.afterRestore(null);
+        call();
+
+        assertThat(restores.get(), is(1));
+        final ConnectionReuseListener.Stats stats = listener.drainStats();
+        // the connection of the init phase was dropped
+        assertThat(stats.opened(), is(1L));
+        server.takeRequest();
+        assertThat(server.takeRequest().getSequenceNumber(), is(0));
+        assertThat(stats.firstCallNanos(), is(greaterThan(0L)));
+        assertThat(stats.sinceRestoreNanos(), is(greaterThanOrEqualTo(stats.firstCallNanos())));
+    }
+
+    @Test
+    void givenInitializationTypeThenSnapStartIsDetected() {
+        assertThat(SnapStartPriming.isSnapStart(Map.of(SnapStartPriming.INITIALIZATION_TYPE_KEY, "snap-start")),
+            is(true));
+        assertThat(SnapStartPriming.isSnapStart(Map.of(SnapStartPriming.INITIALIZATION_TYPE_KEY, "on-demand")),
+            is(false));
+        assertThat(SnapStartPriming.isSnapStart(Map.of()), is(false));
+    }
+
+    private SnapStartPriming givenPriming(final int iterations) {
+        return new SnapStartPriming(Batch.Environment.DEVELOPMENT, iterations, client.connectionPool()::evictAll,
+            listener, restores::incrementAndGet);
+    }
+
+    private void call() throws IOException {
+        server.enqueue(new MockResponse().setResponseCode(202));
+        try (Response response = client.newCall(new Request.Builder().url(server.url("/events")).build()).execute()) {
+            assertThat(response.code(), is(202));
+        }
+    }
+}
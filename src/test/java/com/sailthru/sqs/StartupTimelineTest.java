@@ -0,0 +1,59 @@
+package com.sailthru.sqs;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.is;
+
+public class StartupTimelineTest {
+    private final AtomicLong nanos = new AtomicLong();
+    private final StartupTimeline timeline = new StartupTimeline(nanos::get);
+
+    @Test
+    void givenStepsThenEachIsTimedInOrder() {
+        timeline.run("Configuration", () -> elapse(2));
+        final String built = timeline.build("Component", () -> {
+            elapse(15);
+            return "component";
+        });
+
+        assertThat(built, is(equalTo("component")));
+        assertThat(timeline.summary(), is(equalTo("Configuration 2 ms, Component 15 ms")));
+    }
+
+    @Test
+    void givenDeferredComponentThenItIsBuiltOnceOnFirstUse() {
+        final AtomicInteger builds = new AtomicInteger();
+        final Supplier<String> deferred = timeline.deferred("Client", () -> "client" + builds.incrementAndGet());
+
+        assertThat(builds.get(), is(0));
+        assertThat(timeline.summary(), is(equalTo("Client deferred")));
+        assertThat(deferred.get(), is(equalTo("client1")));
+        assertThat(deferred.get(), is(equalTo("client1")));
+        assertThat(builds.get(), is(1));
+    }
+
+    @Test
+    void givenStepFailingThenItIsStillTimed() {
+        try {
+            timeline.run("Failing", () -> {
+                elapse(3);
+                throw new IllegalStateException("Broken");
+            });
+        } catch (IllegalStateException expected) {
+            // the handler fails to initialize
+        }
+
+        assertThat(timeline.summary(), is(equalTo("Failing 3 ms")));
+    }
+
+    private void elapse(final long millis) {
+        nanos.addAndGet(TimeUnit.MILLISECONDS.toNanos(millis));
+    }
+}
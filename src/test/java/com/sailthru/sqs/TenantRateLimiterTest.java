@@ -0,0 +1,178 @@
+package com.sailthru.sqs;
+
+import com.sailthru.sqs.exception.RetryLaterException;
+import com.sailthru.sqs.message.MParticleOutgoingMessage;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.anEmptyMap;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.jupiter.api.Assertions.assertDoesNotThrow;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+public class TenantRateLimiterTest {
+    private final AtomicLong nanos = new AtomicLong();
+    private final List<Long> sleeps = new ArrayList<>();
+
+    @Test
+    void givenTokensAvailableThenMessagesPassWithoutWaiting() {
+        final TenantRateLimiter testInstance = givenLimiter(Map.of("key:key", new TenantRateLimiter.Limit(10, 3)), 0);
+
+        for (int i = 0; i < 3; i++) {
+            assertDoesNotThrow(() -> testInstance.acquire(givenMessage("key", 1), Deadline.NONE));
+        }
+
+        assertThat(sleeps.size(), is(0));
+        assertThat(testInstance.drainLimited(), is(0L));
+    }
+
+    @Test
+    void givenBucketEmptyThenRetryAfterIsTimeUntilNextToken() {
+        final TenantRateLimiter testInstance = givenLimiter(Map.of("key:key", new TenantRateLimiter.Limit(0.2, 1)), 0);
+        assertDoesNotThrow(() -> testInstance.acquire(givenMessage("key", 1), Deadline.NONE));
+
+        final RetryLaterException exception = assertThrows(RetryLaterException.class,
+            () -> testInstance.acquire(givenMessage("key", 1), Deadline.NONE));
+
+        // one token every 5 seconds
+        assertThat(exception.getRetryAfter(), is(5L));
+        assertThat(exception.getStatusCode(), is(MParticleClient.TOO_MANY_REQUESTS));
+        assertThat(testInstance.drainLimited(), is(1L));
+    }
+
+    @Test
+    void givenTokenAvailableWithinMaxWaitThenCallerWaitsForIt() {
+        final TenantRateLimiter testInstance =
+            givenLimiter(Map.of("key:key", new TenantRateLimiter.Limit(10, 1)), 500);
+        assertDoesNotThrow(() -> testInstance.acquire(givenMessage("key", 1), Deadline.NONE));
+
+        assertDoesNotThrow(() -> testInstance.acquire(givenMessage("key", 1), Deadline.NONE));
+
+        assertThat(sleeps, contains(TimeUnit.MILLISECONDS.toNanos(100)));
+    }
+
+    @Test
+    void givenTimePassedThenBucketRefills() {
+        final TenantRateLimiter testInstance = givenLimiter(Map.of("key:key", new TenantRateLimiter.Limit(1, 1)), 0);
+        assertDoesNotThrow(() -> testInstance.acquire(givenMessage("key", 1), Deadline.NONE));
+        assertThrows(RetryLaterException.class, () -> testInstance.acquire(givenMessage("key", 1), Deadline.NONE));
+
+        nanos.addAndGet(TimeUnit.SECONDS.toNanos(1));
+
+        assertDoesNotThrow(() -> testInstance.acquire(givenMessage("key", 1), Deadline.NONE));
+    }
+
+    @Test
+    void givenClientLimitThenItWinsOverKeyLimit() {
+        final TenantRateLimiter testInstance = givenLimiter(Map.of(
+            "key:key", new TenantRateLimiter.Limit(100, 100),
+            "client:42", new TenantRateLimiter.Limit(1, 1)), 0);
+        assertDoesNotThrow(() -> testInstance.acquire(givenMessage("key", 42), Deadline.NONE));
+
+        assertThrows(RetryLaterException.class, () -> testInstance.acquire(givenMessage("key", 42), Deadline.NONE));
+        assertDoesNotThrow(() -> testInstance.acquire(givenMessage("key", 7), Deadline.NONE));
+    }
+
+    @Test
+    void givenDefaultLimitThenEveryKeyGetsItsOwnBucket() {
+        final TenantRateLimiter testInstance = new TenantRateLimiter(Map.of(), new TenantRateLimiter.Limit(1, 1), 0,
+            nanos::get, sleeps::add);
+
+        assertDoesNotThrow(() -> testInstance.acquire(givenMessage("key", 1), Deadline.NONE));
+        assertDoesNotThrow(() -> testInstance.acquire(givenMessage("other", 1), Deadline.NONE));
+        assertThrows(RetryLaterException.class, () -> testInstance.acquire(givenMessage("key", 1), Deadline.NONE));
+    }
+
+    @Test
+    void givenIdleKeysThenTheirBucketsAreEvicted() {
+        final TenantRateLimiter testInstance = new TenantRateLimiter(Map.of(), new TenantRateLimiter.Limit(1, 1), 0,
+            nanos::get, sleeps::add);
+        assertDoesNotThrow(() -> testInstance.acquire(givenMessage("key", 1), Deadline.NONE));
+        assertDoesNotThrow(() -> testInstance.acquire(givenMessage("other", 1), Deadline.NONE));
+        assertThat(testInstance.trackedTenants(), is(2));
+
+        nanos.addAndGet(TimeUnit.HOURS.toNanos(2));
+        assertDoesNotThrow(() -> testInstance.acquire(givenMessage("new", 1), Deadline.NONE));
+
+        assertThat(testInstance.trackedTenants(), is(1));
+        // a new bucket is full, as the evicted one would have been
+        assertDoesNotThrow(() -> testInstance.acquire(givenMessage("key", 1), Deadline.NONE));
+    }
+
+    @Test
+    void givenNoLimitForTenantThenNeverLimited() {
+        final TenantRateLimiter testInstance = givenLimiter(Map.of("key:key", new TenantRateLimiter.Limit(1, 1)), 0);
+
+        for (int i = 0; i < 10; i++) {
+            assertDoesNotThrow(() -> testInstance.acquire(givenMessage("other", 1), Deadline.NONE));
+        }
+    }
+
+    @Test
+    void givenBulkUploadThenOneTokenIsTakenPerMessage() {
+        final TenantRateLimiter testInstance = givenLimiter(Map.of("key:key", new TenantRateLimiter.Limit(1, 3)), 0);
+        assertDoesNotThrow(() -> testInstance.acquire(givenMessage("key", 1), Deadline.NONE));
+
+        assertThrows(RetryLaterException.class, () -> testInstance.acquire(
+            List.of(givenMessage("key", 1), givenMessage("key", 1), givenMessage("key", 1)), Deadline.NONE));
+        // nothing was taken by the rejected upload
+        assertDoesNotThrow(() -> testInstance.acquire(
+            List.of(givenMessage("key", 1), givenMessage("key", 1)), Deadline.NONE));
+        assertThat(testInstance.drainLimited(), is(3L));
+    }
+
+    @Test
+    void givenBulkUploadLargerThanBurstThenItPassesOnAFullBucketAndLeavesDebt() {
+        final TenantRateLimiter testInstance = givenLimiter(Map.of("key:key", new TenantRateLimiter.Limit(1, 3)), 0);
+        final List<MParticleOutgoingMessage> upload = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            upload.add(givenMessage("key", 1));
+        }
+        assertDoesNotThrow(() -> testInstance.acquire(upload, Deadline.NONE));
+
+        final RetryLaterException exception = assertThrows(RetryLaterException.class,
+            () -> testInstance.acquire(upload, Deadline.NONE));
+        // 2 tokens of debt to pay back, then 3 to fill the bucket again
+        assertThat(exception.getRetryAfter(), is(5L));
+
+        nanos.addAndGet(TimeUnit.SECONDS.toNanos(5));
+        assertDoesNotThrow(() -> testInstance.acquire(upload, Deadline.NONE));
+    }
+
+    @Test
+    void givenUnlimitedThenDisabled() {
+        assertFalse(TenantRateLimiter.unlimited().isEnabled());
+    }
+
+    @Test
+    void givenConfigurationThenLimitsAreParsed() {
+        assertThat(TenantRateLimiter.parseLimits("client:42=50/100, key:us1-abc=2.5,bad=1,key:x=-1,key:y"),
+            equalTo(Map.of(
+                "client:42", new TenantRateLimiter.Limit(50, 100),
+                "key:us1-abc", new TenantRateLimiter.Limit(2.5, 2.5))));
+        assertThat(TenantRateLimiter.parseLimits(null), is(anEmptyMap()));
+        assertThat(TenantRateLimiter.parseLimit("0.5"), equalTo(new TenantRateLimiter.Limit(0.5, 1)));
+        assertThat(TenantRateLimiter.parseLimit("abc"), is(nullValue()));
+    }
+
+    private TenantRateLimiter givenLimiter(Map<String, TenantRateLimiter.Limit> limits, long maxWaitMillis) {
+        return new TenantRateLimiter(limits, null, maxWaitMillis, nanos::get, sleeps::add);
+    }
+
+    private MParticleOutgoingMessage givenMessage(String authenticationKey, long clientId) {
+        final MParticleOutgoingMessage message = new MParticleOutgoingMessage();
+        message.setAuthenticationKey(authenticationKey);
+        message.setClientId(clientId);
+        return message;
+    }
+}
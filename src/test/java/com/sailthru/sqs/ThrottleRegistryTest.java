@@ -0,0 +1,110 @@
+package com.sailthru.sqs;
+
+import com.sailthru.sqs.exception.RetryLaterException;
+import org.junit.jupiter.api.Test;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.junit.jupiter.api.Assertions.assertDoesNotThrow;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+public class ThrottleRegistryTest {
+    private static final ApiFactory.ClientApiDetails DETAILS =
+        new ApiFactory.ClientApiDetails("key", "secret", "https://test.url/");
+    private static final ApiFactory.ClientApiDetails OTHER_DETAILS =
+        new ApiFactory.ClientApiDetails("other", "secret", "https://test.url/");
+
+    private final MutableClock clock = new MutableClock(Instant.parse("2024-05-03T13:11:17Z"));
+    private final ThrottleRegistry testInstance = new ThrottleRegistry(clock);
+
+    @Test
+    void givenNoThrottleThenCallsAreAllowed() {
+        assertDoesNotThrow(() -> testInstance.checkNotThrottled(DETAILS));
+        assertThat(testInstance.drainSkips(), is(0L));
+    }
+
+    @Test
+    void givenThrottleThenCallsAreSkippedUntilRetryAfter() {
+        testInstance.recordThrottled(DETAILS, 30);
+        clock.advance(Duration.ofMillis(10_500));
+
+        final RetryLaterException exception =
+            assertThrows(RetryLaterException.class, () -> testInstance.checkNotThrottled(DETAILS));
+        assertThat(exception.getStatusCode(), is(429));
+        // 19.5 seconds left, rounded up
+        assertThat(exception.getRetryAfter(), is(20L));
+        assertDoesNotThrow(() -> testInstance.checkNotThrottled(OTHER_DETAILS));
+
+        clock.advance(Duration.ofMillis(19_500));
+        assertDoesNotThrow(() -> testInstance.checkNotThrottled(DETAILS));
+
+        assertThat(testInstance.drainHits(), is(1L));
+        assertThat(testInstance.drainSkips(), is(1L));
+        assertThat(testInstance.drainHits(), is(0L));
+        assertThat(testInstance.drainSkips(), is(0L));
+    }
+
+    @Test
+    void givenNoRetryAfterThenMinimumThrottleApplies() {
+        testInstance.recordThrottled(DETAILS, 0);
+
+        final RetryLaterException exception =
+            assertThrows(RetryLaterException.class, () -> testInstance.checkNotThrottled(DETAILS));
+        assertThat(exception.getRetryAfter(), is(1L));
+    }
+
+    @Test
+    void givenShorterThrottleRecordedLaterThenLongestOneIsKept() {
+        testInstance.recordThrottled(DETAILS, 60);
+        testInstance.recordThrottled(DETAILS, 5);
+
+        final RetryLaterException exception =
+            assertThrows(RetryLaterException.class, () -> testInstance.checkNotThrottled(DETAILS));
+        assertThat(exception.getRetryAfter(), is(60L));
+    }
+
+    @Test
+    void givenThrottleExpiredThenItIsPrunedWhenAnotherIsRecorded() {
+        testInstance.recordThrottled(DETAILS, 5);
+        clock.advance(Duration.ofSeconds(5));
+
+        testInstance.recordThrottled(OTHER_DETAILS, 30);
+
+        assertThat(testInstance.size(), is(1));
+        assertDoesNotThrow(() -> testInstance.checkNotThrottled(DETAILS));
+        assertThrows(RetryLaterException.class, () -> testInstance.checkNotThrottled(OTHER_DETAILS));
+    }
+
+    private static class MutableClock extends Clock {
+        private Instant instant;
+
+        MutableClock(Instant instant) {
+            this.instant = instant;
+        }
+
+        void advance(Duration duration) {
+            instant = instant.plus(duration);
+        }
+
+        @Override
+        public ZoneId getZone() {
+            return ZoneOffset.UTC;
+        }
+
+        @Override
+        public Clock withZone(ZoneId zone) {
+            return this;
+        }
+
+        @Override
+        public Instant instant() {
+            return instant;
+        }
+    }
+}
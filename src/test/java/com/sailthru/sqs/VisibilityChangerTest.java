@@ -0,0 +1,157 @@
+package com.sailthru.sqs;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import software.amazon.awssdk.services.sqs.SqsAsyncClient;
+import software.amazon.awssdk.services.sqs.model.BatchResultErrorEntry;
+import software.amazon.awssdk.services.sqs.model.ChangeMessageVisibilityBatchRequest;
+import software.amazon.awssdk.services.sqs.model.ChangeMessageVisibilityBatchResponse;
+import software.amazon.awssdk.services.sqs.model.ChangeMessageVisibilityBatchResultEntry;
+import software.amazon.awssdk.services.sqs.model.ChangeMessageVisibilityRequest;
+import software.amazon.awssdk.services.sqs.model.ChangeMessageVisibilityResponse;
+import software.amazon.awssdk.services.sqs.model.SqsException;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.IntStream;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.is;
+import static org.junit.jupiter.api.Assertions.assertDoesNotThrow;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyNoInteractions;
+import static org.mockito.Mockito.when;
+
+@ExtendWith(MockitoExtension.class)
+public class VisibilityChangerTest {
+    private static final String QUEUE_URL = "test_url";
+
+    @Mock
+    private SqsAsyncClient mockSqsClient;
+
+    private VisibilityChanger testInstance;
+
+    @BeforeEach
+    void setUp() {
+        testInstance = new VisibilityChanger(mockSqsClient, QUEUE_URL);
+    }
+
+    @Test
+    void givenNoChangesThenSqsIsNotCalled() {
+        testInstance.changeVisibility(List.of());
+
+        verifyNoInteractions(mockSqsClient);
+    }
+
+    @Test
+    void givenLazyClientThenItIsOnlyAskedForOnceThereAreChanges() {
+        final AtomicInteger requested = new AtomicInteger();
+        testInstance = new VisibilityChanger(() -> {
+            requested.incrementAndGet();
+            return mockSqsClient;
+        }, QUEUE_URL);
+        givenBatchResponse(ChangeMessageVisibilityBatchResponse.builder().build());
+
+        testInstance.changeVisibility(List.of());
+        assertThat(requested.get(), is(0));
+
+        testInstance.changeVisibility(givenChanges(1));
+        assertThat(requested.get(), is(1));
+    }
+
+    @Test
+    void givenLazyClientFailingToBuildThenChangesAreOnlyLogged() {
+        testInstance = new VisibilityChanger(() -> {
+            throw new IllegalStateException("No credentials");
+        }, QUEUE_URL);
+
+        assertDoesNotThrow(() -> testInstance.changeVisibility(givenChanges(3)));
+    }
+
+    @Test
+    void givenMoreChangesThanBatchSizeThenAllBatchesAreSent() {
+        givenBatchResponse(ChangeMessageVisibilityBatchResponse.builder().build());
+
+        testInstance.changeVisibility(givenChanges(23));
+
+        final ArgumentCaptor<ChangeMessageVisibilityBatchRequest> captor =
+            ArgumentCaptor.forClass(ChangeMessageVisibilityBatchRequest.class);
+        verify(mockSqsClient, times(3)).changeMessageVisibilityBatch(captor.capture());
+        assertThat(captor.getAllValues().stream().map(request -> request.entries().size()).toList(),
+            contains(10, 10, 3));
+        assertThat(captor.getAllValues().getFirst().queueUrl(), is(QUEUE_URL));
+        assertThat(captor.getAllValues().get(1).entries().getFirst().receiptHandle(), is("receipt10"));
+        assertThat(captor.getAllValues().get(1).entries().getFirst().visibilityTimeout(), is(110));
+    }
+
+    @Test
+    void givenServerSideEntryFailureThenEntryIsRetriedIndividually() {
+        givenBatchResponse(ChangeMessageVisibilityBatchResponse.builder()
+            .successful(ChangeMessageVisibilityBatchResultEntry.builder().id("0").build())
+            .failed(BatchResultErrorEntry.builder().id("1").senderFault(false).code("InternalError").build())
+            .build());
+        when(mockSqsClient.changeMessageVisibility(any(ChangeMessageVisibilityRequest.class)))
+            .thenReturn(CompletableFuture.completedFuture(ChangeMessageVisibilityResponse.builder().build()));
+
+        testInstance.changeVisibility(givenChanges(2));
+
+        final ArgumentCaptor<ChangeMessageVisibilityRequest> captor =
+            ArgumentCaptor.forClass(ChangeMessageVisibilityRequest.class);
+        verify(mockSqsClient).changeMessageVisibility(captor.capture());
+        assertThat(captor.getValue().receiptHandle(), is("receipt1"));
+        assertThat(captor.getValue().visibilityTimeout(), is(101));
+        assertThat(captor.getValue().queueUrl(), is(QUEUE_URL));
+    }
+
+    @Test
+    void givenSenderFaultEntryFailureThenEntryIsNotRetried() {
+        givenBatchResponse(ChangeMessageVisibilityBatchResponse.builder()
+            .failed(BatchResultErrorEntry.builder().id("0").senderFault(true).code("ReceiptHandleIsInvalid").build())
+            .build());
+
+        testInstance.changeVisibility(givenChanges(1));
+
+        verify(mockSqsClient, never()).changeMessageVisibility(any(ChangeMessageVisibilityRequest.class));
+    }
+
+    @Test
+    void givenWholeBatchFailureThenNothingIsThrown() {
+        when(mockSqsClient.changeMessageVisibilityBatch(any(ChangeMessageVisibilityBatchRequest.class)))
+            .thenReturn(CompletableFuture.failedFuture(SqsException.builder().message("unavailable").build()));
+
+        testInstance.changeVisibility(givenChanges(12));
+
+        verify(mockSqsClient, times(2)).changeMessageVisibilityBatch(any(ChangeMessageVisibilityBatchRequest.class));
+    }
+
+    @Test
+    void givenClientThrowsDirectlyThenNothingIsThrown() {
+        when(mockSqsClient.changeMessageVisibilityBatch(any(ChangeMessageVisibilityBatchRequest.class)))
+            .thenThrow(new IllegalStateException("closed"));
+
+        testInstance.changeVisibility(givenChanges(1));
+
+        verify(mockSqsClient).changeMessageVisibilityBatch(any(ChangeMessageVisibilityBatchRequest.class));
+    }
+
+    private void givenBatchResponse(ChangeMessageVisibilityBatchResponse response) {
+        when(mockSqsClient.changeMessageVisibilityBatch(any(ChangeMessageVisibilityBatchRequest.class)))
+            .thenReturn(CompletableFuture.completedFuture(response));
+    }
+
+    private static List<VisibilityChanger.VisibilityChange> givenChanges(int count) {
+        return IntStream.range(0, count)
+            .mapToObj(i -> new VisibilityChanger.VisibilityChange(
+                new FailedRequest("id" + i, 500, 0, "receipt" + i, 1), 100 + i))
+            .toList();
+    }
+}
@@ -0,0 +1,124 @@
+package com.sailthru.sqs.message;
+
+import com.mparticle.model.Batch;
+import com.mparticle.model.CustomEvent;
+import com.mparticle.model.CustomEventData;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+import static org.hamcrest.Matchers.sameInstance;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+public class BatchTranslatorTest {
+    @Test
+    void givenMessageThenTranslatedToBatch() {
+        final MParticleOutgoingMessage message = message(List.of(
+            new MParticleOutgoingMessage.Event(MParticleEventName.EMAIL_SUBSCRIBE, MParticleEventType.OTHER,
+                Map.of("list_id", "1")),
+            new MParticleOutgoingMessage.Event(MParticleEventName.EMAIL_UNSUBSCRIBE, MParticleEventType.OTHER,
+                Map.of("list_id", "2"))));
+        message.setProfileMpId(42L);
+
+        final Batch batch = BatchTranslator.translate(message, Batch.Environment.DEVELOPMENT);
+
+        assertThat(batch.getEnvironment(), is(Batch.Environment.DEVELOPMENT));
+        assertThat(batch.getUserIdentities().getEmail(), is(equalTo("user@example.com")));
+        assertThat(batch.getMpid(), is(42L));
+        assertThat(batch.getTimestampUnixtimeMs(), is(1714741877000L));
+        assertThat(batch.getEvents().size(), is(2));
+        final CustomEventData second = ((CustomEvent) batch.getEvents().get(1)).getData();
+        assertThat(second.getEventName(), is(equalTo("EMAIL_UNSUBSCRIBE")));
+        assertThat(second.getCustomEventType(), is(CustomEventData.CustomEventType.OTHER));
+        assertThat(second.getCustomAttributes(), is(equalTo(Map.of("list_id", "2"))));
+    }
+
+    @Test
+    void givenEveryEventTypeThenMappedToTheSdkTypeOfTheSameName() {
+        for (MParticleEventType type : MParticleEventType.values()) {
+            final CustomEvent event = BatchTranslator.translate(
+                new MParticleOutgoingMessage.Event(MParticleEventName.EMAIL_OPEN, type, Map.of()));
+
+            assertThat(event.getData().getCustomEventType().name(), is(equalTo(type.name())));
+        }
+    }
+
+    @Test
+    void givenEventThenAttributesPassedOnWithoutCopying() {
+        final MParticleOutgoingMessage.Event event = new MParticleOutgoingMessage.Event(
+            MParticleEventName.EMAIL_OPEN, MParticleEventType.OTHER, Map.of("list_id", "1"));
+
+        assertThat(BatchTranslator.translate(event).getData().getCustomAttributes(),
+            is(sameInstance(event.getAdditionalData())));
+    }
+
+    @Test
+    void givenNoMpIdOrTimestampThenLeftUnset() {
+        final MParticleOutgoingMessage message = message(List.of());
+        message.setTimestamp(null);
+
+        final Batch batch = BatchTranslator.translate(message, Batch.Environment.PRODUCTION);
+
+        assertThat(batch.getMpid(), is(nullValue()));
+        assertThat(batch.getTimestampUnixtimeMs(), is(nullValue()));
+        assertThat(batch.getEvents().size(), is(0));
+    }
+
+    @Test
+    void givenTranslatedBatchThenEventsCannotBeModified() {
+        final Batch batch = BatchTranslator.translate(message(List.of(new MParticleOutgoingMessage.Event(
+            MParticleEventName.EMAIL_OPEN, MParticleEventType.OTHER, Map.of()))), Batch.Environment.DEVELOPMENT);
+
+        assertThrows(UnsupportedOperationException.class, () -> batch.getEvents().clear());
+    }
+
+    @Test
+    void givenConcurrentCallersThenBatchBuiltOnceAndShared() throws Exception {
+        final MParticleOutgoingMessage message = message(List.of(new MParticleOutgoingMessage.Event(
+            MParticleEventName.EMAIL_OPEN, MParticleEventType.OTHER, Map.of())));
+        final ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            final List<Future<Batch>> batches = executor.invokeAll(List.of(
+                () -> message.toBatch(Batch.Environment.DEVELOPMENT),
+                () -> message.toBatch(Batch.Environment.DEVELOPMENT),
+                () -> message.toBatch(Batch.Environment.DEVELOPMENT),
+                () -> message.toBatch(Batch.Environment.DEVELOPMENT)));
+
+            for (Future<Batch> batch : batches) {
+                assertThat(batch.get(), is(sameInstance(batches.get(0).get())));
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    void givenProfileEmailChangedThenBatchRebuilt() {
+        final MParticleOutgoingMessage message = message(List.of());
+        final Batch before = message.toBatch(Batch.Environment.DEVELOPMENT);
+
+        message.setProfileEmail("other@example.com");
+
+        assertThat(before.getUserIdentities().getEmail(), is(equalTo("user@example.com")));
+        assertThat(message.toBatch(Batch.Environment.DEVELOPMENT).getUserIdentities().getEmail(),
+            is(equalTo("other@example.com")));
+    }
+
+    private static MParticleOutgoingMessage message(final List<MParticleOutgoingMessage.Event> events) {
+        final MParticleOutgoingMessage message = new MParticleOutgoingMessage();
+        message.setAuthenticationKey("key");
+        message.setAuthenticationSecret("secret");
+        message.setProfileEmail("user@example.com");
+        message.setTimestamp("2024-05-03T13:11:17Z[UTC]");
+        message.setEvents(events);
+        return message;
+    }
+}
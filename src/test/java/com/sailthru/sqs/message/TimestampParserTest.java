@@ -0,0 +1,85 @@
+package com.sailthru.sqs.message;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.ZonedDateTime;
+
+import static java.time.format.DateTimeFormatter.ISO_DATE_TIME;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.not;
+import static org.hamcrest.Matchers.nullValue;
+
+public class TimestampParserTest {
+    @Test
+    void givenProducerLayoutsThenParsedByHandAsTheFormatterWould() {
+        for (String timestamp : new String[]{
+            "2024-05-03T13:11:17Z[UTC]",
+            "2024-05-03T13:11:17Z",
+            "2024-05-03T13:11:17.123Z[UTC]",
+            "2024-05-03T13:11:17.1Z",
+            "2024-05-03T13:11:17.123456789Z",
+            "2024-05-03T13:11:17+02:00[Europe/Paris]",
+            "2024-05-03T13:11:17-05:30",
+            "2024-02-29T23:59:59+18:00",
+            "1969-12-31T23:59:59.999Z",
+            "2024-12-31T00:00:00-18:00[UTC]",
+        }) {
+            assertThat(timestamp, TimestampParser.parseFixedLayout(timestamp), is(viaFormatter(timestamp)));
+            assertThat(timestamp, TimestampParser.parseEpochMillis(timestamp), is(viaFormatter(timestamp)));
+        }
+    }
+
+    @Test
+    void givenDifferentDaysInARowThenCachedDateIsNotReused() {
+        assertThat(TimestampParser.parseEpochMillis("2024-05-03T00:00:00Z"), is(viaFormatter("2024-05-03T00:00:00Z")));
+        assertThat(TimestampParser.parseEpochMillis("2024-05-04T00:00:00Z"), is(viaFormatter("2024-05-04T00:00:00Z")));
+        assertThat(TimestampParser.parseEpochMillis("2024-05-03T00:00:00Z"), is(viaFormatter("2024-05-03T00:00:00Z")));
+    }
+
+    @Test
+    void givenOtherIsoLayoutsThenLeftToTheFormatter() {
+        for (String timestamp : new String[]{
+            "2024-05-03T13:11Z",
+            "2024-05-03T13:11:17+02:00:30",
+            "2024-05-03t13:11:17z",
+            "+12024-05-03T13:11:17Z",
+        }) {
+            assertThat(timestamp, TimestampParser.parseFixedLayout(timestamp), is(Long.MIN_VALUE));
+            assertThat(timestamp, TimestampParser.parseEpochMillis(timestamp), is(viaFormatter(timestamp)));
+        }
+    }
+
+    @Test
+    void givenInvalidTimestampsThenNull() {
+        for (String timestamp : new String[]{
+            "not a timestamp",
+            "2024-02-30T13:11:17Z",
+            "2024-05-03T24:11:17Z",
+            "2024-05-03T13:11:17+19:00",
+            "2024-05-03T13:11:17Z[Not/AZone]",
+            "2024-05-03T13:11:17",
+            "2024-05-03T13:11:17[Europe/Paris]",
+        }) {
+            assertThat(timestamp, TimestampParser.parseFixedLayout(timestamp), is(Long.MIN_VALUE));
+            assertThat(timestamp, TimestampParser.parseEpochMillis(timestamp), is(nullValue()));
+        }
+    }
+
+    @Test
+    void givenNoTimestampThenNull() {
+        assertThat(TimestampParser.parseEpochMillis(null), is(nullValue()));
+        assertThat(TimestampParser.parseEpochMillis(""), is(nullValue()));
+    }
+
+    @Test
+    void givenSameZoneSuffixAgainThenStillValidated() {
+        assertThat(TimestampParser.parseEpochMillis("2024-05-03T13:11:17Z[UTC]"), is(not(nullValue())));
+        assertThat(TimestampParser.parseEpochMillis("2024-05-03T13:11:17Z[UTC]"), is(not(nullValue())));
+        assertThat(TimestampParser.parseEpochMillis("2024-05-03T13:11:17Z[UTX]"), is(nullValue()));
+    }
+
+    private static Long viaFormatter(final String timestamp) {
+        return ZonedDateTime.parse(timestamp, ISO_DATE_TIME).toInstant().toEpochMilli();
+    }
+}
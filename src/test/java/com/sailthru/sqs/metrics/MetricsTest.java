@@ -10,13 +10,23 @@ import org.junit.jupiter.api.extension.ExtendWith;
 import org.mockito.Mock;
 import org.mockito.junit.jupiter.MockitoExtension;
 import software.amazon.cloudwatchlogs.emf.logger.MetricsLogger;
+import software.amazon.cloudwatchlogs.emf.model.Unit;
 
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.UUID;
 
 import static org.hamcrest.MatcherAssert.assertThat;
 import static org.hamcrest.Matchers.allOf;
 import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.containsInAnyOrder;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.hasItem;
+import static org.hamcrest.Matchers.hasItems;
+import static org.hamcrest.Matchers.hasSize;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.not;
 import static org.mockito.Mockito.when;
 
 @ExtendWith(MockitoExtension.class)
@@ -74,6 +84,61 @@ public class MetricsTest {
         );
     }
 
+    @Test
+    void givenSeveralCountsThenNonZeroMetricsSentOutTogether() {
+        final String requestId = UUID.randomUUID().toString();
+        when(context.getAwsRequestId()).thenReturn(requestId);
+
+        metrics.markAll(context, Map.of(Metrics.THROTTLE_HITS, 2L, Metrics.THROTTLE_SKIPS, 0L));
+        final var events = dummyEnvironment.getEvents();
+
+        assertThat(events, hasSize(1));
+        final DummyEnvironment.LogEvents event = events.getFirst();
+        assertThat(event.requestId(), is(requestId));
+        assertThat(event.props(), equalTo(Map.of(Metrics.THROTTLE_HITS, 2.0)));
+    }
+
+    @Test
+    void givenMeasurementsThenSentOutWithProperties() {
+        final String requestId = UUID.randomUUID().toString();
+        when(context.getAwsRequestId()).thenReturn(requestId);
+
+        metrics.measure(context, Map.of("ApiKey", "key"), List.of(
+            new Measurement(Metrics.CONCURRENCY_LIMIT, 8, Unit.COUNT),
+            new Measurement(Metrics.QUEUE_DELAY_MAX, 12.5, Unit.MILLISECONDS)));
+        final var events = dummyEnvironment.getEvents();
+
+        assertThat(events, hasSize(1));
+        final DummyEnvironment.LogEvents event = events.getFirst();
+        assertThat(event.requestId(), is(requestId));
+        assertThat(event.props(), equalTo(Map.of(
+            "ApiKey", "key",
+            Metrics.CONCURRENCY_LIMIT, 8.0,
+            Metrics.QUEUE_DELAY_MAX, 12.5)));
+        assertThat(event.metadata().metricsDefinitions().getFirst().metrics(), containsInAnyOrder(
+            new DummyEnvironment.LogMetricDefinition(Metrics.CONCURRENCY_LIMIT, "Count"),
+            new DummyEnvironment.LogMetricDefinition(Metrics.QUEUE_DELAY_MAX, "Milliseconds")));
+    }
+
+    @Test
+    void givenDimensionsThenMeasurementsAreSplitByThem() {
+        metrics.measure(null, Map.of("Host", "s2s.us2.mparticle.com"),
+            Map.of("ApiURL", "https://s2s.us2.mparticle.com/"),
+            List.of(new Measurement(Metrics.ENDPOINT_SATURATION, 0.5, Unit.NONE)));
+        final var events = dummyEnvironment.getEvents();
+
+        assertThat(events, hasSize(1));
+        final DummyEnvironment.LogEvents event = events.getFirst();
+        final Set<String> dimensions = event.metadata().metricsDefinitions().getFirst().dimensions().getFirst();
+        assertThat(dimensions, hasItems("Service", "Host"));
+        assertThat(dimensions, not(hasItem("ApiURL")));
+        assertThat(event.service(), is("mparticle-outgoing-lambda"));
+        assertThat(event.props(), equalTo(Map.of(
+            "Host", "s2s.us2.mparticle.com",
+            "ApiURL", "https://s2s.us2.mparticle.com/",
+            Metrics.ENDPOINT_SATURATION, 0.5)));
+    }
+
     private SQSEvent.SQSMessage givenStanderdMessage(String requestId, String messageId) {
         when(context.getAwsRequestId()).thenReturn(requestId);
         final SQSEvent.SQSMessage message = new SQSEvent.SQSMessage();